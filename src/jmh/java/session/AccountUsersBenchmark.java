@@ -0,0 +1,47 @@
+package session;
+
+import oracle.nosql.driver.values.MapValue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of turning a batch of users query results into the JSON that getusers sends, for accounts of
+ * several sizes.  Running the query itself needs the cloud service, so it is left out.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class AccountUsersBenchmark {
+
+    //  The number of users in the account
+    @Param({"10", "100", "1000"})
+    public int users;
+
+    private List<MapValue> results;
+
+    @Setup
+    public void setup() {
+        results = new ArrayList<>(users);
+        for (int userID = 1; userID <= users; userID++) {
+            results.add(SessionDocuments.userRow(userID));
+        }
+    }
+
+    @Benchmark
+    public byte[] appendUsers() {
+        StringBuilder json = new StringBuilder("[");
+        AccountUsersQuery.appendResults(json, results, true);
+        return(json.append(']').toString().getBytes(StandardCharsets.UTF_8));
+    }
+}
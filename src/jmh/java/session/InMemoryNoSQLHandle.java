@@ -0,0 +1,124 @@
+package session;
+
+import oracle.nosql.driver.NoSQLHandle;
+import oracle.nosql.driver.Version;
+import oracle.nosql.driver.ops.GetRequest;
+import oracle.nosql.driver.ops.GetResult;
+import oracle.nosql.driver.ops.PutRequest;
+import oracle.nosql.driver.ops.PutResult;
+import oracle.nosql.driver.values.FieldValue;
+import oracle.nosql.driver.values.IntegerValue;
+import oracle.nosql.driver.values.JsonOptions;
+import oracle.nosql.driver.values.MapValue;
+
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static session.PersistentSessionManager.COL_ACCOUNT_NUMBER;
+import static session.PersistentSessionManager.COL_USER_ID;
+
+/**
+ * A stand-in for the persistent session table that lets the request path be benchmarked without a
+ * connection to the cloud service.
+ *
+ * It is a dynamic proxy of NoSQLHandle that implements get and put, including generated user IDs and
+ * conditional puts, and fails every other operation.  Rows are kept as JSON text and parsed on every get
+ * so that, as with the real driver, each read builds a new document rather than handing back one that a
+ * previous request has modified.  Generated user IDs wrap around after {@link #MAX_USER_ID}, so that a
+ * benchmark that creates sessions replaces old rows rather than filling the heap.
+ */
+final class InMemoryNoSQLHandle {
+
+    static final int MAX_USER_ID = 1 << 16;
+
+    private final Map<SessionKey, Row> rows = new ConcurrentHashMap<>();
+    private final AtomicInteger nextUserID = new AtomicInteger();
+    private final AtomicLong nextVersion = new AtomicLong();
+    private final JsonOptions options = new JsonOptions();
+
+    private static final class Row {
+        final String json;
+        final Version version;
+
+        Row(String json, Version version) {
+            this.json = json;
+            this.version = version;
+        }
+    }
+
+    /**
+     * @return A handle backed by a new, empty table
+     */
+    static NoSQLHandle create() {
+        InMemoryNoSQLHandle table = new InMemoryNoSQLHandle();
+        return((NoSQLHandle) Proxy.newProxyInstance(NoSQLHandle.class.getClassLoader(),
+                new Class<?>[] {NoSQLHandle.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "get":
+                            return(table.get((GetRequest) args[0]));
+                        case "put":
+                            return(table.put((PutRequest) args[0]));
+                        case "close":
+                            return(null);
+                        case "hashCode":
+                            return(System.identityHashCode(proxy));
+                        case "equals":
+                            return(proxy == args[0]);
+                        case "toString":
+                            return("InMemoryNoSQLHandle");
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                }));
+    }
+
+    private GetResult get(GetRequest req) {
+        Row row = rows.get(key(req.getKey()));
+        GetResult res = new GetResult();
+        if (row != null) {
+            res.setValue(FieldValue.createFromJson(row.json, options).asMap()).setVersion(row.version);
+        }
+        return(res);
+    }
+
+    private PutResult put(PutRequest req) {
+        MapValue value = req.getValue();
+        PutResult res = new PutResult();
+        if (value.get(COL_USER_ID) == null) {
+            int userID = Math.floorMod(nextUserID.getAndIncrement(), MAX_USER_ID) + 1;
+            MapValue generated = new MapValue();
+            for (Map.Entry<String, FieldValue> column : value.entrySet()) {
+                generated.put(column.getKey(), column.getValue());
+            }
+            value = generated.put(COL_USER_ID, userID);
+            res.setGeneratedValue(new IntegerValue(userID));
+        }
+        SessionKey key = key(value);
+        Row written = new Row(value.toJson(options), newVersion());
+        if (req.getOption() == PutRequest.Option.IfVersion) {
+            Row current = rows.get(key);
+            if (current == null ||
+                    !Arrays.equals(current.version.getBytes(), req.getMatchVersion().getBytes()) ||
+                    !rows.replace(key, current, written)) {
+                return(res);
+            }
+        } else {
+            rows.put(key, written);
+        }
+        return(res.setVersion(written.version));
+    }
+
+    private Version newVersion() {
+        byte[] version = ByteBuffer.allocate(8).putLong(nextVersion.incrementAndGet()).array();
+        return(Version.createVersion(version));
+    }
+
+    private static SessionKey key(MapValue row) {
+        return(new SessionKey(row.get(COL_ACCOUNT_NUMBER).getLong(), row.get(COL_USER_ID).getInt()));
+    }
+}
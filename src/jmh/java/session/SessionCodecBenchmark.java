@@ -0,0 +1,54 @@
+package session;
+
+import oracle.nosql.driver.values.ArrayValue;
+import oracle.nosql.driver.values.FieldValue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The CPU cost of the binary storage format: the time to encode a session into session_bin on a write and
+ * to decode it on a read.  The size of the encoded session is printed when each trial starts, so that the
+ * run shows the write units saved along with the CPU spent.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SessionCodecBenchmark {
+
+    private static final int EPISODES_PER_SHOW = 10;
+
+    //  The number of shows in the session's watch history
+    @Param({"1", "10", "50"})
+    public int shows;
+
+    private ArrayValue session;
+    private byte[] encoded;
+
+    @Setup
+    public void setup() {
+        session = SessionDocuments.session(shows, EPISODES_PER_SHOW);
+        encoded = SessionCodec.encode(session);
+        int jsonLength = session.toJson().getBytes(StandardCharsets.UTF_8).length;
+        System.out.printf("%nsession of %d shows: %d bytes, %.0f%% of JSON%n", shows, encoded.length,
+                100.0 * encoded.length / jsonLength);
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return(SessionCodec.encode(session));
+    }
+
+    @Benchmark
+    public FieldValue decode() {
+        return(SessionCodec.decode(encoded));
+    }
+}
@@ -0,0 +1,84 @@
+package session;
+
+import oracle.nosql.driver.values.ArrayValue;
+import oracle.nosql.driver.values.FieldValue;
+import oracle.nosql.driver.values.IntegerValue;
+import oracle.nosql.driver.values.JsonNullValue;
+import oracle.nosql.driver.values.MapValue;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Generates persistent sessions with the shape of the sample documents in data/*.json: an array of
+ * shows, the first of which carries the user's name, each with an array of seasons of watched episodes.
+ * Every fourth show is a movie.  Documents are generated from a fixed starting point so that every run
+ * of a benchmark sees the same ones.
+ */
+final class SessionDocuments {
+
+    private static final FieldValue NULL = JsonNullValue.getInstance();
+    private static final LocalDateTime FIRST_WATCHED = LocalDateTime.of(2020, 3, 20, 18, 25, 51);
+
+    private SessionDocuments() {
+    }
+
+    /**
+     * @param shows The number of shows in the session's history
+     * @param episodesPerShow The number of episodes watched of each series
+     * @return The session document
+     */
+    static ArrayValue session(int shows, int episodesPerShow) {
+        ArrayValue session = new ArrayValue(shows);
+        LocalDateTime watched = FIRST_WATCHED;
+        for (int showID = 1; showID <= shows; showID++) {
+            MapValue show = new MapValue();
+            if (showID == 1) {
+                show.put("userName", "Julie");
+            }
+            boolean movie = (showID % 4 == 1);
+            show.put("showName", "Show " + showID)
+                    .put("showID", showID)
+                    .put("showType", movie ? "movie" : "tvseries")
+                    .put("numSeasons", movie ? NULL : intValue(3));
+            ArrayValue seasons = new ArrayValue();
+            int episodes = (movie ? 1 : episodesPerShow);
+            int perSeason = 10;
+            for (int first = 0; first < episodes; first += perSeason) {
+                MapValue season = new MapValue()
+                        .put("seasonNum", movie ? NULL : intValue(first / perSeason + 1))
+                        .put("numEpisodes", movie ? NULL : intValue(perSeason));
+                ArrayValue seasonEpisodes = new ArrayValue();
+                for (int e = first; e < Math.min(episodes, first + perSeason); e++) {
+                    int length = (movie ? 126 : 55);
+                    watched = watched.plusHours(7).plusMinutes(13);
+                    seasonEpisodes.add(new MapValue()
+                            .put("episodeID", movie ? NULL : intValue(e % perSeason + 1))
+                            .put("lengthMin", length)
+                            .put("minWatched", e % 3 == 2 ? length / 2 : length)
+                            .put("lastWatched", watched.format(DateTimeFormatter.ISO_LOCAL_DATE_TIME))
+                            .put("thumbnail", "/images/show" + showID + "episode" + (e + 1) + ".png"));
+                }
+                season.put("episodes", seasonEpisodes);
+                seasons.add(season);
+            }
+            show.put("seriesInfo", seasons);
+            session.add(show);
+        }
+        return(session);
+    }
+
+    /**
+     * @param userID The ID of the user
+     * @return The result of a users query for one user of an account
+     */
+    static MapValue userRow(int userID) {
+        return(new MapValue().put(PersistentSessionManager.COL_SESSION, new MapValue()
+                .put(PersistentSessionManager.JSON_ATTR_USER_NAME, "User " + userID)
+                .put("userID", userID)));
+    }
+
+    private static FieldValue intValue(int value) {
+        return(new IntegerValue(value));
+    }
+}
@@ -0,0 +1,116 @@
+package session;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import oracle.nosql.driver.values.ArrayValue;
+import oracle.nosql.driver.values.FieldValue;
+import oracle.nosql.driver.values.JsonOptions;
+import oracle.nosql.driver.values.MapValue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the work done by our endpoints for one request, against an in-memory table so that only
+ * the time and allocation spent in the service are measured.  Sessions have the shape of the sample data
+ * and a watch history of several sizes.
+ *
+ * Database work is run synchronously on the benchmark thread and the cache, write-behind, history
+ * compaction and admission control are all off.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SessionRequestBenchmark {
+
+    private static final long ACCOUNT = 1;
+    private static final int EPISODES_PER_SHOW = 10;
+
+    //  The number of shows in the session's watch history
+    @Param({"1", "10", "50"})
+    public int shows;
+
+    private PersistentSessionManager manager;
+    private ArrayValue session;
+    private String updateJson;
+    private int userID;
+
+    @Setup
+    public void setup() {
+        SessionMetrics metrics = new SessionMetrics(new SimpleMeterRegistry());
+        PersistentSessionManager.sessionMetrics = metrics;
+        PersistentSessionManager.databaseConnection = new MeteredHandle(InMemoryNoSQLHandle.create(), metrics);
+        PersistentSessionManager.sessionStore =
+                new NoSQLSessionStore(PersistentSessionManager.databaseConnection);
+        PersistentSessionManager.requestExecutor = new SessionRequestExecutor(false, 0, 0, metrics);
+        PersistentSessionManager.sessionCache = null;
+        PersistentSessionManager.progressCoalescer = null;
+        PersistentSessionManager.historyCompactor = null;
+        PersistentSessionManager.sessionHistory = null;
+        PersistentSessionManager.admissionController = null;
+        PersistentSessionManager.binaryStorage = false;
+        manager = new PersistentSessionManager();
+
+        session = SessionDocuments.session(shows, EPISODES_PER_SHOW);
+        String created = manager.create(ACCOUNT, "Julie").join();
+        userID = Integer.parseInt(FieldValue.createFromJson(created, new JsonOptions()).asMap()
+                .getString("userID"));
+        manager.updateSession(session.toJson(), ACCOUNT, userID, null, null).join();
+
+        //  A client reporting progress on the latest episode sends back the whole session
+        ArrayValue updated = SessionDocuments.session(shows, EPISODES_PER_SHOW);
+        ArrayValue seasons = updated.get(shows - 1).asMap().get("seriesInfo").asArray();
+        ArrayValue episodes = seasons.get(seasons.size() - 1).asMap().get("episodes").asArray();
+        episodes.get(episodes.size() - 1).asMap().put("minWatched", 1);
+        updateJson = updated.toJson();
+    }
+
+    /**
+     * The create endpoint: build the row of a new session and put it.
+     */
+    @Benchmark
+    public String create() {
+        return(manager.create(ACCOUNT, "Julie").join());
+    }
+
+    /**
+     * The row that putByPK writes for a session.
+     */
+    @Benchmark
+    public MapValue sessionRow() {
+        return(PersistentSessionManager.sessionRow(ACCOUNT, session)
+                .put(PersistentSessionManager.COL_USER_ID, userID));
+    }
+
+    /**
+     * The update endpoint: parse the merge patch, read the session, merge, write it back if it hasn't
+     * changed and serialize the result.
+     */
+    @Benchmark
+    public String updateSession() {
+        return((String) manager.updateSession(updateJson, ACCOUNT, userID, null, null).join().body());
+    }
+
+    /**
+     * The parse, merge and serialize chain of an update without the database.
+     */
+    @Benchmark
+    public String parseMergeSerialize() {
+        FieldValue patch = FieldValue.createFromJson(updateJson, new JsonOptions());
+        return(MergePatch.apply(session, patch).toJson(new JsonOptions()));
+    }
+
+    /**
+     * The getsession endpoint: read the session and serialize it.
+     */
+    @Benchmark
+    public String getSession() {
+        return((String) manager.getSessionForUser(ACCOUNT, userID, null, null, null).join().body());
+    }
+}
@@ -0,0 +1,69 @@
+package session;
+
+import io.netty.buffer.ByteBuf;
+import oracle.nosql.driver.values.ArrayValue;
+import oracle.nosql.driver.values.FieldValue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the formats getsession and update can send sessions in: the time to encode a session into the
+ * bytes of a response and to decode one from the body of a request.  The size of the encoded session in
+ * each format is printed when each trial starts, so that the run shows the bandwidth saved along with the
+ * CPU.  A JSON session is converted to UTF-8 bytes as that is what Netty will send.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SessionWireFormatBenchmark {
+
+    private static final int EPISODES_PER_SHOW = 10;
+
+    @Param({"JSON", "CBOR", "SMILE"})
+    public SessionWireFormat format;
+
+    //  The number of shows in the session's watch history
+    @Param({"1", "10", "50"})
+    public int shows;
+
+    private ArrayValue session;
+    private byte[] encoded;
+
+    @Setup
+    public void setup() {
+        session = SessionDocuments.session(shows, EPISODES_PER_SHOW);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        format.write(session, out);
+        encoded = out.toByteArray();
+        int jsonLength = session.toJson().getBytes(StandardCharsets.UTF_8).length;
+        System.out.printf("%n%s session of %d shows: %d bytes, %.0f%% of JSON%n", format, shows,
+                encoded.length, 100.0 * encoded.length / jsonLength);
+    }
+
+    @Benchmark
+    public int encode() {
+        Object body = format.encode(session);
+        if (body instanceof ByteBuf) {
+            ByteBuf buf = (ByteBuf) body;
+            int length = buf.readableBytes();
+            buf.release();
+            return(length);
+        }
+        return(((String) body).getBytes(StandardCharsets.UTF_8).length);
+    }
+
+    @Benchmark
+    public FieldValue decode() {
+        return(format.decode(encoded));
+    }
+}
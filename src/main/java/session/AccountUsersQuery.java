@@ -0,0 +1,297 @@
+package session;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import io.micronaut.http.HttpStatus;
+import io.micronaut.http.exceptions.HttpStatusException;
+import io.reactivex.Flowable;
+import oracle.nosql.driver.values.JsonOptions;
+import oracle.nosql.driver.values.MapValue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Finds the user names and IDs registered in an account.
+ *
+ * Results are produced one batch of {@link SessionStore#queryByAccount} at a time, following the
+ * continuation, so that the whole of a large account is never held in memory.  Each batch is run on the
+ * session request executor, and the stream is repeated one batch at a time until the continuation runs
+ * out, so no more than one batch is ever fetched ahead of the client.  In a binary
+ * {@link SessionWireFormat} one generator writes the whole stream, so that each batch is a continuation
+ * of the same array.
+ */
+public class AccountUsersQuery {
+
+    //  Attributes of a page of results
+    public static String PAGE_ATTR_USERS = "users";
+    public static String PAGE_ATTR_CURSOR = "cursor";
+
+    private static final byte[] OPEN_ARRAY = "[".getBytes(StandardCharsets.UTF_8);
+
+    private final SessionStore store;
+    private final SessionRequestExecutor executor;
+
+    /**
+     * @param store The store to find users in
+     * @param executor Where to run each query batch
+     */
+    public AccountUsersQuery(SessionStore store, SessionRequestExecutor executor) {
+        this.store = store;
+        this.executor = executor;
+    }
+
+    /**
+     * Stream every user in an account as a JSON array of documents of the form
+     * {"session_info": {"userName" : "julie", "userID": 28}}.
+     *
+     * @param accountNum The account number to find users for
+     * @return The JSON array, in chunks of one query batch each
+     */
+    public Flowable<byte[]> stream(long accountNum) {
+        return(stream(accountNum, SessionWireFormat.JSON));
+    }
+
+    /**
+     * Stream every user in an account as an array of documents of the form
+     * {"session_info": {"userName" : "julie", "userID": 28}}.
+     *
+     * @param accountNum The account number to find users for
+     * @param format The format to send the array in
+     * @return The array, in chunks of one query batch each
+     */
+    public Flowable<byte[]> stream(long accountNum, SessionWireFormat format) {
+        Batches batches = new Batches(accountNum, format);
+        Flowable<byte[]> open = (format.isBinary() ?
+                Flowable.fromCallable(batches::open) :
+                Flowable.just(OPEN_ARRAY));
+        Flowable<byte[]> rest = Flowable.defer(() -> executor.single(() -> nextBatch(batches)).toFlowable())
+                .repeatUntil(() -> batches.done);
+        return(open.concatWith(rest));
+    }
+
+    /**
+     * Fetch a single page of the users in an account as a JSON document of the form
+     * {"users": [...], "cursor": "..."}.  The cursor is null on the last page, otherwise it may be passed
+     * back to fetch the next page.
+     *
+     * @param accountNum The account number to find users for
+     * @param limit The maximum number of users to return
+     * @param cursor The cursor returned with the previous page, or null for the first page
+     * @return The page of users
+     * @throws HttpStatusException with a status of 400 if the limit isn't positive or the cursor isn't one
+     * that we returned
+     */
+    public Flowable<byte[]> page(long accountNum, int limit, String cursor) {
+        return(page(accountNum, limit, cursor, SessionWireFormat.JSON));
+    }
+
+    /**
+     * Fetch a single page of the users in an account as a document of the form
+     * {"users": [...], "cursor": "..."}.  The cursor is null on the last page, otherwise it may be passed
+     * back to fetch the next page.
+     *
+     * @param accountNum The account number to find users for
+     * @param limit The maximum number of users to return
+     * @param cursor The cursor returned with the previous page, or null for the first page
+     * @param format The format to send the page in
+     * @return The page of users
+     * @throws HttpStatusException with a status of 400 if the limit isn't positive or the cursor isn't one
+     * that we returned
+     */
+    public Flowable<byte[]> page(long accountNum, int limit, String cursor, SessionWireFormat format) {
+        if (limit <= 0) {
+            throw new HttpStatusException(HttpStatus.BAD_REQUEST, "Expected a positive limit but found " + limit);
+        }
+        byte[] continuation = decodeCursor(cursor);
+        return(executor.single(() -> {
+            SessionStore.UsersPage res;
+            try {
+                res = store.queryByAccount(accountNum, limit, continuation);
+            } catch (IllegalArgumentException e) {
+                if (continuation == null) {
+                    throw(e);
+                }
+                //  The cursor decoded but the store doesn't recognize it
+                throw new HttpStatusException(HttpStatus.BAD_REQUEST, "Invalid cursor");
+            }
+            byte[] next = res.getContinuation();
+            String nextCursor = (next != null ? Base64.getUrlEncoder().withoutPadding().encodeToString(next) :
+                    null);
+            if (format.isBinary()) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                try (JsonGenerator generator = format.generator(out)) {
+                    generator.writeStartObject();
+                    generator.writeFieldName(PAGE_ATTR_USERS);
+                    generator.writeStartArray();
+                    writeResults(generator, res.getUsers());
+                    generator.writeEndArray();
+                    generator.writeStringField(PAGE_ATTR_CURSOR, nextCursor);
+                    generator.writeEndObject();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return(out.toByteArray());
+            }
+            StringBuilder json = new StringBuilder("{\"").append(PAGE_ATTR_USERS).append("\":[");
+            appendResults(json, res.getUsers(), true);
+            json.append("],\"").append(PAGE_ATTR_CURSOR).append("\":");
+            if (nextCursor == null) {
+                json.append("null}");
+            } else {
+                json.append('"').append(nextCursor).append("\"}");
+            }
+            return(json.toString().getBytes(StandardCharsets.UTF_8));
+        }).toFlowable());
+    }
+
+    /**
+     * @param cursor A cursor returned with a page, or null
+     * @return The continuation of the query the cursor holds, or null if there is no cursor
+     * @throws HttpStatusException with a status of 400 if the cursor isn't valid
+     */
+    static byte[] decodeCursor(String cursor) {
+        if (cursor == null) {
+            return(null);
+        }
+        try {
+            byte[] continuation = Base64.getUrlDecoder().decode(cursor);
+            if (continuation.length > 0) {
+                return(continuation);
+            }
+        } catch (IllegalArgumentException e) {
+            //  Reported below
+        }
+        throw new HttpStatusException(HttpStatus.BAD_REQUEST, "Invalid cursor");
+    }
+
+    /**
+     * Run query batches until one returns results or the query is done.
+     *
+     * @return The results, followed by the end of the array if the query is done
+     */
+    private byte[] nextBatch(Batches batches) {
+        StringBuilder json = new StringBuilder();
+        boolean empty = batches.empty;
+        boolean found;
+        do {
+            SessionStore.UsersPage res = store.queryByAccount(batches.accountNum, 0, batches.continuation);
+            if (batches.generator != null) {
+                writeResults(batches.generator, res.getUsers());
+            } else {
+                empty = appendResults(json, res.getUsers(), empty);
+            }
+            found = !res.getUsers().isEmpty();
+            batches.continuation = res.getContinuation();
+            batches.done = (res.getContinuation() == null);
+        } while (!found && !batches.done);
+        batches.empty = empty;
+        if (batches.generator != null) {
+            return(batches.done ? batches.close() : batches.drain());
+        }
+        if (batches.done) {
+            json.append(']');
+        }
+        return(json.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Append query results to a JSON array being built.
+     *
+     * @return true if nothing has been written to the array yet
+     */
+    static boolean appendResults(StringBuilder json, List<MapValue> results, boolean empty) {
+        JsonOptions options = new JsonOptions();
+        for (MapValue result : results) {
+            if (!empty) {
+                json.append(',');
+            }
+            json.append(result.toJson(options));
+            empty = false;
+        }
+        return(empty);
+    }
+
+    /**
+     * Write query results to an array being generated in a binary format.
+     */
+    static void writeResults(JsonGenerator generator, List<MapValue> results) {
+        try {
+            for (MapValue result : results) {
+                SessionWireFormat.write(result, generator);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * The state of a streamed query, touched by only one batch at a time.
+     */
+    private static final class Batches {
+        final long accountNum;
+        //  For binary formats, the generator writing the whole array and the buffer it writes to
+        final JsonGenerator generator;
+        final ByteArrayOutputStream out;
+        byte[] continuation;
+        //  Set by the batch that finds the end, read when the stream decides whether to repeat
+        volatile boolean done;
+        //  True until the first result has been written
+        boolean empty = true;
+
+        Batches(long accountNum, SessionWireFormat format) {
+            this.accountNum = accountNum;
+            if (format.isBinary()) {
+                out = new ByteArrayOutputStream();
+                try {
+                    generator = format.generator(out);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            } else {
+                out = null;
+                generator = null;
+            }
+        }
+
+        /**
+         * @return The start of the array
+         */
+        byte[] open() throws IOException {
+            generator.writeStartArray();
+            return(drain());
+        }
+
+        /**
+         * @return The end of the array and whatever else the generator hadn't yet written
+         */
+        byte[] close() {
+            try {
+                generator.writeEndArray();
+                generator.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            byte[] chunk = out.toByteArray();
+            out.reset();
+            return(chunk);
+        }
+
+        /**
+         * @return What the generator has written since the last time
+         */
+        byte[] drain() {
+            try {
+                generator.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            byte[] chunk = out.toByteArray();
+            out.reset();
+            return(chunk);
+        }
+    }
+}
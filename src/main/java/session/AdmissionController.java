@@ -0,0 +1,441 @@
+package session;
+
+import io.micronaut.http.HttpStatus;
+import io.micronaut.http.exceptions.HttpStatusException;
+import oracle.nosql.driver.ops.TableLimits;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Client side rate limiting of the requests that reach the database, so that a burst from one account is
+ * turned away here with a 429 instead of throttling the shared table for every account.
+ *
+ * Read and write units each have a token bucket that refills at this instance's share of the table's
+ * current limits, which are re-read periodically so that changes made by {@link TableAutoScaler} or
+ * updateTableLimits are picked up.  Every operation run through {@link MeteredHandle} is charged to the
+ * buckets with the units it actually consumed, including background work such as flushing watch
+ * progress.  A request is admitted while its bucket holds more than the units reserved by requests
+ * already admitted plus a small estimate for itself.
+ *
+ * When there is not enough capacity, requests wait in a queue per account and the queues are served
+ * round robin as the buckets refill, so an account that bursts only ever delays its own requests.  A
+ * request is rejected with a 429 straight away if its account already has too many requests waiting, or
+ * once it has waited for longer than the maximum wait.
+ */
+public class AdmissionController {
+
+    //  How often waiting requests are looked at
+    public static int DISPATCH_INTERVAL_MS = 5;
+
+    /**
+     * The units that a request is expected to consume, reserved from the buckets while it runs.  These are
+     * only estimates, the buckets are charged with what each operation actually consumed.
+     */
+    public static final class Demand {
+        public static final Demand READ = new Demand(1, 0);
+        public static final Demand WRITE = new Demand(1, 1);
+
+        private final int readUnits;
+        private final int writeUnits;
+
+        /**
+         * @param readUnits The read units to reserve
+         * @param writeUnits The write units to reserve
+         */
+        public Demand(int readUnits, int writeUnits) {
+            this.readUnits = readUnits;
+            this.writeUnits = writeUnits;
+        }
+    }
+
+    private static final CompletableFuture<Void> ADMITTED = CompletableFuture.completedFuture(null);
+
+    private final TableCapacity capacity;
+    private final SessionMetrics metrics;
+    private final double share;
+    private final double burstSeconds;
+    private final long maxWaitNanos;
+    private final int maxQueuedPerAccount;
+    private final int maxQueued;
+    private ScheduledExecutorService scheduler;
+
+    //  Everything below is guarded by the lock
+    private final Object lock = new Object();
+    private final Bucket reads = new Bucket();
+    private final Bucket writes = new Bucket();
+    private final Map<Long, AccountQueue> queues = new HashMap<>();
+    private final ArrayDeque<AccountQueue> rotation = new ArrayDeque<>();
+    private boolean limited;
+    private int queued;
+    private long admitted;
+    private long delayed;
+    private long rejectedQueueFull;
+    private long rejectedTimeout;
+
+    /**
+     * @param capacity Where the table's limits are read from
+     * @param metrics Where waits and rejections are recorded
+     * @param sharePct The percentage of the table's limits that this instance may use
+     * @param burstSeconds How many seconds of units the buckets can save up
+     * @param maxWaitMillis The longest that a request may wait to be admitted
+     * @param maxQueuedPerAccount The most requests of one account that may wait at once
+     * @param maxQueued The most requests that may wait at once
+     */
+    public AdmissionController(TableCapacity capacity, SessionMetrics metrics, int sharePct,
+                               double burstSeconds, int maxWaitMillis, int maxQueuedPerAccount,
+                               int maxQueued) {
+        this.capacity = capacity;
+        this.metrics = metrics;
+        this.share = sharePct / 100.0;
+        this.burstSeconds = burstSeconds;
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        this.maxQueuedPerAccount = maxQueuedPerAccount;
+        this.maxQueued = maxQueued;
+        metrics.admissionQueue(this::getQueued);
+    }
+
+    /**
+     * Read the table's limits and start serving waiting requests.  Until the limits have been read every
+     * request is admitted.
+     *
+     * @param limitsRefreshMillis How often to re-read the table's limits
+     */
+    public synchronized void start(long limitsRefreshMillis) {
+        scheduler = Executors.newScheduledThreadPool(2, r -> {
+            Thread t = new Thread(r, "session-admission");
+            t.setDaemon(true);
+            return(t);
+        });
+        scheduler.scheduleWithFixedDelay(this::refreshLimits, 0, limitsRefreshMillis,
+                TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(() -> dispatch(System.nanoTime()), DISPATCH_INTERVAL_MS,
+                DISPATCH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop serving waiting requests, rejecting any that are still waiting.
+     */
+    public synchronized void shutdown() {
+        if (scheduler == null) {
+            return;
+        }
+        scheduler.shutdownNow();
+        List<Waiter> rejected = new ArrayList<>();
+        synchronized (lock) {
+            for (AccountQueue queue : rotation) {
+                rejected.addAll(queue.waiters);
+            }
+            queues.clear();
+            rotation.clear();
+            queued = 0;
+        }
+        for (Waiter waiter : rejected) {
+            waiter.completeExceptionally(new HttpStatusException(HttpStatus.SERVICE_UNAVAILABLE,
+                    "Shutting down"));
+        }
+    }
+
+    private void refreshLimits() {
+        try {
+            TableLimits limits = capacity.getLimits();
+            if (limits != null) {
+                setLimits(limits, System.nanoTime());
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Size the buckets from the table's limits.
+     *
+     * @param limits The table's limits
+     * @param now The current value of System.nanoTime()
+     */
+    void setLimits(TableLimits limits, long now) {
+        synchronized (lock) {
+            reads.resize(limits.getReadUnits() * share, now);
+            writes.resize(limits.getWriteUnits() * share, now);
+            limited = true;
+        }
+    }
+
+    /**
+     * Ask to run a request of an account.
+     *
+     * @param accountNum The account that the request is for
+     * @param demand The units the request is expected to consume, to be given back with
+     *               {@link #release(Demand)} when it completes
+     * @return A future that completes when the request may run, or fails with a 429 if it waited too long.
+     * Cancelling it gives up waiting.
+     * @throws HttpStatusException with a status of 429 if too many requests are already waiting
+     */
+    public CompletableFuture<Void> admit(long accountNum, Demand demand) {
+        return(admit(accountNum, demand, System.nanoTime()));
+    }
+
+    CompletableFuture<Void> admit(long accountNum, Demand demand, long now) {
+        synchronized (lock) {
+            if (!limited) {
+                reserve(demand);
+                admitted++;
+                return(ADMITTED);
+            }
+            reads.refill(now);
+            writes.refill(now);
+            //  Don't overtake requests that are already waiting
+            if (queued == 0 && tryReserve(demand)) {
+                admitted++;
+                return(ADMITTED);
+            }
+            AccountQueue queue = queues.get(accountNum);
+            if (queued < maxQueued && (queue == null || queue.waiters.size() < maxQueuedPerAccount)) {
+                if (queue == null) {
+                    queue = new AccountQueue(accountNum);
+                    queues.put(accountNum, queue);
+                    rotation.addLast(queue);
+                }
+                Waiter waiter = new Waiter(demand, now);
+                queue.waiters.addLast(waiter);
+                queued++;
+                return(waiter);
+            }
+            rejectedQueueFull++;
+        }
+        metrics.admissionRejected(false);
+        throw new HttpStatusException(HttpStatus.TOO_MANY_REQUESTS,
+                "Too many requests for account " + accountNum + ", try again later");
+    }
+
+    /**
+     * Give back the units reserved for a request that has completed.
+     *
+     * @param demand The demand that the request was admitted with
+     */
+    public void release(Demand demand) {
+        synchronized (lock) {
+            reads.reserved -= demand.readUnits;
+            writes.reserved -= demand.writeUnits;
+        }
+    }
+
+    /**
+     * Charge the buckets with the units that a database operation consumed.
+     *
+     * @param readUnits The read units consumed
+     * @param writeUnits The write units consumed
+     */
+    public void consumed(int readUnits, int writeUnits) {
+        if (readUnits == 0 && writeUnits == 0) {
+            return;
+        }
+        synchronized (lock) {
+            reads.tokens -= readUnits;
+            writes.tokens -= writeUnits;
+        }
+    }
+
+    /**
+     * Admit as many waiting requests as the buckets allow, one per account in turn, and reject those that
+     * have waited too long.
+     *
+     * @param now The current value of System.nanoTime()
+     */
+    void dispatch(long now) {
+        List<Waiter> ready = new ArrayList<>();
+        List<Waiter> expired = new ArrayList<>();
+        synchronized (lock) {
+            if (queued == 0) {
+                return;
+            }
+            reads.refill(now);
+            writes.refill(now);
+            List<AccountQueue> blocked = new ArrayList<>();
+            boolean served = true;
+            while (served && !rotation.isEmpty()) {
+                served = false;
+                for (int n = rotation.size(); n > 0; n--) {
+                    AccountQueue queue = rotation.pollFirst();
+                    while (!queue.waiters.isEmpty() && (queue.waiters.peekFirst().isDone() ||
+                            now - queue.waiters.peekFirst().enqueued > maxWaitNanos)) {
+                        Waiter waiter = queue.waiters.pollFirst();
+                        if (!waiter.isDone()) {
+                            expired.add(waiter);
+                        }
+                        queued--;
+                    }
+                    if (!queue.waiters.isEmpty()) {
+                        if (tryReserve(queue.waiters.peekFirst().demand)) {
+                            ready.add(queue.waiters.pollFirst());
+                            queued--;
+                            served = true;
+                        } else {
+                            blocked.add(queue);
+                            continue;
+                        }
+                    }
+                    if (queue.waiters.isEmpty()) {
+                        queues.remove(queue.accountNum);
+                    } else {
+                        rotation.addLast(queue);
+                    }
+                }
+            }
+            //  Accounts that couldn't be served keep their place at the front for next time
+            for (int i = blocked.size() - 1; i >= 0; i--) {
+                rotation.addFirst(blocked.get(i));
+            }
+            admitted += ready.size();
+            delayed += ready.size();
+            rejectedTimeout += expired.size();
+        }
+        for (Waiter waiter : expired) {
+            metrics.admissionRejected(true);
+            waiter.completeExceptionally(new HttpStatusException(HttpStatus.TOO_MANY_REQUESTS,
+                    "Timed out waiting for database capacity, try again later"));
+        }
+        for (Waiter waiter : ready) {
+            metrics.admissionWait(now - waiter.enqueued);
+            if (!waiter.complete(null)) {
+                //  The caller gave up waiting
+                release(waiter.demand);
+            }
+        }
+    }
+
+    private boolean tryReserve(Demand demand) {
+        if (!reads.available(demand.readUnits) || !writes.available(demand.writeUnits)) {
+            return(false);
+        }
+        reserve(demand);
+        return(true);
+    }
+
+    private void reserve(Demand demand) {
+        reads.reserved += demand.readUnits;
+        writes.reserved += demand.writeUnits;
+    }
+
+    /**
+     * @return The number of requests waiting to be admitted
+     */
+    public int getQueued() {
+        synchronized (lock) {
+            return(queued);
+        }
+    }
+
+    /**
+     * @return The number of requests admitted, with or without waiting
+     */
+    public long getAdmitted() {
+        synchronized (lock) {
+            return(admitted);
+        }
+    }
+
+    /**
+     * @return The number of requests that were admitted after waiting
+     */
+    public long getDelayed() {
+        synchronized (lock) {
+            return(delayed);
+        }
+    }
+
+    /**
+     * @return The number of requests rejected because too many were already waiting
+     */
+    public long getRejectedQueueFull() {
+        synchronized (lock) {
+            return(rejectedQueueFull);
+        }
+    }
+
+    /**
+     * @return The number of requests rejected because they waited too long
+     */
+    public long getRejectedTimeout() {
+        synchronized (lock) {
+            return(rejectedTimeout);
+        }
+    }
+
+    /**
+     * @return The read units per second that requests are admitted at, or 0 if the limits are not known
+     */
+    public double getReadUnitsPerSecond() {
+        synchronized (lock) {
+            return(reads.rate);
+        }
+    }
+
+    /**
+     * @return The write units per second that requests are admitted at, or 0 if the limits are not known
+     */
+    public double getWriteUnitsPerSecond() {
+        synchronized (lock) {
+            return(writes.rate);
+        }
+    }
+
+    /**
+     * A token bucket of read or write units.  Tokens may go negative when operations consume more than
+     * was estimated, nothing more is admitted until the bucket has refilled.
+     */
+    private final class Bucket {
+        double rate;
+        double burst;
+        double tokens;
+        long reserved;
+        long lastRefill;
+
+        void resize(double unitsPerSecond, long now) {
+            refill(now);
+            boolean first = (burst == 0);
+            rate = unitsPerSecond;
+            //  Always room for at least one request
+            burst = Math.max(1, unitsPerSecond * burstSeconds);
+            tokens = (first ? burst : Math.min(tokens, burst));
+            lastRefill = now;
+        }
+
+        void refill(long now) {
+            if (rate > 0) {
+                tokens = Math.min(burst, tokens + rate * (now - lastRefill) / 1e9);
+            }
+            lastRefill = now;
+        }
+
+        boolean available(int units) {
+            return(units == 0 || tokens - reserved >= units);
+        }
+    }
+
+    private static final class AccountQueue {
+        final long accountNum;
+        final ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+
+        AccountQueue(long accountNum) {
+            this.accountNum = accountNum;
+        }
+    }
+
+    private static final class Waiter extends CompletableFuture<Void> {
+        final Demand demand;
+        final long enqueued;
+
+        Waiter(Demand demand, long enqueued) {
+            this.demand = demand;
+            this.enqueued = enqueued;
+        }
+    }
+}
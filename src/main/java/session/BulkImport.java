@@ -0,0 +1,136 @@
+package session;
+
+import io.micronaut.context.ApplicationContext;
+import io.micronaut.context.env.Environment;
+import oracle.nosql.driver.ops.PutRequest;
+import oracle.nosql.driver.ops.TableLimits;
+import oracle.nosql.driver.ops.WriteMultipleRequest;
+import oracle.nosql.driver.ops.WriteMultipleResult;
+import oracle.nosql.driver.values.MapValue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static session.PersistentSessionManager.TABLE_NAME;
+
+/**
+ * Command line import of session export files, such as those in data/, into the persistent session
+ * table, using the connection settings in application.yml.
+ *
+ * Usage: BulkImport [--writers N] [--write-units-pct P] [--checkpoint FILE] [--report-ms M] FILE|DIR...
+ *
+ * Directories are imported file by file in name order.  Writes are paced to the given percentage of the
+ * table's write units.  With a checkpoint file, running the same command again after it stopped carries
+ * on where it left off.
+ */
+public class BulkImport {
+
+    public static int DEFAULT_WRITERS = 4;
+    public static int DEFAULT_WRITE_UNITS_PCT = 100;
+    public static int DEFAULT_REPORT_MS = 5000;
+
+    public static void main(String[] args) {
+        int writers = DEFAULT_WRITERS;
+        int writeUnitsPct = DEFAULT_WRITE_UNITS_PCT;
+        int reportMs = DEFAULT_REPORT_MS;
+        Path checkpoint = null;
+        List<Path> files = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--writers":
+                        writers = Integer.parseInt(args[++i]);
+                        break;
+                    case "--write-units-pct":
+                        writeUnitsPct = Integer.parseInt(args[++i]);
+                        break;
+                    case "--checkpoint":
+                        checkpoint = Paths.get(args[++i]);
+                        break;
+                    case "--report-ms":
+                        reportMs = Integer.parseInt(args[++i]);
+                        break;
+                    default:
+                        files.addAll(expand(Paths.get(args[i])));
+                }
+            }
+        } catch (RuntimeException | IOException e) {
+            files.clear();
+        }
+        if (files.isEmpty() || writers <= 0) {
+            System.err.println("Usage: BulkImport [--writers N] [--write-units-pct P] [--checkpoint FILE] " +
+                    "[--report-ms M] FILE|DIR...");
+            System.exit(2);
+        }
+
+        try (ApplicationContext context = ApplicationContext.run()) {
+            Environment env = context.getEnvironment();
+            Map<String, Object> configProperties = env.getProperties("micronaut.application");
+            PersistentSessionManager.binaryStorage = PersistentSessionManager.STORAGE_FORMAT_BINARY
+                    .equalsIgnoreCase(String.valueOf(configProperties.getOrDefault(
+                            PersistentSessionManager.ENV_PROPERTY_STORAGE_FORMAT,
+                            PersistentSessionManager.STORAGE_FORMAT_JSON)));
+            MeteredHandle handle = new MeteredHandle(PersistentSessionManager.connectToNDCS(env),
+                    PersistentSessionManager.sessionMetrics);
+            try {
+                PersistentSessionManager.createTable(handle.getHandle());
+                if (PersistentSessionManager.binaryStorage) {
+                    PersistentSessionManager.addBinarySessionColumn(handle.getHandle());
+                }
+                TableLimits limits = new NoSQLTableCapacity(handle, TABLE_NAME).getLimits();
+                double writeUnitsPerSecond = (limits != null ?
+                        limits.getWriteUnits() * writeUnitsPct / 100.0 :
+                        0);
+                System.out.println("Importing " + files.size() + " files with " + writers +
+                        " writers at up to " + writeUnitsPerSecond + " write units a second");
+                new SessionBulkLoader((accountNum, rows) -> writeRows(handle, accountNum, rows), writers,
+                        writeUnitsPerSecond, checkpoint).load(files, reportMs);
+            } finally {
+                handle.close();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Write the rows of an account as one atomic request.
+     */
+    private static int writeRows(MeteredHandle handle, long accountNum, List<MapValue> rows) {
+        WriteMultipleRequest req = new WriteMultipleRequest();
+        for (MapValue row : rows) {
+            req.add(new PutRequest().setTableName(TABLE_NAME).setValue(row), true);
+        }
+        WriteMultipleResult res = handle.writeMultiple(accountNum, req);
+        if (!res.getSuccess()) {
+            throw new IllegalStateException("Failed to write row " + res.getFailedOperationIndex() +
+                    " of a batch of " + rows.size() + " for account " + accountNum);
+        }
+        return(res.getWriteUnits());
+    }
+
+    /**
+     * @return The file, or the regular files in the directory in name order
+     */
+    static List<Path> expand(Path path) throws IOException {
+        if (!Files.isDirectory(path)) {
+            List<Path> ret = new ArrayList<>();
+            ret.add(path);
+            return(ret);
+        }
+        try (Stream<Path> children = Files.list(path)) {
+            return(children.filter(Files::isRegularFile)
+                    .filter(p -> p.toString().endsWith(".json") || p.toString().endsWith(".jsonl"))
+                    .sorted()
+                    .collect(Collectors.toList()));
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package session;
+
+import oracle.nosql.driver.values.ArrayValue;
+import oracle.nosql.driver.values.MapValue;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for optimistic session updates that lost a race with another writer, kept in total and per
+ * account so that contention on a household's sessions can be seen.
+ *
+ * Accounts are counted with the space-saving algorithm so that memory stays bounded however many accounts
+ * see a conflict.  At most maxTrackedAccounts accounts have a counter.  When a conflict comes in for an
+ * account without one, the account with the fewest conflicts gives up its counter to the new account, which
+ * starts from the count it took over.  An account's count can therefore overstate its conflicts by up to
+ * the count it took over, but never understates them, and any account with more than 1/maxTrackedAccounts
+ * of all conflicts is sure to be tracked.
+ */
+public class ConflictStats {
+
+    public static int MAX_TRACKED_ACCOUNTS = 10000;
+
+    //  Fewest conflicts first, the account number breaks ties so that no two counters are equal
+    private static final Comparator<Counter> BY_COUNT =
+            Comparator.comparingLong((Counter c) -> c.count).thenComparingLong(c -> c.accountNum);
+
+    private final int maxTrackedAccounts;
+    private final LongAdder conflicts = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder exhausted = new LongAdder();
+
+    //  Guarded by this
+    private final Map<Long, Counter> counters = new HashMap<>();
+    private final TreeSet<Counter> byCount = new TreeSet<>(BY_COUNT);
+
+    /**
+     * An account's conflicts, and how many of them may have belonged to the accounts it took over from.
+     */
+    private static final class Counter {
+        final long accountNum;
+        long count;
+        long overcount;
+
+        Counter(long accountNum, long count) {
+            this.accountNum = accountNum;
+            this.count = count;
+            this.overcount = count;
+        }
+    }
+
+    public ConflictStats() {
+        this(MAX_TRACKED_ACCOUNTS);
+    }
+
+    /**
+     * @param maxTrackedAccounts The most accounts to count conflicts for
+     */
+    public ConflictStats(int maxTrackedAccounts) {
+        this.maxTrackedAccounts = Math.max(1, maxTrackedAccounts);
+    }
+
+    /**
+     * Record that a conditional write failed because the row had changed since it was read.
+     *
+     * @param accountNum The account that the session belongs to
+     */
+    public void conflict(long accountNum) {
+        conflicts.increment();
+        synchronized (this) {
+            Counter counter = counters.get(accountNum);
+            if (counter != null) {
+                //  The set is ordered by count, take the counter out while it changes
+                byCount.remove(counter);
+            } else if (counters.size() < maxTrackedAccounts) {
+                counter = new Counter(accountNum, 0);
+                counters.put(accountNum, counter);
+            } else {
+                Counter evicted = byCount.pollFirst();
+                counters.remove(evicted.accountNum);
+                counter = new Counter(accountNum, evicted.count);
+                counters.put(accountNum, counter);
+            }
+            counter.count++;
+            byCount.add(counter);
+        }
+    }
+
+    /**
+     * Record that an update was re-read and re-applied after a conflict.
+     */
+    public void retry() {
+        retries.increment();
+    }
+
+    /**
+     * Record that an update gave up after using all of its retries.
+     */
+    public void exhausted() {
+        exhausted.increment();
+    }
+
+    public long getConflicts() {
+        return conflicts.sum();
+    }
+
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    public long getExhausted() {
+        return exhausted.sum();
+    }
+
+    /**
+     * @param limit The maximum number of accounts to return
+     * @return The accounts with the most conflicts, most contended first, as documents of the form
+     * {"accountNum": 3, "conflicts": 12, "minConflicts": 9} where conflicts may be overstated and
+     * minConflicts is the number the account is sure to have had
+     */
+    public synchronized ArrayValue getMostContended(int limit) {
+        ArrayValue ret = new ArrayValue();
+        Iterator<Counter> mostFirst = byCount.descendingIterator();
+        for (int i = 0; i < limit && mostFirst.hasNext(); i++) {
+            Counter counter = mostFirst.next();
+            ret.add(new MapValue().put("accountNum", counter.accountNum)
+                    .put("conflicts", counter.count)
+                    .put("minConflicts", counter.count - counter.overcount));
+        }
+        return(ret);
+    }
+}
@@ -0,0 +1,44 @@
+package session;
+
+import oracle.nosql.driver.RetryHandler;
+import oracle.nosql.driver.RetryableException;
+import oracle.nosql.driver.ThrottlingException;
+import oracle.nosql.driver.ops.Request;
+
+/**
+ * A RetryHandler that counts the retries the driver makes in our metrics and otherwise behaves exactly
+ * like the handler it wraps.
+ */
+public class CountingRetryHandler implements RetryHandler {
+
+    private final RetryHandler delegate;
+    private final SessionMetrics metrics;
+
+    /**
+     * @param delegate Decides whether and when to retry
+     * @param metrics Where retries are counted
+     */
+    public CountingRetryHandler(RetryHandler delegate, SessionMetrics metrics) {
+        this.delegate = delegate;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public int getNumRetries() {
+        return(delegate.getNumRetries());
+    }
+
+    @Override
+    public boolean doRetry(Request request, int numRetried, RetryableException re) {
+        boolean retry = delegate.doRetry(request, numRetried, re);
+        if (retry) {
+            metrics.retry(re instanceof ThrottlingException);
+        }
+        return(retry);
+    }
+
+    @Override
+    public void delay(Request request, int numRetried, RetryableException re) {
+        delegate.delay(request, numRetried, re);
+    }
+}
@@ -0,0 +1,258 @@
+package session;
+
+import oracle.nosql.driver.Consistency;
+import oracle.nosql.driver.Version;
+import oracle.nosql.driver.values.FieldValue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Cuts the tail latency of EVENTUAL reads by hedging them: if a read hasn't answered by the time 95% of
+ * recent reads had, a second read is sent, which is likely to be served by another replica, and whichever
+ * answers first is used.  Everything else is passed straight through to the store.
+ *
+ * Hedges cost read units, so no more than maxHedgePct of reads are hedged, and the delay is never less
+ * than minDelayMillis.  The 95th percentile is computed from a ring of the latencies of recent reads, and
+ * recomputed every few hundred reads.  When the hedge wins, the time it saved is recorded once the first
+ * read finishes.  ABSOLUTE reads are never hedged, they are all served by the same master.
+ *
+ * The driver's reads block, so a read can only be abandoned for its hedge if another thread is waiting on
+ * it.  The reads that are raced run on the given executor, which should be bounded.  When no hedge can be
+ * sent, because the hedge budget is spent or the executor is full, the read is run on the calling thread,
+ * and a read that was handed off is not hedged if the executor has no room for the hedge.
+ */
+public class HedgedSessionStore implements SessionStore {
+
+    private static final int SAMPLES = 1024;
+    private static final int RECOMPUTE_EVERY = 256;
+
+    private final SessionStore store;
+    private final ExecutorService executor;
+    private final SessionMetrics metrics;
+    private final int maxHedgePct;
+    private final long minDelayNanos;
+
+    private final long[] samples = new long[SAMPLES];
+    private final AtomicInteger sampleCount = new AtomicInteger();
+    private volatile long delayNanos;
+
+    private final LongAdder reads = new LongAdder();
+    private final LongAdder hedges = new LongAdder();
+    private final LongAdder hedgeWins = new LongAdder();
+    private final LongAdder hedgesSkipped = new LongAdder();
+    private final LongAdder savedNanos = new LongAdder();
+
+    /**
+     * @param store The store to read from
+     * @param executor Where reads are run while they are being raced, bounded so that it rejects reads
+     *                 once it is full
+     * @param metrics Where to record hedges and the time they saved
+     * @param maxHedgePct The most reads, in percent, that may be hedged
+     * @param minDelayMillis The least time to wait before hedging a read, also the delay until enough
+     *                       reads have been seen to know the 95th percentile
+     */
+    public HedgedSessionStore(SessionStore store, ExecutorService executor, SessionMetrics metrics,
+                              int maxHedgePct, long minDelayMillis) {
+        this.store = store;
+        this.executor = executor;
+        this.metrics = metrics;
+        this.maxHedgePct = maxHedgePct;
+        this.minDelayNanos = TimeUnit.MILLISECONDS.toNanos(minDelayMillis);
+        this.delayNanos = minDelayNanos;
+    }
+
+    @Override
+    public SessionRecord get(long accountNum, int userID, Consistency consistency) {
+        if (consistency != Consistency.EVENTUAL) {
+            return(store.get(accountNum, userID, consistency));
+        }
+        reads.increment();
+        Supplier<SessionRecord> read = OperationDeadlines.propagate(() -> timed(accountNum, userID));
+        if (!canHedge()) {
+            return(read.get());
+        }
+        CompletableFuture<SessionRecord> first;
+        try {
+            first = CompletableFuture.supplyAsync(read, executor);
+        } catch (RejectedExecutionException e) {
+            hedgesSkipped.increment();
+            return(read.get());
+        }
+        try {
+            return(first.get(delayNanos, TimeUnit.NANOSECONDS));
+        } catch (TimeoutException e) {
+            if (!canHedge()) {
+                return(await(first));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while reading a session", e);
+        } catch (ExecutionException e) {
+            throw(unwrap(e));
+        }
+
+        CompletableFuture<SessionRecord> second;
+        try {
+            second = CompletableFuture.supplyAsync(read, executor);
+        } catch (RejectedExecutionException e) {
+            hedgesSkipped.increment();
+            return(await(first));
+        }
+        hedges.increment();
+        CompletableFuture<SessionRecord> winner = new CompletableFuture<>();
+        AtomicInteger failed = new AtomicInteger();
+        for (CompletableFuture<SessionRecord> attempt : Arrays.asList(first, second)) {
+            attempt.whenComplete((record, error) -> {
+                if (error == null) {
+                    winner.complete(record);
+                } else if (failed.incrementAndGet() == 2) {
+                    winner.completeExceptionally(error);
+                }
+            });
+        }
+        SessionRecord record = await(winner);
+        if (!first.isDone()) {
+            hedgeWins.increment();
+            long wonAt = System.nanoTime();
+            first.whenComplete((r, error) -> {
+                long saved = System.nanoTime() - wonAt;
+                savedNanos.add(saved);
+                metrics.hedge(true, saved);
+            });
+        } else {
+            metrics.hedge(false, 0);
+        }
+        return(record);
+    }
+
+    /**
+     * @return Whether hedging another read would stay within maxHedgePct of reads
+     */
+    private boolean canHedge() {
+        return(hedges.sum() * 100 < (long) maxHedgePct * reads.sum());
+    }
+
+    /**
+     * Read a session, recording how long it took.
+     */
+    private SessionRecord timed(long accountNum, int userID) {
+        long start = System.nanoTime();
+        SessionRecord record = store.get(accountNum, userID, Consistency.EVENTUAL);
+        sample(System.nanoTime() - start);
+        return(record);
+    }
+
+    private void sample(long nanos) {
+        int n = sampleCount.getAndIncrement();
+        samples[n & (SAMPLES - 1)] = nanos;
+        if (n >= SAMPLES && n % RECOMPUTE_EVERY == 0) {
+            long[] sorted = samples.clone();
+            Arrays.sort(sorted);
+            delayNanos = Math.max(minDelayNanos, sorted[SAMPLES * 95 / 100]);
+        }
+    }
+
+    private static SessionRecord await(CompletableFuture<SessionRecord> future) {
+        try {
+            return(future.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while reading a session", e);
+        } catch (ExecutionException e) {
+            throw(unwrap(e));
+        }
+    }
+
+    private static RuntimeException unwrap(ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof RuntimeException) {
+            return((RuntimeException) cause);
+        }
+        return(new IllegalStateException(cause));
+    }
+
+    @Override
+    public WriteResult create(long accountNum, FieldValue session) {
+        return(store.create(accountNum, session));
+    }
+
+    @Override
+    public Version put(long accountNum, int userID, FieldValue session) {
+        return(store.put(accountNum, userID, session));
+    }
+
+    @Override
+    public Version putIfVersion(long accountNum, int userID, FieldValue session, Version matchVersion) {
+        return(store.putIfVersion(accountNum, userID, session, matchVersion));
+    }
+
+    @Override
+    public UsersPage queryByAccount(long accountNum, int limit, byte[] continuation) {
+        return(store.queryByAccount(accountNum, limit, continuation));
+    }
+
+    @Override
+    public List<WriteResult> batch(long accountNum, List<Integer> userIDs, List<FieldValue> sessions) {
+        return(store.batch(accountNum, userIDs, sessions));
+    }
+
+    @Override
+    public List<TouchResult> touch(long accountNum, List<Integer> userIDs, List<SessionRecord> records) {
+        return(store.touch(accountNum, userIDs, records));
+    }
+
+    /**
+     * @return The current delay before a read is hedged, in milliseconds
+     */
+    public double getDelayMillis() {
+        return delayNanos / 1e6;
+    }
+
+    public long getReads() {
+        return reads.sum();
+    }
+
+    public long getHedges() {
+        return hedges.sum();
+    }
+
+    /**
+     * @return The number of hedged reads that were answered by the hedge
+     */
+    public long getHedgeWins() {
+        return hedgeWins.sum();
+    }
+
+    /**
+     * @return The number of reads that weren't raced, or weren't hedged, because the executor was full
+     */
+    public long getHedgesSkipped() {
+        return hedgesSkipped.sum();
+    }
+
+    /**
+     * @return The fraction of reads that were hedged
+     */
+    public double getHedgeRate() {
+        long n = reads.sum();
+        return(n == 0 ? 0 : (double) hedges.sum() / n);
+    }
+
+    /**
+     * @return How much sooner, on average, a hedge that won answered than the read it hedged
+     */
+    public double getAverageSavedMillis() {
+        long wins = hedgeWins.sum();
+        return(wins == 0 ? 0 : savedNanos.sum() / 1e6 / wins);
+    }
+}
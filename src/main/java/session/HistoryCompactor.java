@@ -0,0 +1,151 @@
+package session;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Background job that moves watch history out of sessions that have been written to.
+ *
+ * Sessions are marked when they are updated and compacted on a timer thread, away from the requests that
+ * wrote them.  A session that changes while it is being compacted is marked again and compacted on the
+ * next run.  At most maxPendingSessions are remembered, sessions marked beyond that are compacted after
+ * their next update instead.
+ */
+public class HistoryCompactor {
+
+    /**
+     * Does the compaction of a single session.
+     */
+    public interface Compaction {
+        /**
+         * Move the watch history out of a session.
+         *
+         * @param accountNum The account number owning the session
+         * @param userID The ID of the user in the account that this session belongs to
+         * @return The number of history entries moved, or -1 if the session changed and should be
+         * compacted again
+         */
+        int compact(long accountNum, int userID);
+    }
+
+    private final Compaction compaction;
+    private final int maxPendingSessions;
+    private final Set<SessionKey> pending = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService compactor;
+
+    private final LongAdder sessionsCompacted = new LongAdder();
+    private final LongAdder entriesMoved = new LongAdder();
+    private final LongAdder compactionFailures = new LongAdder();
+    private final LongAdder sessionsDropped = new LongAdder();
+
+    /**
+     * @param compaction Compacts each marked session
+     * @param intervalMillis How often marked sessions are compacted
+     * @param maxPendingSessions The most sessions that may be waiting for compaction
+     */
+    public HistoryCompactor(Compaction compaction, long intervalMillis, int maxPendingSessions) {
+        this.compaction = compaction;
+        this.maxPendingSessions = maxPendingSessions;
+        compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "session-history-compactor");
+            t.setDaemon(true);
+            return(t);
+        });
+        compactor.scheduleWithFixedDelay(this::compactPending, intervalMillis, intervalMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Mark a session as needing compaction.
+     *
+     * @param accountNum The account number owning the session
+     * @param userID The ID of the user in the account that this session belongs to
+     */
+    public void markDirty(long accountNum, int userID) {
+        if (pending.size() >= maxPendingSessions) {
+            sessionsDropped.increment();
+            return;
+        }
+        pending.add(new SessionKey(accountNum, userID));
+    }
+
+    /**
+     * Stop compacting.  Sessions still waiting are compacted after their next update.
+     */
+    public void shutdown() {
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Compact every session that is waiting.
+     */
+    void compactPending() {
+        List<SessionKey> changed = new ArrayList<>();
+        Iterator<SessionKey> keys = pending.iterator();
+        while (keys.hasNext() && !compactor.isShutdown()) {
+            SessionKey key = keys.next();
+            keys.remove();
+            try {
+                int moved = compaction.compact(key.getAccountNum(), key.getUserID());
+                if (moved < 0) {
+                    changed.add(key);
+                    continue;
+                }
+                sessionsCompacted.increment();
+                entriesMoved.add(moved);
+            } catch (Exception e) {
+                compactionFailures.increment();
+                e.printStackTrace();
+            }
+        }
+        //  Sessions that changed under us wait for the next run
+        pending.addAll(changed);
+    }
+
+    /**
+     * @return The number of sessions compacted
+     */
+    public long getSessionsCompacted() {
+        return(sessionsCompacted.sum());
+    }
+
+    /**
+     * @return The number of history entries moved out of sessions
+     */
+    public long getEntriesMoved() {
+        return(entriesMoved.sum());
+    }
+
+    /**
+     * @return The number of compactions that failed
+     */
+    public long getCompactionFailures() {
+        return(compactionFailures.sum());
+    }
+
+    /**
+     * @return The number of sessions not marked because too many were already waiting
+     */
+    public long getSessionsDropped() {
+        return(sessionsDropped.sum());
+    }
+
+    /**
+     * @return The number of sessions waiting for compaction
+     */
+    public int getPendingSessions() {
+        return(pending.size());
+    }
+}
@@ -0,0 +1,148 @@
+package session;
+
+import oracle.nosql.driver.values.FieldValue;
+import oracle.nosql.driver.values.JsonNullValue;
+import oracle.nosql.driver.values.MapValue;
+
+import java.util.Map;
+
+/**
+ * Operations on RFC 7386 JSON merge patches held as NoSQL driver values.
+ *
+ * Patches are applied directly to the MapValue read from the database, so an update never has to turn
+ * the stored session into a JSON string and parse it again.  Application is copy-on-write: the objects on
+ * the path of a patch member are copied and everything else is shared with the target, so a target held
+ * in the session cache is never modified.  Each copy is shallow but holds every member of the object it
+ * copies, so allocation grows with the width of the objects a patch touches as well as with the patch.
+ * A patch that isn't an object, such as the whole array of shows that clients send today, replaces the
+ * target without copying anything.
+ */
+public final class MergePatch {
+
+    private MergePatch() {
+    }
+
+    /**
+     * Apply a merge patch to a value.
+     *
+     * @param target The value to patch, may be null if there is no value.  It is not modified.
+     * @param patch The merge patch to apply
+     * @return The patched value
+     */
+    public static FieldValue apply(FieldValue target, FieldValue patch) {
+        if (!patch.isMap()) {
+            return(patch);
+        }
+        MapValue patchMap = patch.asMap();
+        MapValue result;
+        if (target != null && target.isMap()) {
+            MapValue targetMap = target.asMap();
+            result = new MapValue(targetMap.size() + patchMap.size());
+            for (Map.Entry<String, FieldValue> entry : targetMap.entrySet()) {
+                result.put(entry.getKey(), entry.getValue());
+            }
+        } else {
+            result = new MapValue(patchMap.size());
+        }
+        for (Map.Entry<String, FieldValue> entry : patchMap.entrySet()) {
+            FieldValue value = entry.getValue();
+            if (value.isJsonNull() || value.isNull()) {
+                result.remove(entry.getKey());
+            } else {
+                result.put(entry.getKey(), apply(result.get(entry.getKey()), value));
+            }
+        }
+        return(result);
+    }
+
+    /**
+     * Check whether two merge patches can be combined into a single patch with the same effect as applying
+     * first and then second.  They cannot when second merges an object into a member that first replaces
+     * with a non-object or deletes, because a merge patch has no way to say "replace with this object".
+     *
+     * @param first The patch that would be applied first
+     * @param second The patch that would be applied second
+     * @return true if {@link #compose(FieldValue, FieldValue)} may be used on these patches
+     */
+    public static boolean canCompose(FieldValue first, FieldValue second) {
+        if (!second.isMap()) {
+            return(true);
+        }
+        if (!first.isMap()) {
+            return(false);
+        }
+        MapValue firstMap = first.asMap();
+        for (Map.Entry<String, FieldValue> entry : second.asMap().entrySet()) {
+            FieldValue value = entry.getValue();
+            FieldValue existing = firstMap.get(entry.getKey());
+            if (value.isMap() && existing != null && !canCompose(existing, value)) {
+                return(false);
+            }
+        }
+        return(true);
+    }
+
+    /**
+     * Combine two merge patches into one.  The first patch is modified in place where possible.  The
+     * caller must first check that the patches can be composed with {@link #canCompose(FieldValue, FieldValue)}.
+     *
+     * @param first The patch that would be applied first
+     * @param second The patch that would be applied second
+     * @return A patch with the same effect as applying first and then second
+     */
+    public static FieldValue compose(FieldValue first, FieldValue second) {
+        if (!second.isMap()) {
+            return(second);
+        }
+        MapValue firstMap = first.asMap();
+        for (Map.Entry<String, FieldValue> entry : second.asMap().entrySet()) {
+            String name = entry.getKey();
+            FieldValue value = entry.getValue();
+            FieldValue existing = firstMap.get(name);
+            if (value.isMap() && existing != null) {
+                firstMap.put(name, compose(existing, value));
+            } else {
+                //  A replacement, a deletion (null) or an object merged into a member first didn't touch
+                firstMap.put(name, value);
+            }
+        }
+        return(firstMap);
+    }
+
+    /**
+     * Compute the merge patch that turns one value into another.  Objects are compared member by member
+     * and members that {@link #apply(FieldValue, FieldValue)} shared with its target are skipped without
+     * looking inside them, so the patch of an update costs little more than the update did.  A merge
+     * patch can't set a member to null, members that are null in target are removed instead.
+     *
+     * @param source The value before, may be null if there was no value
+     * @param target The value after
+     * @return A patch that turns source into target, an empty object if they are equal
+     */
+    public static FieldValue diff(FieldValue source, FieldValue target) {
+        if (source == null || !source.isMap() || !target.isMap()) {
+            return(target);
+        }
+        MapValue sourceMap = source.asMap();
+        MapValue targetMap = target.asMap();
+        MapValue patch = new MapValue();
+        for (String name : sourceMap.getMap().keySet()) {
+            if (targetMap.get(name) == null) {
+                patch.put(name, JsonNullValue.getInstance());
+            }
+        }
+        for (Map.Entry<String, FieldValue> entry : targetMap.entrySet()) {
+            FieldValue before = sourceMap.get(entry.getKey());
+            FieldValue after = entry.getValue();
+            if (before == after || (before != null && before.equals(after))) {
+                continue;
+            }
+            if (before != null && before.isMap() && after.isMap()) {
+                patch.put(entry.getKey(), diff(before, after));
+            } else {
+                patch.put(entry.getKey(), after);
+            }
+        }
+        return(patch);
+    }
+}
@@ -0,0 +1,327 @@
+package session;
+
+import oracle.nosql.driver.NoSQLHandle;
+import oracle.nosql.driver.ThrottlingException;
+import oracle.nosql.driver.ops.DeleteRequest;
+import oracle.nosql.driver.ops.DeleteResult;
+import oracle.nosql.driver.ops.GetRequest;
+import oracle.nosql.driver.ops.GetResult;
+import oracle.nosql.driver.ops.GetTableRequest;
+import oracle.nosql.driver.ops.PrepareRequest;
+import oracle.nosql.driver.ops.PrepareResult;
+import oracle.nosql.driver.ops.PutRequest;
+import oracle.nosql.driver.ops.PutResult;
+import oracle.nosql.driver.ops.QueryRequest;
+import oracle.nosql.driver.ops.QueryResult;
+import oracle.nosql.driver.ops.TableRequest;
+import oracle.nosql.driver.ops.TableResult;
+import oracle.nosql.driver.ops.TableUsageRequest;
+import oracle.nosql.driver.ops.TableUsageResult;
+import oracle.nosql.driver.ops.WriteMultipleRequest;
+import oracle.nosql.driver.ops.WriteMultipleResult;
+
+import session.OperationDeadlines.Kind;
+import session.SessionMetrics.Operation;
+
+/**
+ * The gateway through which the persistent session service talks to the database.  Each operation is
+ * passed to a NoSQLHandle from a {@link NoSQLHandlePool}, the handle of its account for operations on
+ * rows, and its latency, the read and write units it consumed and whether it was
+ * throttled are recorded in our metrics, and the units are charged to admission control when it is on.
+ * Failed operations are timed but consume no units.  When deadlines are set every request is given the
+ * timeout of its kind of operation, cut short by the deadline of the HTTP request it is run for.
+ */
+public class MeteredHandle {
+
+    private final NoSQLHandlePool pool;
+    private final SessionMetrics metrics;
+    private volatile AdmissionController admissionController;
+    private volatile OperationDeadlines deadlines;
+
+    /**
+     * @param handle The handle to run operations with
+     * @param metrics Where to record them
+     */
+    public MeteredHandle(NoSQLHandle handle, SessionMetrics metrics) {
+        this(new NoSQLHandlePool(handle), metrics);
+    }
+
+    /**
+     * @param pool The handles to run operations with
+     * @param metrics Where to record them
+     */
+    public MeteredHandle(NoSQLHandlePool pool, SessionMetrics metrics) {
+        this.pool = pool;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param admissionController If not null, charged with the units that every operation consumes
+     */
+    public void setAdmissionController(AdmissionController admissionController) {
+        this.admissionController = admissionController;
+    }
+
+    /**
+     * @param deadlines If not null, the timeouts to give each kind of operation, otherwise the handle's
+     *                  request timeout is used
+     */
+    public void setDeadlines(OperationDeadlines deadlines) {
+        this.deadlines = deadlines;
+    }
+
+    /**
+     * @return The timeout for a kind of operation, 0 to use the handle's request timeout
+     */
+    private int timeout(Kind kind) {
+        OperationDeadlines current = deadlines;
+        return(current != null ? current.timeoutMillis(kind) : 0);
+    }
+
+    /**
+     * @return A handle that operations are run with, for work that doesn't need to be metered
+     */
+    public NoSQLHandle getHandle() {
+        return(pool.getHandle());
+    }
+
+    /**
+     * @return The handles that operations are run with
+     */
+    public NoSQLHandlePool getPool() {
+        return(pool);
+    }
+
+    /**
+     * Read a row.
+     *
+     * @param accountNum The account the request is for
+     * @param req The request
+     * @return The result of the request
+     */
+    public GetResult get(long accountNum, GetRequest req) {
+        int timeout = timeout(Kind.GET);
+        if (timeout > 0) {
+            req.setTimeout(timeout);
+        }
+        long start = System.nanoTime();
+        GetResult res = null;
+        try {
+            res = pool.run(accountNum, h -> h.get(req));
+            return(res);
+        } catch (ThrottlingException e) {
+            metrics.throttled(Operation.GET);
+            throw(e);
+        } finally {
+            record(Operation.GET, start,
+                    res != null ? res.getReadUnits() : 0, res != null ? res.getWriteUnits() : 0);
+        }
+    }
+
+    /**
+     * Write a row.
+     *
+     * @param accountNum The account the request is for
+     * @param req The request
+     * @return The result of the request
+     */
+    public PutResult put(long accountNum, PutRequest req) {
+        int timeout = timeout(Kind.PUT);
+        if (timeout > 0) {
+            req.setTimeout(timeout);
+        }
+        long start = System.nanoTime();
+        PutResult res = null;
+        try {
+            res = pool.run(accountNum, h -> h.put(req));
+            return(res);
+        } catch (ThrottlingException e) {
+            metrics.throttled(Operation.PUT);
+            throw(e);
+        } finally {
+            record(Operation.PUT, start,
+                    res != null ? res.getReadUnits() : 0, res != null ? res.getWriteUnits() : 0);
+        }
+    }
+
+    /**
+     * Delete a row.
+     *
+     * @param accountNum The account the request is for
+     * @param req The request
+     * @return The result of the request
+     */
+    public DeleteResult delete(long accountNum, DeleteRequest req) {
+        int timeout = timeout(Kind.PUT);
+        if (timeout > 0) {
+            req.setTimeout(timeout);
+        }
+        long start = System.nanoTime();
+        DeleteResult res = null;
+        try {
+            res = pool.run(accountNum, h -> h.delete(req));
+            return(res);
+        } catch (ThrottlingException e) {
+            metrics.throttled(Operation.DELETE);
+            throw(e);
+        } finally {
+            record(Operation.DELETE, start,
+                    res != null ? res.getReadUnits() : 0, res != null ? res.getWriteUnits() : 0);
+        }
+    }
+
+    /**
+     * Write several rows with the same shard key atomically.
+     *
+     * @param accountNum The account the request is for
+     * @param req The request
+     * @return The result of the request
+     */
+    public WriteMultipleResult writeMultiple(long accountNum, WriteMultipleRequest req) {
+        int timeout = timeout(Kind.PUT);
+        if (timeout > 0) {
+            req.setTimeout(timeout);
+        }
+        long start = System.nanoTime();
+        WriteMultipleResult res = null;
+        try {
+            res = pool.run(accountNum, h -> h.writeMultiple(req));
+            return(res);
+        } catch (ThrottlingException e) {
+            metrics.throttled(Operation.WRITE_MULTIPLE);
+            throw(e);
+        } finally {
+            record(Operation.WRITE_MULTIPLE, start,
+                    res != null ? res.getReadUnits() : 0, res != null ? res.getWriteUnits() : 0);
+        }
+    }
+
+    /**
+     * Run one batch of a query.
+     *
+     * @param accountNum The account the request is for
+     * @param req The request
+     * @return The result of the request
+     */
+    public QueryResult query(long accountNum, QueryRequest req) {
+        int timeout = timeout(Kind.QUERY);
+        if (timeout > 0) {
+            req.setTimeout(timeout);
+        }
+        long start = System.nanoTime();
+        QueryResult res = null;
+        try {
+            res = pool.run(accountNum, h -> h.query(req));
+            return(res);
+        } catch (ThrottlingException e) {
+            metrics.throttled(Operation.QUERY);
+            throw(e);
+        } finally {
+            record(Operation.QUERY, start,
+                    res != null ? res.getReadUnits() : 0, res != null ? res.getWriteUnits() : 0);
+        }
+    }
+
+    /**
+     * Prepare a query.
+     *
+     * @param req The request
+     * @return The result of the request
+     */
+    public PrepareResult prepare(PrepareRequest req) {
+        int timeout = timeout(Kind.QUERY);
+        if (timeout > 0) {
+            req.setTimeout(timeout);
+        }
+        long start = System.nanoTime();
+        try {
+            return(pool.run(h -> h.prepare(req)));
+        } catch (ThrottlingException e) {
+            metrics.throttled(Operation.PREPARE);
+            throw(e);
+        } finally {
+            record(Operation.PREPARE, start, 0, 0);
+        }
+    }
+
+    /**
+     * Run a DDL statement or change table limits.
+     *
+     * @param req The request
+     * @return The result of the request
+     */
+    public TableResult tableRequest(TableRequest req) {
+        int timeout = timeout(Kind.DDL);
+        if (timeout > 0) {
+            req.setTimeout(timeout);
+        }
+        long start = System.nanoTime();
+        try {
+            return(pool.run(h -> h.tableRequest(req)));
+        } catch (ThrottlingException e) {
+            metrics.throttled(Operation.TABLE_REQUEST);
+            throw(e);
+        } finally {
+            record(Operation.TABLE_REQUEST, start, 0, 0);
+        }
+    }
+
+    /**
+     * Read the state and schema of a table.
+     *
+     * @param req The request
+     * @return The result of the request
+     */
+    public TableResult getTable(GetTableRequest req) {
+        int timeout = timeout(Kind.DDL);
+        if (timeout > 0) {
+            req.setTimeout(timeout);
+        }
+        long start = System.nanoTime();
+        try {
+            return(pool.run(h -> h.getTable(req)));
+        } catch (ThrottlingException e) {
+            metrics.throttled(Operation.GET_TABLE);
+            throw(e);
+        } finally {
+            record(Operation.GET_TABLE, start, 0, 0);
+        }
+    }
+
+    /**
+     * Read the throughput and storage that a table has used.
+     *
+     * @param req The request
+     * @return The result of the request
+     */
+    public TableUsageResult getTableUsage(TableUsageRequest req) {
+        int timeout = timeout(Kind.DDL);
+        if (timeout > 0) {
+            req.setTimeout(timeout);
+        }
+        long start = System.nanoTime();
+        try {
+            return(pool.run(h -> h.getTableUsage(req)));
+        } catch (ThrottlingException e) {
+            metrics.throttled(Operation.TABLE_USAGE);
+            throw(e);
+        } finally {
+            record(Operation.TABLE_USAGE, start, 0, 0);
+        }
+    }
+
+    private void record(Operation operation, long startNanos, int readUnits, int writeUnits) {
+        metrics.operation(operation, startNanos, readUnits, writeUnits);
+        AdmissionController admission = admissionController;
+        if (admission != null) {
+            admission.consumed(readUnits, writeUnits);
+        }
+    }
+
+    /**
+     * Close the handles.
+     */
+    public void close() {
+        pool.close();
+    }
+}
@@ -0,0 +1,345 @@
+package session;
+
+import io.micronaut.http.exceptions.HttpStatusException;
+import oracle.nosql.driver.NoSQLException;
+import oracle.nosql.driver.NoSQLHandle;
+import oracle.nosql.driver.RequestTimeoutException;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Spreads the database work of the persistent session service over several NoSQLHandles, so that it is
+ * not limited by the connection pool and event loop of a single handle.
+ *
+ * The work of an account always goes to the same handle, picked by a hash of the account number, so that
+ * an account's requests reuse the same connections and a busy account can only tie up its own handle.
+ * No more than maxConcurrency operations are run on a handle at once, which should match the size of the
+ * handle's connection pool, the rest wait for one to finish.  Work that isn't for an account, such as
+ * DDL, goes to the first handle that is up.
+ *
+ * A handle that fails failureThreshold operations in a row because it couldn't reach the service, or with
+ * an error that isn't from the driver, is considered broken.  Its accounts are moved to the next handle
+ * that is up while a new handle is created in the background to replace it, and the broken handle is
+ * closed once the operations still running on it have finished.  Timeouts on their own neither count nor
+ * reset the count, as a slow or throttling service and a request's deadline cause them too, a timeout
+ * only counts if the driver's last attempt failed to connect or send.
+ */
+public class NoSQLHandlePool {
+
+    /**
+     * Creates the handles in the pool.
+     */
+    public interface Factory {
+        NoSQLHandle create() throws Exception;
+    }
+
+    private final Factory factory;
+    private final int maxConcurrency;
+    private final int failureThreshold;
+    private final Slot[] slots;
+    private final AtomicLong replacements = new AtomicLong();
+    private final ExecutorService replacer;
+
+    /**
+     * A handle, the operations running on it and whether it has been replaced.
+     */
+    private static final class Member {
+        final NoSQLHandle handle;
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicBoolean closed = new AtomicBoolean();
+        volatile boolean retired;
+
+        Member(NoSQLHandle handle) {
+            this.handle = handle;
+        }
+
+        /**
+         * Close the handle if it has been replaced and nothing is running on it.
+         */
+        void closeIfIdle() {
+            if (retired && inFlight.get() == 0 && closed.compareAndSet(false, true)) {
+                handle.close();
+            }
+        }
+    }
+
+    /**
+     * A position in the pool and the handle currently filling it.
+     */
+    private static final class Slot {
+        final Semaphore permits;
+        final AtomicInteger consecutiveFailures = new AtomicInteger();
+        final AtomicBoolean replacing = new AtomicBoolean();
+        volatile Member member;
+
+        Slot(Member member, int maxConcurrency) {
+            this.member = member;
+            this.permits = new Semaphore(maxConcurrency);
+        }
+
+        boolean isUp() {
+            return(!replacing.get());
+        }
+    }
+
+    /**
+     * Create the pool and its handles.  If any handle can't be created those already created are closed.
+     *
+     * @param factory Creates the handles, including replacements for broken ones
+     * @param handles The number of handles
+     * @param maxConcurrency The most operations to run on a handle at once
+     * @param failureThreshold The consecutive failures after which a handle is replaced, 0 to never replace
+     *                         handles
+     * @param metrics Where to publish the operations running on each handle, may be null
+     * @throws Exception if a handle couldn't be created
+     */
+    public NoSQLHandlePool(Factory factory, int handles, int maxConcurrency, int failureThreshold,
+                           SessionMetrics metrics) throws Exception {
+        if (handles <= 0 || maxConcurrency <= 0) {
+            throw new IllegalArgumentException("A pool needs at least one handle and one operation per handle");
+        }
+        this.factory = factory;
+        this.maxConcurrency = maxConcurrency;
+        this.failureThreshold = failureThreshold;
+        slots = new Slot[handles];
+        try {
+            for (int i = 0; i < handles; i++) {
+                slots[i] = new Slot(new Member(factory.create()), maxConcurrency);
+            }
+        } catch (Exception e) {
+            close();
+            throw(e);
+        }
+        replacer = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "nosql-handle-replacer");
+            t.setDaemon(true);
+            return(t);
+        });
+        if (metrics != null) {
+            for (int i = 0; i < handles; i++) {
+                Slot slot = slots[i];
+                metrics.handleInFlight(i, () -> slot.member.inFlight.get());
+            }
+        }
+    }
+
+    /**
+     * A pool of a single handle that is never replaced, for tools and tests that create their own handle.
+     *
+     * @param handle The handle
+     */
+    public NoSQLHandlePool(NoSQLHandle handle) {
+        this.factory = () -> handle;
+        this.maxConcurrency = Integer.MAX_VALUE;
+        this.failureThreshold = 0;
+        this.slots = new Slot[] {new Slot(new Member(handle), Integer.MAX_VALUE)};
+        this.replacer = null;
+    }
+
+    /**
+     * Run an operation for an account on its handle, waiting if the handle is already running as many
+     * operations as it is allowed.
+     *
+     * @param accountNum The account the operation is for
+     * @param operation The operation
+     * @param <T> The result of the operation
+     * @return The result of the operation
+     */
+    public <T> T run(long accountNum, Function<NoSQLHandle, T> operation) {
+        return(run(slotFor(accountNum), operation));
+    }
+
+    /**
+     * Run an operation that isn't for an account on the first handle that is up.
+     *
+     * @param operation The operation
+     * @param <T> The result of the operation
+     * @return The result of the operation
+     */
+    public <T> T run(Function<NoSQLHandle, T> operation) {
+        return(run(firstUp(0), operation));
+    }
+
+    private <T> T run(Slot slot, Function<NoSQLHandle, T> operation) {
+        slot.permits.acquireUninterruptibly();
+        Member member = use(slot);
+        try {
+            T result = operation.apply(member.handle);
+            slot.consecutiveFailures.set(0);
+            return(result);
+        } catch (RuntimeException e) {
+            if (isHandleFailure(e)) {
+                failed(slot, member);
+            } else if (!(e instanceof RequestTimeoutException)) {
+                //  The service answered, so the handle works
+                slot.consecutiveFailures.set(0);
+            }
+            throw(e);
+        } finally {
+            member.inFlight.decrementAndGet();
+            slot.permits.release();
+            member.closeIfIdle();
+        }
+    }
+
+    /**
+     * Count an operation as running on a slot's handle.  The handle is counted before it is checked, so
+     * that a replacement either sees the operation and leaves the old handle open, or has already retired
+     * it and the operation moves on to the new handle.
+     *
+     * @return The handle to run the operation on
+     */
+    private static Member use(Slot slot) {
+        while (true) {
+            Member member = slot.member;
+            member.inFlight.incrementAndGet();
+            if (slot.member == member && !member.retired) {
+                return(member);
+            }
+            member.inFlight.decrementAndGet();
+            member.closeIfIdle();
+        }
+    }
+
+    /**
+     * @return The handle of the slot an account's work goes to, moved to the next one that is up while its
+     * own handle is being replaced
+     */
+    private Slot slotFor(long accountNum) {
+        if (slots.length == 1) {
+            return(slots[0]);
+        }
+        long h = accountNum * 0x9E3779B97F4A7C15L;
+        return(firstUp((int) ((h ^ (h >>> 32)) & Integer.MAX_VALUE) % slots.length));
+    }
+
+    private Slot firstUp(int start) {
+        for (int i = 0; i < slots.length; i++) {
+            Slot slot = slots[(start + i) % slots.length];
+            if (slot.isUp()) {
+                return(slot);
+            }
+        }
+        //  Every handle is being replaced, the broken one is as good as any
+        return(slots[start]);
+    }
+
+    /**
+     * @return true if the exception means that the handle, rather than the operation, is at fault
+     */
+    static boolean isHandleFailure(RuntimeException e) {
+        if (e instanceof NoSQLException) {
+            //  Including timeouts, which the driver gives the failure of its last attempt as their cause
+            for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+                if (cause instanceof IOException) {
+                    return(true);
+                }
+            }
+            return(false);
+        }
+        //  Deadlines that have passed are the request's fault, not the handle's
+        return(!(e instanceof IllegalArgumentException) && !(e instanceof HttpStatusException));
+    }
+
+    private void failed(Slot slot, Member member) {
+        if (failureThreshold <= 0 || slot.member != member ||
+                slot.consecutiveFailures.incrementAndGet() < failureThreshold ||
+                !slot.replacing.compareAndSet(false, true)) {
+            return;
+        }
+        System.err.println("Replacing a NoSQL handle after " + slot.consecutiveFailures.get() +
+                " consecutive failures");
+        replacer.execute(() -> replace(slot));
+    }
+
+    private void replace(Slot slot) {
+        try {
+            Member replacement = new Member(factory.create());
+            Member old = slot.member;
+            slot.member = replacement;
+            slot.consecutiveFailures.set(0);
+            old.retired = true;
+            old.closeIfIdle();
+            replacements.incrementAndGet();
+        } catch (Exception e) {
+            //  Keep using the broken handle, the next failures will try again
+            e.printStackTrace();
+            slot.consecutiveFailures.set(0);
+        } finally {
+            slot.replacing.set(false);
+        }
+    }
+
+    /**
+     * @return The first handle that is up, for work that doesn't need to be paced or metered
+     */
+    public NoSQLHandle getHandle() {
+        return(firstUp(0).member.handle);
+    }
+
+    /**
+     * @param index The position of a handle in the pool
+     * @return The handle at that position
+     */
+    public NoSQLHandle getHandle(int index) {
+        return(slots[index].member.handle);
+    }
+
+    /**
+     * @return The number of handles in the pool
+     */
+    public int size() {
+        return(slots.length);
+    }
+
+    /**
+     * @param index The position of a handle in the pool
+     * @return The number of operations running on it
+     */
+    public int getInFlight(int index) {
+        return(slots[index].member.inFlight.get());
+    }
+
+    /**
+     * @param index The position of a handle in the pool
+     * @return false while the handle at that position is being replaced
+     */
+    public boolean isUp(int index) {
+        return(slots[index].isUp());
+    }
+
+    /**
+     * @return The number of broken handles that have been replaced
+     */
+    public long getReplacements() {
+        return(replacements.get());
+    }
+
+    /**
+     * @return The most operations run on a handle at once
+     */
+    public int getMaxConcurrency() {
+        return(maxConcurrency);
+    }
+
+    /**
+     * Close every handle in the pool.
+     */
+    public void close() {
+        if (replacer != null) {
+            replacer.shutdownNow();
+        }
+        for (Slot slot : slots) {
+            if (slot != null && slot.member.closed.compareAndSet(false, true)) {
+                slot.member.handle.close();
+            }
+        }
+    }
+}
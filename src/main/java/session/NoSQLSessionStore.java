@@ -0,0 +1,177 @@
+package session;
+
+import oracle.nosql.driver.Consistency;
+import oracle.nosql.driver.TimeToLive;
+import oracle.nosql.driver.Version;
+import oracle.nosql.driver.ops.GetRequest;
+import oracle.nosql.driver.ops.GetResult;
+import oracle.nosql.driver.ops.PrepareRequest;
+import oracle.nosql.driver.ops.PreparedStatement;
+import oracle.nosql.driver.ops.PutRequest;
+import oracle.nosql.driver.ops.PutResult;
+import oracle.nosql.driver.ops.QueryRequest;
+import oracle.nosql.driver.ops.QueryResult;
+import oracle.nosql.driver.ops.WriteMultipleRequest;
+import oracle.nosql.driver.ops.WriteMultipleResult;
+import oracle.nosql.driver.values.FieldValue;
+import oracle.nosql.driver.values.LongValue;
+import oracle.nosql.driver.values.MapValue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static session.PersistentSessionManager.COL_ACCOUNT_NUMBER;
+import static session.PersistentSessionManager.COL_USER_ID;
+import static session.PersistentSessionManager.TABLE_NAME;
+
+/**
+ * Keeps persistent sessions in the persistent_session table of the Oracle NoSQL Database cloud service,
+ * in the configured storage format.
+ *
+ * account_number is the shard key of the table, so the sessions of an account can be written atomically
+ * with one WriteMultipleRequest and found with a single shard query.  The query for the users of an
+ * account is prepared once, with the account number as a bind variable.
+ *
+ * When a time to live is configured every row is written with it, so that sessions nobody reads or
+ * writes any more are deleted by the service.  Rows can only be renewed by writing them again.
+ */
+public class NoSQLSessionStore implements SessionStore {
+
+    static final String VAR_ACCOUNT = "$acct";
+
+    static final String USERS_STATEMENT = "declare " + VAR_ACCOUNT + " long; " +
+            "select {\"userName\": p.session_info.userName," +
+            "\"userID\": p.user_id} as session_info from " +
+            TABLE_NAME + " p " +
+            " where p." + COL_ACCOUNT_NUMBER + " = " + VAR_ACCOUNT;
+
+    private final MeteredHandle handle;
+    private final TimeToLive ttl;
+    private volatile PreparedStatement usersStatement;
+
+    /**
+     * @param handle The handle to read and write sessions with
+     */
+    public NoSQLSessionStore(MeteredHandle handle) {
+        this(handle, null);
+    }
+
+    /**
+     * @param handle The handle to read and write sessions with
+     * @param ttl The time to live of the rows written, null for rows that never expire
+     */
+    public NoSQLSessionStore(MeteredHandle handle, TimeToLive ttl) {
+        this.handle = handle;
+        this.ttl = ttl;
+    }
+
+    /**
+     * Build the request to write a row, with our time to live if there is one.
+     */
+    private PutRequest putRequest(MapValue row) {
+        PutRequest putReq = new PutRequest().setTableName(TABLE_NAME).setValue(row);
+        if (ttl != null) {
+            putReq.setTTL(ttl).setUpdateTTL(true);
+        }
+        return(putReq);
+    }
+
+    @Override
+    public SessionRecord get(long accountNum, int userID, Consistency consistency) {
+        GetRequest gr = new GetRequest().setTableName(TABLE_NAME).
+                setKey(new MapValue().put(COL_ACCOUNT_NUMBER, accountNum).put(COL_USER_ID,
+                        userID)).setConsistency(consistency);
+        GetResult res = handle.get(accountNum, gr);
+        if (res.getValue() == null) {
+            return(null);
+        }
+        return(new SessionRecord(PersistentSessionManager.sessionFromRow(res.getValue()), res.getVersion(),
+                res.getExpirationTime()));
+    }
+
+    @Override
+    public WriteResult create(long accountNum, FieldValue session) {
+        PutRequest putReq = putRequest(PersistentSessionManager.sessionRow(accountNum, session));
+        PutResult putRes = handle.put(accountNum, putReq);
+        return(new WriteResult(putRes.getGeneratedValue().getInt(), putRes.getVersion()));
+    }
+
+    @Override
+    public Version put(long accountNum, int userID, FieldValue session) {
+        return(putIfVersion(accountNum, userID, session, null));
+    }
+
+    @Override
+    public Version putIfVersion(long accountNum, int userID, FieldValue session, Version matchVersion) {
+        PutRequest putReq = putRequest(PersistentSessionManager.sessionRow(accountNum, session)
+                .put(COL_USER_ID, userID));
+        if (matchVersion != null) {
+            putReq.setOption(PutRequest.Option.IfVersion).setMatchVersion(matchVersion);
+        }
+        return(handle.put(accountNum, putReq).getVersion());
+    }
+
+    @Override
+    public UsersPage queryByAccount(long accountNum, int limit, byte[] continuation) {
+        PreparedStatement ps = usersStatement;
+        if (ps == null) {
+            //  Racing threads may both prepare the statement, which is harmless
+            ps = handle.prepare(new PrepareRequest().setStatement(USERS_STATEMENT)).getPreparedStatement();
+            usersStatement = ps;
+        }
+        PreparedStatement bound = ps.copyStatement();
+        bound.setVariable(VAR_ACCOUNT, new LongValue(accountNum));
+        QueryRequest qr = new QueryRequest().setPreparedStatement(bound).setLimit(limit);
+        if (continuation != null) {
+            qr.setContinuationKey(continuation);
+        }
+        QueryResult res = handle.query(accountNum, qr);
+        byte[] next = res.getContinuationKey();
+        return(new UsersPage(res.getResults(), qr.isDone() ? null : next));
+    }
+
+    @Override
+    public List<WriteResult> batch(long accountNum, List<Integer> userIDs, List<FieldValue> sessions) {
+        WriteMultipleRequest wmReq = new WriteMultipleRequest();
+        for (int i = 0; i < sessions.size(); i++) {
+            MapValue row = PersistentSessionManager.sessionRow(accountNum, sessions.get(i));
+            if (userIDs.get(i) != null) {
+                row.put(COL_USER_ID, userIDs.get(i));
+            }
+            wmReq.add(putRequest(row), true);
+        }
+        WriteMultipleResult wmRes = handle.writeMultiple(accountNum, wmReq);
+        if (!wmRes.getSuccess()) {
+            throw new BatchFailedException(wmRes.getFailedOperationIndex(),
+                    "Write failed, no sessions in this chunk were written");
+        }
+        List<WriteMultipleResult.OperationResult> results = wmRes.getResults();
+        List<WriteResult> ret = new ArrayList<>(results.size());
+        for (int i = 0; i < results.size(); i++) {
+            WriteMultipleResult.OperationResult opRes = results.get(i);
+            int userID = (userIDs.get(i) != null ? userIDs.get(i) : opRes.getGeneratedValue().getInt());
+            ret.add(new WriteResult(userID, opRes.getVersion()));
+        }
+        return(ret);
+    }
+
+    @Override
+    public List<TouchResult> touch(long accountNum, List<Integer> userIDs, List<SessionRecord> records) {
+        WriteMultipleRequest wmReq = new WriteMultipleRequest();
+        for (int i = 0; i < records.size(); i++) {
+            MapValue row = PersistentSessionManager.sessionRow(accountNum, records.get(i).getSession())
+                    .put(COL_USER_ID, userIDs.get(i));
+            //  The existing version comes back when the row has changed, none when it is gone
+            wmReq.add(putRequest(row).setOption(PutRequest.Option.IfVersion)
+                    .setMatchVersion(records.get(i).getVersion())
+                    .setReturnRow(true), false);
+        }
+        List<WriteMultipleResult.OperationResult> results = handle.writeMultiple(accountNum, wmReq).getResults();
+        List<TouchResult> ret = new ArrayList<>(results.size());
+        for (WriteMultipleResult.OperationResult opRes : results) {
+            ret.add(new TouchResult(opRes.getSuccess() ? opRes.getVersion() : null,
+                    !opRes.getSuccess() && opRes.getExistingVersion() == null));
+        }
+        return(ret);
+    }
+}
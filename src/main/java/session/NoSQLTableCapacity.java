@@ -0,0 +1,72 @@
+package session;
+
+import oracle.nosql.driver.ops.GetTableRequest;
+import oracle.nosql.driver.ops.TableLimits;
+import oracle.nosql.driver.ops.TableRequest;
+import oracle.nosql.driver.ops.TableResult;
+import oracle.nosql.driver.ops.TableUsageRequest;
+import oracle.nosql.driver.ops.TableUsageResult;
+
+/**
+ * The capacity of a table in the NoSQL Database cloud service.  Usage comes from the service's per
+ * minute usage records, so it covers every instance of this application and not just this one.
+ */
+public class NoSQLTableCapacity implements TableCapacity {
+
+    //  How long to wait for a change of limits to be applied, and how often to check
+    public static int LIMITS_WAIT_MS = 60000;
+    public static int LIMITS_POLL_MS = 1000;
+
+    private final MeteredHandle handle;
+    private final String tableName;
+
+    /**
+     * @param handle The handle to the service
+     * @param tableName The table to manage
+     */
+    public NoSQLTableCapacity(MeteredHandle handle, String tableName) {
+        this.handle = handle;
+        this.tableName = tableName;
+    }
+
+    @Override
+    public TableLimits getLimits() {
+        TableResult res = handle.getTable(new GetTableRequest().setTableName(tableName));
+        if (res.getTableState() != TableResult.State.ACTIVE) {
+            return(null);
+        }
+        return(res.getTableLimits());
+    }
+
+    @Override
+    public Usage getUsage(long startMillis, long endMillis) {
+        TableUsageResult res = handle.getTableUsage(new TableUsageRequest().setTableName(tableName)
+                .setStartTime(startMillis).setEndTime(endMillis));
+        TableUsageResult.TableUsage[] records = res.getUsageRecords();
+        if (records == null || records.length == 0) {
+            return(null);
+        }
+        long readUnits = 0;
+        long writeUnits = 0;
+        long readThrottles = 0;
+        long writeThrottles = 0;
+        long seconds = 0;
+        long end = 0;
+        for (TableUsageResult.TableUsage record : records) {
+            readUnits += record.getReadUnits();
+            writeUnits += record.getWriteUnits();
+            readThrottles += record.getReadThrottleCount();
+            writeThrottles += record.getWriteThrottleCount();
+            seconds += record.getSecondsInPeriod();
+            end = Math.max(end, record.getStartTime() + record.getSecondsInPeriod() * 1000L);
+        }
+        return(new Usage(readUnits, writeUnits, readThrottles, writeThrottles, seconds, end));
+    }
+
+    @Override
+    public void setLimits(TableLimits limits) {
+        TableResult res = handle.tableRequest(new TableRequest().setTableName(tableName)
+                .setTableLimits(limits));
+        res.waitForCompletion(handle.getHandle(), LIMITS_WAIT_MS, LIMITS_POLL_MS);
+    }
+}
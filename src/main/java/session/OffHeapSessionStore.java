@@ -0,0 +1,524 @@
+package session;
+
+import oracle.nosql.driver.Consistency;
+import oracle.nosql.driver.Version;
+import oracle.nosql.driver.values.FieldValue;
+import oracle.nosql.driver.values.MapValue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static session.PersistentSessionManager.COL_SESSION;
+import static session.PersistentSessionManager.JSON_ATTR_USER_NAME;
+
+/**
+ * Keeps persistent sessions in the memory of this process, outside of the Java heap, for edge and test
+ * deployments that run without the cloud service.  Nothing is persisted, the sessions are gone when the
+ * process exits.
+ *
+ * Sessions are encoded with {@link SessionCodec} and copied into blocks carved out of direct memory slabs.
+ * Blocks are a power of 2 in size, and a block that is freed when its session is rewritten goes on a free
+ * list for its size and is reused by the next session of about that size.  Only the index and the
+ * slabs themselves live on the heap, so holding millions of sessions costs the garbage collector almost
+ * nothing.
+ *
+ * The index is keyed by the primitive (accountNum, userID) pair.  The store is split by account into a
+ * fixed number of segments, each guarded by its own lock.  Within a segment accounts are found in an open
+ * addressing table of account numbers and each account keeps its user IDs in a sorted array, so that the
+ * users of an account can be scanned in order, a page at a time, for getusers.  Generated user IDs are one
+ * more than the highest in the account.  Sessions are encoded and decoded outside of the locks.
+ */
+public class OffHeapSessionStore implements SessionStore {
+
+    //  Must be a power of 2
+    private static final int NUM_SEGMENTS = 16;
+
+    //  The size of the direct memory slabs that blocks are carved out of, and of the largest session
+    public static int DEFAULT_SLAB_BYTES = 1 << 20;
+
+    //  The number of users in a batch of queryByAccount when no limit is given
+    public static int DEFAULT_QUERY_LIMIT = 1000;
+
+    //  The smallest block, sessions are rounded up to a power of 2 no smaller than this
+    static final int MIN_BLOCK_BYTES = 64;
+
+    //  A block starts with the length of the encoded session and the length of the user name
+    private static final int BLOCK_HEADER_BYTES = 8;
+
+    private final Segment[] segments;
+    private final int slabBytes;
+
+    public OffHeapSessionStore() {
+        this(DEFAULT_SLAB_BYTES);
+    }
+
+    /**
+     * @param slabBytes The size of each slab of direct memory, a power of 2 no smaller than 4096.  No
+     *                  session may be larger than a slab once encoded.
+     */
+    public OffHeapSessionStore(int slabBytes) {
+        if (slabBytes < 4096 || Integer.bitCount(slabBytes) != 1) {
+            throw new IllegalArgumentException("Slab size must be a power of 2 of at least 4096: " +
+                    slabBytes);
+        }
+        this.slabBytes = slabBytes;
+        segments = new Segment[NUM_SEGMENTS];
+        for (int i = 0; i < NUM_SEGMENTS; i++) {
+            segments[i] = new Segment(slabBytes);
+        }
+    }
+
+    @Override
+    public SessionRecord get(long accountNum, int userID, Consistency consistency) {
+        Segment segment = segmentFor(accountNum);
+        byte[] encoded;
+        long version;
+        synchronized (segment) {
+            Account account = segment.account(accountNum, false);
+            int i = (account != null ? account.indexOf(userID) : -1);
+            if (i < 0) {
+                return(null);
+            }
+            encoded = segment.readSession(account.blocks[i]);
+            version = account.versions[i];
+        }
+        return(new SessionRecord(SessionCodec.decode(encoded), toVersion(version)));
+    }
+
+    @Override
+    public WriteResult create(long accountNum, FieldValue session) {
+        return(write(accountNum, null, session, null));
+    }
+
+    @Override
+    public Version put(long accountNum, int userID, FieldValue session) {
+        return(write(accountNum, userID, session, null).getVersion());
+    }
+
+    @Override
+    public Version putIfVersion(long accountNum, int userID, FieldValue session, Version matchVersion) {
+        WriteResult result = write(accountNum, userID, session, matchVersion);
+        return(result != null ? result.getVersion() : null);
+    }
+
+    @Override
+    public UsersPage queryByAccount(long accountNum, int limit, byte[] continuation) {
+        if (continuation != null && continuation.length != 4) {
+            throw new IllegalArgumentException("Invalid continuation key");
+        }
+        int max = (limit > 0 ? limit : DEFAULT_QUERY_LIMIT);
+        Segment segment = segmentFor(accountNum);
+        int[] userIDs;
+        byte[][] names;
+        boolean more;
+        synchronized (segment) {
+            Account account = segment.account(accountNum, false);
+            if (account == null) {
+                return(new UsersPage(new ArrayList<>(), null));
+            }
+            int from = 0;
+            if (continuation != null) {
+                //  Carry on after the last user of the previous batch
+                from = account.indexOf(ByteBuffer.wrap(continuation).getInt());
+                from = (from < 0 ? -from - 1 : from + 1);
+            }
+            int to = Math.min(account.size, from + max);
+            userIDs = Arrays.copyOfRange(account.users, from, to);
+            names = new byte[to - from][];
+            for (int i = from; i < to; i++) {
+                names[i - from] = segment.readName(account.blocks[i]);
+            }
+            more = to < account.size;
+        }
+
+        List<MapValue> users = new ArrayList<>(userIDs.length);
+        for (int i = 0; i < userIDs.length; i++) {
+            MapValue user = new MapValue();
+            if (names[i] != null) {
+                user.put(JSON_ATTR_USER_NAME, new String(names[i], StandardCharsets.UTF_8));
+            }
+            users.add(new MapValue().put(COL_SESSION, user.put("userID", userIDs[i])));
+        }
+        byte[] next = (more ? ByteBuffer.allocate(4).putInt(userIDs[userIDs.length - 1]).array() : null);
+        return(new UsersPage(users, next));
+    }
+
+    @Override
+    public List<WriteResult> batch(long accountNum, List<Integer> userIDs, List<FieldValue> sessions) {
+        byte[][] encoded = new byte[sessions.size()][];
+        byte[][] names = new byte[sessions.size()][];
+        for (int i = 0; i < sessions.size(); i++) {
+            encoded[i] = SessionCodec.encode(sessions.get(i));
+            names[i] = userName(sessions.get(i));
+            if (blockSize(encoded[i].length, length(names[i])) > slabBytes) {
+                throw new BatchFailedException(i, "Session of " + encoded[i].length +
+                        " bytes encoded is larger than the store allows");
+            }
+        }
+        Segment segment = segmentFor(accountNum);
+        List<WriteResult> ret = new ArrayList<>(sessions.size());
+        synchronized (segment) {
+            Account account = segment.account(accountNum, true);
+            for (int i = 0; i < sessions.size(); i++) {
+                Integer userID = userIDs.get(i);
+                ret.add(segment.write(account, userID != null ? userID : account.nextUserID(), encoded[i],
+                        names[i]));
+            }
+        }
+        return(ret);
+    }
+
+    /**
+     * Sessions kept in this process never expire, so nothing is written.  A session is reported renewed at
+     * its current version if it hasn't changed since it was read.
+     */
+    @Override
+    public List<TouchResult> touch(long accountNum, List<Integer> userIDs, List<SessionRecord> records) {
+        List<TouchResult> ret = new ArrayList<>(records.size());
+        for (int i = 0; i < records.size(); i++) {
+            SessionRecord current = get(accountNum, userIDs.get(i), Consistency.ABSOLUTE);
+            if (current == null) {
+                ret.add(new TouchResult(null, true));
+            } else {
+                boolean unchanged = fromVersion(current.getVersion()) == fromVersion(records.get(i).getVersion());
+                ret.add(new TouchResult(unchanged ? current.getVersion() : null, false));
+            }
+        }
+        return(ret);
+    }
+
+    /**
+     * Write one session, optionally only if it is at a version.
+     *
+     * @return The user ID and new version, or null if the session was not at matchVersion
+     */
+    private WriteResult write(long accountNum, Integer userID, FieldValue session, Version matchVersion) {
+        byte[] encoded = SessionCodec.encode(session);
+        byte[] name = userName(session);
+        if (blockSize(encoded.length, length(name)) > slabBytes) {
+            throw new IllegalArgumentException("Session of " + encoded.length +
+                    " bytes encoded is larger than the store allows");
+        }
+        Segment segment = segmentFor(accountNum);
+        synchronized (segment) {
+            Account account = segment.account(accountNum, true);
+            int id = (userID != null ? userID : account.nextUserID());
+            if (matchVersion != null) {
+                int i = account.indexOf(id);
+                if (i < 0 || account.versions[i] != fromVersion(matchVersion)) {
+                    return(null);
+                }
+            }
+            return(segment.write(account, id, encoded, name));
+        }
+    }
+
+    /**
+     * @return The number of sessions held
+     */
+    public long getSessions() {
+        long ret = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                ret += segment.sessions;
+            }
+        }
+        return(ret);
+    }
+
+    /**
+     * @return The bytes of direct memory allocated for sessions, including free blocks
+     */
+    public long getOffHeapBytes() {
+        long ret = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                ret += (long) segment.slabs.size() * slabBytes;
+            }
+        }
+        return(ret);
+    }
+
+    /**
+     * @return The bytes of the blocks that hold sessions
+     */
+    public long getLiveBytes() {
+        long ret = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                ret += segment.liveBytes;
+            }
+        }
+        return(ret);
+    }
+
+    private Segment segmentFor(long accountNum) {
+        return(segments[(int) (mix(accountNum) >>> 32) & (NUM_SEGMENTS - 1)]);
+    }
+
+    /**
+     * Spread the bits of an account number, so that sequential account numbers are spread evenly over the
+     * segments and over the slots of a segment's table.
+     */
+    static long mix(long accountNum) {
+        long h = accountNum * 0x9E3779B97F4A7C15L;
+        return(h ^ (h >>> 29));
+    }
+
+    /**
+     * @return The user name of a session, as getusers would find it, in UTF-8, or null if it has none
+     */
+    private static byte[] userName(FieldValue session) {
+        FieldValue name = SessionCodec.summary(session).get(JSON_ATTR_USER_NAME);
+        if (name == null || name.getType() != FieldValue.Type.STRING) {
+            return(null);
+        }
+        return(name.getString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return -1 for no user name, otherwise the length of its UTF-8 bytes
+     */
+    private static int length(byte[] name) {
+        return(name != null ? name.length : -1);
+    }
+
+    /**
+     * @return The size of the block that holds a session, the smallest power of 2 it fits in
+     */
+    private static int blockSize(int encodedLength, int nameLength) {
+        int needed = BLOCK_HEADER_BYTES + encodedLength + Math.max(0, nameLength);
+        return(Math.max(MIN_BLOCK_BYTES, Integer.highestOneBit(needed - 1) << 1));
+    }
+
+    private static Version toVersion(long version) {
+        return(Version.createVersion(ByteBuffer.allocate(8).putLong(version).array()));
+    }
+
+    private static long fromVersion(Version version) {
+        byte[] bytes = version.getBytes();
+        //  A version from some other store never matches
+        return(bytes != null && bytes.length == 8 ? ByteBuffer.wrap(bytes).getLong() : -1);
+    }
+
+    /**
+     * The sessions of an account, sorted by user ID, with the address of the block each is stored in and
+     * its version.
+     */
+    private static final class Account {
+        int[] users = new int[4];
+        long[] blocks = new long[4];
+        long[] versions = new long[4];
+        int size;
+
+        /**
+         * @return The index of the user, or -(insertion point) - 1 if the account doesn't have it
+         */
+        int indexOf(int userID) {
+            return(Arrays.binarySearch(users, 0, size, userID));
+        }
+
+        int nextUserID() {
+            if (size == 0) {
+                return(1);
+            }
+            if (users[size - 1] == Integer.MAX_VALUE) {
+                throw new IllegalStateException("No user IDs are left to generate");
+            }
+            return(Math.max(1, users[size - 1] + 1));
+        }
+
+        void insert(int at, int userID, long block, long version) {
+            if (size == users.length) {
+                users = Arrays.copyOf(users, size * 2);
+                blocks = Arrays.copyOf(blocks, size * 2);
+                versions = Arrays.copyOf(versions, size * 2);
+            }
+            System.arraycopy(users, at, users, at + 1, size - at);
+            System.arraycopy(blocks, at, blocks, at + 1, size - at);
+            System.arraycopy(versions, at, versions, at + 1, size - at);
+            users[at] = userID;
+            blocks[at] = block;
+            versions[at] = version;
+            size++;
+        }
+    }
+
+    /**
+     * The accounts whose numbers hash to one segment and the slabs their sessions are stored in.  Every
+     * method must be called holding the segment's lock.
+     */
+    private static final class Segment {
+        private final int slabBytes;
+        private final List<ByteBuffer> slabs = new ArrayList<>();
+        //  Free blocks by size, the size of the blocks in list c is MIN_BLOCK_BYTES << c
+        private final long[][] free;
+        private final int[] freeCount;
+        //  Where the next block is carved out of the newest slab
+        private int slabOffset;
+        private long[] accountNums = new long[16];
+        private Account[] accounts = new Account[16];
+        private int accountCount;
+        private long nextVersion = 1;
+        long sessions;
+        long liveBytes;
+
+        Segment(int slabBytes) {
+            this.slabBytes = slabBytes;
+            int classes = Integer.numberOfTrailingZeros(slabBytes / MIN_BLOCK_BYTES) + 1;
+            free = new long[classes][];
+            freeCount = new int[classes];
+            for (int c = 0; c < classes; c++) {
+                free[c] = new long[4];
+            }
+            slabOffset = slabBytes;
+        }
+
+        /**
+         * @param create If true, add the account if the segment doesn't have it
+         * @return The account, or null if it doesn't exist and create is false
+         */
+        Account account(long accountNum, boolean create) {
+            int mask = accounts.length - 1;
+            for (int slot = (int) mix(accountNum) & mask; ; slot = (slot + 1) & mask) {
+                if (accounts[slot] == null) {
+                    if (!create) {
+                        return(null);
+                    }
+                    if ((accountCount + 1) * 2 > accounts.length) {
+                        growAccounts();
+                        return(account(accountNum, true));
+                    }
+                    accountNums[slot] = accountNum;
+                    accounts[slot] = new Account();
+                    accountCount++;
+                    return(accounts[slot]);
+                }
+                if (accountNums[slot] == accountNum) {
+                    return(accounts[slot]);
+                }
+            }
+        }
+
+        private void growAccounts() {
+            long[] oldNums = accountNums;
+            Account[] oldAccounts = accounts;
+            accountNums = new long[oldNums.length * 2];
+            accounts = new Account[oldAccounts.length * 2];
+            int mask = accounts.length - 1;
+            for (int i = 0; i < oldAccounts.length; i++) {
+                if (oldAccounts[i] != null) {
+                    int slot = (int) mix(oldNums[i]) & mask;
+                    while (accounts[slot] != null) {
+                        slot = (slot + 1) & mask;
+                    }
+                    accountNums[slot] = oldNums[i];
+                    accounts[slot] = oldAccounts[i];
+                }
+            }
+        }
+
+        /**
+         * Store a session in a new block, freeing the block of the session it replaces.
+         */
+        WriteResult write(Account account, int userID, byte[] encoded, byte[] name) {
+            long block = allocate(blockSize(encoded.length, length(name)));
+            ByteBuffer slab = slab(block);
+            slab.position(offset(block));
+            slab.putInt(encoded.length).putInt(length(name));
+            if (name != null) {
+                slab.put(name);
+            }
+            slab.put(encoded);
+
+            long version = nextVersion++;
+            int i = account.indexOf(userID);
+            if (i >= 0) {
+                release(account.blocks[i]);
+                account.blocks[i] = block;
+                account.versions[i] = version;
+            } else {
+                account.insert(-i - 1, userID, block, version);
+                sessions++;
+            }
+            return(new WriteResult(userID, toVersion(version)));
+        }
+
+        byte[] readSession(long block) {
+            ByteBuffer slab = slab(block);
+            int offset = offset(block);
+            byte[] ret = new byte[slab.getInt(offset)];
+            slab.position(offset + BLOCK_HEADER_BYTES + Math.max(0, slab.getInt(offset + 4)));
+            slab.get(ret);
+            return(ret);
+        }
+
+        byte[] readName(long block) {
+            ByteBuffer slab = slab(block);
+            int offset = offset(block);
+            int length = slab.getInt(offset + 4);
+            if (length < 0) {
+                return(null);
+            }
+            byte[] ret = new byte[length];
+            slab.position(offset + BLOCK_HEADER_BYTES);
+            slab.get(ret);
+            return(ret);
+        }
+
+        /**
+         * @return The address of a free block of the given size, the slab's index in the high 32 bits
+         * and the offset in the slab in the low 32 bits
+         */
+        private long allocate(int size) {
+            int c = sizeClass(size);
+            liveBytes += size;
+            if (freeCount[c] > 0) {
+                return(free[c][--freeCount[c]]);
+            }
+            if (slabOffset + size > slabBytes) {
+                //  Rather than waste the end of the newest slab, hand it out as free blocks
+                while (slabOffset < slabBytes) {
+                    int tail = Integer.lowestOneBit(slabOffset);
+                    addFree(((long) (slabs.size() - 1) << 32) | slabOffset, sizeClass(tail));
+                    slabOffset += tail;
+                }
+                slabs.add(ByteBuffer.allocateDirect(slabBytes));
+                slabOffset = 0;
+            }
+            long block = ((long) (slabs.size() - 1) << 32) | slabOffset;
+            slabOffset += size;
+            return(block);
+        }
+
+        private void release(long block) {
+            ByteBuffer slab = slab(block);
+            int offset = offset(block);
+            int size = blockSize(slab.getInt(offset), slab.getInt(offset + 4));
+            liveBytes -= size;
+            addFree(block, sizeClass(size));
+        }
+
+        private void addFree(long block, int c) {
+            if (freeCount[c] == free[c].length) {
+                free[c] = Arrays.copyOf(free[c], free[c].length * 2);
+            }
+            free[c][freeCount[c]++] = block;
+        }
+
+        private ByteBuffer slab(long block) {
+            return(slabs.get((int) (block >>> 32)));
+        }
+
+        private static int offset(long block) {
+            return((int) block);
+        }
+
+        private static int sizeClass(int size) {
+            return(Integer.numberOfTrailingZeros(size / MIN_BLOCK_BYTES));
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package session;
+
+import io.micronaut.http.HttpStatus;
+import io.micronaut.http.exceptions.HttpStatusException;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * How long each kind of database operation may take, so that one slow operation can't hold a request for
+ * the handle's request timeout.
+ *
+ * Each kind of operation has its own budget.  The work behind an HTTP request is also run within the
+ * request's deadline, which is held per thread while the work runs, and an operation is never given
+ * longer than what is left of it.  Work started after its request's deadline has passed fails at once
+ * with 504 Gateway Timeout rather than adding load for a response nobody is waiting for.
+ */
+public class OperationDeadlines {
+
+    /**
+     * The kinds of operation that have their own budget.
+     */
+    public enum Kind {
+        //  Reads of a single row
+        GET,
+        //  Writes of one or more rows
+        PUT,
+        //  Queries and preparing them
+        QUERY,
+        //  DDL, table limits and table metadata
+        DDL
+    }
+
+    private static final ThreadLocal<Long> requestDeadline = new ThreadLocal<>();
+
+    private final int[] budgetMillis = new int[Kind.values().length];
+
+    /**
+     * @param getMillis The most a read of a row may take
+     * @param putMillis The most a write may take
+     * @param queryMillis The most a batch of a query may take
+     * @param ddlMillis The most a table operation may take
+     */
+    public OperationDeadlines(int getMillis, int putMillis, int queryMillis, int ddlMillis) {
+        budgetMillis[Kind.GET.ordinal()] = getMillis;
+        budgetMillis[Kind.PUT.ordinal()] = putMillis;
+        budgetMillis[Kind.QUERY.ordinal()] = queryMillis;
+        budgetMillis[Kind.DDL.ordinal()] = ddlMillis;
+        for (int budget : budgetMillis) {
+            if (budget <= 0) {
+                throw new IllegalArgumentException("Operation timeouts must be positive: " + budget);
+            }
+        }
+    }
+
+    /**
+     * @param kind The kind of operation about to be run
+     * @return The timeout to give it, its budget or what is left of the current request's deadline,
+     * whichever is less
+     * @throws HttpStatusException with a status of 504 if the current request's deadline has passed
+     */
+    public int timeoutMillis(Kind kind) {
+        int budget = budgetMillis[kind.ordinal()];
+        Long deadline = requestDeadline.get();
+        if (deadline == null) {
+            return(budget);
+        }
+        long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        if (remaining <= 0) {
+            throw new HttpStatusException(HttpStatus.GATEWAY_TIMEOUT, "Request deadline exceeded");
+        }
+        return((int) Math.min(budget, remaining));
+    }
+
+    /**
+     * Run the work behind a request within its deadline.
+     *
+     * @param deadlineNanos The value of System.nanoTime() by which the request must be answered
+     * @param work The work to run
+     * @param <T> The type of the result of the work
+     * @return The result of the work
+     */
+    public static <T> T within(long deadlineNanos, Supplier<T> work) {
+        Long previous = requestDeadline.get();
+        requestDeadline.set(deadlineNanos);
+        try {
+            return(work.get());
+        } finally {
+            if (previous != null) {
+                requestDeadline.set(previous);
+            } else {
+                requestDeadline.remove();
+            }
+        }
+    }
+
+    /**
+     * @param work Work to hand to another thread
+     * @param <T> The type of the result of the work
+     * @return The work, run within the deadline of the current thread's request if it has one
+     */
+    public static <T> Supplier<T> propagate(Supplier<T> work) {
+        Long deadline = requestDeadline.get();
+        return(deadline == null ? work : () -> within(deadline, work));
+    }
+}
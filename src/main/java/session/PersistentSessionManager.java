@@ -2,29 +2,56 @@ package session;
 
 import database.NDCSCredsProviderForIAM;
 import example.micronaut.Application;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.micronaut.context.ApplicationContext;
 import io.micronaut.context.env.Environment;
 import io.micronaut.context.event.ApplicationEventListener;
+import io.micronaut.http.HttpHeaders;
+import io.micronaut.http.HttpResponse;
+import io.micronaut.http.HttpStatus;
 import io.micronaut.http.MediaType;
+import io.micronaut.http.MutableHttpResponse;
 import io.micronaut.http.annotation.*;
+import io.micronaut.http.exceptions.HttpStatusException;
+import io.micronaut.http.sse.Event;
 import io.micronaut.runtime.Micronaut;
 import io.micronaut.runtime.server.event.ServerStartupEvent;
+import io.reactivex.Completable;
+import io.reactivex.Flowable;
 import oracle.nosql.driver.Consistency;
+import oracle.nosql.driver.DefaultRetryHandler;
 import oracle.nosql.driver.NoSQLHandle;
 import oracle.nosql.driver.NoSQLHandleConfig;
 import oracle.nosql.driver.NoSQLHandleFactory;
+import oracle.nosql.driver.TableNotFoundException;
+import oracle.nosql.driver.TimeToLive;
+import oracle.nosql.driver.Version;
 import oracle.nosql.driver.iam.SignatureProvider;
 import oracle.nosql.driver.ops.*;
 import oracle.nosql.driver.values.ArrayValue;
+import oracle.nosql.driver.values.FieldValue;
 import oracle.nosql.driver.values.JsonOptions;
 import oracle.nosql.driver.values.MapValue;
 
-import javax.json.Json;
-import javax.json.JsonMergePatch;
-import javax.json.JsonReader;
+import session.AdmissionController.Demand;
+import session.SessionMetrics.Endpoint;
+
+import javax.annotation.PreDestroy;
 import java.io.File;
-import java.io.StringReader;
 import java.net.URL;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
 
 @Controller("/sessionmanager")
 public class PersistentSessionManager implements ApplicationEventListener<ServerStartupEvent> {
@@ -34,9 +61,11 @@ public class PersistentSessionManager implements ApplicationEventListener<Server
     public static String COL_ACCOUNT_NUMBER = "account_number";
     public static String COL_USER_ID = "user_id";
     public static String COL_SESSION = "session_info";
+    public static String COL_SESSION_BIN = "session_bin";
     public static String COL_GENERATED_ID_TYPE = " INTEGER GENERATED ALWAYS AS IDENTITY";
     public static String COL_JSON_TYPE = " JSON";
     public static String COL_LONG_TYPE = " LONG";
+    public static String COL_BINARY_TYPE = " BINARY";
 
     //  Constants for attributes in the schema-less JSON part of the table
     public static String JSON_ATTR_USER_NAME = "userName";
@@ -50,8 +79,227 @@ public class PersistentSessionManager implements ApplicationEventListener<Server
     public static String ENV_PROPERTY_MAX_CONCURRENCY = "max_concurrency";
     public static int DEFAULT_MAX_CONCURRENCY = 10;
 
-    //  The connection to the Oracle NoSQL Database
-    static NoSQLHandle databaseConnection;
+    //  Configuration for spreading database work over several handles, each with max_concurrency connections
+    public static String ENV_PROPERTY_DB_HANDLES = "db-handles";
+    public static String ENV_PROPERTY_DB_HANDLE_FAILURE_THRESHOLD = "db-handle-failure-threshold";
+    public static int DEFAULT_DB_HANDLES = 1;
+    public static int DEFAULT_DB_HANDLE_FAILURE_THRESHOLD = 5;
+
+    //  In-process session cache size and time to live, a size of 0 disables the cache
+    public static String ENV_PROPERTY_CACHE_MAX_ENTRIES = "session-cache-max-entries";
+    public static String ENV_PROPERTY_CACHE_TTL_MS = "session-cache-ttl-ms";
+    public static int DEFAULT_CACHE_MAX_ENTRIES = 10000;
+    public static int DEFAULT_CACHE_TTL_MS = 30000;
+
+    //  Configuration for reading sessions we just wrote with EVENTUAL consistency
+    public static String ENV_PROPERTY_READ_YOUR_WRITES = "read-your-writes-enabled";
+    public static String ENV_PROPERTY_READ_YOUR_WRITES_WINDOW_MS = "read-your-writes-window-ms";
+    public static String ENV_PROPERTY_READ_YOUR_WRITES_MAX_ENTRIES = "read-your-writes-max-entries";
+    public static boolean DEFAULT_READ_YOUR_WRITES = true;
+    public static int DEFAULT_READ_YOUR_WRITES_WINDOW_MS = 10000;
+    public static int DEFAULT_READ_YOUR_WRITES_MAX_ENTRIES = 100000;
+
+    //  Streaming the changes we write to sessions to the devices following them
+    public static String ENV_PROPERTY_STREAM_ENABLED = "stream-enabled";
+    public static String ENV_PROPERTY_STREAM_BUFFER_SIZE = "stream-buffer-size";
+    public static String ENV_PROPERTY_STREAM_MAX_SUBSCRIBERS = "stream-max-subscribers";
+    public static String ENV_PROPERTY_STREAM_HEARTBEAT_MS = "stream-heartbeat-ms";
+    public static boolean DEFAULT_STREAM_ENABLED = true;
+    public static int DEFAULT_STREAM_BUFFER_SIZE = 16;
+    public static int DEFAULT_STREAM_MAX_SUBSCRIBERS = 50000;
+    public static int DEFAULT_STREAM_HEARTBEAT_MS = 30000;
+
+    //  Expiry of sessions that are no longer used, renewed in the background for sessions that are read
+    public static String ENV_PROPERTY_SESSION_TTL_HOURS = "session-ttl-hours";
+    public static String ENV_PROPERTY_TTL_RENEW_AFTER_PCT = "session-ttl-renew-after-pct";
+    public static String ENV_PROPERTY_TTL_TOUCH_INTERVAL_MS = "session-ttl-touch-interval-ms";
+    public static String ENV_PROPERTY_TTL_TOUCH_MAX_PENDING = "session-ttl-touch-max-pending";
+    public static int DEFAULT_SESSION_TTL_HOURS = 0;
+    public static int DEFAULT_TTL_RENEW_AFTER_PCT = 50;
+    public static int DEFAULT_TTL_TOUCH_INTERVAL_MS = 5000;
+    public static int DEFAULT_TTL_TOUCH_MAX_PENDING = 10000;
+
+    //  Deadlines for the work behind a request and for each kind of database operation
+    public static String ENV_PROPERTY_REQUEST_DEADLINE_MS = "request-deadline-ms";
+    public static String ENV_PROPERTY_DB_GET_TIMEOUT_MS = "db-get-timeout-ms";
+    public static String ENV_PROPERTY_DB_PUT_TIMEOUT_MS = "db-put-timeout-ms";
+    public static String ENV_PROPERTY_DB_QUERY_TIMEOUT_MS = "db-query-timeout-ms";
+    public static String ENV_PROPERTY_DB_DDL_TIMEOUT_MS = "db-ddl-timeout-ms";
+    public static int DEFAULT_REQUEST_DEADLINE_MS = 5000;
+    public static int DEFAULT_DB_GET_TIMEOUT_MS = 1000;
+    public static int DEFAULT_DB_PUT_TIMEOUT_MS = 2000;
+    public static int DEFAULT_DB_QUERY_TIMEOUT_MS = 5000;
+    public static int DEFAULT_DB_DDL_TIMEOUT_MS = 15000;
+
+    //  Hedging slow EVENTUAL reads with a second read
+    public static String ENV_PROPERTY_HEDGED_READS = "hedged-reads-enabled";
+    public static String ENV_PROPERTY_HEDGE_MAX_PCT = "hedge-max-pct";
+    public static String ENV_PROPERTY_HEDGE_MIN_DELAY_MS = "hedge-min-delay-ms";
+    public static String ENV_PROPERTY_HEDGE_MAX_THREADS = "hedge-max-threads";
+    public static boolean DEFAULT_HEDGED_READS = false;
+    public static int DEFAULT_HEDGE_MAX_PCT = 5;
+    public static int DEFAULT_HEDGE_MIN_DELAY_MS = 5;
+    public static int DEFAULT_HEDGE_MAX_THREADS = 16;
+
+    //  The number of users in a page of getusers when a cursor is given without a limit
+    public static int DEFAULT_USERS_PAGE_SIZE = 100;
+
+    //  How sessions are stored, as a JSON document in session_info or encoded in session_bin
+    public static String ENV_PROPERTY_STORAGE_FORMAT = "session-storage-format";
+    public static String STORAGE_FORMAT_JSON = "json";
+    public static String STORAGE_FORMAT_BINARY = "binary";
+
+    //  Where sessions are kept, in the cloud service or in this process for edge and test deployments
+    public static String ENV_PROPERTY_SESSION_STORE = "session-store";
+    public static String ENV_PROPERTY_LOCAL_STORE_SLAB_BYTES = "local-store-slab-bytes";
+    public static String SESSION_STORE_NOSQL = "nosql";
+    public static String SESSION_STORE_LOCAL = "local";
+
+    //  Bringing the session store up in the background behind the readiness health check
+    public static String ENV_PROPERTY_BACKGROUND_STARTUP = "background-startup-enabled";
+    public static String ENV_PROPERTY_STARTUP_RETRY_BACKOFF_MS = "startup-retry-backoff-ms";
+    public static boolean DEFAULT_BACKGROUND_STARTUP = true;
+    public static int DEFAULT_STARTUP_RETRY_BACKOFF_MS = 1000;
+
+    //  Asynchronous execution of database work, off of the Netty event loop
+    public static String ENV_PROPERTY_ASYNC_ENABLED = "async-enabled";
+    public static String ENV_PROPERTY_DB_THREADS = "db-executor-threads";
+    public static String ENV_PROPERTY_DB_QUEUE_DEPTH = "db-executor-queue-depth";
+    public static boolean DEFAULT_ASYNC_ENABLED = true;
+    public static int DEFAULT_DB_THREADS = 32;
+    public static int DEFAULT_DB_QUEUE_DEPTH = 256;
+
+    //  Write-behind coalescing of watch progress updates
+    public static String ENV_PROPERTY_PROGRESS_WRITE_BEHIND = "progress-write-behind-enabled";
+    public static String ENV_PROPERTY_PROGRESS_MAX_AGE_MS = "progress-max-unflushed-age-ms";
+    public static String ENV_PROPERTY_PROGRESS_MAX_PENDING = "progress-max-pending-sessions";
+    public static String ENV_PROPERTY_PROGRESS_MAX_FLUSH_ATTEMPTS = "progress-max-flush-attempts";
+    public static boolean DEFAULT_PROGRESS_WRITE_BEHIND = true;
+    public static int DEFAULT_PROGRESS_MAX_AGE_MS = 5000;
+    public static int DEFAULT_PROGRESS_MAX_PENDING = 10000;
+    public static int DEFAULT_PROGRESS_MAX_FLUSH_ATTEMPTS = 3;
+
+    //  Optimistic concurrency for read-modify-write updates of a session
+    public static String ENV_PROPERTY_OPTIMISTIC_UPDATES = "optimistic-updates-enabled";
+    public static String ENV_PROPERTY_UPDATE_MAX_RETRIES = "update-max-retries";
+    public static String ENV_PROPERTY_UPDATE_RETRY_BACKOFF_MS = "update-retry-backoff-ms";
+    public static boolean DEFAULT_OPTIMISTIC_UPDATES = true;
+    public static int DEFAULT_UPDATE_MAX_RETRIES = 3;
+    public static int DEFAULT_UPDATE_RETRY_BACKOFF_MS = 5;
+
+    //  Moving finished and older episodes out of sessions into the history child table.  Off by default, as
+    //  clients then no longer find those episodes in the session
+    public static String ENV_PROPERTY_HISTORY_ENABLED = "history-enabled";
+    public static String ENV_PROPERTY_HISTORY_HOT_MAX_SHOWS = "history-hot-max-shows";
+    public static String ENV_PROPERTY_HISTORY_INTERVAL_MS = "history-compaction-interval-ms";
+    public static String ENV_PROPERTY_HISTORY_MAX_PENDING = "history-max-pending-sessions";
+    public static boolean DEFAULT_HISTORY_ENABLED = false;
+    public static int DEFAULT_HISTORY_HOT_MAX_SHOWS = 20;
+    public static int DEFAULT_HISTORY_INTERVAL_MS = 60000;
+    public static int DEFAULT_HISTORY_MAX_PENDING = 10000;
+    public static int DEFAULT_HISTORY_PAGE_SIZE = 100;
+
+    //  Automatic scaling of the table's read and write units
+    public static String ENV_PROPERTY_AUTOSCALE_ENABLED = "autoscale-enabled";
+    public static String ENV_PROPERTY_AUTOSCALE_INTERVAL_MS = "autoscale-interval-ms";
+    public static String ENV_PROPERTY_AUTOSCALE_MIN_READ_UNITS = "autoscale-min-read-units";
+    public static String ENV_PROPERTY_AUTOSCALE_MAX_READ_UNITS = "autoscale-max-read-units";
+    public static String ENV_PROPERTY_AUTOSCALE_MIN_WRITE_UNITS = "autoscale-min-write-units";
+    public static String ENV_PROPERTY_AUTOSCALE_MAX_WRITE_UNITS = "autoscale-max-write-units";
+    public static String ENV_PROPERTY_AUTOSCALE_TARGET_PCT = "autoscale-target-utilization-pct";
+    public static String ENV_PROPERTY_AUTOSCALE_SCALE_UP_PCT = "autoscale-scale-up-utilization-pct";
+    public static String ENV_PROPERTY_AUTOSCALE_SCALE_DOWN_PCT = "autoscale-scale-down-utilization-pct";
+    public static String ENV_PROPERTY_AUTOSCALE_SCALE_DOWN_EVALUATIONS = "autoscale-scale-down-evaluations";
+    public static String ENV_PROPERTY_AUTOSCALE_DECREASE_COOLDOWN_MS = "autoscale-decrease-cooldown-ms";
+    public static String ENV_PROPERTY_AUTOSCALE_MAX_DECREASES_PER_DAY = "autoscale-max-decreases-per-day";
+    public static boolean DEFAULT_AUTOSCALE_ENABLED = false;
+    public static int DEFAULT_AUTOSCALE_INTERVAL_MS = 60000;
+    public static int DEFAULT_AUTOSCALE_MAX_UNITS = 500;
+    public static int DEFAULT_AUTOSCALE_TARGET_PCT = 60;
+    public static int DEFAULT_AUTOSCALE_SCALE_UP_PCT = 80;
+    public static int DEFAULT_AUTOSCALE_SCALE_DOWN_PCT = 30;
+    public static int DEFAULT_AUTOSCALE_SCALE_DOWN_EVALUATIONS = 5;
+    public static int DEFAULT_AUTOSCALE_DECREASE_COOLDOWN_MS = 1800000;
+    public static int DEFAULT_AUTOSCALE_MAX_DECREASES_PER_DAY = 4;
+
+    //  Client side rate limiting of database work, with fair queuing between accounts
+    public static String ENV_PROPERTY_ADMISSION_ENABLED = "admission-enabled";
+    public static String ENV_PROPERTY_ADMISSION_SHARE_PCT = "admission-table-share-pct";
+    public static String ENV_PROPERTY_ADMISSION_BURST_MS = "admission-burst-ms";
+    public static String ENV_PROPERTY_ADMISSION_MAX_WAIT_MS = "admission-max-wait-ms";
+    public static String ENV_PROPERTY_ADMISSION_MAX_QUEUED_PER_ACCOUNT = "admission-max-queued-per-account";
+    public static String ENV_PROPERTY_ADMISSION_MAX_QUEUED = "admission-max-queued";
+    public static String ENV_PROPERTY_ADMISSION_REFRESH_MS = "admission-limits-refresh-ms";
+    public static boolean DEFAULT_ADMISSION_ENABLED = true;
+    public static int DEFAULT_ADMISSION_SHARE_PCT = 100;
+    public static int DEFAULT_ADMISSION_BURST_MS = 1000;
+    public static int DEFAULT_ADMISSION_MAX_WAIT_MS = 50;
+    public static int DEFAULT_ADMISSION_MAX_QUEUED_PER_ACCOUNT = 32;
+    public static int DEFAULT_ADMISSION_MAX_QUEUED = 1024;
+    public static int DEFAULT_ADMISSION_REFRESH_MS = 30000;
+
+    //  Latency and capacity metrics, published at /metrics once the application has started
+    static SessionMetrics sessionMetrics = new SessionMetrics(new SimpleMeterRegistry());
+
+    //  The connection to the Oracle NoSQL Database, null if sessions are kept locally
+    static MeteredHandle databaseConnection;
+
+    //  Where sessions are read from and written to, null until the store is ready
+    static volatile SessionStore sessionStore;
+
+    //  Brings the cloud session store up, null if sessions are kept locally
+    static SessionStoreStartup storeStartup;
+
+    //  Where the blocking database work behind our endpoints is run
+    static SessionRequestExecutor requestExecutor = new SessionRequestExecutor(false, 0, 0, sessionMetrics);
+
+    //  The prepared query behind getusers
+    static AccountUsersQuery accountUsersQuery;
+
+    //  Partial reads of sessions for getsession, null if sessions are projected in memory
+    static SessionProjection sessionProjection;
+
+    //  Buffers watch progress updates, null if progress is written synchronously
+    static ProgressCoalescer progressCoalescer;
+
+    //  Watch history storage and its compaction job, null if history is kept in the session
+    static SessionHistory sessionHistory;
+    static HistoryCompactor historyCompactor;
+    static int historyHotMaxShows = DEFAULT_HISTORY_HOT_MAX_SHOWS;
+
+    //  Scales the table's limits to the load, null if limits are only changed through updateTableLimits
+    static TableAutoScaler tableAutoScaler;
+
+    //  Paces database work to the table's limits, null if requests are never held back
+    static AdmissionController admissionController;
+
+    //  If true, sessions are written in the compressed binary format
+    static boolean binaryStorage = false;
+
+    //  If true, updates only write a session if it hasn't changed since it was read
+    static boolean optimisticUpdates = DEFAULT_OPTIMISTIC_UPDATES;
+    static int updateMaxRetries = DEFAULT_UPDATE_MAX_RETRIES;
+    static int updateRetryBackoffMs = DEFAULT_UPDATE_RETRY_BACKOFF_MS;
+    static final ConflictStats conflictStats = new ConflictStats();
+
+    //  Read-through cache of sessions, null if caching is disabled
+    static SessionCache sessionCache;
+
+    //  The versions of sessions we wrote recently, null if EVENTUAL reads may not see our own writes
+    static WriteVersionTracker versionTracker;
+
+    //  Sends the changes we write to the clients streaming them, null if sessions can't be streamed
+    static SessionChangeHub changeHub;
+
+    //  Renews the time to live of sessions that are read, null if sessions never expire
+    static SessionTouchQueue touchQueue;
+
+    //  How long the work behind a request may take, 0 for no limit other than the operations' timeouts
+    static int requestDeadlineMs = 0;
+
+    //  Hedges slow reads of sessions, null if reads aren't hedged
+    static HedgedSessionStore hedgedStore;
+    static ExecutorService hedgeExecutor;
 
     public static void main(String args[]) {
         try {
@@ -62,7 +310,9 @@ public class PersistentSessionManager implements ApplicationEventListener<Server
     }
 
     /**
-     * Initialize a connection to the Oracle NOSQL Database.
+     * Initialize a connection to the Oracle NOSQL Database.  Unless background startup is disabled this
+     * returns at once and the session store is brought up in the background, until it is ready our
+     * endpoints answer 503 and the readiness health check is down.
      * @param event Passed to us by Micronaut
      */
     @Override
@@ -70,14 +320,324 @@ public class PersistentSessionManager implements ApplicationEventListener<Server
         try {
             System.out.println("Initializing environment");
             //  Our configuration for connecting to the service will be in this environment
-            Environment env = event.getSource().getApplicationContext().getEnvironment();
-            databaseConnection = connectToNDCS(env);
-            createTable(databaseConnection);
+            ApplicationContext context = event.getSource().getApplicationContext();
+            Environment env = context.getEnvironment();
+            Map<String, Object> configProperties = env.getProperties("micronaut.application");
+            sessionMetrics = new SessionMetrics(
+                    context.findBean(MeterRegistry.class).orElseGet(SimpleMeterRegistry::new));
+            int cacheEntries = getIntProperty(configProperties, ENV_PROPERTY_CACHE_MAX_ENTRIES,
+                    DEFAULT_CACHE_MAX_ENTRIES);
+            sessionCache = (cacheEntries > 0 ?
+                    new SessionCache(cacheEntries, getIntProperty(configProperties,
+                            ENV_PROPERTY_CACHE_TTL_MS, DEFAULT_CACHE_TTL_MS)) :
+                    null);
+            versionTracker = (getBooleanProperty(configProperties, ENV_PROPERTY_READ_YOUR_WRITES,
+                    DEFAULT_READ_YOUR_WRITES) ?
+                    new WriteVersionTracker(getIntProperty(configProperties,
+                            ENV_PROPERTY_READ_YOUR_WRITES_MAX_ENTRIES, DEFAULT_READ_YOUR_WRITES_MAX_ENTRIES),
+                            getIntProperty(configProperties, ENV_PROPERTY_READ_YOUR_WRITES_WINDOW_MS,
+                                    DEFAULT_READ_YOUR_WRITES_WINDOW_MS),
+                            sessionMetrics) :
+                    null);
+            changeHub = (getBooleanProperty(configProperties, ENV_PROPERTY_STREAM_ENABLED, DEFAULT_STREAM_ENABLED) ?
+                    new SessionChangeHub(getIntProperty(configProperties, ENV_PROPERTY_STREAM_BUFFER_SIZE,
+                            DEFAULT_STREAM_BUFFER_SIZE),
+                            getIntProperty(configProperties, ENV_PROPERTY_STREAM_MAX_SUBSCRIBERS,
+                                    DEFAULT_STREAM_MAX_SUBSCRIBERS),
+                            getIntProperty(configProperties, ENV_PROPERTY_STREAM_HEARTBEAT_MS,
+                                    DEFAULT_STREAM_HEARTBEAT_MS)) :
+                    null);
+            requestExecutor = new SessionRequestExecutor(
+                    getBooleanProperty(configProperties, ENV_PROPERTY_ASYNC_ENABLED, DEFAULT_ASYNC_ENABLED),
+                    getIntProperty(configProperties, ENV_PROPERTY_DB_THREADS, DEFAULT_DB_THREADS),
+                    getIntProperty(configProperties, ENV_PROPERTY_DB_QUEUE_DEPTH, DEFAULT_DB_QUEUE_DEPTH),
+                    sessionMetrics);
+            requestDeadlineMs = getIntProperty(configProperties, ENV_PROPERTY_REQUEST_DEADLINE_MS,
+                    DEFAULT_REQUEST_DEADLINE_MS);
+            optimisticUpdates = getBooleanProperty(configProperties, ENV_PROPERTY_OPTIMISTIC_UPDATES,
+                    DEFAULT_OPTIMISTIC_UPDATES);
+            updateMaxRetries = getIntProperty(configProperties, ENV_PROPERTY_UPDATE_MAX_RETRIES,
+                    DEFAULT_UPDATE_MAX_RETRIES);
+            updateRetryBackoffMs = getIntProperty(configProperties, ENV_PROPERTY_UPDATE_RETRY_BACKOFF_MS,
+                    DEFAULT_UPDATE_RETRY_BACKOFF_MS);
+            if (getBooleanProperty(configProperties, ENV_PROPERTY_PROGRESS_WRITE_BEHIND,
+                    DEFAULT_PROGRESS_WRITE_BEHIND)) {
+                progressCoalescer = new ProgressCoalescer(this::mergeSessionPatches,
+                        getIntProperty(configProperties, ENV_PROPERTY_PROGRESS_MAX_AGE_MS,
+                                DEFAULT_PROGRESS_MAX_AGE_MS),
+                        getIntProperty(configProperties, ENV_PROPERTY_PROGRESS_MAX_PENDING,
+                                DEFAULT_PROGRESS_MAX_PENDING),
+                        getIntProperty(configProperties, ENV_PROPERTY_PROGRESS_MAX_FLUSH_ATTEMPTS,
+                                DEFAULT_PROGRESS_MAX_FLUSH_ATTEMPTS));
+            }
+            binaryStorage = STORAGE_FORMAT_BINARY.equalsIgnoreCase(String.valueOf(
+                    configProperties.getOrDefault(ENV_PROPERTY_STORAGE_FORMAT, STORAGE_FORMAT_JSON)));
+            if (SESSION_STORE_LOCAL.equalsIgnoreCase(String.valueOf(
+                    configProperties.getOrDefault(ENV_PROPERTY_SESSION_STORE, SESSION_STORE_NOSQL)))) {
+                //  There is no table, so nothing that manages one is started
+                System.out.println("Keeping sessions in local memory, history, admission control and " +
+                        "auto scaling are disabled");
+                SessionStore store = new OffHeapSessionStore(getIntProperty(configProperties,
+                        ENV_PROPERTY_LOCAL_STORE_SLAB_BYTES, OffHeapSessionStore.DEFAULT_SLAB_BYTES));
+                accountUsersQuery = new AccountUsersQuery(store, requestExecutor);
+                sessionStore = store;
+                sessionMetrics.ready();
+                return;
+            }
+            storeStartup = new SessionStoreStartup(() -> startNoSQL(env, configProperties));
+            if (getBooleanProperty(configProperties, ENV_PROPERTY_BACKGROUND_STARTUP,
+                    DEFAULT_BACKGROUND_STARTUP)) {
+                //  Answer health checks at once and report ready when the table can be used
+                storeStartup.start(getIntProperty(configProperties, ENV_PROPERTY_STARTUP_RETRY_BACKOFF_MS,
+                        DEFAULT_STARTUP_RETRY_BACKOFF_MS));
+            } else {
+                storeStartup.run();
+            }
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Connect to the Oracle NoSQL Database, make sure that our tables exist and start everything that
+     * works with them.  The session store is made visible to our endpoints last, so that nothing is served
+     * until all of this is done.  If anything fails the connection is closed so this can be run again.
+     *
+     * @param env The environment to use for configuration information
+     * @param configProperties Our configuration properties
+     * @throws Exception on error
+     */
+    private void startNoSQL(Environment env, Map<String, Object> configProperties) throws Exception {
+        int maxConcurrency = getIntProperty(configProperties, ENV_PROPERTY_MAX_CONCURRENCY, DEFAULT_MAX_CONCURRENCY);
+        NoSQLHandlePool pool = new NoSQLHandlePool(() -> connectToNDCS(env),
+                getIntProperty(configProperties, ENV_PROPERTY_DB_HANDLES, DEFAULT_DB_HANDLES), maxConcurrency,
+                getIntProperty(configProperties, ENV_PROPERTY_DB_HANDLE_FAILURE_THRESHOLD,
+                        DEFAULT_DB_HANDLE_FAILURE_THRESHOLD),
+                sessionMetrics);
+        try {
+            MeteredHandle connection = new MeteredHandle(pool, sessionMetrics);
+            connection.setDeadlines(new OperationDeadlines(
+                    getIntProperty(configProperties, ENV_PROPERTY_DB_GET_TIMEOUT_MS, DEFAULT_DB_GET_TIMEOUT_MS),
+                    getIntProperty(configProperties, ENV_PROPERTY_DB_PUT_TIMEOUT_MS, DEFAULT_DB_PUT_TIMEOUT_MS),
+                    getIntProperty(configProperties, ENV_PROPERTY_DB_QUERY_TIMEOUT_MS,
+                            DEFAULT_DB_QUERY_TIMEOUT_MS),
+                    getIntProperty(configProperties, ENV_PROPERTY_DB_DDL_TIMEOUT_MS, DEFAULT_DB_DDL_TIMEOUT_MS)));
+            NoSQLHandle handle = pool.getHandle();
+            createTable(handle);
+            if (binaryStorage) {
+                addBinarySessionColumn(handle);
+            }
+            boolean historyEnabled = getBooleanProperty(configProperties, ENV_PROPERTY_HISTORY_ENABLED,
+                    DEFAULT_HISTORY_ENABLED);
+            if (historyEnabled) {
+                SessionHistory.createTable(handle);
+            }
+            for (int i = 0; i < pool.size(); i++) {
+                warmConnections(pool.getHandle(i), maxConcurrency);
+            }
+
+            int ttlHours = getIntProperty(configProperties, ENV_PROPERTY_SESSION_TTL_HOURS,
+                    DEFAULT_SESSION_TTL_HOURS);
+            TimeToLive ttl = (ttlHours > 0 ? TimeToLive.ofHours(ttlHours) : null);
+            NoSQLSessionStore store = new NoSQLSessionStore(connection, ttl);
+            if (ttlHours > 0) {
+                touchQueue = new SessionTouchQueue(store, sessionCache, versionTracker, sessionMetrics,
+                        TimeUnit.HOURS.toMillis(ttlHours),
+                        getIntProperty(configProperties, ENV_PROPERTY_TTL_RENEW_AFTER_PCT,
+                                DEFAULT_TTL_RENEW_AFTER_PCT),
+                        getIntProperty(configProperties, ENV_PROPERTY_TTL_TOUCH_INTERVAL_MS,
+                                DEFAULT_TTL_TOUCH_INTERVAL_MS),
+                        getIntProperty(configProperties, ENV_PROPERTY_TTL_TOUCH_MAX_PENDING,
+                                DEFAULT_TTL_TOUCH_MAX_PENDING));
+            }
+            accountUsersQuery = new AccountUsersQuery(store, requestExecutor);
+            sessionProjection = new SessionProjection(connection, sessionCache);
+            if (getBooleanProperty(configProperties, ENV_PROPERTY_ADMISSION_ENABLED,
+                    DEFAULT_ADMISSION_ENABLED)) {
+                admissionController = new AdmissionController(
+                        new NoSQLTableCapacity(connection, TABLE_NAME), sessionMetrics,
+                        getIntProperty(configProperties, ENV_PROPERTY_ADMISSION_SHARE_PCT,
+                                DEFAULT_ADMISSION_SHARE_PCT),
+                        getIntProperty(configProperties, ENV_PROPERTY_ADMISSION_BURST_MS,
+                                DEFAULT_ADMISSION_BURST_MS) / 1000.0,
+                        getIntProperty(configProperties, ENV_PROPERTY_ADMISSION_MAX_WAIT_MS,
+                                DEFAULT_ADMISSION_MAX_WAIT_MS),
+                        getIntProperty(configProperties, ENV_PROPERTY_ADMISSION_MAX_QUEUED_PER_ACCOUNT,
+                                DEFAULT_ADMISSION_MAX_QUEUED_PER_ACCOUNT),
+                        getIntProperty(configProperties, ENV_PROPERTY_ADMISSION_MAX_QUEUED,
+                                DEFAULT_ADMISSION_MAX_QUEUED));
+                connection.setAdmissionController(admissionController);
+                admissionController.start(getIntProperty(configProperties, ENV_PROPERTY_ADMISSION_REFRESH_MS,
+                        DEFAULT_ADMISSION_REFRESH_MS));
+            }
+            if (getBooleanProperty(configProperties, ENV_PROPERTY_AUTOSCALE_ENABLED,
+                    DEFAULT_AUTOSCALE_ENABLED)) {
+                tableAutoScaler = new TableAutoScaler(new NoSQLTableCapacity(connection, TABLE_NAME),
+                        autoScaleSettings(configProperties));
+                tableAutoScaler.start(getIntProperty(configProperties, ENV_PROPERTY_AUTOSCALE_INTERVAL_MS,
+                        DEFAULT_AUTOSCALE_INTERVAL_MS));
+            }
+            if (historyEnabled) {
+                historyHotMaxShows = getIntProperty(configProperties, ENV_PROPERTY_HISTORY_HOT_MAX_SHOWS,
+                        DEFAULT_HISTORY_HOT_MAX_SHOWS);
+                sessionHistory = new SessionHistory(connection, ttl);
+                historyCompactor = new HistoryCompactor(this::compactSession,
+                        getIntProperty(configProperties, ENV_PROPERTY_HISTORY_INTERVAL_MS,
+                                DEFAULT_HISTORY_INTERVAL_MS),
+                        getIntProperty(configProperties, ENV_PROPERTY_HISTORY_MAX_PENDING,
+                                DEFAULT_HISTORY_MAX_PENDING));
+            }
+            SessionStore served = store;
+            if (getBooleanProperty(configProperties, ENV_PROPERTY_HEDGED_READS, DEFAULT_HEDGED_READS)) {
+                //  No queue, a read that finds every thread busy is run on its own thread and isn't hedged
+                int hedgeThreads = getIntProperty(configProperties, ENV_PROPERTY_HEDGE_MAX_THREADS,
+                        DEFAULT_HEDGE_MAX_THREADS);
+                ThreadPoolExecutor hedgePool = new ThreadPoolExecutor(hedgeThreads, hedgeThreads, 60L,
+                        TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+                            Thread t = new Thread(r, "session-hedged-read");
+                            t.setDaemon(true);
+                            return(t);
+                        }, new ThreadPoolExecutor.AbortPolicy());
+                hedgePool.allowCoreThreadTimeOut(true);
+                hedgeExecutor = hedgePool;
+                hedgedStore = new HedgedSessionStore(store, hedgeExecutor, sessionMetrics,
+                        getIntProperty(configProperties, ENV_PROPERTY_HEDGE_MAX_PCT, DEFAULT_HEDGE_MAX_PCT),
+                        getIntProperty(configProperties, ENV_PROPERTY_HEDGE_MIN_DELAY_MS,
+                                DEFAULT_HEDGE_MIN_DELAY_MS));
+                served = hedgedStore;
+            }
+            databaseConnection = connection;
+            sessionStore = served;
+            sessionMetrics.ready();
+        } catch (Exception e) {
+            pool.close();
+            throw(e);
+        }
+    }
+
+    /**
+     * Open the handle's connections to the service before requests need them, so that the first requests
+     * don't each pay for a TLS handshake.  Getting the table's metadata is used because it is cheap and
+     * consumes no read units.
+     *
+     * @param dbHandle The handle whose connections to open
+     * @param connections The size of its connection pool
+     * @throws InterruptedException if interrupted while waiting
+     */
+    static void warmConnections(NoSQLHandle dbHandle, int connections) throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, connections));
+        for (int i = 0; i < connections; i++) {
+            pool.execute(() -> {
+                try {
+                    dbHandle.getTable(new GetTableRequest().setTableName(TABLE_NAME));
+                } catch (RuntimeException e) {
+                    //  Only warming up, a real request will report any problem
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(30, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Write any buffered watch progress and stop the executor that runs our database work when the
+     * application shuts down.
+     */
+    @PreDestroy
+    public void close() {
+        if (storeStartup != null) {
+            storeStartup.shutdown();
+        }
+        if (progressCoalescer != null) {
+            progressCoalescer.shutdown();
+        }
+        if (historyCompactor != null) {
+            historyCompactor.shutdown();
+        }
+        if (tableAutoScaler != null) {
+            tableAutoScaler.shutdown();
+        }
+        if (admissionController != null) {
+            admissionController.shutdown();
+        }
+        if (changeHub != null) {
+            changeHub.shutdown();
+        }
+        if (touchQueue != null) {
+            touchQueue.shutdown();
+        }
+        if (hedgeExecutor != null) {
+            hedgeExecutor.shutdownNow();
+        }
+        requestExecutor.shutdown();
+    }
+
+    /**
+     * Read an integer valued property from our configuration, falling back to a default when it is not set.
+     *
+     * @param configProperties The configuration properties to look in
+     * @param name The name of the property
+     * @param defaultValue The value to use if the property is not set
+     * @return The value of the property
+     */
+    static int getIntProperty(Map<String, Object> configProperties, String name, int defaultValue) {
+        Object value = configProperties.get(name);
+        if (value == null) {
+            return(defaultValue);
+        }
+        return(value instanceof Number ? ((Number) value).intValue() : Integer.parseInt(value.toString()));
+    }
+
+    /**
+     * Read a boolean valued property from our configuration, falling back to a default when it is not set.
+     *
+     * @param configProperties The configuration properties to look in
+     * @param name The name of the property
+     * @param defaultValue The value to use if the property is not set
+     * @return The value of the property
+     */
+    static boolean getBooleanProperty(Map<String, Object> configProperties, String name,
+                                      boolean defaultValue) {
+        Object value = configProperties.get(name);
+        if (value == null) {
+            return(defaultValue);
+        }
+        return(value instanceof Boolean ? (Boolean) value : Boolean.parseBoolean(value.toString()));
+    }
+
+    /**
+     * Read the bounds and thresholds of the table auto scaler from our configuration.
+     *
+     * @param configProperties The configuration properties to look in
+     * @return The auto scaler's settings
+     */
+    static TableAutoScaler.Settings autoScaleSettings(Map<String, Object> configProperties) {
+        return(new TableAutoScaler.Settings()
+                .setReadUnits(getIntProperty(configProperties, ENV_PROPERTY_AUTOSCALE_MIN_READ_UNITS,
+                                DEFAULT_READS_SEC),
+                        getIntProperty(configProperties, ENV_PROPERTY_AUTOSCALE_MAX_READ_UNITS,
+                                DEFAULT_AUTOSCALE_MAX_UNITS))
+                .setWriteUnits(getIntProperty(configProperties, ENV_PROPERTY_AUTOSCALE_MIN_WRITE_UNITS,
+                                DEFAULT_WRITES_SEC),
+                        getIntProperty(configProperties, ENV_PROPERTY_AUTOSCALE_MAX_WRITE_UNITS,
+                                DEFAULT_AUTOSCALE_MAX_UNITS))
+                .setUtilization(
+                        getIntProperty(configProperties, ENV_PROPERTY_AUTOSCALE_TARGET_PCT,
+                                DEFAULT_AUTOSCALE_TARGET_PCT),
+                        getIntProperty(configProperties, ENV_PROPERTY_AUTOSCALE_SCALE_UP_PCT,
+                                DEFAULT_AUTOSCALE_SCALE_UP_PCT),
+                        getIntProperty(configProperties, ENV_PROPERTY_AUTOSCALE_SCALE_DOWN_PCT,
+                                DEFAULT_AUTOSCALE_SCALE_DOWN_PCT))
+                .setScaleDownEvaluations(getIntProperty(configProperties,
+                        ENV_PROPERTY_AUTOSCALE_SCALE_DOWN_EVALUATIONS, DEFAULT_AUTOSCALE_SCALE_DOWN_EVALUATIONS))
+                .setDecreaseCooldownMillis(getIntProperty(configProperties,
+                        ENV_PROPERTY_AUTOSCALE_DECREASE_COOLDOWN_MS,
+                        DEFAULT_AUTOSCALE_DECREASE_COOLDOWN_MS))
+                .setMaxDecreasesPerDay(getIntProperty(configProperties,
+                        ENV_PROPERTY_AUTOSCALE_MAX_DECREASES_PER_DAY,
+                        DEFAULT_AUTOSCALE_MAX_DECREASES_PER_DAY)));
+    }
+
     /**
      * Using the configuration information from the environment, authenticate with the Oracle
      * NoSQL Database cloud service.
@@ -86,16 +646,14 @@ public class PersistentSessionManager implements ApplicationEventListener<Server
      * @return An active handle to the cloud service
      * @throws Exception on error
      */
-    private static NoSQLHandle connectToNDCS(Environment env) throws Exception {
+    static NoSQLHandle connectToNDCS(Environment env) throws Exception {
         Map<String, Object> configProperties = env.getProperties("micronaut.application");
         // Grab all credentials needed for authentiation from our configuration env
         NDCSCredsProviderForIAM creds = NDCSCredsProviderForIAM.getFromMap(configProperties);
         URL serviceURL = new URL("https", creds.getRegionalURI(), 443, "/");
         NoSQLHandleConfig config = new NoSQLHandleConfig(serviceURL);
-        int concurrency = (configProperties.containsKey(ENV_PROPERTY_MAX_CONCURRENCY) ?
-                (int) configProperties.get(ENV_PROPERTY_MAX_CONCURRENCY) :
-                        DEFAULT_MAX_CONCURRENCY);
-        config.setConnectionPoolSize(concurrency);
+        config.setConnectionPoolSize(getIntProperty(configProperties, ENV_PROPERTY_MAX_CONCURRENCY,
+                DEFAULT_MAX_CONCURRENCY));
 
         SignatureProvider authProvider = new SignatureProvider(creds.getTenantOCID(),
                 creds.getUserOCID(),
@@ -104,14 +662,15 @@ public class PersistentSessionManager implements ApplicationEventListener<Server
                 creds.getSkPassword());
         config.setRequestTimeout(15000);
         config.setAuthorizationProvider(authProvider);
-        config.configureDefaultRetryHandler(1, 10);
+        config.setRetryHandler(new CountingRetryHandler(new DefaultRetryHandler(1, 10), sessionMetrics));
         config.setDefaultCompartment(creds.getCompartment());
         return(NoSQLHandleFactory.createNoSQLHandle(config));
     }
 
     /**
      *  Create the table that we will use for our persistent sessions.  This method is resilient in
-     *  that if the table already exists, there is no harm in calling it.  Nothing will happen.
+     *  that if the table already exists, there is no harm in calling it.  Nothing will happen, and as the
+     *  table is looked up first no DDL statement is run either.
      *
      * @param dbHandle A handle to the NoSQL Database cloud service where the table will be
      *                 created.  NOTE that whatever compartment has been set on this handle will
@@ -119,12 +678,16 @@ public class PersistentSessionManager implements ApplicationEventListener<Server
      * @throws Exception on error
      */
     public static void createTable(NoSQLHandle dbHandle) throws Exception {
+        if (isTableActive(dbHandle, TABLE_NAME)) {
+            return;
+        }
         TableRequest req = new TableRequest().setStatement(
                 "CREATE TABLE if not exists " +
                         TABLE_NAME + "(" +
                         COL_ACCOUNT_NUMBER + COL_LONG_TYPE + " , " +
                         COL_USER_ID + COL_GENERATED_ID_TYPE + " , " +
                         COL_SESSION + COL_JSON_TYPE + " , " +
+                        COL_SESSION_BIN + COL_BINARY_TYPE + " , " +
                         "PRIMARY KEY (" + COL_ACCOUNT_NUMBER +", " + COL_USER_ID + "))");
 
         req.setTableLimits(new TableLimits(DEFAULT_READS_SEC,
@@ -141,17 +704,112 @@ public class PersistentSessionManager implements ApplicationEventListener<Server
         }
     }
 
+    /**
+     * Look a table up, which is far cheaper than a DDL statement: DDL is rate limited by the service and
+     * has to be waited for even when it does nothing.
+     *
+     * @param dbHandle A handle to the NoSQL Database cloud service
+     * @param tableName The name of the table
+     * @return true if the table exists and is active
+     */
+    static boolean isTableActive(NoSQLHandle dbHandle, String tableName) {
+        try {
+            TableResult existing = dbHandle.getTable(new GetTableRequest().setTableName(tableName));
+            return(existing.getTableState() == TableResult.State.ACTIVE);
+        } catch (TableNotFoundException e) {
+            return(false);
+        }
+    }
+
+    /**
+     *  Add the column for sessions stored in binary to a table that was created before it existed.
+     *  Nothing will happen if the table already has the column.
+     *
+     * @param dbHandle A handle to the NoSQL Database cloud service where the table is
+     * @throws Exception on error
+     */
+    public static void addBinarySessionColumn(NoSQLHandle dbHandle) throws Exception {
+        TableResult existing = dbHandle.getTable(new GetTableRequest().setTableName(TABLE_NAME));
+        if (existing.getSchema() != null && existing.getSchema().contains("\"" + COL_SESSION_BIN + "\"")) {
+            return;
+        }
+        TableRequest req = new TableRequest().setStatement(
+                "ALTER TABLE " + TABLE_NAME + " (ADD " + COL_SESSION_BIN + COL_BINARY_TYPE + ")");
+        TableResult tr = dbHandle.tableRequest(req);
+        tr.waitForCompletion(dbHandle, 30000, 500);
+        if (tr.getTableState().compareTo(TableResult.State.ACTIVE) != 0) {
+            throw new Exception("Unable to add " + COL_SESSION_BIN + " to " + TABLE_NAME +
+                    ", current state = " + tr.getTableState());
+        }
+    }
+
+    /**
+     * Build a row of the persistent session table, storing the session in the configured format.  The
+     * user ID is not set.
+     *
+     * @param accountNum The account number that the session belongs to
+     * @param session The session document
+     * @return The row
+     */
+    static MapValue sessionRow(long accountNum, FieldValue session) {
+        MapValue row = new MapValue().put(COL_ACCOUNT_NUMBER, accountNum);
+        if (binaryStorage) {
+            //  Keep the user's name in the JSON column so that getusers still works
+            row.put(COL_SESSION, SessionCodec.summary(session))
+                    .put(COL_SESSION_BIN, SessionCodec.encode(session));
+        } else {
+            row.put(COL_SESSION, session);
+        }
+        return(row);
+    }
+
+    /**
+     * Get the session document out of a row of the persistent session table, whichever format it was
+     * stored in.  Rows are converted to the configured format the next time they are written.
+     *
+     * @param row The row
+     * @return The session document
+     */
+    static FieldValue sessionFromRow(MapValue row) {
+        FieldValue encoded = row.get(COL_SESSION_BIN);
+        if (encoded != null && encoded.getType() == FieldValue.Type.BINARY) {
+            return(SessionCodec.decode(encoded.getBinary()));
+        }
+        return(toDocument(row.get(COL_SESSION)));
+    }
+
     /**
      * Update the provisioned throughput or storage for the table.
      *
      * @param readUnits If not null, contains the new number of read units to set
      * @param writeUnits If not null, contains the new number of write units to set
      * @param storageGB If not null, contains the new number of gigibytes of storage to set
+     * @return OK once the new limits have been applied
      */
     @Post
-    public void updateTableLimits(@PathVariable @io.micronaut.core.annotation.Nullable Integer readUnits,
-                                  @PathVariable @io.micronaut.core.annotation.Nullable Integer writeUnits,
-                                  @PathVariable @io.micronaut.core.annotation.Nullable Integer storageGB) {
+    public CompletableFuture<HttpStatus> updateTableLimits(
+            @PathVariable @io.micronaut.core.annotation.Nullable Integer readUnits,
+            @PathVariable @io.micronaut.core.annotation.Nullable Integer writeUnits,
+            @PathVariable @io.micronaut.core.annotation.Nullable Integer storageGB) {
+        readyStore();
+        return(requestExecutor.submit(Endpoint.TABLE_LIMITS, () -> {
+            setTableLimits(readUnits, writeUnits, storageGB);
+            return(HttpStatus.OK);
+        }));
+    }
+
+    /**
+     * Helper method to update the provisioned throughput or storage for the table.
+     *
+     * @param readUnits If not null, contains the new number of read units to set
+     * @param writeUnits If not null, contains the new number of write units to set
+     * @param storageGB If not null, contains the new number of gigibytes of storage to set
+     */
+    private void setTableLimits(Integer readUnits, Integer writeUnits, Integer storageGB) {
+        if (databaseConnection == null) {
+            throw new HttpStatusException(HttpStatus.NOT_FOUND,
+                    "Sessions are kept locally, there is no table");
+        }
         //  Get the existing limits on the table
         GetTableRequest getReq = new GetTableRequest().setTableName(TABLE_NAME);
         TableResult result = databaseConnection.getTable(getReq);
@@ -163,10 +821,68 @@ public class PersistentSessionManager implements ApplicationEventListener<Server
         limits.setStorageGB(storageGB != null ? storageGB : limits.getStorageGB());
 
         //  Modify the table with the new limits object
-        TableRequest tReq = new TableRequest().setTableLimits(limits);
+        TableRequest tReq = new TableRequest().setTableName(TABLE_NAME).setTableLimits(limits);
         TableResult tRes = databaseConnection.tableRequest(tReq);
         //  Wait 2 seconds for operation to complete, checking every 300 milliseconds
-        tRes.waitForCompletion(databaseConnection, 2000, 300);
+        tRes.waitForCompletion(databaseConnection.getHandle(), 2000, 300);
+    }
+
+    /**
+     * REST interface to retrieve the recent decisions of the table auto scaler
+     *
+     * @return A JSON document of the form {"enabled": true, "events": [...]}, oldest event first
+     */
+    @Get(uri="/autoscale", produces = MediaType.APPLICATION_JSON)
+    public String getAutoScaleEvents() {
+        MapValue ret = new MapValue().put("enabled", tableAutoScaler != null);
+        if (tableAutoScaler != null) {
+            ret.put("events", tableAutoScaler.getEvents());
+        }
+        return(ret.toJson());
+    }
+
+    /**
+     * REST interface to retrieve the counters of admission control
+     *
+     * @return A JSON document with the admission counters and rates, or an empty document if requests are
+     * never held back
+     */
+    @Get(uri="/admissionstats", produces = MediaType.APPLICATION_JSON)
+    public String getAdmissionStats() {
+        MapValue stats = new MapValue();
+        if (admissionController != null) {
+            stats.put("admitted", admissionController.getAdmitted())
+                    .put("delayed", admissionController.getDelayed())
+                    .put("rejectedQueueFull", admissionController.getRejectedQueueFull())
+                    .put("rejectedTimeout", admissionController.getRejectedTimeout())
+                    .put("queued", admissionController.getQueued())
+                    .put("readUnitsPerSecond", admissionController.getReadUnitsPerSecond())
+                    .put("writeUnitsPerSecond", admissionController.getWriteUnitsPerSecond());
+        }
+        return(stats.toJson());
+    }
+
+    /**
+     * REST interface to retrieve the state of each of our handles to the database
+     *
+     * @return A JSON document with an entry per handle and the number of broken handles replaced, or an
+     * empty document if sessions are kept locally
+     */
+    @Get(uri="/handlestats", produces = MediaType.APPLICATION_JSON)
+    public String getHandleStats() {
+        MapValue stats = new MapValue();
+        MeteredHandle connection = databaseConnection;
+        if (connection != null) {
+            NoSQLHandlePool pool = connection.getPool();
+            ArrayValue handles = new ArrayValue(pool.size());
+            for (int i = 0; i < pool.size(); i++) {
+                handles.add(new MapValue().put("inFlight", pool.getInFlight(i)).put("up", pool.isUp(i)));
+            }
+            stats.put("handles", handles)
+                    .put("maxConcurrency", pool.getMaxConcurrency())
+                    .put("replacements", pool.getReplacements());
+        }
+        return(stats.toJson());
     }
 
     /**
@@ -174,36 +890,133 @@ public class PersistentSessionManager implements ApplicationEventListener<Server
      *
      * @param accountNum The account number for the account that this user belongs to
      * @param userID The unique ID for the user whose persistent session to retrieve
-     * @return The JSON session document
+     * @param fields If not null, a comma separated list of dotted paths into the session, such as
+     *               "showID,seriesInfo.episodes.minWatched", to return instead of the whole document
+     * @param ifNoneMatch If not null, the ETags of the sessions the client already has
+     * @param accept If not null, the formats the client accepts, the session is sent as CBOR or Smile if
+     *               either is accepted and as JSON otherwise
+     * @return The session document and its ETag, 304 Not Modified if the session still has one of the
+     * ETags in ifNoneMatch, or when fields are given a document with an array of the values found at
+     * each field, which has no ETag
      */
-    @Get(uri="/getsession/{accountNum}/{userID}", produces = MediaType.APPLICATION_JSON)
-    public String getSessionForUser(@PathVariable Long accountNum, @PathVariable Integer userID) {
-        return(getByPK(accountNum, userID));
+    @Get(uri="/getsession/{accountNum}/{userID}{?fields}", produces = {MediaType.APPLICATION_JSON,
+            SessionWireFormat.APPLICATION_CBOR, SessionWireFormat.APPLICATION_SMILE})
+    public CompletableFuture<HttpResponse<Object>> getSessionForUser(
+            @PathVariable Long accountNum,
+            @PathVariable Integer userID,
+            @QueryValue @io.micronaut.core.annotation.Nullable String fields,
+            @Header(HttpHeaders.IF_NONE_MATCH) @io.micronaut.core.annotation.Nullable String ifNoneMatch,
+            @Header(HttpHeaders.ACCEPT) @io.micronaut.core.annotation.Nullable String accept) {
+        SessionWireFormat format = SessionWireFormat.forAccept(accept);
+        if (fields != null) {
+            return(submitForAccount(Endpoint.GET_SESSION, accountNum, Demand.READ, () -> {
+                //  Binary and local sessions can't be projected by the database, project them here.  So are
+                //  sessions we just wrote, the database would project them with EVENTUAL consistency
+                WriteVersionTracker tracker = versionTracker;
+                MapValue projection = (binaryStorage || sessionProjection == null ||
+                        (tracker != null && tracker.isTracked(accountNum, userID)) ?
+                        SessionProjection.projectInMemory(readSession(accountNum, userID).getSession(),
+                                SessionProjection.parseFields(fields)) :
+                        sessionProjection.project(accountNum, userID, fields));
+                return(projection != null ? encoded(HttpResponse.ok(), projection, format) :
+                        HttpResponse.notFound());
+            }));
+        }
+        return(submitForAccount(Endpoint.GET_SESSION, accountNum, Demand.READ,
+                () -> getByPK(accountNum, userID, ifNoneMatch, format)));
     }
 
     /**
      * REST interface to retrieve all of the user names and IDs registered in a
-     * specific account
+     * specific account.  Without a limit the whole account is streamed as a chunked JSON array.  With a
+     * limit a single page is returned along with a cursor for the next page.
      *
      * @param accountNum The account number to find users for
-     * @return A JSON array containing documents of the form: {"userName" : "julie", "userID": 28}
-     */
-    @Get(uri="/getusers/{accountNum}", produces = MediaType.APPLICATION_JSON)
-    public String getUsersInAccount(@PathVariable Long accountNum) {
-        QueryRequest qr = new QueryRequest().setStatement(
-                "select {\"userName\": p.session_info.userName," +
-                        "\"userID\": p.user_id} as session_info from " +
-                        TABLE_NAME + " p " +
-                        " where p." + COL_ACCOUNT_NUMBER + " = " + accountNum);
-
-        QueryResult res = databaseConnection.query(qr);
-        //  Use the NoSQL ArrayValue convenience API for storing out results for easy conversion
-        //  to a JSON string for our return value
-        ArrayValue ret = new ArrayValue();
-        res.getResults().forEach(result -> {
-            ret.add(result);
-        });
-        return(ret.toJson());
+     * @param limit If not null, the maximum number of users to return in one page, which must be positive
+     * @param cursor If not null, the cursor returned with the previous page, a cursor that we didn't return
+     *               is refused with 400 Bad Request
+     * @param accept If not null, the formats the client accepts, the users are sent as CBOR or Smile if
+     *               either is accepted and as JSON otherwise
+     * @return An array containing documents of the form: {"userName" : "julie", "userID": 28}, or
+     * when paging a document of the form {"users": [...], "cursor": "..."}
+     */
+    @Get(uri="/getusers/{accountNum}{?limit,cursor}", produces = {MediaType.APPLICATION_JSON,
+            SessionWireFormat.APPLICATION_CBOR, SessionWireFormat.APPLICATION_SMILE})
+    public Flowable<byte[]> getUsersInAccount(@PathVariable Long accountNum,
+                                              @QueryValue @io.micronaut.core.annotation.Nullable Integer limit,
+                                              @QueryValue @io.micronaut.core.annotation.Nullable String cursor,
+                                              @Header(HttpHeaders.ACCEPT)
+                                              @io.micronaut.core.annotation.Nullable String accept) {
+        readyStore();
+        AccountUsersQuery query = accountUsersQuery;
+        SessionWireFormat format = SessionWireFormat.forAccept(accept);
+        long start = System.nanoTime();
+        Flowable<byte[]> users = (limit == null && cursor == null ?
+                query.stream(accountNum, format) :
+                query.page(accountNum, limit != null ? limit : DEFAULT_USERS_PAGE_SIZE, cursor, format));
+        AdmissionController admission = admissionController;
+        if (admission != null) {
+            CompletableFuture<Void> admitted = admission.admit(accountNum, Demand.READ);
+            users = Completable.create(emitter -> admitted.whenComplete((result, error) -> {
+                if (error != null) {
+                    emitter.onError(error);
+                } else {
+                    emitter.onComplete();
+                }
+            })).andThen(users).doFinally(() -> {
+                //  Give up waiting if the client went away, otherwise give back what was reserved
+                if (!admitted.cancel(false) && !admitted.isCompletedExceptionally()) {
+                    admission.release(Demand.READ);
+                }
+            });
+        }
+        return(users.doFinally(() -> sessionMetrics.endpoint(Endpoint.GET_USERS, start)));
+    }
+
+    /**
+     * REST interface to follow the changes to a persistent session as server-sent events, so that a
+     * user's devices can resume each other's playback without polling getsession.  Each change that this
+     * instance writes is sent as a "patch" event holding an RFC 7386 merge patch, or a "session" event
+     * holding the whole session when it was replaced or written without checking its version, with the
+     * session's new ETag as the event ID.
+     * "heartbeat" events keep idle streams open.  Clients should subscribe before reading the session, and
+     * must read it again whenever the stream ends, as that happens when they fall too far behind.  A patch
+     * comes with the ETag of the session it applies to, as {"baseETag": "...", "patch": {...}}, and
+     * clients must read the session again rather than apply a patch whose baseETag isn't the ETag of the
+     * session they have, as changes can arrive out of order.
+     *
+     * @param accountNum The account number owning the session
+     * @param userID The ID of the user in the account that this session belongs to
+     * @return The stream of changes
+     */
+    @Get(uri="/stream/{accountNum}/{userID}", produces = MediaType.TEXT_EVENT_STREAM)
+    public Flowable<Event<String>> streamSession(@PathVariable Long accountNum, @PathVariable Integer userID) {
+        readyStore();
+        SessionChangeHub hub = changeHub;
+        if (hub == null) {
+            throw new HttpStatusException(HttpStatus.NOT_FOUND, "Session streaming is disabled");
+        }
+        return(hub.subscribe(accountNum, userID).map(change -> {
+            Event<String> event = Event.of(change.getJson()).name(change.getType().getName());
+            return(change.getETag() != null ? event.id(change.getETag()) : event);
+        }));
+    }
+
+    /**
+     * REST interface to retrieve the number of session streams and the changes sent to them
+     *
+     * @return A JSON document with the stream counters, or an empty document if streaming is disabled
+     */
+    @Get(uri="/streamstats", produces = MediaType.APPLICATION_JSON)
+    public String getStreamStats() {
+        MapValue stats = new MapValue();
+        if (changeHub != null) {
+            stats.put("subscribers", changeHub.getSubscribers())
+                    .put("published", changeHub.getPublished())
+                    .put("delivered", changeHub.getDelivered())
+                    .put("dropped", changeHub.getDropped());
+        }
+        return(stats.toJson());
     }
 
     /**
@@ -214,13 +1027,28 @@ public class PersistentSessionManager implements ApplicationEventListener<Server
      * @return The ID of the user that was just created
      */
     @Post(uri = "/create/{accountNum}/{userName}", produces = MediaType.APPLICATION_JSON)
-    public String create(@PathVariable Long accountNum, @PathVariable String userName) {
-        PutRequest putReq =
-                new PutRequest().setTableName(TABLE_NAME).setValue(
-                        new MapValue().put(COL_ACCOUNT_NUMBER, accountNum).put(COL_SESSION,
-                                new MapValue().put(JSON_ATTR_USER_NAME, userName)));
-        PutResult putRes = databaseConnection.put(putReq);
-        int newUserId = putRes.getGeneratedValue().asInteger().getValue();
+    public CompletableFuture<String> create(@PathVariable Long accountNum, @PathVariable String userName) {
+        return(submitForAccount(Endpoint.CREATE, accountNum, Demand.WRITE,
+                () -> createSession(accountNum, userName)));
+    }
+
+    /**
+     * Helper method to create a persistent session for a user in an account.
+     *
+     * @param accountNum The account number that this user belongs to
+     * @param userName The name associated with this user
+     * @return The ID of the user that was just created
+     */
+    private String createSession(long accountNum, String userName) {
+        MapValue session = new MapValue().put(JSON_ATTR_USER_NAME, userName);
+        SessionStore.WriteResult created = sessionStore.create(accountNum, session);
+        int newUserId = created.getUserID();
+        if (sessionCache != null) {
+            sessionCache.put(accountNum, newUserId, new SessionRecord(session, created.getVersion()));
+        }
+        if (versionTracker != null) {
+            versionTracker.written(accountNum, newUserId, created.getVersion());
+        }
         return ("{\"userID\":\"" + newUserId + "\"}");
     }
 
@@ -229,56 +1057,626 @@ public class PersistentSessionManager implements ApplicationEventListener<Server
      * @param jsonMerge The JSON merge patch to apply
      * @param accountNum The account number owning the session
      * @param userID The ID of the user in the account that this session belongs to
-     * @return Merged JSON update
+     * @param ifMatch If not null, the ETags of the sessions the client will only update, the update fails
+     *                with 412 Precondition Failed if the session has changed since
+     * @param accept If not null, the formats the client accepts, the merged session is sent as CBOR or
+     *               Smile if either is accepted and as JSON otherwise
+     * @return Merged update and its ETag
+     */
+    @Post(uri = "/update/{accountNum}/{userID}", produces = {MediaType.APPLICATION_JSON,
+            SessionWireFormat.APPLICATION_CBOR, SessionWireFormat.APPLICATION_SMILE})
+    public CompletableFuture<HttpResponse<Object>> updateSession(
+            @Body String jsonMerge,
+            @PathVariable Long accountNum,
+            @PathVariable Integer userID,
+            @Header(HttpHeaders.IF_MATCH) @io.micronaut.core.annotation.Nullable String ifMatch,
+            @Header(HttpHeaders.ACCEPT) @io.micronaut.core.annotation.Nullable String accept) {
+        FieldValue patch = SessionWireFormat.decodeJson(jsonMerge);
+        SessionWireFormat format = SessionWireFormat.forAccept(accept);
+        return(submitForAccount(Endpoint.UPDATE, accountNum, Demand.WRITE,
+                () -> mergeSession(patch, accountNum, userID, ifMatch, format)));
+    }
+
+    /**
+     * Update a persistent session by applying an RFC 7386 merge patch sent as CBOR or Smile rather
+     * than JSON.  The patch is decoded straight into a FieldValue.
+     *
+     * @param merge The encoded merge patch to apply
+     * @param accountNum The account number owning the session
+     * @param userID The ID of the user in the account that this session belongs to
+     * @param contentType The format of the merge patch
+     * @param ifMatch If not null, the ETags of the sessions the client will only update
+     * @param accept If not null, the formats the client accepts for the merged session
+     * @return Merged update and its ETag
+     */
+    @Post(uri = "/update/{accountNum}/{userID}",
+            consumes = {SessionWireFormat.APPLICATION_CBOR, SessionWireFormat.APPLICATION_SMILE},
+            produces = {MediaType.APPLICATION_JSON, SessionWireFormat.APPLICATION_CBOR,
+                    SessionWireFormat.APPLICATION_SMILE})
+    public CompletableFuture<HttpResponse<Object>> updateSessionBinary(
+            @Body byte[] merge,
+            @PathVariable Long accountNum,
+            @PathVariable Integer userID,
+            @Header(HttpHeaders.CONTENT_TYPE) String contentType,
+            @Header(HttpHeaders.IF_MATCH) @io.micronaut.core.annotation.Nullable String ifMatch,
+            @Header(HttpHeaders.ACCEPT) @io.micronaut.core.annotation.Nullable String accept) {
+        FieldValue patch = SessionWireFormat.forContentType(contentType).decode(merge);
+        SessionWireFormat format = SessionWireFormat.forAccept(accept);
+        return(submitForAccount(Endpoint.UPDATE, accountNum, Demand.WRITE,
+                () -> mergeSession(patch, accountNum, userID, ifMatch, format)));
+    }
+
+    /**
+     * Helper method to update a persistent session by applying RFC 7386 json merge patch
+     * @param patch The merge patch to apply
+     * @param accountNum The account number owning the session
+     * @param userID The ID of the user in the account that this session belongs to
+     * @param ifMatch If not null, only update the session if it has one of these ETags
+     * @param format The format to send the merged session in
+     * @return Merged update and its ETag
      */
-    @Post(uri = "/update/{accountNum}/{userName}", produces = MediaType.APPLICATION_JSON)
-    public String updateSession(@Body String jsonMerge, @PathVariable Long accountNum,
-                                @PathVariable Integer userID) {
+    private HttpResponse<Object> mergeSession(FieldValue patch, long accountNum, int userID, String ifMatch,
+                                              SessionWireFormat format) {
 
         /*
           Use JSON merge patch to merge the incoming changes in the persistent session (in the body
-          of the HTTP request) with the persistent session in the database.
+          of the HTTP request) with the persistent session in the database.  The patch is parsed once
+          and applied directly to the stored MapValue.
          */
-        JsonReader jsonReader = Json.createReader(new StringReader(getByPK(accountNum, userID)));
-        JsonMergePatch mergePatch =
-                Json.createMergePatch(jsonReader.readValue());
-        jsonReader = Json.createReader(new StringReader(jsonMerge));
-        String mergeResult = mergePatch.apply(jsonReader.readValue()).toString();
+        SessionRecord mergeResult = updateByPK(accountNum, userID, ifMatch, session -> {
+            long start = System.nanoTime();
+            FieldValue merged = MergePatch.apply(session, patch);
+            sessionMetrics.merge(start);
+            return(merged);
+        });
+        return(withETag(encoded(HttpResponse.ok(), mergeResult.getSession(), format), mergeResult.getVersion()));
+    }
+
+    /**
+     * REST interface for high frequency watch progress updates, such as minWatched and lastWatched.  The
+     * RFC 7386 merge patch is buffered and combined with other progress for the same session, then
+     * written within the configured maximum unflushed age.  Reads of the session may not see the
+     * progress until it has been written.  When too many sessions are already waiting the patch is
+     * written synchronously instead.
+     *
+     * @param jsonMerge The JSON merge patch to apply
+     * @param accountNum The account number owning the session
+     * @param userID The ID of the user in the account that this session belongs to
+     * @return ACCEPTED if the update was buffered or OK if it was written synchronously
+     */
+    @Post(uri = "/progress/{accountNum}/{userID}")
+    public CompletableFuture<HttpStatus> updateProgress(@Body String jsonMerge, @PathVariable Long accountNum,
+                                                        @PathVariable Integer userID) {
+        long start = System.nanoTime();
+        readyStore();
+        FieldValue patch = SessionWireFormat.decodeJson(jsonMerge);
+        ProgressCoalescer coalescer = progressCoalescer;
+        if (coalescer == null || !coalescer.submit(accountNum, userID, patch)) {
+            return(submitForAccount(Endpoint.PROGRESS, accountNum, Demand.WRITE, () -> {
+                mergeSessionPatches(accountNum, userID, Collections.singletonList(patch));
+                return(HttpStatus.OK);
+            }));
+        }
+        sessionMetrics.endpoint(Endpoint.PROGRESS, start);
+        return(CompletableFuture.completedFuture(HttpStatus.ACCEPTED));
+    }
+
+    /**
+     * REST interface to retrieve the coalescing ratio and flush latency of buffered watch progress
+     *
+     * @return A JSON document with the progress counters, or an empty document if progress is written
+     * synchronously
+     */
+    @Get(uri="/progressstats", produces = MediaType.APPLICATION_JSON)
+    public String getProgressStats() {
+        MapValue stats = new MapValue();
+        if (progressCoalescer != null) {
+            stats.put("patchesReceived", progressCoalescer.getPatchesReceived())
+                    .put("patchesFlushed", progressCoalescer.getPatchesFlushed())
+                    .put("sessionWrites", progressCoalescer.getSessionWrites())
+                    .put("flushFailures", progressCoalescer.getFlushFailures())
+                    .put("patchesDropped", progressCoalescer.getPatchesDropped())
+                    .put("patchesRefused", progressCoalescer.getPatchesRefused())
+                    .put("pendingSessions", progressCoalescer.getPendingSessions())
+                    .put("coalescingRatio", progressCoalescer.getCoalescingRatio())
+                    .put("avgFlushMillis", progressCoalescer.getAverageFlushMillis())
+                    .put("maxFlushMillis", progressCoalescer.getMaxFlushMillis());
+        }
+        return(stats.toJson());
+    }
+
+    /**
+     * REST interface to retrieve the watch history that has been moved out of a persistent session, a
+     * page at a time
+     *
+     * @param accountNum The account number owning the session
+     * @param userID The ID of the user in the account that this session belongs to
+     * @param limit The maximum number of history entries to return
+     * @param cursor The cursor returned with the previous page, if any
+     * @return A JSON document of the form {"history": [{"show": {...}, "season": {...}, "episode": {...}}],
+     * "cursor": "..."}, where the cursor is null on the last page
+     */
+    @Get(uri="/history/{accountNum}/{userID}{?limit,cursor}", produces = MediaType.APPLICATION_JSON)
+    public CompletableFuture<String> getHistory(
+            @PathVariable Long accountNum,
+            @PathVariable Integer userID,
+            @QueryValue @io.micronaut.core.annotation.Nullable Integer limit,
+            @QueryValue @io.micronaut.core.annotation.Nullable String cursor) {
+        if (sessionHistory == null) {
+            throw new HttpStatusException(HttpStatus.NOT_FOUND, "Watch history is kept in the session");
+        }
+        int pageSize = (limit != null ? limit : DEFAULT_HISTORY_PAGE_SIZE);
+        if (pageSize <= 0) {
+            throw new HttpStatusException(HttpStatus.BAD_REQUEST, "limit must be positive");
+        }
+        return(submitForAccount(Endpoint.HISTORY, accountNum, Demand.READ,
+                () -> sessionHistory.page(accountNum, userID, pageSize, cursor)));
+    }
+
+    /**
+     * REST interface to retrieve the counters of the watch history compaction job
+     *
+     * @return A JSON document with the compaction counters, or an empty document if history is kept in
+     * the session
+     */
+    @Get(uri="/historystats", produces = MediaType.APPLICATION_JSON)
+    public String getHistoryStats() {
+        MapValue stats = new MapValue();
+        if (historyCompactor != null) {
+            stats.put("sessionsCompacted", historyCompactor.getSessionsCompacted())
+                    .put("entriesMoved", historyCompactor.getEntriesMoved())
+                    .put("compactionFailures", historyCompactor.getCompactionFailures())
+                    .put("sessionsDropped", historyCompactor.getSessionsDropped())
+                    .put("pendingSessions", historyCompactor.getPendingSessions());
+        }
+        return(stats.toJson());
+    }
+
+    /**
+     * Run the database work behind an endpoint once admission control has let the account's request in,
+     * giving back what the request reserved when it completes.  The work is run within the request's
+     * deadline, which starts now, so time spent waiting to be admitted or for a thread counts against it.
+     *
+     * @param endpoint The endpoint that the work is for
+     * @param accountNum The account that the request is for
+     * @param demand The units the request is expected to consume
+     * @param work The work to run
+     * @param <T> The type of the result of the work
+     * @return A future that completes with the result of the work
+     * @throws HttpStatusException with a status of 429 if the account has too many requests waiting, or 503
+     * if the session store is still starting up
+     */
+    private static <T> CompletableFuture<T> submitForAccount(Endpoint endpoint, long accountNum,
+                                                             Demand demand, Supplier<T> work) {
+        readyStore();
+        Supplier<T> bounded = work;
+        if (requestDeadlineMs > 0) {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(requestDeadlineMs);
+            bounded = () -> OperationDeadlines.within(deadline, work);
+        }
+        AdmissionController admission = admissionController;
+        if (admission == null) {
+            return(requestExecutor.submit(endpoint, bounded));
+        }
+        Supplier<T> admittedWork = bounded;
+        return(admission.admit(accountNum, demand).thenCompose(admitted -> {
+            try {
+                return(requestExecutor.submit(endpoint, admittedWork)
+                        .whenComplete((result, error) -> admission.release(demand)));
+            } catch (RuntimeException e) {
+                admission.release(demand);
+                throw(e);
+            }
+        }));
+    }
+
+    /**
+     * @return The session store
+     * @throws HttpStatusException with a status of 503 if the session store is still starting up
+     */
+    private static SessionStore readyStore() {
+        SessionStore store = sessionStore;
+        if (store == null) {
+            throw new HttpStatusException(HttpStatus.SERVICE_UNAVAILABLE,
+                    "The session store is starting up, try again shortly");
+        }
+        return(store);
+    }
+
+    /**
+     * Helper method to move the finished and older episodes of a persistent session into its watch
+     * history.  History rows are written first, so if we fail part way through the episodes are in both
+     * places until the next compaction rather than lost.
+     *
+     * @param accountNum The account number owning the session
+     * @param userID The ID of the user in the account that this session belongs to
+     * @return The number of history entries moved, or -1 if the session changed while being compacted
+     */
+    private int compactSession(long accountNum, int userID) {
+        SessionRecord current = readSessionFromDatabase(accountNum, userID, Consistency.ABSOLUTE);
+        if (current.getSession() == null || current.getVersion() == null) {
+            return(0);
+        }
+        SessionHistory.Split split = SessionHistory.split(current.getSession(), historyHotMaxShows);
+        if (split.getCold().isEmpty()) {
+            return(0);
+        }
+        sessionHistory.write(accountNum, userID, split.getCold());
+        if (putByPK(accountNum, userID, current.getSession(), split.getHot(), current.getVersion()) == null) {
+            return(-1);
+        }
+        return(split.getCold().size());
+    }
+
+    /**
+     * Helper method to apply a series of RFC 7386 merge patches to a persistent session with a single
+     * read and a single write.
+     *
+     * @param accountNum The account number owning the session
+     * @param userID The ID of the user in the account that this session belongs to
+     * @param patches The merge patches to apply, in order
+     */
+    private void mergeSessionPatches(long accountNum, int userID, List<FieldValue> patches) {
+        updateByPK(accountNum, userID, null, session -> {
+            long start = System.nanoTime();
+            for (FieldValue patch : patches) {
+                session = MergePatch.apply(session, patch);
+            }
+            sessionMetrics.merge(start);
+            return(session);
+        });
+    }
+
+    /**
+     * REST interface to retrieve how often optimistic session updates conflicted with another writer
+     *
+     * @return A JSON document with the conflict and retry counters and the most contended accounts
+     */
+    @Get(uri="/contention", produces = MediaType.APPLICATION_JSON)
+    public String getContentionStats() {
+        return(new MapValue().put("conflicts", conflictStats.getConflicts())
+                .put("retries", conflictStats.getRetries())
+                .put("exhausted", conflictStats.getExhausted())
+                .put("accounts", conflictStats.getMostContended(20))
+                .toJson());
+    }
+
+    /**
+     * Helper method to read, modify and write a persistent session.
+     *
+     * In optimistic mode the session is only written if its row still has the version that was read.  If
+     * another writer got there first, the session is re-read with ABSOLUTE consistency and the update is
+     * applied again, up to the configured number of retries with a jittered, exponential backoff between
+     * attempts.  No lock is held, so updates of different sessions never wait for each other.
+     *
+     * When the client gives the ETags it expects, the session is always written only if its row is still at
+     * the version the client saw, and a conflict is not retried as the client's view is out of date.
+     *
+     * @param accountNum The account number owning the session
+     * @param userID The ID of the user in the account that this session belongs to
+     * @param ifMatch If not null, only update the session if it has one of these ETags
+     * @param update Computes the new session from the current one, it may be called more than once
+     * @return The session that was written and the new version of its row
+     * @throws HttpStatusException with a status of 409 if every attempt conflicted, 412 if the session
+     * doesn't have one of the ETags in ifMatch, or 404 if there is no such session
+     */
+    SessionRecord updateByPK(long accountNum, int userID, String ifMatch, UnaryOperator<FieldValue> update) {
+        SessionRecord current = readSession(accountNum, userID);
+        if (current.getSession() == null) {
+            throw new HttpStatusException(HttpStatus.NOT_FOUND, "No session for user " + userID);
+        }
+        if (ifMatch != null && !SessionETag.matches(ifMatch, current.getVersion())) {
+            //  What we read may be stale, only refuse the update if the latest version doesn't match
+            current = readSessionFromDatabase(accountNum, userID, Consistency.ABSOLUTE);
+            if (current.getSession() == null) {
+                throw new HttpStatusException(HttpStatus.NOT_FOUND, "No session for user " + userID);
+            }
+            if (!SessionETag.matches(ifMatch, current.getVersion())) {
+                throw new HttpStatusException(HttpStatus.PRECONDITION_FAILED, "Session has changed");
+            }
+        }
+        for (int attempt = 0; ; attempt++) {
+            FieldValue updated = update.apply(current.getSession());
+            if (current.getVersion() == null || (ifMatch == null && !optimisticUpdates)) {
+                Version version = putByPK(accountNum, userID, current.getSession(), updated, null);
+                markForCompaction(accountNum, userID, updated);
+                return(new SessionRecord(updated, version));
+            }
+            Version version = putByPK(accountNum, userID, current.getSession(), updated, current.getVersion());
+            if (version != null) {
+                markForCompaction(accountNum, userID, updated);
+                return(new SessionRecord(updated, version));
+            }
+            conflictStats.conflict(accountNum);
+            if (ifMatch != null) {
+                throw new HttpStatusException(HttpStatus.PRECONDITION_FAILED, "Session has changed");
+            }
+            if (attempt >= updateMaxRetries) {
+                conflictStats.exhausted();
+                throw new HttpStatusException(HttpStatus.CONFLICT,
+                        "Session was changed by another writer, try again");
+            }
+            backoff(attempt);
+            conflictStats.retry();
+            current = readSessionFromDatabase(accountNum, userID, Consistency.ABSOLUTE);
+        }
+    }
+
+    /**
+     * Queue an updated session for the watch history compaction job, if it is running and the session as
+     * it was just written has history to move.
+     *
+     * @param accountNum The account number owning the session
+     * @param userID The ID of the user in the account that this session belongs to
+     * @param written The session document that was written
+     */
+    private static void markForCompaction(long accountNum, int userID, FieldValue written) {
+        if (historyCompactor != null && SessionHistory.needsCompaction(written, historyHotMaxShows)) {
+            historyCompactor.markDirty(accountNum, userID);
+        }
+    }
+
+    /**
+     * Sleep for a random time of up to the retry backoff doubled for each previous attempt, so that
+     * writers who conflicted don't all retry at the same moment.
+     *
+     * @param attempt The number of attempts that have already been made, starting from 0
+     */
+    private static void backoff(int attempt) {
+        long maxSleep = (long) updateRetryBackoffMs << Math.min(attempt, 10);
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(maxSleep + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * REST interface to create or update many persistent sessions in an account at once.  Sessions are
+     * written in atomic chunks of up to {@link SessionBatchWriter#MAX_OPS_PER_REQUEST}.
+     *
+     * @param sessions A JSON array of documents of the form {"userID": 28, "session": {...}}, where a
+     *                 document without a userID creates a new session
+     * @param accountNum The account number that all of the sessions belong to
+     * @return A JSON array with one document per session of the form {"userID": 28} or {"error": "..."}
+     */
+    @Post(uri = "/batch/{accountNum}", produces = MediaType.APPLICATION_JSON)
+    public CompletableFuture<String> writeBatch(@Body String sessions, @PathVariable Long accountNum) {
+        FieldValue items = SessionWireFormat.decodeJson(sessions);
+        if (!items.isArray()) {
+            throw new HttpStatusException(HttpStatus.BAD_REQUEST, "Expected a JSON array of sessions");
+        }
+        return(submitForAccount(Endpoint.BATCH, accountNum, Demand.WRITE,
+                () -> new SessionBatchWriter(sessionStore, sessionCache, versionTracker, changeHub)
+                        .write(accountNum, items.asArray())
+                        .toJson()));
+    }
+
+    /**
+     * REST interface to retrieve the hit, miss and eviction counters of the session cache
+     *
+     * @return A JSON document with the cache counters, or an empty document if caching is disabled
+     */
+    @Get(uri="/cachestats", produces = MediaType.APPLICATION_JSON)
+    public String getCacheStats() {
+        MapValue stats = new MapValue();
+        if (sessionCache != null) {
+            stats.put("hits", sessionCache.getHits())
+                    .put("misses", sessionCache.getMisses())
+                    .put("evictions", sessionCache.getEvictions())
+                    .put("expirations", sessionCache.getExpirations())
+                    .put("staleLoads", sessionCache.getStaleLoads())
+                    .put("size", sessionCache.size());
+        }
+        return(stats.toJson());
+    }
+
+    /**
+     * REST interface to retrieve how often reads of sessions were hedged and the time that saved
+     *
+     * @return A JSON document with the hedging counters, or an empty document if reads aren't hedged
+     */
+    @Get(uri="/hedgestats", produces = MediaType.APPLICATION_JSON)
+    public String getHedgeStats() {
+        MapValue stats = new MapValue();
+        if (hedgedStore != null) {
+            stats.put("reads", hedgedStore.getReads())
+                    .put("hedges", hedgedStore.getHedges())
+                    .put("hedgeWins", hedgedStore.getHedgeWins())
+                    .put("hedgesSkipped", hedgedStore.getHedgesSkipped())
+                    .put("hedgeRate", hedgedStore.getHedgeRate())
+                    .put("delayMillis", hedgedStore.getDelayMillis())
+                    .put("avgSavedMillis", hedgedStore.getAverageSavedMillis());
+        }
+        return(stats.toJson());
+    }
+
+    /**
+     * REST interface to retrieve how sessions' time to live is being renewed
+     *
+     * @return A JSON document with the renewal counters, or an empty document if sessions never expire
+     */
+    @Get(uri="/ttlstats", produces = MediaType.APPLICATION_JSON)
+    public String getTTLStats() {
+        MapValue stats = new MapValue();
+        if (touchQueue != null) {
+            stats.put("queued", touchQueue.getQueued())
+                    .put("renewed", touchQueue.getRenewed())
+                    .put("changed", touchQueue.getChanged())
+                    .put("expired", touchQueue.getExpired())
+                    .put("batches", touchQueue.getBatches())
+                    .put("failures", touchQueue.getFailures())
+                    .put("pendingSessions", touchQueue.getPendingSessions())
+                    .put("batchingRatio", touchQueue.getBatchingRatio());
+        }
+        return(stats.toJson());
+    }
 
-        putByPK(accountNum, userID, mergeResult);
-        return(mergeResult);
+    /**
+     * REST interface to retrieve how often reads of sessions we had just written found them stale
+     *
+     * @return A JSON document with the read counters, or an empty document if read-your-writes is disabled
+     */
+    @Get(uri="/consistencystats", produces = MediaType.APPLICATION_JSON)
+    public String getConsistencyStats() {
+        MapValue stats = new MapValue();
+        if (versionTracker != null) {
+            stats.put("trackedReads", versionTracker.getTrackedReads())
+                    .put("upgradedReads", versionTracker.getUpgradedReads())
+                    .put("size", versionTracker.size());
+        }
+        return(stats.toJson());
     }
 
     /**
      * Helper method to retrieve a persistent session by primary key.  A primary for a persisten
-     * session is composed of (accountNum, userID)
+     * session is composed of (accountNum, userID).  The version of the session is checked against the
+     * client's ETags before the document is serialized, so when it is served from the session cache an
+     * unchanged session costs neither a read nor a conversion to JSON.
      *
      * @param accountNum The account number for the session to retrieve
      * @param userID The user ID for the session within the account
-     * @return
+     * @param ifNoneMatch If not null, the ETags of the sessions the client already has
+     * @param format The format to send the session in
+     * @return The session document and its ETag, 304 Not Modified if the session has one of the ETags
+     * in ifNoneMatch, or 404 if there is no such session
+     */
+    private HttpResponse<Object> getByPK(long accountNum, int userID, String ifNoneMatch,
+                                         SessionWireFormat format) {
+        SessionRecord record = readSession(accountNum, userID);
+        if (record.getSession() == null) {
+            return(HttpResponse.notFound());
+        }
+        if (SessionETag.matches(ifNoneMatch, record.getVersion())) {
+            return(withETag(HttpResponse.status(HttpStatus.NOT_MODIFIED), record.getVersion()));
+        }
+        return(withETag(encoded(HttpResponse.ok(), record.getSession(), format), record.getVersion()));
+    }
+
+    /**
+     * @param response A response to send a document in
+     * @param document The document
+     * @param format The format to send the document in
+     * @return The response, with the encoded document as its body
      */
-    private String getByPK(long accountNum, int userID) {
-        GetRequest gr = new GetRequest().setTableName(TABLE_NAME).
-                setKey(new MapValue().put(COL_ACCOUNT_NUMBER, accountNum).put(COL_USER_ID,
-                        userID)).setConsistency(Consistency.EVENTUAL);
-        GetResult res = databaseConnection.get(gr);
-        return(res.getValue().get(COL_SESSION).toJson(new JsonOptions()));
+    private static MutableHttpResponse<Object> encoded(MutableHttpResponse<Object> response, FieldValue document,
+                                                       SessionWireFormat format) {
+        return(response.body(format.encode(document)).contentType(format.getMediaType()));
     }
 
     /**
-     *  Helper method to save a persistent session by primary key.  A primary for a persistent
-     *  session is composed of (accountNum, userID)
+     * @param response A response about a session
+     * @param version The version of the session's row, may be null
+     * @return The response, with the session's ETag if its version is known
+     */
+    private static <T> MutableHttpResponse<T> withETag(MutableHttpResponse<T> response, Version version) {
+        String etag = SessionETag.of(version);
+        return(etag != null ? response.header(HttpHeaders.ETAG, etag) : response);
+    }
+
+    /**
+     * Helper method to retrieve a persistent session and its row version by primary key, serving it
+     * from the session cache when possible.  A session read this way is being used, so its time to live
+     * is renewed in the background when it is due.
      *
-     * @param accountNum The account number for the session to store
+     * @param accountNum The account number for the session to retrieve
      * @param userID The user ID for the session within the account
-     * @param jsonRecord The JSON persistent session record
+     * @return The session and the version of the row it was read from
      */
-    private void putByPK(long accountNum, int userID, String jsonRecord) {
-        PutRequest putReq =
-                new PutRequest().setTableName(TABLE_NAME).setValue(
-                        new MapValue().put(COL_ACCOUNT_NUMBER, accountNum).put(COL_USER_ID,
-                                userID).put(COL_SESSION, jsonRecord));
+    private SessionRecord readSession(long accountNum, int userID) {
+        SessionRecord record = (sessionCache != null ? sessionCache.get(accountNum, userID) : null);
+        if (record == null) {
+            record = readSessionFromDatabase(accountNum, userID, Consistency.EVENTUAL);
+        }
+        if (touchQueue != null && record.getSession() != null) {
+            touchQueue.read(accountNum, userID, record);
+        }
+        return(record);
+    }
 
-        PutResult putRes = databaseConnection.put(putReq);
+    /**
+     * Helper method to retrieve a persistent session and its row version by primary key from the
+     * session store, bypassing and then refreshing the session cache.
+     *
+     * @param accountNum The account number for the session to retrieve
+     * @param userID The user ID for the session within the account
+     * @param consistency The consistency to read with
+     * @return The session and the version of the row it was read from, both null if there is no such
+     * session
+     */
+    private SessionRecord readSessionFromDatabase(long accountNum, int userID, Consistency consistency) {
+        WriteVersionTracker tracker = versionTracker;
+        SessionCache cache = sessionCache;
+        long since = (cache != null ? cache.beginLoad() : 0);
+        SessionRecord record = (tracker != null && consistency == Consistency.EVENTUAL ?
+                tracker.read(sessionStore, accountNum, userID) :
+                sessionStore.get(accountNum, userID, consistency));
+        if (record == null) {
+            return(new SessionRecord(null, null));
+        }
+        if (cache != null) {
+            //  Not if we wrote the session while reading it, what we read may be older than what we wrote
+            cache.load(accountNum, userID, record, since);
+        }
+        return(record);
+    }
+
+    /**
+     * Sessions used to be written to the JSON column as a string holding the JSON text rather than as
+     * a JSON document.  Parse those so that the rest of the code only sees documents, they are
+     * rewritten as documents the next time they are updated.
+     *
+     * @param session The value of the session column
+     * @return The session as a JSON document
+     */
+    static FieldValue toDocument(FieldValue session) {
+        if (session != null && session.getType() == FieldValue.Type.STRING) {
+            return(FieldValue.createFromJson(session.getString(), new JsonOptions()));
+        }
+        return(session);
+    }
+
+    /**
+     *  Helper method to save a persistent session by primary key, optionally only if the row has not
+     *  changed since a given version of it was read.  A primary for a persistent session is composed of
+     *  (accountNum, userID).  Once written, the change is sent to anyone streaming the session.
+     *
+     * @param accountNum The account number for the session to store
+     * @param userID The user ID for the session within the account
+     * @param previous The session being replaced, used to send streams only what changed
+     * @param session The persistent session document, stored natively in the JSON column
+     * @param matchVersion If not null, only write the session if the row is still at this version
+     * @return The new version of the row, or null if the row was not at matchVersion
+     */
+    private Version putByPK(long accountNum, int userID, FieldValue previous, FieldValue session,
+                            Version matchVersion) {
+        Version version = (matchVersion != null ?
+                sessionStore.putIfVersion(accountNum, userID, session, matchVersion) :
+                sessionStore.put(accountNum, userID, session));
+        if (sessionCache != null) {
+            if (version != null) {
+                //  Write-through so that the next read sees what we just wrote
+                sessionCache.put(accountNum, userID, new SessionRecord(session, version));
+            } else {
+                //  What we have cached is stale
+                sessionCache.invalidate(accountNum, userID);
+            }
+        }
+        if (versionTracker != null) {
+            versionTracker.written(accountNum, userID, version);
+        }
+        SessionChangeHub hub = changeHub;
+        if (version != null && hub != null && hub.hasSubscribers(accountNum, userID)) {
+            if (matchVersion == null) {
+                //  Written blind, the row may not have held previous so there is nothing to patch
+                hub.publishSession(accountNum, userID, session, version);
+            } else {
+                FieldValue patch = MergePatch.diff(previous, session);
+                if (!patch.isMap() || patch.asMap().size() > 0) {
+                    hub.publishPatch(accountNum, userID, patch, matchVersion, version);
+                }
+            }
+        }
+        return(version);
     }
 }
@@ -0,0 +1,272 @@
+package session;
+
+import oracle.nosql.driver.values.FieldValue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Write-behind buffer for high frequency watch progress updates.
+ *
+ * Players post small merge patches (minWatched, lastWatched, ...) every few seconds.  Rather than read,
+ * merge and write the whole session for each of them, patches are held in memory per session and
+ * combined with the patches that came before them.  A session's combined patch is flushed once it has
+ * been waiting for half of the maximum unflushed age, when too many sessions are waiting, or when the
+ * application shuts down.  Progress accepted here and not yet flushed is lost if the process dies, so
+ * the maximum unflushed age bounds how much watch progress can be lost.
+ *
+ * The client has already been told its progress was accepted, so a flush that fails puts the session's
+ * patches back, ahead of any that arrived since, and they are tried again at the next tick.  They are only
+ * dropped after maxFlushAttempts failures.  At most maxPendingSessions sessions wait at once: a patch for
+ * a session that isn't already waiting is refused once there are that many, and the caller must write it
+ * itself.
+ */
+public class ProgressCoalescer {
+
+    /**
+     * Where combined patches are flushed to.
+     */
+    public interface PatchSink {
+        /**
+         * Apply patches to a stored session, in order, with a single read and write.
+         *
+         * @param accountNum The account number owning the session
+         * @param userID The ID of the user in the account that this session belongs to
+         * @param patches The merge patches to apply
+         */
+        void apply(long accountNum, int userID, List<FieldValue> patches);
+    }
+
+    private final PatchSink sink;
+    private final long maxAgeNanos;
+    private final int maxPendingSessions;
+    private final int maxFlushAttempts;
+    private final ConcurrentHashMap<SessionKey, Pending> pending = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService flusher;
+    private final AtomicBoolean fullFlushScheduled = new AtomicBoolean();
+
+    private final LongAdder patchesReceived = new LongAdder();
+    private final LongAdder patchesFlushed = new LongAdder();
+    private final LongAdder sessionWrites = new LongAdder();
+    private final LongAdder flushFailures = new LongAdder();
+    private final LongAdder patchesDropped = new LongAdder();
+    private final LongAdder patchesRefused = new LongAdder();
+    private final LongAdder flushNanos = new LongAdder();
+    private final AtomicLong maxFlushNanos = new AtomicLong();
+
+    /**
+     * @param sink Where combined patches are written
+     * @param maxUnflushedAgeMillis The longest a patch may wait in memory before it is written
+     * @param maxPendingSessions The number of sessions with waiting patches that triggers a full flush, and
+     *                           the most that may wait at once
+     * @param maxFlushAttempts The number of times a session's patches are tried before they are dropped
+     */
+    public ProgressCoalescer(PatchSink sink, long maxUnflushedAgeMillis, int maxPendingSessions,
+                             int maxFlushAttempts) {
+        this.sink = sink;
+        this.maxAgeNanos = TimeUnit.MILLISECONDS.toNanos(maxUnflushedAgeMillis);
+        this.maxPendingSessions = maxPendingSessions;
+        this.maxFlushAttempts = Math.max(1, maxFlushAttempts);
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "session-progress-flusher");
+            t.setDaemon(true);
+            return(t);
+        });
+        long period = Math.max(1, maxUnflushedAgeMillis / 2);
+        flusher.scheduleWithFixedDelay(() -> flush(false), period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Accept a watch progress merge patch for a session.  It will be written within the maximum unflushed
+     * age.
+     *
+     * @param accountNum The account number owning the session
+     * @param userID The ID of the user in the account that this session belongs to
+     * @param patch The RFC 7386 merge patch to apply
+     * @return false if the patch was refused because too many sessions are waiting
+     */
+    public boolean submit(long accountNum, int userID, FieldValue patch) {
+        boolean[] accepted = {true};
+        pending.compute(new SessionKey(accountNum, userID), (key, existing) -> {
+            if (existing != null) {
+                existing.add(patch);
+                return(existing);
+            }
+            if (pending.size() >= maxPendingSessions) {
+                accepted[0] = false;
+                return(null);
+            }
+            return(new Pending(patch));
+        });
+        if (pending.size() >= maxPendingSessions && fullFlushScheduled.compareAndSet(false, true)) {
+            flusher.execute(() -> flush(true));
+        }
+        if (accepted[0]) {
+            patchesReceived.increment();
+        } else {
+            patchesRefused.increment();
+        }
+        return(accepted[0]);
+    }
+
+    /**
+     * Write every waiting patch and stop the flush timer.
+     */
+    public void shutdown() {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        //  Every round fails or writes each session, so this ends within maxFlushAttempts rounds
+        for (int round = 0; round < maxFlushAttempts && !pending.isEmpty(); round++) {
+            flush(true);
+        }
+    }
+
+    /**
+     * Write waiting patches.
+     *
+     * @param all If true, write every waiting patch, otherwise only those old enough that they would
+     *            exceed the maximum unflushed age before the next timer tick
+     */
+    void flush(boolean all) {
+        if (all) {
+            fullFlushScheduled.set(false);
+        }
+        long now = System.nanoTime();
+        for (Map.Entry<SessionKey, Pending> entry : pending.entrySet()) {
+            if (!all && now - entry.getValue().firstAt < maxAgeNanos / 2) {
+                continue;
+            }
+            SessionKey key = entry.getKey();
+            Pending toFlush = pending.remove(key);
+            if (toFlush == null) {
+                continue;
+            }
+            long start = System.nanoTime();
+            try {
+                sink.apply(key.getAccountNum(), key.getUserID(), toFlush.patches);
+                patchesFlushed.add(toFlush.count);
+                sessionWrites.increment();
+            } catch (Exception e) {
+                flushFailures.increment();
+                e.printStackTrace();
+                if (++toFlush.attempts < maxFlushAttempts) {
+                    //  Put the patches back ahead of any that arrived while they were being written
+                    pending.merge(key, toFlush, (newer, failed) -> failed.append(newer));
+                } else {
+                    patchesDropped.add(toFlush.count);
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+            flushNanos.add(elapsed);
+            maxFlushNanos.accumulateAndGet(elapsed, Math::max);
+        }
+    }
+
+    public long getPatchesReceived() {
+        return patchesReceived.sum();
+    }
+
+    public long getPatchesFlushed() {
+        return patchesFlushed.sum();
+    }
+
+    public long getSessionWrites() {
+        return sessionWrites.sum();
+    }
+
+    public long getFlushFailures() {
+        return flushFailures.sum();
+    }
+
+    /**
+     * @return The number of patches given up on after their session failed to be written
+     */
+    public long getPatchesDropped() {
+        return patchesDropped.sum();
+    }
+
+    /**
+     * @return The number of patches refused because too many sessions were waiting
+     */
+    public long getPatchesRefused() {
+        return patchesRefused.sum();
+    }
+
+    public int getPendingSessions() {
+        return pending.size();
+    }
+
+    /**
+     * @return The average number of patches written by each session write
+     */
+    public double getCoalescingRatio() {
+        long writes = sessionWrites.sum();
+        return(writes == 0 ? 0 : (double) patchesFlushed.sum() / writes);
+    }
+
+    /**
+     * @return The average time taken to write a session's combined patch, in milliseconds
+     */
+    public double getAverageFlushMillis() {
+        long writes = sessionWrites.sum() + flushFailures.sum();
+        return(writes == 0 ? 0 : flushNanos.sum() / 1e6 / writes);
+    }
+
+    public double getMaxFlushMillis() {
+        return maxFlushNanos.get() / 1e6;
+    }
+
+    /**
+     * The patches waiting for one session.  Each new patch is folded into the last one when that gives
+     * the same result, so usually there is only one.
+     */
+    private static final class Pending {
+        final long firstAt = System.nanoTime();
+        final List<FieldValue> patches = new ArrayList<>(1);
+        int count;
+        //  The number of times writing these patches has failed
+        int attempts;
+
+        Pending(FieldValue patch) {
+            add(patch);
+        }
+
+        void add(FieldValue patch) {
+            count++;
+            fold(patch);
+        }
+
+        /**
+         * @param newer Patches that arrived after these
+         * @return These patches followed by the newer ones
+         */
+        Pending append(Pending newer) {
+            for (FieldValue patch : newer.patches) {
+                fold(patch);
+            }
+            count += newer.count;
+            return(this);
+        }
+
+        private void fold(FieldValue patch) {
+            int last = patches.size() - 1;
+            if (last >= 0 && MergePatch.canCompose(patches.get(last), patch)) {
+                patches.set(last, MergePatch.compose(patches.get(last), patch));
+            } else {
+                patches.add(patch);
+            }
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package session;
+
+import oracle.nosql.driver.values.ArrayValue;
+import oracle.nosql.driver.values.FieldValue;
+import oracle.nosql.driver.values.MapValue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes many persistent sessions for a single account using as few round trips as possible.
+ *
+ * Because account_number is the shard key of the persistent session table, every session in an account
+ * lives on the same shard and can be written with a single WriteMultipleRequest.  Sessions are written in
+ * chunks of at most MAX_OPS_PER_REQUEST with {@link SessionStore#batch}, each chunk being atomic: either
+ * every session in it is written or none are.
+ *
+ * Each item of a batch is a JSON document of the form {"userID": 28, "session": {...}}.  Items without a
+ * userID create a new session and are assigned a generated user ID.  A userID may also be given as text,
+ * as create returns it, but an item with any other userID that isn't an integer fails its chunk.  The
+ * result of a batch is an array with one document per item, in the same order, of the form {"userID": 28}
+ * or {"error": "..."}.
+ */
+public class SessionBatchWriter {
+
+    //  The most operations the service allows in a single WriteMultipleRequest
+    public static int MAX_OPS_PER_REQUEST = 50;
+
+    //  Attributes of the items in a batch and of the results we return
+    public static String BATCH_ATTR_USER_ID = "userID";
+    public static String BATCH_ATTR_SESSION = "session";
+    public static String BATCH_ATTR_ERROR = "error";
+
+    private final SessionStore store;
+    private final SessionCache cache;
+    private final WriteVersionTracker tracker;
+    private final SessionChangeHub hub;
+
+    /**
+     * @param store The store to write sessions to
+     * @param cache The session cache to write through to, may be null
+     * @param tracker Where to record the versions written, may be null
+     * @param hub Where to send the sessions written to anyone streaming them, may be null
+     */
+    public SessionBatchWriter(SessionStore store, SessionCache cache, WriteVersionTracker tracker,
+                              SessionChangeHub hub) {
+        this.store = store;
+        this.cache = cache;
+        this.tracker = tracker;
+        this.hub = hub;
+    }
+
+    /**
+     * Write a batch of sessions for an account.
+     *
+     * @param accountNum The account that every session in the batch belongs to
+     * @param items The sessions to create or update
+     * @return One result document per item, in the order of the items
+     */
+    public ArrayValue write(long accountNum, ArrayValue items) {
+        ArrayValue ret = new ArrayValue(items.size());
+        for (int start = 0; start < items.size(); start += MAX_OPS_PER_REQUEST) {
+            int end = Math.min(items.size(), start + MAX_OPS_PER_REQUEST);
+            writeChunk(accountNum, items, start, end, ret);
+        }
+        return(ret);
+    }
+
+    /**
+     * Write items [start, end) of a batch as one atomic request, appending their results to ret.
+     */
+    private void writeChunk(long accountNum, ArrayValue items, int start, int end, ArrayValue ret) {
+        List<Integer> userIDs = new ArrayList<>(end - start);
+        List<FieldValue> sessions = new ArrayList<>(end - start);
+        for (int i = start; i < end; i++) {
+            FieldValue item = items.get(i);
+            if (!item.isMap() || item.asMap().get(BATCH_ATTR_SESSION) == null) {
+                //  Reject the whole chunk rather than write part of it
+                failChunk(start, end, i, "Expected an object with a \"" + BATCH_ATTR_SESSION +
+                        "\" attribute", ret);
+                return;
+            }
+            FieldValue userID = item.asMap().get(BATCH_ATTR_USER_ID);
+            Integer id = null;
+            if (userID != null && !userID.isNull() && !userID.isJsonNull()) {
+                id = parseUserID(userID);
+                if (id == null) {
+                    failChunk(start, end, i, "Expected \"" + BATCH_ATTR_USER_ID +
+                            "\" to be an integer but found " + userID.toJson(), ret);
+                    return;
+                }
+            }
+            sessions.add(item.asMap().get(BATCH_ATTR_SESSION));
+            userIDs.add(id);
+        }
+
+        List<SessionStore.WriteResult> results;
+        try {
+            results = store.batch(accountNum, userIDs, sessions);
+        } catch (SessionStore.BatchFailedException e) {
+            failChunk(start, end, start + e.getFailedIndex(), e.getMessage(), ret);
+            return;
+        } catch (RuntimeException e) {
+            failChunk(start, end, -1, e.getMessage(), ret);
+            return;
+        }
+
+        for (int i = 0; i < results.size(); i++) {
+            SessionStore.WriteResult result = results.get(i);
+            if (cache != null) {
+                cache.put(accountNum, result.getUserID(),
+                        new SessionRecord(sessions.get(i), result.getVersion()));
+            }
+            if (tracker != null) {
+                tracker.written(accountNum, result.getUserID(), result.getVersion());
+            }
+            if (hub != null) {
+                //  The session wasn't read, so it is sent whole
+                hub.publishSession(accountNum, result.getUserID(), sessions.get(i), result.getVersion());
+            }
+            ret.add(new MapValue().put(BATCH_ATTR_USER_ID, result.getUserID()));
+        }
+    }
+
+    /**
+     * @param userID The userID attribute of an item
+     * @return The user ID, which may also be given as text as it is in the response to create, or null if
+     * it isn't an integer
+     */
+    static Integer parseUserID(FieldValue userID) {
+        switch (userID.getType()) {
+            case INTEGER:
+                return(userID.getInt());
+            case LONG:
+                long value = userID.getLong();
+                return(value == (int) value ? (int) value : null);
+            case STRING:
+                try {
+                    return(Integer.valueOf(userID.getString().trim()));
+                } catch (NumberFormatException e) {
+                    return(null);
+                }
+            default:
+                return(null);
+        }
+    }
+
+    /**
+     * Record an error for every item in [start, end).  The item at failedIndex, if any, gets the given
+     * message and the others are reported as aborted along with it.
+     */
+    private static void failChunk(int start, int end, int failedIndex, String message, ArrayValue ret) {
+        for (int i = start; i < end; i++) {
+            String error = (failedIndex < 0 || i == failedIndex ?
+                    message :
+                    "Aborted because item " + failedIndex + " in the same chunk failed");
+            ret.add(new MapValue().put(BATCH_ATTR_ERROR, error != null ? error : "Write failed"));
+        }
+    }
+}
@@ -0,0 +1,397 @@
+package session;
+
+import oracle.nosql.driver.values.FieldValue;
+import oracle.nosql.driver.values.JsonOptions;
+import oracle.nosql.driver.values.MapValue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static session.PersistentSessionManager.COL_ACCOUNT_NUMBER;
+import static session.PersistentSessionManager.COL_SESSION;
+import static session.PersistentSessionManager.COL_USER_ID;
+
+/**
+ * Imports session export files into the persistent session table.
+ *
+ * Files are read in order by a single thread with {@link SessionFileReader}.  Rows are grouped by
+ * account_number, the shard key, and each group is written by one of a number of parallel writers as an
+ * atomic batch of up to {@link SessionBatchWriter#MAX_OPS_PER_REQUEST} rows.  The reader waits whenever
+ * every writer is busy and one more batch is queued, and whenever the write units consumed so far are
+ * more than the table's write units allow for, so it never gets far ahead of the table.
+ *
+ * Progress is checkpointed as, for each file, the offset before which every row has been written.  A
+ * load that is stopped or fails can be run again with the same checkpoint and carries on from there,
+ * files that were finished are skipped.  Rows that were written after the checkpoint was saved are
+ * written again, which for rows without a user ID means they are imported twice.  The first failed write
+ * stops the load.
+ */
+public class SessionBulkLoader {
+
+    //  The most rows read but not yet handed to a writer, across all accounts
+    public static int MAX_PENDING_ROWS = 10000;
+
+    /**
+     * Where the batches of rows are written.
+     */
+    public interface Sink {
+
+        /**
+         * Write rows of the same account atomically.
+         *
+         * @param accountNum The account that every row belongs to
+         * @param rows The rows to write
+         * @return The write units consumed
+         * @throws RuntimeException if the rows could not be written
+         */
+        int write(long accountNum, List<MapValue> rows);
+    }
+
+    private final Sink sink;
+    private final int writers;
+    private final WriteUnitLimiter limiter;
+    private final Path checkpoint;
+    private final Map<String, Long> checkpointOffsets = new LinkedHashMap<>();
+    private final Map<String, FileProgress> inProgress = new LinkedHashMap<>();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private final AtomicLong rowsRead = new AtomicLong();
+    private final AtomicLong rowsWritten = new AtomicLong();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong writeUnits = new AtomicLong();
+    private final AtomicInteger batches = new AtomicInteger();
+
+    /**
+     * @param sink Where to write rows
+     * @param writers The number of batches to write in parallel
+     * @param writeUnitsPerSecond The write units per second to stay within, 0 for no limit
+     * @param checkpoint The file to keep progress in, null to start from scratch and not keep any
+     */
+    public SessionBulkLoader(Sink sink, int writers, double writeUnitsPerSecond, Path checkpoint) {
+        this.sink = sink;
+        this.writers = writers;
+        this.limiter = new WriteUnitLimiter(writeUnitsPerSecond);
+        this.checkpoint = checkpoint;
+    }
+
+    /**
+     * Import files, reporting throughput as the import goes.
+     *
+     * @param files The files to import, in order
+     * @param reportIntervalMillis How often to report throughput and save the checkpoint
+     * @throws Exception if a file can't be read or parsed, or a batch couldn't be written
+     */
+    public void load(List<Path> files, long reportIntervalMillis) throws Exception {
+        readCheckpoint();
+        ExecutorService pool = Executors.newFixedThreadPool(writers, r -> {
+            Thread t = new Thread(r, "session-bulk-writer");
+            t.setDaemon(true);
+            return(t);
+        });
+        Semaphore slots = new Semaphore(writers + 1);
+        long start = System.nanoTime();
+        Thread reporter = new Thread(() -> {
+            try {
+                while (true) {
+                    Thread.sleep(reportIntervalMillis);
+                    report(start);
+                    writeCheckpoint();
+                }
+            } catch (InterruptedException e) {
+                //  Done
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "session-bulk-reporter");
+        reporter.setDaemon(true);
+        reporter.start();
+        try {
+            for (Path file : files) {
+                if (failure.get() != null) {
+                    break;
+                }
+                loadFile(file, pool, slots);
+            }
+        } finally {
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            reporter.interrupt();
+            reporter.join();
+            writeCheckpoint();
+            report(start);
+        }
+        if (failure.get() != null) {
+            throw new IOException("Import stopped after a failed write", failure.get());
+        }
+    }
+
+    private void loadFile(Path file, ExecutorService pool, Semaphore slots) throws Exception {
+        String name = file.toAbsolutePath().toString();
+        long startOffset = checkpointOffsets.getOrDefault(name, 0L);
+        try (SessionFileReader reader = new SessionFileReader(file, startOffset)) {
+            if (startOffset >= reader.getSize()) {
+                System.out.println("Skipping " + file + ", already imported");
+                return;
+            }
+            System.out.println((startOffset > 0 ? "Resuming " + file + " at offset " + startOffset :
+                    "Importing " + file));
+            FileProgress progress = new FileProgress(startOffset);
+            synchronized (inProgress) {
+                inProgress.put(name, progress);
+            }
+            Map<Long, Batch> pending = new HashMap<>();
+            int pendingRows = 0;
+            MapValue record;
+            while (failure.get() == null && (record = reader.next()) != null) {
+                FieldValue account = record.get(COL_ACCOUNT_NUMBER);
+                if (account == null || !account.isNumeric()) {
+                    throw new IOException("No " + COL_ACCOUNT_NUMBER + " in the row at offset " +
+                            reader.getRowStart() + " of " + file);
+                }
+                long accountNum = account.castAsLong();
+                MapValue row = tableRow(record, reader.getRowStart(), file);
+                progress.read(reader.getRowStart(), reader.getPosition());
+                rowsRead.incrementAndGet();
+                bytesRead.addAndGet(reader.getPosition() - reader.getRowStart());
+                Batch batch = pending.computeIfAbsent(accountNum, a -> new Batch(a, progress));
+                batch.add(row, reader.getRowStart());
+                pendingRows++;
+                if (batch.rows.size() == SessionBatchWriter.MAX_OPS_PER_REQUEST) {
+                    pending.remove(accountNum);
+                    pendingRows -= batch.rows.size();
+                    submit(batch, pool, slots);
+                } else if (pendingRows >= MAX_PENDING_ROWS) {
+                    submitAll(pending, pool, slots);
+                    pendingRows = 0;
+                }
+            }
+            submitAll(pending, pool, slots);
+            if (failure.get() == null) {
+                progress.read(reader.getSize(), reader.getSize());
+            }
+        }
+    }
+
+    private void submitAll(Map<Long, Batch> pending, ExecutorService pool, Semaphore slots)
+            throws InterruptedException {
+        for (Batch batch : pending.values()) {
+            submit(batch, pool, slots);
+        }
+        pending.clear();
+    }
+
+    private void submit(Batch batch, ExecutorService pool, Semaphore slots) throws InterruptedException {
+        if (failure.get() != null) {
+            return;
+        }
+        slots.acquire();
+        limiter.acquire();
+        pool.execute(() -> {
+            try {
+                if (failure.get() == null) {
+                    int units = sink.write(batch.accountNum, batch.rows);
+                    limiter.consumed(units);
+                    writeUnits.addAndGet(units);
+                    rowsWritten.addAndGet(batch.rows.size());
+                    batches.incrementAndGet();
+                    batch.progress.written(batch.starts);
+                }
+            } catch (Throwable t) {
+                failure.compareAndSet(null, t);
+            } finally {
+                slots.release();
+            }
+        });
+    }
+
+    /**
+     * Convert a row of an export file, {"account_number": 1, "user_id": 2, "session_info": [...]}, to a
+     * row of the table in the configured storage format.  A row without a user ID is given a generated
+     * one when it is written.
+     *
+     * @param record The row of the export file
+     * @param offset The offset of the row in the file
+     * @param file The export file
+     * @return The row of the table
+     * @throws IOException if the row's user ID isn't an integer or its session isn't a JSON document
+     */
+    static MapValue tableRow(MapValue record, long offset, Path file) throws IOException {
+        MapValue row;
+        try {
+            row = PersistentSessionManager.sessionRow(record.get(COL_ACCOUNT_NUMBER).castAsLong(),
+                    PersistentSessionManager.toDocument(record.get(COL_SESSION)));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid " + COL_SESSION + " in the row at offset " + offset + " of " + file, e);
+        }
+        FieldValue userID = record.get(COL_USER_ID);
+        if (userID != null && !userID.isNull() && !userID.isJsonNull()) {
+            Integer id = SessionBatchWriter.parseUserID(userID);
+            if (id == null) {
+                throw new IOException("Invalid " + COL_USER_ID + " " + userID.toJson() + " in the row at offset " +
+                        offset + " of " + file);
+            }
+            row.put(COL_USER_ID, id);
+        }
+        return(row);
+    }
+
+    private void report(long startNanos) {
+        double seconds = Math.max(1e-3, (System.nanoTime() - startNanos) / 1e9);
+        System.out.println(String.format("Imported %d of %d rows in %d batches, %.1f rows/s, %.2f MB/s, " +
+                        "%.1f write units/s", rowsWritten.get(), rowsRead.get(), batches.get(),
+                rowsWritten.get() / seconds, bytesRead.get() / seconds / (1 << 20),
+                writeUnits.get() / seconds));
+    }
+
+    /**
+     * @return The number of rows written so far
+     */
+    public long getRowsWritten() {
+        return(rowsWritten.get());
+    }
+
+    /**
+     * @return The write units consumed so far
+     */
+    public long getWriteUnits() {
+        return(writeUnits.get());
+    }
+
+    private void readCheckpoint() throws IOException {
+        if (checkpoint == null || !Files.exists(checkpoint)) {
+            return;
+        }
+        String json = new String(Files.readAllBytes(checkpoint), StandardCharsets.UTF_8);
+        MapValue offsets = FieldValue.createFromJson(json, new JsonOptions()).asMap();
+        for (Map.Entry<String, FieldValue> file : offsets.entrySet()) {
+            checkpointOffsets.put(file.getKey(), file.getValue().getLong());
+        }
+    }
+
+    /**
+     * Save, for every file, the offset before which every row has been written.  The file is replaced
+     * atomically so that a crash never leaves a partial checkpoint behind.
+     */
+    private synchronized void writeCheckpoint() throws IOException {
+        if (checkpoint == null) {
+            return;
+        }
+        synchronized (inProgress) {
+            for (Map.Entry<String, FileProgress> file : inProgress.entrySet()) {
+                checkpointOffsets.put(file.getKey(), file.getValue().checkpoint());
+            }
+        }
+        MapValue offsets = new MapValue();
+        for (Map.Entry<String, Long> file : checkpointOffsets.entrySet()) {
+            offsets.put(file.getKey(), file.getValue());
+        }
+        Path tmp = checkpoint.resolveSibling(checkpoint.getFileName() + ".tmp");
+        Files.write(tmp, offsets.toJson(new JsonOptions()).getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * The rows of an account waiting to be written together.
+     */
+    private static final class Batch {
+        final long accountNum;
+        final FileProgress progress;
+        final List<MapValue> rows = new ArrayList<>();
+        final List<Long> starts = new ArrayList<>();
+
+        Batch(long accountNum, FileProgress progress) {
+            this.accountNum = accountNum;
+            this.progress = progress;
+        }
+
+        void add(MapValue row, long start) {
+            rows.add(row);
+            starts.add(start);
+        }
+    }
+
+    /**
+     * Which rows of a file have been read and which of those are still to be written.
+     */
+    private static final class FileProgress {
+        private final TreeSet<Long> unwritten = new TreeSet<>();
+        private long readOffset;
+
+        FileProgress(long readOffset) {
+            this.readOffset = readOffset;
+        }
+
+        synchronized void read(long start, long end) {
+            if (start < end) {
+                unwritten.add(start);
+            }
+            readOffset = end;
+        }
+
+        synchronized void written(List<Long> starts) {
+            unwritten.removeAll(starts);
+        }
+
+        /**
+         * @return The offset before which every row of the file has been written
+         */
+        synchronized long checkpoint() {
+            return(unwritten.isEmpty() ? readOffset : unwritten.first());
+        }
+    }
+
+    /**
+     * Paces writes to a number of write units per second.  Units are paid for after each write, once its
+     * cost is known, and no new write starts while the account is overdrawn.
+     */
+    private static final class WriteUnitLimiter {
+        private final double unitsPerSecond;
+        private double balance;
+        private long last = System.nanoTime();
+
+        WriteUnitLimiter(double unitsPerSecond) {
+            this.unitsPerSecond = unitsPerSecond;
+        }
+
+        synchronized void acquire() throws InterruptedException {
+            if (unitsPerSecond <= 0) {
+                return;
+            }
+            refill();
+            while (balance < 0) {
+                long waitMillis = (long) Math.ceil(-balance / unitsPerSecond * 1000);
+                wait(Math.max(1, waitMillis));
+                refill();
+            }
+        }
+
+        synchronized void consumed(int units) {
+            if (unitsPerSecond > 0) {
+                refill();
+                balance -= units;
+            }
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            //  Save up at most a second's worth of units
+            balance = Math.min(unitsPerSecond, balance + unitsPerSecond * (now - last) / 1e9);
+            last = now;
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package session;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded, in-process read-through cache of persistent sessions keyed by (accountNum, userID).
+ *
+ * The cache is split into a fixed number of segments, each of which is an access ordered LRU map guarded
+ * by its own lock, so that concurrent readers of different sessions rarely contend.  Entries expire a
+ * fixed time after they were loaded or written, which bounds how stale a session can be when another
+ * node has written it.  Each entry carries the row version it was read or written at so that callers can
+ * tell whether a cached session is the one they expect.
+ *
+ * A read of the database can finish after a write of the same session that started later, so what a read
+ * found is only installed if the session wasn't written or invalidated since the read began.  Each write
+ * and invalidation is numbered, and an invalidated session leaves an empty entry with its number until it
+ * expires, so that a read that was in flight can still see it was overtaken.  A read that takes longer than
+ * the TTL, or whose session was evicted meanwhile, may still install what it found.
+ */
+public class SessionCache {
+
+    //  Must be a power of 2
+    private static final int NUM_SEGMENTS = 16;
+
+    private final Segment[] segments;
+    private final long ttlNanos;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+    private final LongAdder staleLoads = new LongAdder();
+
+    //  Numbers the writes and invalidations, so that loads can tell whether they were overtaken
+    private final AtomicLong writes = new AtomicLong();
+
+    /**
+     * @param maxEntries The maximum number of sessions to hold across all segments
+     * @param ttlMillis How long an entry may be served after it was loaded or written
+     */
+    public SessionCache(int maxEntries, long ttlMillis) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("Cache size must be positive: " + maxEntries);
+        }
+        int perSegment = Math.max(1, (maxEntries + NUM_SEGMENTS - 1) / NUM_SEGMENTS);
+        segments = new Segment[NUM_SEGMENTS];
+        for (int i = 0; i < NUM_SEGMENTS; i++) {
+            segments[i] = new Segment(perSegment);
+        }
+        ttlNanos = ttlMillis * 1_000_000L;
+    }
+
+    /**
+     * Look up a session in the cache.
+     *
+     * @param accountNum The account number for the session
+     * @param userID The user ID for the session within the account
+     * @return The cached session or null if it is not cached or has expired
+     */
+    public SessionRecord get(long accountNum, int userID) {
+        SessionKey key = new SessionKey(accountNum, userID);
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            Entry entry = segment.get(key);
+            if (entry == null) {
+                misses.increment();
+                return(null);
+            }
+            if (System.nanoTime() - entry.loadedAt > ttlNanos) {
+                segment.remove(key);
+                expirations.increment();
+                misses.increment();
+                return(null);
+            }
+            if (entry.record == null) {
+                //  Invalidated
+                misses.increment();
+                return(null);
+            }
+            hits.increment();
+            return(entry.record);
+        }
+    }
+
+    /**
+     * Start reading a session from the database, to be installed with {@link #load} once it has been read.
+     *
+     * @return A mark to pass to load
+     */
+    public long beginLoad() {
+        return(writes.get());
+    }
+
+    /**
+     * Store a session that was read from the database, unless it was written or invalidated since the read
+     * began, in which case what was read may be older than what we wrote.
+     *
+     * @param accountNum The account number for the session
+     * @param userID The user ID for the session within the account
+     * @param record The session and its row version
+     * @param since What {@link #beginLoad} returned before the session was read
+     * @return true if the session was stored
+     */
+    public boolean load(long accountNum, int userID, SessionRecord record, long since) {
+        SessionKey key = new SessionKey(accountNum, userID);
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            Entry entry = segment.get(key);
+            if (entry != null && entry.written > since) {
+                staleLoads.increment();
+                return(false);
+            }
+            segment.put(key, new Entry(record, System.nanoTime(), entry != null ? entry.written : 0));
+            return(true);
+        }
+    }
+
+    /**
+     * Store a session that was just written to the database.
+     *
+     * @param accountNum The account number for the session
+     * @param userID The user ID for the session within the account
+     * @param record The session and its row version
+     */
+    public void put(long accountNum, int userID, SessionRecord record) {
+        SessionKey key = new SessionKey(accountNum, userID);
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            segment.put(key, new Entry(record, System.nanoTime(), writes.incrementAndGet()));
+        }
+    }
+
+    /**
+     * Drop a session from the cache, because what was cached is out of date.
+     *
+     * @param accountNum The account number for the session
+     * @param userID The user ID for the session within the account
+     */
+    public void invalidate(long accountNum, int userID) {
+        SessionKey key = new SessionKey(accountNum, userID);
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            segment.put(key, new Entry(null, System.nanoTime(), writes.incrementAndGet()));
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long getExpirations() {
+        return expirations.sum();
+    }
+
+    /**
+     * @return The number of reads that weren't cached because the session was written while they ran
+     */
+    public long getStaleLoads() {
+        return staleLoads.sum();
+    }
+
+    /**
+     * @return The number of entries currently held, including invalidated ones and any that have expired
+     * but not been looked up since
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return(size);
+    }
+
+    private Segment segmentFor(SessionKey key) {
+        int h = key.hashCode();
+        return(segments[(h ^ (h >>> 16)) & (NUM_SEGMENTS - 1)]);
+    }
+
+    private static final class Entry {
+        //  Null if the session was invalidated
+        final SessionRecord record;
+        final long loadedAt;
+        //  The number of the last write or invalidation of the session, 0 if it was only loaded
+        final long written;
+
+        Entry(SessionRecord record, long loadedAt, long written) {
+            this.record = record;
+            this.loadedAt = loadedAt;
+            this.written = written;
+        }
+    }
+
+    private final class Segment extends LinkedHashMap<SessionKey, Entry> {
+        private final int capacity;
+
+        Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<SessionKey, Entry> eldest) {
+            if (size() > capacity) {
+                evictions.increment();
+                return(true);
+            }
+            return(false);
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package session;
+
+import io.micronaut.http.HttpStatus;
+import io.micronaut.http.exceptions.HttpStatusException;
+import io.reactivex.BackpressureOverflowStrategy;
+import io.reactivex.BackpressureStrategy;
+import io.reactivex.Flowable;
+import io.reactivex.FlowableEmitter;
+import oracle.nosql.driver.Version;
+import oracle.nosql.driver.values.FieldValue;
+import oracle.nosql.driver.values.JsonOptions;
+import oracle.nosql.driver.values.MapValue;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fans the changes we write to sessions out to the clients streaming them, so that the devices of a user
+ * can follow each other's playback without polling getsession.
+ *
+ * Subscribers hold no thread, only an entry in a map keyed by session, so idle streams cost little more
+ * than their connection.  A change is converted to JSON once however many subscribers it goes to.  Each
+ * subscriber has a buffer of bufferSize changes that it hasn't been able to take yet, a subscriber that
+ * falls further behind is dropped and has to reconnect and read the session again.  A heartbeat is sent
+ * to every subscriber from a single timer so that idle connections aren't closed along the way.
+ *
+ * Only changes written by this process are seen, so every instance serving a user's devices must be the
+ * one that writes the user's session.
+ *
+ * Changes are published after their write returns, so two writes to the same session can be published in
+ * the opposite order to the one they were made in.  A patch therefore carries the ETag of the session it
+ * applies to, {"baseETag": "...", "patch": {...}}, and a client must only apply it to a session with that
+ * ETag.  A client that gets a patch for any other session has missed or reordered a change and must read
+ * the session again.  Because of that check, a session that was replaced out of order is noticed at the
+ * next patch.
+ */
+public class SessionChangeHub {
+
+    /**
+     * What a change holds.
+     */
+    public enum Type {
+        //  An RFC 7386 merge patch to apply to the session the subscriber has
+        PATCH("patch"),
+        //  The whole session, which replaces the one the subscriber has
+        SESSION("session"),
+        //  Nothing, sent to keep the connection open
+        HEARTBEAT("heartbeat");
+
+        private final String name;
+
+        Type(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return(name);
+        }
+    }
+
+    /**
+     * A change to a session as sent to its subscribers.
+     */
+    public static final class Change {
+        private final Type type;
+        private final String json;
+        private final String etag;
+
+        Change(Type type, String json, String etag) {
+            this.type = type;
+            this.json = json;
+            this.etag = etag;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        /**
+         * @return The patch along with the ETag it applies to, or the session, as JSON, an empty object
+         * for a heartbeat
+         */
+        public String getJson() {
+            return json;
+        }
+
+        /**
+         * @return The ETag of the session after the change, null if it isn't known
+         */
+        public String getETag() {
+            return etag;
+        }
+    }
+
+    //  Attributes of a patch as sent to subscribers
+    public static String PATCH_ATTR_BASE_ETAG = "baseETag";
+    public static String PATCH_ATTR_PATCH = "patch";
+
+    private static final Change HEARTBEAT = new Change(Type.HEARTBEAT, "{}", null);
+
+    private final int bufferSize;
+    private final int maxSubscribers;
+    private final ConcurrentHashMap<SessionKey, Set<FlowableEmitter<Change>>> subscribers =
+            new ConcurrentHashMap<>();
+    private final AtomicInteger subscriberCount = new AtomicInteger();
+    private final ScheduledExecutorService heartbeat;
+
+    private final LongAdder published = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * @param bufferSize The most changes to hold for a subscriber that isn't keeping up
+     * @param maxSubscribers The most subscribers at once, across all sessions
+     * @param heartbeatMillis How often to send a heartbeat, 0 to never send them
+     */
+    public SessionChangeHub(int bufferSize, int maxSubscribers, long heartbeatMillis) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("Subscriber buffer size must be positive: " + bufferSize);
+        }
+        this.bufferSize = bufferSize;
+        this.maxSubscribers = maxSubscribers;
+        if (heartbeatMillis > 0) {
+            heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "session-stream-heartbeat");
+                t.setDaemon(true);
+                return(t);
+            });
+            heartbeat.scheduleWithFixedDelay(this::sendHeartbeat, heartbeatMillis, heartbeatMillis,
+                    TimeUnit.MILLISECONDS);
+        } else {
+            heartbeat = null;
+        }
+    }
+
+    /**
+     * Stream the changes to a session from now on.
+     *
+     * @param accountNum The account number owning the session
+     * @param userID The ID of the user in the account that this session belongs to
+     * @return The changes, which fail with a MissingBackpressureException if the subscriber falls too far
+     * behind, or with an HttpStatusException with a status of 503 if there are too many subscribers
+     */
+    public Flowable<Change> subscribe(long accountNum, int userID) {
+        SessionKey key = new SessionKey(accountNum, userID);
+        Flowable<Change> changes = Flowable.create(emitter -> {
+            if (subscriberCount.incrementAndGet() > maxSubscribers) {
+                subscriberCount.decrementAndGet();
+                emitter.onError(new HttpStatusException(HttpStatus.SERVICE_UNAVAILABLE,
+                        "Too many session streams, try again later"));
+                return;
+            }
+            FlowableEmitter<Change> serialized = emitter.serialize();
+            subscribers.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(serialized);
+            emitter.setCancellable(() -> unsubscribe(key, serialized));
+        }, BackpressureStrategy.MISSING);
+        return(changes.onBackpressureBuffer(bufferSize, dropped::increment, BackpressureOverflowStrategy.ERROR));
+    }
+
+    private void unsubscribe(SessionKey key, FlowableEmitter<Change> emitter) {
+        subscribers.computeIfPresent(key, (k, set) -> {
+            if (set.remove(emitter)) {
+                subscriberCount.decrementAndGet();
+            }
+            return(set.isEmpty() ? null : set);
+        });
+    }
+
+    /**
+     * @param accountNum The account number owning the session
+     * @param userID The ID of the user in the account that this session belongs to
+     * @return true if anyone is streaming the session's changes, so that changes needn't be computed
+     * when no one is
+     */
+    public boolean hasSubscribers(long accountNum, int userID) {
+        return(subscribers.containsKey(new SessionKey(accountNum, userID)));
+    }
+
+    /**
+     * Send the whole of a session to everyone streaming it.
+     *
+     * @param accountNum The account number owning the session
+     * @param userID The ID of the user in the account that this session belongs to
+     * @param session The session
+     * @param version The version of the session's row after the change, may be null
+     */
+    public void publishSession(long accountNum, int userID, FieldValue session, Version version) {
+        publish(accountNum, userID, Type.SESSION, session, version);
+    }
+
+    /**
+     * Send a change to a session to everyone streaming it.
+     *
+     * @param accountNum The account number owning the session
+     * @param userID The ID of the user in the account that this session belongs to
+     * @param patch The merge patch
+     * @param base The version of the session's row that the patch applies to
+     * @param version The version of the session's row after the change
+     */
+    public void publishPatch(long accountNum, int userID, FieldValue patch, Version base, Version version) {
+        if (hasSubscribers(accountNum, userID)) {
+            publish(accountNum, userID, Type.PATCH,
+                    new MapValue().put(PATCH_ATTR_BASE_ETAG, SessionETag.of(base)).put(PATCH_ATTR_PATCH, patch),
+                    version);
+        }
+    }
+
+    private void publish(long accountNum, int userID, Type type, FieldValue value, Version version) {
+        Set<FlowableEmitter<Change>> set = subscribers.get(new SessionKey(accountNum, userID));
+        if (set == null) {
+            return;
+        }
+        published.increment();
+        Change change = new Change(type, value.toJson(new JsonOptions()), SessionETag.of(version));
+        for (FlowableEmitter<Change> emitter : set) {
+            emitter.onNext(change);
+            delivered.increment();
+        }
+    }
+
+    private void sendHeartbeat() {
+        for (Map.Entry<SessionKey, Set<FlowableEmitter<Change>>> entry : subscribers.entrySet()) {
+            for (FlowableEmitter<Change> emitter : entry.getValue()) {
+                emitter.onNext(HEARTBEAT);
+            }
+        }
+    }
+
+    /**
+     * Stop sending heartbeats and end every stream.
+     */
+    public void shutdown() {
+        if (heartbeat != null) {
+            heartbeat.shutdownNow();
+        }
+        for (Set<FlowableEmitter<Change>> set : subscribers.values()) {
+            for (FlowableEmitter<Change> emitter : set) {
+                emitter.onComplete();
+            }
+        }
+    }
+
+    public int getSubscribers() {
+        return subscriberCount.get();
+    }
+
+    public long getPublished() {
+        return published.sum();
+    }
+
+    public long getDelivered() {
+        return delivered.sum();
+    }
+
+    /**
+     * @return The number of subscribers dropped because they fell too far behind
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+}
@@ -0,0 +1,137 @@
+package session;
+
+import oracle.nosql.driver.values.FieldValue;
+import oracle.nosql.driver.values.JsonOptions;
+import oracle.nosql.driver.values.MapValue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static session.PersistentSessionManager.JSON_ATTR_USER_NAME;
+
+/**
+ * Encodes persistent sessions in the compact binary form stored in the session_bin column.
+ *
+ * An encoded session is a one byte format identifier, the length of the session's compact JSON text as a
+ * 4 byte big-endian integer and then that JSON text compressed with Deflate.  Session documents are highly
+ * repetitive, the same attribute names appear for every show and episode, so they compress well.  The
+ * Deflater and Inflater used are kept per thread because they hold native memory that is expensive to
+ * allocate for each session.
+ */
+public final class SessionCodec {
+
+    //  Identifies the encoding of a stored session, the first byte of session_bin
+    public static final byte FORMAT_DEFLATE_JSON = 1;
+
+    //  The largest session JSON text we will encode or decode, far more than a row can hold compressed
+    public static final int MAX_JSON_LENGTH = 64 * 1024 * 1024;
+
+    private static final int HEADER_LENGTH = 5;
+
+    private static final ThreadLocal<Deflater> DEFLATERS =
+            ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(Inflater::new);
+
+    private SessionCodec() {
+    }
+
+    /**
+     * Encode a session document.
+     *
+     * @param session The session document
+     * @return The encoded session
+     * @throws IllegalArgumentException if the session's JSON text is longer than {@link #MAX_JSON_LENGTH}
+     */
+    public static byte[] encode(FieldValue session) {
+        byte[] json = session.toJson(new JsonOptions()).getBytes(StandardCharsets.UTF_8);
+        if (json.length > MAX_JSON_LENGTH) {
+            throw new IllegalArgumentException("Session of " + json.length + " bytes is too large to encode");
+        }
+        Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        deflater.setInput(json);
+        deflater.finish();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(json.length / 4 + 64);
+        out.write(FORMAT_DEFLATE_JSON);
+        out.write(json.length >>> 24);
+        out.write(json.length >>> 16);
+        out.write(json.length >>> 8);
+        out.write(json.length);
+        byte[] buf = new byte[Math.min(8192, json.length + 64)];
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buf);
+            out.write(buf, 0, n);
+        }
+        return(out.toByteArray());
+    }
+
+    /**
+     * Decode a session document.
+     *
+     * @param encoded A session encoded with {@link #encode(FieldValue)}
+     * @return The session document
+     * @throws IllegalArgumentException if the session is not in a format we know, or its length header
+     * doesn't match the JSON text compressed after it
+     */
+    public static FieldValue decode(byte[] encoded) {
+        if (encoded.length < HEADER_LENGTH || encoded[0] != FORMAT_DEFLATE_JSON) {
+            throw new IllegalArgumentException("Unknown session encoding " +
+                    (encoded.length > 0 ? encoded[0] : -1));
+        }
+        int length = ((encoded[1] & 0xff) << 24) | ((encoded[2] & 0xff) << 16) |
+                ((encoded[3] & 0xff) << 8) | (encoded[4] & 0xff);
+        //  Check the header before trusting it with an allocation
+        if (length < 0 || length > MAX_JSON_LENGTH) {
+            throw new IllegalArgumentException("Invalid session length " + length);
+        }
+        byte[] json = new byte[length];
+        Inflater inflater = INFLATERS.get();
+        inflater.reset();
+        inflater.setInput(encoded, HEADER_LENGTH, encoded.length - HEADER_LENGTH);
+        try {
+            int n = 0;
+            while (n < length && !inflater.finished()) {
+                int read = inflater.inflate(json, n, length - n);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += read;
+            }
+            if (n != length) {
+                throw new IllegalArgumentException("Truncated session, expected " + length +
+                        " bytes but found " + n);
+            }
+            //  The stream must end where the header says, not merely have that many bytes in it
+            if (!inflater.finished() && (inflater.inflate(new byte[1]) > 0 || !inflater.finished())) {
+                throw new IllegalArgumentException("Session doesn't end after the " + length +
+                        " bytes expected");
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Corrupt session", e);
+        }
+        return(FieldValue.createFromJson(new String(json, StandardCharsets.UTF_8), new JsonOptions()));
+    }
+
+    /**
+     * Build the small JSON document that is kept in the session_info column of a row whose session is
+     * stored in binary, so that queries such as getusers can still find the user's name.
+     *
+     * @param session The session document
+     * @return A document of the form {"userName": "julie"}, or an empty document if no user name is found
+     */
+    public static MapValue summary(FieldValue session) {
+        FieldValue holder = session;
+        if (holder != null && holder.isArray() && holder.asArray().size() > 0) {
+            holder = holder.asArray().get(0);
+        }
+        MapValue ret = new MapValue();
+        if (holder != null && holder.isMap() && holder.asMap().get(JSON_ATTR_USER_NAME) != null) {
+            ret.put(JSON_ATTR_USER_NAME, holder.asMap().get(JSON_ATTR_USER_NAME));
+        }
+        return(ret);
+    }
+}
@@ -0,0 +1,60 @@
+package session;
+
+import oracle.nosql.driver.Version;
+
+import java.util.Base64;
+
+/**
+ * Entity tags for persistent sessions, made from the version of the row the session was read from or
+ * written to.  A row gets a new version every time it is written, so two reads of a session have the same
+ * tag only if nothing was written in between, which lets clients that poll getsession be answered with
+ * 304 Not Modified and lets update be made conditional on the session a client last saw.
+ */
+public final class SessionETag {
+
+    private SessionETag() {
+    }
+
+    /**
+     * @param version The version of a session's row
+     * @return The strong entity tag for the session, quoted as it is sent in the ETag header, or null if
+     * the version isn't known
+     */
+    public static String of(Version version) {
+        if (version == null) {
+            return(null);
+        }
+        return("\"" + Base64.getUrlEncoder().withoutPadding().encodeToString(version.getBytes()) + "\"");
+    }
+
+    /**
+     * Check a session against the value of an If-Match or If-None-Match header.  Weak tags are compared as
+     * if they were strong, as we only ever hand out strong ones.
+     *
+     * @param header A comma separated list of entity tags, or "*" for any session
+     * @param version The version of an existing session's row, null if it isn't known
+     * @return true if the header is "*" or the session's tag is in the list
+     */
+    public static boolean matches(String header, Version version) {
+        if (header == null) {
+            return(false);
+        }
+        String tag = of(version);
+        for (String candidate : header.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.equals("*")) {
+                return(true);
+            }
+            if (tag == null) {
+                continue;
+            }
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals(tag)) {
+                return(true);
+            }
+        }
+        return(false);
+    }
+}
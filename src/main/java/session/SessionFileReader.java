@@ -0,0 +1,155 @@
+package session;
+
+import oracle.nosql.driver.values.FieldValue;
+import oracle.nosql.driver.values.JsonOptions;
+import oracle.nosql.driver.values.MapValue;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Reads the rows of a session export file one at a time, without ever holding the whole file in memory.
+ *
+ * The file is memory mapped a region at a time and scanned byte by byte for the end of each top level
+ * JSON object, only that object's bytes are decoded and parsed.  Objects may be one per line (JSON
+ * Lines), concatenated, or the elements of a top level array, in any mix.  Because the scan works on
+ * UTF-8 bytes, whose multi-byte sequences never contain the ASCII characters that structure JSON, a
+ * row's text is decoded exactly once, as a whole.
+ *
+ * Between rows the scanner holds no state, so reading can start again from the end offset of any row,
+ * which is how an interrupted import is resumed.
+ */
+public class SessionFileReader implements Closeable {
+
+    //  How much of the file is mapped at once
+    public static int MAP_REGION_BYTES = 64 << 20;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final long size;
+    private final int regionBytes;
+    private final JsonOptions options = new JsonOptions();
+    private MappedByteBuffer region;
+    private long regionStart;
+    private long position;
+    private byte[] row = new byte[8192];
+    private int rowLength;
+    private long rowStart;
+
+    /**
+     * @param path The file to read
+     * @param startOffset The offset to start reading at, 0 or the end offset of a row
+     * @throws IOException if the file can't be opened
+     */
+    public SessionFileReader(Path path, long startOffset) throws IOException {
+        this(path, startOffset, MAP_REGION_BYTES);
+    }
+
+    SessionFileReader(Path path, long startOffset, int regionBytes) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.size = channel.size();
+        this.regionBytes = regionBytes;
+        this.position = startOffset;
+        if (startOffset == 0 && size >= 3 && byteAt(0) == (byte) 0xEF && byteAt(1) == (byte) 0xBB &&
+                byteAt(2) == (byte) 0xBF) {
+            //  Skip a UTF-8 byte order mark
+            position = 3;
+        }
+    }
+
+    /**
+     * @return The next row of the file, or null at the end of the file
+     * @throws IOException if the file can't be read or isn't a sequence of JSON objects
+     */
+    public MapValue next() throws IOException {
+        int depth = 0;
+        boolean inString = false;
+        boolean escaped = false;
+        while (position < size) {
+            byte b = byteAt(position++);
+            if (depth == 0) {
+                if (b == '{') {
+                    rowStart = position - 1;
+                    rowLength = 0;
+                    append(b);
+                    depth = 1;
+                } else if (b != ' ' && b != '\n' && b != '\r' && b != '\t' && b != ',' && b != '[' &&
+                        b != ']') {
+                    throw new IOException("Expected a JSON object at offset " + (position - 1) + " of " +
+                            path);
+                }
+                continue;
+            }
+            append(b);
+            if (inString) {
+                if (escaped) {
+                    escaped = false;
+                } else if (b == '\\') {
+                    escaped = true;
+                } else if (b == '"') {
+                    inString = false;
+                }
+            } else if (b == '"') {
+                inString = true;
+            } else if (b == '{' || b == '[') {
+                depth++;
+            } else if ((b == '}' || b == ']') && --depth == 0) {
+                String json = new String(row, 0, rowLength, StandardCharsets.UTF_8);
+                return(FieldValue.createFromJson(json, options).asMap());
+            }
+        }
+        if (depth > 0) {
+            throw new IOException("Truncated JSON object at offset " + rowStart + " of " + path);
+        }
+        return(null);
+    }
+
+    /**
+     * @return The offset in the file of the first byte of the row last returned by {@link #next()}
+     */
+    public long getRowStart() {
+        return(rowStart);
+    }
+
+    /**
+     * @return The offset in the file just after the row last returned by {@link #next()}, or of the end
+     * of the file once it returns null
+     */
+    public long getPosition() {
+        return(position);
+    }
+
+    /**
+     * @return The size of the file in bytes
+     */
+    public long getSize() {
+        return(size);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private byte byteAt(long offset) throws IOException {
+        if (region == null || offset < regionStart || offset >= regionStart + region.limit()) {
+            regionStart = offset;
+            region = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(regionBytes, size - offset));
+        }
+        return(region.get((int) (offset - regionStart)));
+    }
+
+    private void append(byte b) {
+        if (rowLength == row.length) {
+            row = Arrays.copyOf(row, row.length * 2);
+        }
+        row[rowLength++] = b;
+    }
+}
@@ -0,0 +1,461 @@
+package session;
+
+import io.micronaut.http.HttpStatus;
+import io.micronaut.http.exceptions.HttpStatusException;
+import oracle.nosql.driver.NoSQLHandle;
+import oracle.nosql.driver.TimeToLive;
+import oracle.nosql.driver.ops.PrepareRequest;
+import oracle.nosql.driver.ops.PreparedStatement;
+import oracle.nosql.driver.ops.PutRequest;
+import oracle.nosql.driver.ops.QueryRequest;
+import oracle.nosql.driver.ops.QueryResult;
+import oracle.nosql.driver.ops.TableRequest;
+import oracle.nosql.driver.ops.TableResult;
+import oracle.nosql.driver.ops.WriteMultipleRequest;
+import oracle.nosql.driver.ops.WriteMultipleResult;
+import oracle.nosql.driver.values.ArrayValue;
+import oracle.nosql.driver.values.FieldValue;
+import oracle.nosql.driver.values.IntegerValue;
+import oracle.nosql.driver.values.JsonNullValue;
+import oracle.nosql.driver.values.LongValue;
+import oracle.nosql.driver.values.MapValue;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static session.PersistentSessionManager.COL_ACCOUNT_NUMBER;
+import static session.PersistentSessionManager.COL_JSON_TYPE;
+import static session.PersistentSessionManager.COL_USER_ID;
+import static session.PersistentSessionManager.JSON_ATTR_USER_NAME;
+import static session.PersistentSessionManager.TABLE_NAME;
+
+/**
+ * Cold storage for the watch history of a persistent session.
+ *
+ * A session document is an array of shows, each with an array of seasons, each with an array of
+ * episodes.  Left alone it grows with every episode a user has ever watched, and every read and write of
+ * the session moves all of it.  Instead the session only keeps a bounded "hot" working set: the most
+ * recently watched shows and, within them, the episodes that haven't been watched to the end.  Everything
+ * else is moved into the child table persistent_session.history, one row per episode, by
+ * {@link #split(FieldValue, int)} and {@link #write(long, int, List)}, and read back a page at a time.
+ *
+ * Each history row holds the show and season that the episode belongs to, without their other seasons
+ * and episodes, so that it can be shown without the session: {"show": {...}, "season": {...},
+ * "episode": {...}}.  Rows are keyed by show, season and episode so that moving the same episode again
+ * overwrites its row.
+ *
+ * When sessions expire, history rows are written with the same time to live.  A row is only written when
+ * its episode is moved out of a session, which writes the session too, so a row never outlives its
+ * session.  The older history of a session that is still in use expires and isn't renewed by reads.
+ */
+public class SessionHistory {
+
+    //  Constants for the name of the child table and its columns
+    public static String HISTORY_TABLE_NAME = TABLE_NAME + ".history";
+    public static String COL_SHOW_ID = "show_id";
+    public static String COL_EPISODE_KEY = "episode_key";
+    public static String COL_ENTRY = "entry";
+
+    //  Constants for attributes of the session document
+    public static String JSON_ATTR_SHOW_ID = "showID";
+    public static String JSON_ATTR_SERIES_INFO = "seriesInfo";
+    public static String JSON_ATTR_SEASON_NUM = "seasonNum";
+    public static String JSON_ATTR_EPISODES = "episodes";
+    public static String JSON_ATTR_EPISODE_ID = "episodeID";
+    public static String JSON_ATTR_LENGTH_MIN = "lengthMin";
+    public static String JSON_ATTR_MIN_WATCHED = "minWatched";
+    public static String JSON_ATTR_LAST_WATCHED = "lastWatched";
+
+    //  Attributes of a history entry and of a page of history
+    public static String ENTRY_ATTR_SHOW = "show";
+    public static String ENTRY_ATTR_SEASON = "season";
+    public static String ENTRY_ATTR_EPISODE = "episode";
+    public static String PAGE_ATTR_HISTORY = "history";
+    public static String PAGE_ATTR_CURSOR = "cursor";
+
+    static final String VAR_ACCOUNT = "$acct";
+    static final String VAR_USER = "$uid";
+
+    static final String STATEMENT = "declare " + VAR_ACCOUNT + " long; " + VAR_USER + " integer; " +
+            "select h." + COL_ENTRY + " from " + HISTORY_TABLE_NAME + " h where h." +
+            COL_ACCOUNT_NUMBER + " = " + VAR_ACCOUNT + " and h." + COL_USER_ID + " = " + VAR_USER;
+
+    private final MeteredHandle handle;
+    private final TimeToLive ttl;
+    private volatile PreparedStatement prepared;
+
+    /**
+     * @param handle The handle to read and write history with
+     */
+    public SessionHistory(MeteredHandle handle) {
+        this(handle, null);
+    }
+
+    /**
+     * @param handle The handle to read and write history with
+     * @param ttl The time to live of the rows written, null for rows that never expire
+     */
+    public SessionHistory(MeteredHandle handle, TimeToLive ttl) {
+        this.handle = handle;
+        this.ttl = ttl;
+    }
+
+    /**
+     *  Create the child table that holds watch history.  If the table already exists nothing will
+     *  happen.  Child tables share the throughput and storage of their parent so no limits are set.
+     *
+     * @param dbHandle A handle to the NoSQL Database cloud service where the parent table is
+     * @throws Exception on error
+     */
+    public static void createTable(NoSQLHandle dbHandle) throws Exception {
+        if (PersistentSessionManager.isTableActive(dbHandle, HISTORY_TABLE_NAME)) {
+            return;
+        }
+        TableRequest req = new TableRequest().setStatement(
+                "CREATE TABLE if not exists " +
+                        HISTORY_TABLE_NAME + "(" +
+                        COL_SHOW_ID + " INTEGER , " +
+                        COL_EPISODE_KEY + " STRING , " +
+                        COL_ENTRY + COL_JSON_TYPE + " , " +
+                        "PRIMARY KEY (" + COL_SHOW_ID + ", " + COL_EPISODE_KEY + "))");
+        TableResult tr = dbHandle.tableRequest(req);
+        tr.waitForCompletion(dbHandle, 30000, 500);
+        if (tr.getTableState().compareTo(TableResult.State.ACTIVE) != 0) {
+            throw new Exception("Unable to create table  " + HISTORY_TABLE_NAME + ", current state = " +
+                    tr.getTableState());
+        }
+    }
+
+    /**
+     * Write history rows for a session.  Every history row of a session has the same shard key so they
+     * are written with as few requests as possible.  Rows are keyed by episode so writing the same rows
+     * again is harmless, and renews their time to live.
+     *
+     * @param accountNum The account number owning the session
+     * @param userID The ID of the user in the account that this session belongs to
+     * @param rows History rows from {@link Split#getCold()}
+     * @throws IllegalStateException if the rows could not be written
+     */
+    public void write(long accountNum, int userID, List<MapValue> rows) {
+        for (int start = 0; start < rows.size(); start += SessionBatchWriter.MAX_OPS_PER_REQUEST) {
+            int end = Math.min(rows.size(), start + SessionBatchWriter.MAX_OPS_PER_REQUEST);
+            WriteMultipleRequest wmReq = new WriteMultipleRequest();
+            for (MapValue row : rows.subList(start, end)) {
+                row.put(COL_ACCOUNT_NUMBER, accountNum).put(COL_USER_ID, userID);
+                PutRequest putReq = new PutRequest().setTableName(HISTORY_TABLE_NAME).setValue(row);
+                if (ttl != null) {
+                    putReq.setTTL(ttl).setUpdateTTL(true);
+                }
+                wmReq.add(putReq, true);
+            }
+            WriteMultipleResult wmRes = handle.writeMultiple(accountNum, wmReq);
+            if (!wmRes.getSuccess()) {
+                throw new IllegalStateException("Unable to write watch history for account " + accountNum +
+                        " user " + userID + ", operation " + wmRes.getFailedOperationIndex() + " failed");
+            }
+        }
+    }
+
+    /**
+     * Fetch a page of the watch history of a session as a JSON document of the form
+     * {"history": [...], "cursor": "..."}.  The cursor is null on the last page, otherwise it may be
+     * passed back to fetch the next page.
+     *
+     * @param accountNum The account number owning the session
+     * @param userID The ID of the user in the account that this session belongs to
+     * @param limit The maximum number of entries to return
+     * @param cursor The cursor returned with the previous page, or null for the first page
+     * @return The page of history
+     * @throws HttpStatusException with a status of 400 if the cursor isn't one that we returned
+     */
+    public String page(long accountNum, int userID, int limit, String cursor) {
+        PreparedStatement ps = prepared;
+        if (ps == null) {
+            //  Racing threads may both prepare the statement, which is harmless
+            ps = handle.prepare(new PrepareRequest().setStatement(STATEMENT)).getPreparedStatement();
+            prepared = ps;
+        }
+        PreparedStatement bound = ps.copyStatement();
+        bound.setVariable(VAR_ACCOUNT, new LongValue(accountNum));
+        bound.setVariable(VAR_USER, new IntegerValue(userID));
+        byte[] continuation = AccountUsersQuery.decodeCursor(cursor);
+        QueryRequest qr = new QueryRequest().setPreparedStatement(bound).setLimit(limit);
+        if (continuation != null) {
+            qr.setContinuationKey(continuation);
+        }
+        QueryResult res;
+        try {
+            res = handle.query(accountNum, qr);
+        } catch (IllegalArgumentException e) {
+            if (continuation == null) {
+                throw(e);
+            }
+            //  The cursor decoded but the driver doesn't recognize it
+            throw new HttpStatusException(HttpStatus.BAD_REQUEST, "Invalid cursor");
+        }
+
+        ArrayValue entries = new ArrayValue(res.getResults().size());
+        for (MapValue result : res.getResults()) {
+            entries.add(result.get(COL_ENTRY));
+        }
+        byte[] next = res.getContinuationKey();
+        MapValue page = new MapValue().put(PAGE_ATTR_HISTORY, entries);
+        if (next == null || qr.isDone()) {
+            page.put(PAGE_ATTR_CURSOR, JsonNullValue.getInstance());
+        } else {
+            page.put(PAGE_ATTR_CURSOR, Base64.getUrlEncoder().withoutPadding().encodeToString(next));
+        }
+        return(page.toJson());
+    }
+
+    /**
+     * Split a session document into the part that stays in the session and the history rows to move
+     * out of it.  Shows without an integer showID, and sessions that aren't an array of shows, are always
+     * kept.
+     * The session passed in is not modified.
+     *
+     * @param session The session document
+     * @param maxHotShows The number of most recently watched shows to keep in the session
+     * @return The split session
+     */
+    static Split split(FieldValue session, int maxHotShows) {
+        if (session == null || !session.isArray()) {
+            return(new Split(session, Collections.emptyList()));
+        }
+        ArrayValue shows = session.asArray();
+        boolean[] recent = mostRecent(shows, maxHotShows);
+        ArrayValue hot = new ArrayValue(shows.size());
+        List<MapValue> cold = new ArrayList<>();
+        for (int i = 0; i < shows.size(); i++) {
+            FieldValue show = shows.get(i);
+            Integer showID = showID(show);
+            if (showID == null) {
+                hot.add(show);
+                continue;
+            }
+            int before = cold.size();
+            FieldValue kept = splitShow(show.asMap(), showID, !recent[i], cold);
+            if (kept != null) {
+                hot.add(cold.size() == before ? show : kept);
+            }
+        }
+
+        //  Clients and getusers find the user's name in the first show, keep it there
+        FieldValue userName = (shows.size() > 0 && shows.get(0).isMap() ?
+                shows.get(0).asMap().get(JSON_ATTR_USER_NAME) :
+                null);
+        if (userName != null && hot.size() > 0 && hot.get(0).isMap() &&
+                hot.get(0).asMap().get(JSON_ATTR_USER_NAME) == null) {
+            hot.set(0, copyExcept(hot.get(0).asMap(), null).put(JSON_ATTR_USER_NAME, userName));
+        }
+        return(new Split(hot, cold));
+    }
+
+    /**
+     * Check whether a session has anything for {@link #split} to move, without copying it.  This may
+     * say yes for a session with more shows than maxHotShows where the older shows can't be moved, but
+     * never says no to a session that split would compact.
+     *
+     * @param session The session document
+     * @param maxHotShows The number of most recently watched shows to keep in the session
+     * @return true if the session has more than maxHotShows shows or a finished episode
+     */
+    static boolean needsCompaction(FieldValue session, int maxHotShows) {
+        if (session == null || !session.isArray()) {
+            return(false);
+        }
+        boolean tooMany = session.asArray().size() > maxHotShows;
+        for (FieldValue show : session.asArray()) {
+            if (showID(show) == null) {
+                continue;
+            }
+            if (tooMany) {
+                return(true);
+            }
+            for (FieldValue season : children(show, JSON_ATTR_SERIES_INFO)) {
+                for (FieldValue episode : children(season, JSON_ATTR_EPISODES)) {
+                    if (episode.isMap() && isFinished(episode.asMap())) {
+                        return(true);
+                    }
+                }
+            }
+        }
+        return(false);
+    }
+
+    /**
+     * @return The ID of a show, or null if it doesn't have one that fits the integer show_id column, such
+     * shows are always kept in the session
+     */
+    private static Integer showID(FieldValue show) {
+        FieldValue showID = (show.isMap() ? show.asMap().get(JSON_ATTR_SHOW_ID) : null);
+        return(showID != null && showID.getType() == FieldValue.Type.INTEGER ? showID.getInt() : null);
+    }
+
+    /**
+     * Mark the shows that were watched most recently, going by the latest lastWatched of their episodes.
+     * Shows that were watched equally recently are ranked by their position in the session.
+     */
+    private static boolean[] mostRecent(ArrayValue shows, int maxHotShows) {
+        List<Integer> order = new ArrayList<>(shows.size());
+        String[] lastWatched = new String[shows.size()];
+        for (int i = 0; i < shows.size(); i++) {
+            order.add(i);
+            lastWatched[i] = lastWatched(shows.get(i));
+        }
+        order.sort((a, b) -> lastWatched[b].compareTo(lastWatched[a]));
+        boolean[] ret = new boolean[shows.size()];
+        for (int i = 0; i < Math.min(maxHotShows, order.size()); i++) {
+            ret[order.get(i)] = true;
+        }
+        return(ret);
+    }
+
+    /**
+     * The latest lastWatched of the episodes of a show, timestamps are ISO 8601 so they sort as strings.
+     */
+    private static String lastWatched(FieldValue show) {
+        String ret = "";
+        for (FieldValue season : children(show, JSON_ATTR_SERIES_INFO)) {
+            for (FieldValue episode : children(season, JSON_ATTR_EPISODES)) {
+                FieldValue watched = (episode.isMap() ? episode.asMap().get(JSON_ATTR_LAST_WATCHED) : null);
+                if (watched != null && watched.getType() == FieldValue.Type.STRING &&
+                        watched.getString().compareTo(ret) > 0) {
+                    ret = watched.getString();
+                }
+            }
+        }
+        return(ret);
+    }
+
+    /**
+     * Move the finished episodes of a show, or all of it, into history rows.
+     *
+     * @return The show without the moved episodes, or null if the whole show was moved
+     */
+    private static MapValue splitShow(MapValue show, int showID, boolean moveAll, List<MapValue> cold) {
+        int before = cold.size();
+        MapValue showInfo = copyExcept(show, JSON_ATTR_SERIES_INFO);
+        showInfo.remove(JSON_ATTR_USER_NAME);
+        List<FieldValue> seasons = children(show, JSON_ATTR_SERIES_INFO);
+        if (moveAll && seasons.isEmpty()) {
+            cold.add(historyRow(showID, "", showInfo, null, null));
+            return(null);
+        }
+
+        ArrayValue keptSeasons = new ArrayValue(seasons.size());
+        for (FieldValue season : seasons) {
+            if (!season.isMap()) {
+                keptSeasons.add(season);
+                continue;
+            }
+            MapValue seasonInfo = copyExcept(season.asMap(), JSON_ATTR_EPISODES);
+            String seasonKey = keyOf(season.asMap().get(JSON_ATTR_SEASON_NUM));
+            List<FieldValue> episodes = children(season, JSON_ATTR_EPISODES);
+            if (moveAll && episodes.isEmpty()) {
+                cold.add(historyRow(showID, seasonKey + "/", showInfo, seasonInfo, null));
+                continue;
+            }
+            ArrayValue keptEpisodes = new ArrayValue(episodes.size());
+            for (FieldValue episode : episodes) {
+                if (episode.isMap() && (moveAll || isFinished(episode.asMap()))) {
+                    cold.add(historyRow(showID,
+                            seasonKey + "/" + keyOf(episode.asMap().get(JSON_ATTR_EPISODE_ID)),
+                            showInfo, seasonInfo, episode));
+                } else {
+                    keptEpisodes.add(episode);
+                }
+            }
+            if (!moveAll) {
+                keptSeasons.add(seasonInfo.put(JSON_ATTR_EPISODES, keptEpisodes));
+            }
+        }
+        if (moveAll) {
+            //  A show with nothing we recognize as a season or episode is left where it is
+            return(cold.size() > before ? null : show);
+        }
+        return(copyExcept(show, null).put(JSON_ATTR_SERIES_INFO, keptSeasons));
+    }
+
+    /**
+     * @return true if an episode has been watched to the end
+     */
+    private static boolean isFinished(MapValue episode) {
+        FieldValue length = episode.get(JSON_ATTR_LENGTH_MIN);
+        FieldValue watched = episode.get(JSON_ATTR_MIN_WATCHED);
+        return(length != null && length.isNumeric() && watched != null && watched.isNumeric() &&
+                watched.castAsDouble() >= length.castAsDouble());
+    }
+
+    private static MapValue historyRow(int showID, String episodeKey, MapValue show, MapValue season,
+                                       FieldValue episode) {
+        MapValue entry = new MapValue().put(ENTRY_ATTR_SHOW, show);
+        if (season != null) {
+            entry.put(ENTRY_ATTR_SEASON, season);
+        }
+        if (episode != null) {
+            entry.put(ENTRY_ATTR_EPISODE, episode);
+        }
+        return(new MapValue().put(COL_SHOW_ID, showID).put(COL_EPISODE_KEY, episodeKey)
+                .put(COL_ENTRY, entry));
+    }
+
+    /**
+     * The part of a history row's key for a season number or episode ID, which may be null for movies.
+     */
+    private static String keyOf(FieldValue id) {
+        return(id == null || id.isNull() || id.isJsonNull() ? "-" : id.toJson());
+    }
+
+    private static List<FieldValue> children(FieldValue parent, String attribute) {
+        FieldValue children = (parent != null && parent.isMap() ? parent.asMap().get(attribute) : null);
+        if (children == null || !children.isArray()) {
+            return(Collections.emptyList());
+        }
+        List<FieldValue> ret = new ArrayList<>(children.asArray().size());
+        for (FieldValue child : children.asArray()) {
+            ret.add(child);
+        }
+        return(ret);
+    }
+
+    private static MapValue copyExcept(MapValue map, String excluded) {
+        MapValue ret = new MapValue(map.size());
+        for (Map.Entry<String, FieldValue> entry : map.entrySet()) {
+            if (!entry.getKey().equals(excluded)) {
+                ret.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return(ret);
+    }
+
+    /**
+     * A session split into what stays in it and what moves to history.
+     */
+    static final class Split {
+        private final FieldValue hot;
+        private final List<MapValue> cold;
+
+        Split(FieldValue hot, List<MapValue> cold) {
+            this.hot = hot;
+            this.cold = cold;
+        }
+
+        /**
+         * @return The session document without the moved episodes
+         */
+        FieldValue getHot() {
+            return(hot);
+        }
+
+        /**
+         * @return History rows for the moved episodes, without their account number and user ID
+         */
+        List<MapValue> getCold() {
+            return(cold);
+        }
+    }
+}
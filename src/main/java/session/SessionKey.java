@@ -0,0 +1,46 @@
+package session;
+
+/**
+ * The primary key of a persistent session, (accountNum, userID), held as primitives so it can be used
+ * as a cheap map key by the in-process structures that sit in front of the database.
+ */
+public final class SessionKey {
+
+    private final long accountNum;
+    private final int userID;
+
+    public SessionKey(long accountNum, int userID) {
+        this.accountNum = accountNum;
+        this.userID = userID;
+    }
+
+    public long getAccountNum() {
+        return accountNum;
+    }
+
+    public int getUserID() {
+        return userID;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof SessionKey)) {
+            return false;
+        }
+        SessionKey other = (SessionKey) o;
+        return accountNum == other.accountNum && userID == other.userID;
+    }
+
+    @Override
+    public int hashCode() {
+        int h = (int) (accountNum ^ (accountNum >>> 32));
+        return 31 * h + userID;
+    }
+
+    public String toString() {
+        return ("(" + accountNum + ", " + userID + ")");
+    }
+}
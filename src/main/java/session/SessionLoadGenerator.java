@@ -0,0 +1,508 @@
+package session;
+
+import io.micronaut.context.ApplicationContext;
+import io.micronaut.http.HttpHeaders;
+import io.micronaut.http.HttpRequest;
+import io.micronaut.http.MediaType;
+import io.micronaut.http.MutableHttpRequest;
+import io.micronaut.http.client.DefaultHttpClientConfiguration;
+import io.micronaut.http.client.RxHttpClient;
+import io.micronaut.runtime.server.EmbeddedServer;
+import oracle.nosql.driver.values.ArrayValue;
+import oracle.nosql.driver.values.FieldValue;
+import oracle.nosql.driver.values.JsonOptions;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import session.SessionWorkload.Account;
+import session.SessionWorkload.Operation;
+import session.SessionWorkload.User;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Command line load test of the session service's HTTP endpoints, with a workload synthesized from session
+ * export files such as those in data/.
+ *
+ * Usage: SessionLoadGenerator [--url URL | --local] [--rate R] [--duration-s S] [--warmup-s S]
+ *        [--accounts N] [--users-per-account N] [--skew Z] [--read-pct P] [--update-pct P]
+ *        [--connections N] [--max-outstanding N] [--accept TYPE] [--report-ms M] [--hgrm DIR]
+ *        [--seed N] [FILE|DIR...]
+ *
+ * With --local the service is started in this process with session-store: local, so the whole test runs
+ * offline, otherwise it is sent to the service at --url.  First every account is given its users, each
+ * created and then given a copy of a sample session.  Then requests are sent open loop: the Nth request
+ * is due N / rate seconds after the start and is sent then whether or not earlier requests have been
+ * answered, as real clients don't wait for each other.  The latency of a request is measured from when it
+ * was due, not from when it was sent, so that a stall of the service or of this generator counts against
+ * every request it delayed rather than just the one that was waiting, which is known as correcting for
+ * coordinated omission.  The time from when a request was sent is reported too, as the service time.
+ * Both are recorded in HdrHistograms, one per kind of request, and only for requests due after the
+ * warm up.  Failed requests are counted and not recorded.  Requests due while --max-outstanding requests
+ * are unanswered are skipped and counted, and a run with skipped requests has overloaded the generator.
+ */
+public class SessionLoadGenerator {
+
+    public static String DEFAULT_URL = "http://localhost:8080";
+    public static int DEFAULT_RATE = 100;
+    public static int DEFAULT_DURATION_S = 60;
+    public static int DEFAULT_WARMUP_S = 10;
+    public static int DEFAULT_ACCOUNTS = 100;
+    public static int DEFAULT_USERS_PER_ACCOUNT = 10;
+    public static double DEFAULT_SKEW = 1.0;
+    public static int DEFAULT_READ_PCT = 80;
+    public static int DEFAULT_UPDATE_PCT = 18;
+    public static int DEFAULT_CONNECTIONS = 64;
+    public static int DEFAULT_MAX_OUTSTANDING = 10000;
+    public static int DEFAULT_REPORT_MS = 5000;
+    public static int DEFAULT_READY_TIMEOUT_MS = 60000;
+
+    private static final String BASE_PATH = "/sessionmanager";
+
+    private final RxHttpClient client;
+    private final SessionWorkload workload;
+    private final String accept;
+    private final int maxOutstanding;
+    private final Random random;
+    private final Map<Operation, Stats> stats = new HashMap<>();
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicInteger usersCreated = new AtomicInteger();
+    private final LongAdder skipped = new LongAdder();
+
+    /**
+     * @param client The client to send requests with
+     * @param workload The accounts and traffic to send
+     * @param accept If not null, the Accept header of reads and updates
+     * @param maxOutstanding The most requests that may be unanswered at once
+     * @param seed The seed of the choice of each request
+     */
+    public SessionLoadGenerator(RxHttpClient client, SessionWorkload workload, String accept, int maxOutstanding,
+                                long seed) {
+        this.client = client;
+        this.workload = workload;
+        this.accept = accept;
+        this.maxOutstanding = maxOutstanding;
+        this.random = new Random(seed);
+        for (Operation op : Operation.values()) {
+            stats.put(op, new Stats());
+        }
+    }
+
+    public static void main(String[] args) {
+        String url = DEFAULT_URL;
+        boolean local = false;
+        int rate = DEFAULT_RATE;
+        int durationS = DEFAULT_DURATION_S;
+        int warmupS = DEFAULT_WARMUP_S;
+        int accounts = DEFAULT_ACCOUNTS;
+        int usersPerAccount = DEFAULT_USERS_PER_ACCOUNT;
+        double skew = DEFAULT_SKEW;
+        int readPct = DEFAULT_READ_PCT;
+        int updatePct = DEFAULT_UPDATE_PCT;
+        int connections = DEFAULT_CONNECTIONS;
+        int maxOutstanding = DEFAULT_MAX_OUTSTANDING;
+        String accept = null;
+        int reportMs = DEFAULT_REPORT_MS;
+        Path hgrm = null;
+        long seed = 1;
+        List<Path> files = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--url":
+                        url = args[++i];
+                        break;
+                    case "--local":
+                        local = true;
+                        break;
+                    case "--rate":
+                        rate = Integer.parseInt(args[++i]);
+                        break;
+                    case "--duration-s":
+                        durationS = Integer.parseInt(args[++i]);
+                        break;
+                    case "--warmup-s":
+                        warmupS = Integer.parseInt(args[++i]);
+                        break;
+                    case "--accounts":
+                        accounts = Integer.parseInt(args[++i]);
+                        break;
+                    case "--users-per-account":
+                        usersPerAccount = Integer.parseInt(args[++i]);
+                        break;
+                    case "--skew":
+                        skew = Double.parseDouble(args[++i]);
+                        break;
+                    case "--read-pct":
+                        readPct = Integer.parseInt(args[++i]);
+                        break;
+                    case "--update-pct":
+                        updatePct = Integer.parseInt(args[++i]);
+                        break;
+                    case "--connections":
+                        connections = Integer.parseInt(args[++i]);
+                        break;
+                    case "--max-outstanding":
+                        maxOutstanding = Integer.parseInt(args[++i]);
+                        break;
+                    case "--accept":
+                        accept = args[++i];
+                        break;
+                    case "--report-ms":
+                        reportMs = Integer.parseInt(args[++i]);
+                        break;
+                    case "--hgrm":
+                        hgrm = Paths.get(args[++i]);
+                        break;
+                    case "--seed":
+                        seed = Long.parseLong(args[++i]);
+                        break;
+                    default:
+                        files.addAll(BulkImport.expand(Paths.get(args[i])));
+                }
+            }
+            if (files.isEmpty()) {
+                files.addAll(BulkImport.expand(Paths.get("data")));
+            }
+        } catch (RuntimeException | IOException e) {
+            files.clear();
+        }
+        if (files.isEmpty() || rate <= 0 || durationS <= 0 || warmupS < 0 || usersPerAccount <= 0 ||
+                connections <= 0 || maxOutstanding <= 0 || reportMs <= 0) {
+            System.err.println("Usage: SessionLoadGenerator [--url URL | --local] [--rate R] [--duration-s S] " +
+                    "[--warmup-s S] [--accounts N] [--users-per-account N] [--skew Z] [--read-pct P] " +
+                    "[--update-pct P] [--connections N] [--max-outstanding N] [--accept TYPE] " +
+                    "[--report-ms M] [--hgrm DIR] [--seed N] [FILE|DIR...]");
+            System.exit(2);
+        }
+
+        EmbeddedServer server = null;
+        RxHttpClient client = null;
+        try {
+            SessionWorkload workload = new SessionWorkload(SessionWorkload.readSamples(files), accounts, skew,
+                    readPct, updatePct);
+            if (local) {
+                Map<String, Object> properties = new HashMap<>();
+                properties.put("micronaut.server.port", -1);
+                properties.put("micronaut.application." + PersistentSessionManager.ENV_PROPERTY_SESSION_STORE,
+                        PersistentSessionManager.SESSION_STORE_LOCAL);
+                server = ApplicationContext.run(EmbeddedServer.class, properties);
+                url = server.getURL().toString();
+            }
+            DefaultHttpClientConfiguration configuration = new DefaultHttpClientConfiguration();
+            configuration.setReadTimeout(Duration.ofSeconds(30));
+            configuration.getConnectionPoolConfiguration().setEnabled(true);
+            configuration.getConnectionPoolConfiguration().setMaxConnections(connections);
+            client = RxHttpClient.create(new URL(url), configuration);
+
+            SessionLoadGenerator generator = new SessionLoadGenerator(client, workload, accept, maxOutstanding,
+                    seed);
+            System.out.println("Waiting for " + url + " to be ready");
+            generator.awaitReady(DEFAULT_READY_TIMEOUT_MS);
+            System.out.println("Creating " + usersPerAccount + " users in each of " + accounts + " accounts");
+            int failed = generator.populate(usersPerAccount, connections);
+            if (failed > 0) {
+                System.out.println(failed + " users could not be created");
+            }
+            System.out.println("Sending " + rate + " requests a second for " + warmupS + "s of warm up and " +
+                    durationS + "s of measurement");
+            generator.run(rate, warmupS, durationS, reportMs);
+            generator.report(System.out, durationS);
+            if (hgrm != null) {
+                generator.writeHistograms(hgrm);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        } finally {
+            if (client != null) {
+                client.close();
+            }
+            if (server != null) {
+                server.getApplicationContext().close();
+            }
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Wait for the service to report ready.
+     *
+     * @param timeoutMillis How long to wait
+     * @throws IllegalStateException if the service isn't ready in time
+     */
+    void awaitReady(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (true) {
+            try {
+                client.exchange(HttpRequest.GET("/health/readiness"), String.class).blockingFirst();
+                return;
+            } catch (RuntimeException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IllegalStateException("The service wasn't ready within " + timeoutMillis + "ms", e);
+                }
+                Thread.sleep(500);
+            }
+        }
+    }
+
+    /**
+     * Create the users of every account and give each a session, with up to a given number of users
+     * being created at once.
+     *
+     * @param usersPerAccount The number of users to create in each account
+     * @param concurrency The most users to create at once
+     * @return The number of users that could not be created
+     */
+    int populate(int usersPerAccount, int concurrency) throws InterruptedException {
+        Semaphore permits = new Semaphore(concurrency);
+        LongAdder failures = new LongAdder();
+        for (Account account : workload.getAccounts()) {
+            for (int i = 0; i < usersPerAccount; i++) {
+                permits.acquire();
+                int n = usersCreated.getAndIncrement();
+                String userName = "user" + n;
+                ArrayValue session = workload.newSession(userName, n);
+                client.exchange(HttpRequest.POST(createUri(account, userName), ""), byte[].class)
+                        .map(response -> parseUserID(response.body()))
+                        .flatMap(userID -> client.exchange(
+                                HttpRequest.POST(updateUri(account, userID), session.toJson())
+                                        .contentType(MediaType.APPLICATION_JSON_TYPE), byte[].class)
+                                .map(response -> userID))
+                        .doFinally(permits::release)
+                        .subscribe(userID -> account.add(new User(userID, session)),
+                                error -> failures.increment());
+            }
+        }
+        permits.acquire(concurrency);
+        permits.release(concurrency);
+        return(failures.intValue());
+    }
+
+    /**
+     * Send requests open loop for the warm up and then the measurement, printing the latency of each
+     * report interval as it goes.
+     *
+     * @param rate The number of requests to send a second
+     * @param warmupS How long to send requests for before they are recorded
+     * @param durationS How long to send recorded requests for
+     * @param reportMs How often to print the latency so far
+     */
+    void run(int rate, int warmupS, int durationS, int reportMs) throws InterruptedException {
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "session-load-report");
+            t.setDaemon(true);
+            return(t);
+        });
+        long start = System.nanoTime();
+        long measureFrom = start + TimeUnit.SECONDS.toNanos(warmupS);
+        long end = measureFrom + TimeUnit.SECONDS.toNanos(durationS);
+        reporter.scheduleAtFixedRate(() -> reportInterval(System.out, (System.nanoTime() - start) / 1e9,
+                reportMs / 1000.0), reportMs, reportMs, TimeUnit.MILLISECONDS);
+        try {
+            double intervalNanos = 1e9 / rate;
+            for (long n = 0; ; n++) {
+                long due = start + (long) (n * intervalNanos);
+                if (due >= end) {
+                    break;
+                }
+                long wait;
+                while ((wait = due - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                send(due, due >= measureFrom);
+            }
+            //  Give the last requests time to be answered
+            long drainUntil = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+            while (outstanding.get() > 0 && System.nanoTime() < drainUntil) {
+                Thread.sleep(10);
+            }
+        } finally {
+            reporter.shutdownNow();
+            reporter.awaitTermination(10, TimeUnit.SECONDS);
+        }
+        reportInterval(null, 0, 0);
+    }
+
+    /**
+     * Send the next request.
+     *
+     * @param due When the request was due to be sent
+     * @param measured Whether to record the request's latency
+     */
+    private void send(long due, boolean measured) {
+        Operation op = workload.nextOperation(random);
+        Account account = workload.nextAccount(random);
+        User user = account.nextUser(random);
+        if (user == null) {
+            op = Operation.CREATE;
+        }
+        if (outstanding.get() >= maxOutstanding) {
+            skipped.increment();
+            return;
+        }
+        MutableHttpRequest<?> request;
+        String userName = null;
+        switch (op) {
+            case READ:
+                request = HttpRequest.GET(BASE_PATH + "/getsession/" + account.getAccountNum() + "/" +
+                        user.getUserID());
+                break;
+            case UPDATE:
+                request = HttpRequest.POST(updateUri(account, user.getUserID()), user.watch(random))
+                        .contentType(MediaType.APPLICATION_JSON_TYPE);
+                break;
+            default:
+                int n = usersCreated.getAndIncrement();
+                userName = "user" + n;
+                request = HttpRequest.POST(createUri(account, userName), "");
+                break;
+        }
+        if (accept != null && op != Operation.CREATE) {
+            request.header(HttpHeaders.ACCEPT, accept);
+        }
+
+        Stats opStats = stats.get(op);
+        Operation sentOp = op;
+        String createdName = userName;
+        long sent = System.nanoTime();
+        outstanding.incrementAndGet();
+        client.exchange(request, byte[].class)
+                .doFinally(outstanding::decrementAndGet)
+                .subscribe(response -> {
+                    long now = System.nanoTime();
+                    if (measured) {
+                        opStats.latency.recordValue(TimeUnit.NANOSECONDS.toMicros(now - due));
+                        opStats.serviceTime.recordValue(TimeUnit.NANOSECONDS.toMicros(now - sent));
+                    }
+                    if (sentOp == Operation.CREATE) {
+                        int userID = parseUserID(response.body());
+                        account.add(new User(userID, workload.newSession(createdName, userID)));
+                    }
+                }, error -> {
+                    if (measured) {
+                        opStats.errors.increment();
+                    }
+                });
+    }
+
+    /**
+     * Move what has been recorded since the last time into the totals and, if given a stream, print the
+     * rate and latency of the interval.
+     */
+    private synchronized void reportInterval(PrintStream out, double elapsedS, double intervalS) {
+        StringBuilder line = new StringBuilder(String.format("%6.0fs", elapsedS));
+        for (Operation op : Operation.values()) {
+            Stats opStats = stats.get(op);
+            Histogram latency = opStats.latency.getIntervalHistogram();
+            opStats.totalLatency.add(latency);
+            opStats.totalServiceTime.add(opStats.serviceTime.getIntervalHistogram());
+            if (out != null) {
+                line.append(String.format("  %s %.0f/s p99 %.1fms", op.name().toLowerCase(),
+                        latency.getTotalCount() / intervalS, latency.getValueAtPercentile(99) / 1000.0));
+            }
+        }
+        if (out != null) {
+            out.println(line);
+        }
+    }
+
+    /**
+     * Print the latency and service time of the measured requests of each kind.
+     *
+     * @param out Where to print
+     * @param durationS How long the measurement ran for
+     */
+    void report(PrintStream out, int durationS) {
+        out.println();
+        out.printf("%-8s %9s %7s %9s  %-8s %9s %9s %9s %9s %9s%n", "request", "count", "errors", "rate/s",
+                "ms", "p50", "p90", "p99", "p99.9", "max");
+        for (Operation op : Operation.values()) {
+            Stats opStats = stats.get(op);
+            Histogram latency = opStats.totalLatency;
+            String name = op.name().toLowerCase();
+            out.printf("%-8s %9d %7d %9.1f  %-8s%s%n", name, latency.getTotalCount(), opStats.errors.sum(),
+                    (double) latency.getTotalCount() / durationS, "latency", percentiles(latency));
+            out.printf("%-8s %9s %7s %9s  %-8s%s%n", "", "", "", "", "service",
+                    percentiles(opStats.totalServiceTime));
+        }
+        if (skipped.sum() > 0) {
+            out.println(skipped.sum() + " requests were skipped as " + maxOutstanding + " were outstanding, " +
+                    "the rate is more than this generator or the service can sustain");
+        }
+    }
+
+    private static String percentiles(Histogram histogram) {
+        StringBuilder ret = new StringBuilder();
+        for (double percentile : new double[] {50, 90, 99, 99.9}) {
+            ret.append(String.format(" %9.2f", histogram.getValueAtPercentile(percentile) / 1000.0));
+        }
+        return(ret.append(String.format(" %9.2f", histogram.getMaxValue() / 1000.0)).toString());
+    }
+
+    /**
+     * Write the full latency distribution of each kind of request, in milliseconds, in the .hgrm form that
+     * HdrHistogram's plotter reads.
+     *
+     * @param dir The directory to write to
+     */
+    void writeHistograms(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        for (Operation op : Operation.values()) {
+            File file = dir.resolve(op.name().toLowerCase() + ".hgrm").toFile();
+            try (PrintStream out = new PrintStream(file, StandardCharsets.UTF_8.name())) {
+                stats.get(op).totalLatency.outputPercentileDistribution(out, 1000.0);
+            }
+        }
+    }
+
+    private static String createUri(Account account, String userName) {
+        return(BASE_PATH + "/create/" + account.getAccountNum() + "/" + userName);
+    }
+
+    private static String updateUri(Account account, int userID) {
+        return(BASE_PATH + "/update/" + account.getAccountNum() + "/" + userID);
+    }
+
+    /**
+     * @param body The response to create, of the form {"userID":"28"}
+     * @return The ID of the user created
+     */
+    private static int parseUserID(byte[] body) {
+        FieldValue created = FieldValue.createFromJson(new String(body, StandardCharsets.UTF_8),
+                new JsonOptions());
+        return(Integer.parseInt(created.asMap().get("userID").getString()));
+    }
+
+    /**
+     * What has been recorded about one kind of request.
+     */
+    private static final class Stats {
+        //  Recorded from when each request was due, in microseconds
+        final Recorder latency = new Recorder(3);
+        //  Recorded from when each request was sent, in microseconds
+        final Recorder serviceTime = new Recorder(3);
+        final Histogram totalLatency = new Histogram(3);
+        final Histogram totalServiceTime = new Histogram(3);
+        final LongAdder errors = new LongAdder();
+    }
+}
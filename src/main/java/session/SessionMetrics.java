@@ -0,0 +1,341 @@
+package session;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * The latency and capacity metrics of the persistent session service, published through Micrometer and
+ * so visible at /metrics.
+ *
+ * Every meter is registered up front, one per endpoint and per database operation, and looked up by enum
+ * ordinal.  Recording a measurement is then an array read and a call on the meter, no tags are built
+ * and nothing is allocated on the request path.  Timers publish a percentile histogram as well as the
+ * 50th, 95th and 99th percentiles.
+ */
+public class SessionMetrics {
+
+    //  Names of our meters
+    public static String METRIC_ENDPOINT_LATENCY = "session.endpoint.latency";
+    public static String METRIC_DB_LATENCY = "session.db.latency";
+    public static String METRIC_DB_READ_UNITS = "session.db.read.units";
+    public static String METRIC_DB_WRITE_UNITS = "session.db.write.units";
+    public static String METRIC_DB_THROTTLED = "session.db.throttled";
+    public static String METRIC_DB_RETRIES = "session.db.retries";
+    public static String METRIC_MERGE_LATENCY = "session.merge.latency";
+    public static String METRIC_ADMISSION_WAIT = "session.admission.wait";
+    public static String METRIC_ADMISSION_REJECTED = "session.admission.rejected";
+    public static String METRIC_ADMISSION_QUEUED = "session.admission.queued";
+    public static String METRIC_STARTUP = "session.startup";
+    public static String METRIC_READ_CONSISTENCY = "session.read.consistency";
+    public static String METRIC_DB_HANDLE_IN_FLIGHT = "session.db.handle.inflight";
+    public static String METRIC_TTL_TOUCHES = "session.ttl.touches";
+    public static String METRIC_TTL_TOUCH_BATCH = "session.ttl.touch.batch";
+    public static String METRIC_TTL_EXPIRED = "session.ttl.expired";
+    public static String METRIC_HEDGES = "session.db.hedges";
+    public static String METRIC_HEDGE_SAVED = "session.db.hedge.saved";
+
+    public static String TAG_ENDPOINT = "endpoint";
+    public static String TAG_OPERATION = "operation";
+    public static String TAG_CAUSE = "cause";
+    public static String TAG_REASON = "reason";
+    public static String TAG_PHASE = "phase";
+    public static String TAG_RESULT = "result";
+    public static String TAG_HANDLE = "handle";
+
+    /**
+     * The REST endpoints that we time.
+     */
+    public enum Endpoint {
+        GET_SESSION("getsession"),
+        GET_USERS("getusers"),
+        CREATE("create"),
+        UPDATE("update"),
+        PROGRESS("progress"),
+        BATCH("batch"),
+        HISTORY("history"),
+        TABLE_LIMITS("updateTableLimits");
+
+        private final String tag;
+
+        Endpoint(String tag) {
+            this.tag = tag;
+        }
+    }
+
+    /**
+     * The database operations that we time.
+     */
+    public enum Operation {
+        GET("get"),
+        PUT("put"),
+        DELETE("delete"),
+        WRITE_MULTIPLE("writeMultiple"),
+        QUERY("query"),
+        PREPARE("prepare"),
+        TABLE_REQUEST("tableRequest"),
+        GET_TABLE("getTable"),
+        TABLE_USAGE("getTableUsage");
+
+        private final String tag;
+
+        Operation(String tag) {
+            this.tag = tag;
+        }
+    }
+
+    private final Timer[] endpointLatency;
+    private final Timer[] operationLatency;
+    private final DistributionSummary[] readUnits;
+    private final DistributionSummary[] writeUnits;
+    private final Counter[] throttled;
+    private final Counter throttlingRetries;
+    private final Counter otherRetries;
+    private final Timer mergeLatency;
+    private final Timer admissionWait;
+    private final Counter rejectedQueueFull;
+    private final Counter rejectedTimeout;
+    private final Counter readsFresh;
+    private final Counter readsUpgraded;
+    private final Counter touchesQueued;
+    private final Counter touchesRenewed;
+    private final Counter touchesChanged;
+    private final DistributionSummary touchBatchSize;
+    private final Counter expired;
+    private final Counter hedgesWon;
+    private final Counter hedgesLost;
+    private final Timer hedgeSaved;
+    private final AtomicBoolean servedFirstRequest = new AtomicBoolean();
+    private final MeterRegistry registry;
+
+    /**
+     * @param registry Where to register our meters
+     */
+    public SessionMetrics(MeterRegistry registry) {
+        Endpoint[] endpoints = Endpoint.values();
+        endpointLatency = new Timer[endpoints.length];
+        for (Endpoint endpoint : endpoints) {
+            endpointLatency[endpoint.ordinal()] = timer(METRIC_ENDPOINT_LATENCY)
+                    .tag(TAG_ENDPOINT, endpoint.tag)
+                    .register(registry);
+        }
+
+        Operation[] operations = Operation.values();
+        operationLatency = new Timer[operations.length];
+        readUnits = new DistributionSummary[operations.length];
+        writeUnits = new DistributionSummary[operations.length];
+        throttled = new Counter[operations.length];
+        for (Operation operation : operations) {
+            int i = operation.ordinal();
+            operationLatency[i] = timer(METRIC_DB_LATENCY)
+                    .tag(TAG_OPERATION, operation.tag)
+                    .register(registry);
+            readUnits[i] = DistributionSummary.builder(METRIC_DB_READ_UNITS)
+                    .tag(TAG_OPERATION, operation.tag)
+                    .baseUnit("units")
+                    .register(registry);
+            writeUnits[i] = DistributionSummary.builder(METRIC_DB_WRITE_UNITS)
+                    .tag(TAG_OPERATION, operation.tag)
+                    .baseUnit("units")
+                    .register(registry);
+            throttled[i] = Counter.builder(METRIC_DB_THROTTLED)
+                    .tag(TAG_OPERATION, operation.tag)
+                    .register(registry);
+        }
+        throttlingRetries = Counter.builder(METRIC_DB_RETRIES)
+                .tag(TAG_CAUSE, "throttling")
+                .register(registry);
+        otherRetries = Counter.builder(METRIC_DB_RETRIES).tag(TAG_CAUSE, "other").register(registry);
+        mergeLatency = timer(METRIC_MERGE_LATENCY).register(registry);
+        admissionWait = timer(METRIC_ADMISSION_WAIT).register(registry);
+        rejectedQueueFull = Counter.builder(METRIC_ADMISSION_REJECTED)
+                .tag(TAG_REASON, "queueFull")
+                .register(registry);
+        rejectedTimeout = Counter.builder(METRIC_ADMISSION_REJECTED)
+                .tag(TAG_REASON, "timeout")
+                .register(registry);
+        readsFresh = Counter.builder(METRIC_READ_CONSISTENCY).tag(TAG_RESULT, "eventual").register(registry);
+        readsUpgraded = Counter.builder(METRIC_READ_CONSISTENCY)
+                .tag(TAG_RESULT, "upgraded")
+                .register(registry);
+        touchesQueued = Counter.builder(METRIC_TTL_TOUCHES).tag(TAG_RESULT, "queued").register(registry);
+        touchesRenewed = Counter.builder(METRIC_TTL_TOUCHES).tag(TAG_RESULT, "renewed").register(registry);
+        touchesChanged = Counter.builder(METRIC_TTL_TOUCHES).tag(TAG_RESULT, "changed").register(registry);
+        touchBatchSize = DistributionSummary.builder(METRIC_TTL_TOUCH_BATCH).baseUnit("rows").register(registry);
+        expired = Counter.builder(METRIC_TTL_EXPIRED).register(registry);
+        hedgesWon = Counter.builder(METRIC_HEDGES).tag(TAG_RESULT, "won").register(registry);
+        hedgesLost = Counter.builder(METRIC_HEDGES).tag(TAG_RESULT, "lost").register(registry);
+        hedgeSaved = timer(METRIC_HEDGE_SAVED).register(registry);
+        this.registry = registry;
+    }
+
+    private static Timer.Builder timer(String name) {
+        return(Timer.builder(name)
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .publishPercentileHistogram());
+    }
+
+    /**
+     * Record the time taken to serve a request.
+     *
+     * @param endpoint The endpoint that served it
+     * @param startNanos The value of System.nanoTime() when the request arrived
+     */
+    public void endpoint(Endpoint endpoint, long startNanos) {
+        endpointLatency[endpoint.ordinal()].record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        if (!servedFirstRequest.get() && servedFirstRequest.compareAndSet(false, true)) {
+            startup("firstRequest");
+        }
+    }
+
+    /**
+     * Record that the session store is ready, so that the time from the start of the JVM to being ready
+     * is published along with the time to the first request served.
+     */
+    public void ready() {
+        startup("ready");
+    }
+
+    private void startup(String phase) {
+        long millis = System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+        Timer.builder(METRIC_STARTUP).tag(TAG_PHASE, phase).register(registry)
+                .record(millis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Record a database operation.
+     *
+     * @param operation The kind of operation
+     * @param startNanos The value of System.nanoTime() when the operation was started
+     * @param readUnitsUsed The read units that the operation consumed
+     * @param writeUnitsUsed The write units that the operation consumed
+     */
+    public void operation(Operation operation, long startNanos, int readUnitsUsed, int writeUnitsUsed) {
+        int i = operation.ordinal();
+        operationLatency[i].record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        readUnits[i].record(readUnitsUsed);
+        writeUnits[i].record(writeUnitsUsed);
+    }
+
+    /**
+     * Record a database operation that failed because the table's limits were exceeded, after any
+     * retries.
+     *
+     * @param operation The kind of operation
+     */
+    public void throttled(Operation operation) {
+        throttled[operation.ordinal()].increment();
+    }
+
+    /**
+     * Record that the driver is retrying a database operation.
+     *
+     * @param throttling true if the operation is being retried because it was throttled
+     */
+    public void retry(boolean throttling) {
+        (throttling ? throttlingRetries : otherRetries).increment();
+    }
+
+    /**
+     * Record the time taken to apply merge patches to a session.
+     *
+     * @param startNanos The value of System.nanoTime() when merging started
+     */
+    public void merge(long startNanos) {
+        mergeLatency.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Record how long a request waited to be admitted to the database.
+     *
+     * @param waitNanos The time it waited
+     */
+    public void admissionWait(long waitNanos) {
+        admissionWait.record(waitNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Record a request that was turned away by admission control.
+     *
+     * @param timeout true if it waited too long, false if too many requests were already waiting
+     */
+    public void admissionRejected(boolean timeout) {
+        (timeout ? rejectedTimeout : rejectedQueueFull).increment();
+    }
+
+    /**
+     * Record a read of a session that we had written recently.
+     *
+     * @param upgraded true if the EVENTUAL read was stale and the session was read again with ABSOLUTE
+     *                 consistency
+     */
+    public void consistentRead(boolean upgraded) {
+        (upgraded ? readsUpgraded : readsFresh).increment();
+    }
+
+    /**
+     * Record a read of a session that is due to have its time to live renewed.
+     */
+    public void touchQueued() {
+        touchesQueued.increment();
+    }
+
+    /**
+     * Record a batch of time to live renewals written to the database.
+     *
+     * @param renewed The sessions that were renewed
+     * @param changed The sessions that weren't because they had been written since they were read, which
+     *                renewed them anyway
+     * @param gone The sessions that weren't because they had already expired
+     */
+    public void touchBatch(int renewed, int changed, int gone) {
+        touchBatchSize.record(renewed + changed + gone);
+        touchesRenewed.increment(renewed);
+        touchesChanged.increment(changed);
+        expired.increment(gone);
+    }
+
+    /**
+     * Record a read that was hedged with a second read.
+     *
+     * @param won true if the second read answered first
+     * @param savedNanos When it did, how much sooner than the first read
+     */
+    public void hedge(boolean won, long savedNanos) {
+        if (won) {
+            hedgesWon.increment();
+            hedgeSaved.record(savedNanos, TimeUnit.NANOSECONDS);
+        } else {
+            hedgesLost.increment();
+        }
+    }
+
+    /**
+     * Publish the number of requests waiting to be admitted to the database.
+     *
+     * @param queued Reads the number of waiting requests
+     */
+    public void admissionQueue(Supplier<Number> queued) {
+        Gauge.builder(METRIC_ADMISSION_QUEUED, queued).strongReference(true).register(registry);
+    }
+
+    /**
+     * Publish the number of database operations running on one of our handles.
+     *
+     * @param handle The position of the handle in the pool
+     * @param inFlight Reads the number of operations running on it
+     */
+    public void handleInFlight(int handle, Supplier<Number> inFlight) {
+        Gauge.builder(METRIC_DB_HANDLE_IN_FLIGHT, inFlight)
+                .tag(TAG_HANDLE, String.valueOf(handle))
+                .strongReference(true)
+                .register(registry);
+    }
+}
@@ -0,0 +1,202 @@
+package session;
+
+import io.micronaut.http.HttpStatus;
+import io.micronaut.http.exceptions.HttpStatusException;
+import oracle.nosql.driver.ops.PrepareRequest;
+import oracle.nosql.driver.ops.PreparedStatement;
+import oracle.nosql.driver.ops.QueryRequest;
+import oracle.nosql.driver.ops.QueryResult;
+import oracle.nosql.driver.values.ArrayValue;
+import oracle.nosql.driver.values.FieldValue;
+import oracle.nosql.driver.values.IntegerValue;
+import oracle.nosql.driver.values.LongValue;
+import oracle.nosql.driver.values.MapValue;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+import static session.PersistentSessionManager.COL_ACCOUNT_NUMBER;
+import static session.PersistentSessionManager.COL_SESSION;
+import static session.PersistentSessionManager.COL_USER_ID;
+import static session.PersistentSessionManager.TABLE_NAME;
+
+/**
+ * Reads only some of the fields of a persistent session, for clients such as "continue watching" that
+ * need a handful of values rather than the whole document.
+ *
+ * Fields are given as a comma separated list of dotted paths into the session document, for example
+ * "showID,seriesInfo.episodes.minWatched".  As in NoSQL path expressions, a path that reaches an array
+ * continues into each of its elements, so each field is returned as an array of every value found at its
+ * path: {"showID": [1, 2], "seriesInfo.episodes.minWatched": [126, 55, 31]}.
+ *
+ * The projection is done by the database so that only the requested values are returned.  A prepared
+ * statement is kept for each of the most recently used sets of fields.  When the whole session is already
+ * in the session cache the projection is done in memory instead and the database is not read at all.
+ */
+public class SessionProjection {
+
+    //  The most fields a client may ask for, and the most prepared projections we keep
+    public static int MAX_FIELDS = 16;
+    public static int MAX_PREPARED_PROJECTIONS = 64;
+
+    static final String VAR_ACCOUNT = "$acct";
+    static final String VAR_USER = "$uid";
+
+    private static final Pattern FIELD_PATH =
+            Pattern.compile("[A-Za-z_][A-Za-z0-9_]*(\\.[A-Za-z_][A-Za-z0-9_]*)*");
+
+    private final MeteredHandle handle;
+    private final SessionCache cache;
+    private final Map<String, PreparedStatement> prepared =
+            new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                    return(size() > MAX_PREPARED_PROJECTIONS);
+                }
+            };
+
+    /**
+     * @param handle The handle to query with
+     * @param cache The session cache to project from when possible, may be null
+     */
+    public SessionProjection(MeteredHandle handle, SessionCache cache) {
+        this.handle = handle;
+        this.cache = cache;
+    }
+
+    /**
+     * Read some fields of a persistent session.
+     *
+     * @param accountNum The account number for the session to read
+     * @param userID The user ID for the session within the account
+     * @param fields A comma separated list of dotted paths into the session document
+     * @return A document with an array of values for each field, or null if there is no such session
+     * @throws HttpStatusException with a status of 400 if the fields are not valid paths
+     */
+    public MapValue project(long accountNum, int userID, String fields) {
+        String[] paths = parseFields(fields);
+        SessionRecord cached = (cache != null ? cache.get(accountNum, userID) : null);
+        if (cached != null) {
+            return(projectInMemory(cached.getSession(), paths));
+        }
+
+        PreparedStatement bound = prepare(paths).copyStatement();
+        bound.setVariable(VAR_ACCOUNT, new LongValue(accountNum));
+        bound.setVariable(VAR_USER, new IntegerValue(userID));
+        QueryRequest qr = new QueryRequest().setPreparedStatement(bound);
+        MapValue row = null;
+        do {
+            QueryResult res = handle.query(accountNum, qr);
+            if (!res.getResults().isEmpty()) {
+                row = res.getResults().get(0);
+            }
+        } while (row == null && !qr.isDone());
+        if (row == null) {
+            return(null);
+        }
+
+        //  Columns are named f0, f1, ... in the query, give them back the names the client used
+        MapValue ret = new MapValue(paths.length);
+        for (int i = 0; i < paths.length; i++) {
+            FieldValue value = row.get("f" + i);
+            ret.put(paths[i], value != null ? value : new ArrayValue());
+        }
+        return(ret);
+    }
+
+    /**
+     * Split, validate and normalize a list of fields, so that the same set of fields always uses the
+     * same prepared statement.
+     */
+    static String[] parseFields(String fields) {
+        TreeSet<String> paths = new TreeSet<>();
+        for (String field : fields.split(",")) {
+            String path = field.trim();
+            if (path.isEmpty()) {
+                continue;
+            }
+            if (!FIELD_PATH.matcher(path).matches()) {
+                throw new HttpStatusException(HttpStatus.BAD_REQUEST, "Invalid field: " + path);
+            }
+            paths.add(path);
+        }
+        if (paths.isEmpty() || paths.size() > MAX_FIELDS) {
+            throw new HttpStatusException(HttpStatus.BAD_REQUEST,
+                    "Between 1 and " + MAX_FIELDS + " fields may be requested");
+        }
+        return(paths.toArray(new String[0]));
+    }
+
+    /**
+     * Build the projection query for a set of fields, wrapping each path in an array constructor because a
+     * path through the arrays of a session may return any number of values.
+     */
+    static String buildStatement(String[] paths) {
+        StringBuilder sql = new StringBuilder("declare " + VAR_ACCOUNT + " long; " + VAR_USER + " integer; ")
+                .append("select ");
+        for (int i = 0; i < paths.length; i++) {
+            if (i > 0) {
+                sql.append(", ");
+            }
+            sql.append("[p.").append(COL_SESSION).append('.').append(paths[i]).append("] as f").append(i);
+        }
+        sql.append(" from ").append(TABLE_NAME).append(" p where p.").append(COL_ACCOUNT_NUMBER)
+                .append(" = ").append(VAR_ACCOUNT).append(" and p.").append(COL_USER_ID)
+                .append(" = ").append(VAR_USER);
+        return(sql.toString());
+    }
+
+    private PreparedStatement prepare(String[] paths) {
+        String key = String.join(",", paths);
+        synchronized (prepared) {
+            PreparedStatement ps = prepared.get(key);
+            if (ps != null) {
+                return(ps);
+            }
+        }
+        //  Prepare outside of the lock, racing threads may both prepare the same statement
+        PreparedStatement ps = handle.prepare(new PrepareRequest().setStatement(buildStatement(paths)))
+                .getPreparedStatement();
+        synchronized (prepared) {
+            prepared.put(key, ps);
+        }
+        return(ps);
+    }
+
+    /**
+     * Project a session document that we already have, with the same semantics as the query.
+     *
+     * @return The projection, or null if there is no session
+     */
+    static MapValue projectInMemory(FieldValue session, String[] paths) {
+        if (session == null) {
+            return(null);
+        }
+        MapValue ret = new MapValue(paths.length);
+        for (String path : paths) {
+            ArrayValue values = new ArrayValue();
+            collect(session, path.split("\\."), 0, values);
+            ret.put(path, values);
+        }
+        return(ret);
+    }
+
+    private static void collect(FieldValue value, String[] steps, int step, ArrayValue values) {
+        if (value == null) {
+            return;
+        }
+        if (step == steps.length) {
+            values.add(value);
+            return;
+        }
+        if (value.isArray()) {
+            for (FieldValue element : value.asArray()) {
+                collect(element, steps, step, values);
+            }
+        } else if (value.isMap()) {
+            collect(value.asMap().get(steps[step]), steps, step + 1, values);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package session;
+
+import oracle.nosql.driver.Version;
+import oracle.nosql.driver.values.FieldValue;
+
+/**
+ * A persistent session as read from, or written to, the database: the value of the session column
+ * together with the row version that it was read or written at and, when it was read, when the row
+ * expires.
+ */
+public final class SessionRecord {
+
+    private final FieldValue session;
+    private final Version version;
+    private final long expirationTime;
+
+    public SessionRecord(FieldValue session, Version version) {
+        this(session, version, 0);
+    }
+
+    public SessionRecord(FieldValue session, Version version, long expirationTime) {
+        this.session = session;
+        this.version = version;
+        this.expirationTime = expirationTime;
+    }
+
+    /**
+     * @return The value of the session column
+     */
+    public FieldValue getSession() {
+        return session;
+    }
+
+    /**
+     * @return The version of the row this session was read from or written to, may be null
+     */
+    public Version getVersion() {
+        return version;
+    }
+
+    /**
+     * @return When the row expires in milliseconds since the epoch, 0 if it never does or isn't known
+     */
+    public long getExpirationTime() {
+        return expirationTime;
+    }
+}
@@ -0,0 +1,197 @@
+package session;
+
+import io.micronaut.http.HttpStatus;
+import io.micronaut.http.exceptions.HttpStatusException;
+import io.reactivex.Single;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Runs the blocking database work behind our REST endpoints so that it never parks a Netty event loop
+ * thread.
+ *
+ * Work is run on a fixed size pool of dedicated threads fed by a bounded queue.  When the queue is full
+ * the request is rejected immediately with a 503 rather than being allowed to pile up behind a slow
+ * database.  In synchronous mode the work is run directly on the calling thread, which is how the
+ * service behaved before this executor existed.
+ *
+ * Work submitted on behalf of an endpoint is timed from submission to completion, so the latency
+ * recorded includes time spent waiting in the queue.
+ */
+public class SessionRequestExecutor {
+
+    private final ThreadPoolExecutor pool;
+    private final SessionMetrics metrics;
+
+    /**
+     * @param async If false, work is run on the calling thread
+     * @param threads The number of threads to run database work on
+     * @param queueDepth The maximum number of requests that may wait for a thread
+     * @param metrics Where the latency of endpoints is recorded
+     */
+    public SessionRequestExecutor(boolean async, int threads, int queueDepth, SessionMetrics metrics) {
+        this.metrics = metrics;
+        if (!async) {
+            pool = null;
+            return;
+        }
+        pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueDepth), new DatabaseThreadFactory(),
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Run a piece of database work.
+     *
+     * @param work The work to run
+     * @param <T> The type of the result of the work
+     * @return A future that completes with the result of the work
+     * @throws HttpStatusException with a status of 503 if the queue is full
+     */
+    public <T> CompletableFuture<T> submit(Supplier<T> work) {
+        if (pool == null) {
+            CompletableFuture<T> ret = new CompletableFuture<>();
+            try {
+                ret.complete(work.get());
+            } catch (Throwable t) {
+                ret.completeExceptionally(t);
+            }
+            return(ret);
+        }
+        try {
+            return(CompletableFuture.supplyAsync(work, pool));
+        } catch (RejectedExecutionException e) {
+            throw new HttpStatusException(HttpStatus.SERVICE_UNAVAILABLE,
+                    "Too many requests waiting for the database, try again later");
+        }
+    }
+
+    /**
+     * Run a piece of database work on behalf of an endpoint, recording the endpoint's latency when it
+     * completes.
+     *
+     * @param endpoint The endpoint that the work is for
+     * @param work The work to run
+     * @param <T> The type of the result of the work
+     * @return A future that completes with the result of the work
+     * @throws HttpStatusException with a status of 503 if the queue is full
+     */
+    public <T> CompletableFuture<T> submit(SessionMetrics.Endpoint endpoint, Supplier<T> work) {
+        //  The timed work is the future, so timing costs no more allocation than supplyAsync
+        TimedWork<T> timed = new TimedWork<>(endpoint, System.nanoTime(), work);
+        if (pool == null) {
+            timed.run();
+            return(timed);
+        }
+        try {
+            pool.execute(timed);
+        } catch (RejectedExecutionException e) {
+            metrics.endpoint(endpoint, timed.startNanos);
+            throw new HttpStatusException(HttpStatus.SERVICE_UNAVAILABLE,
+                    "Too many requests waiting for the database, try again later");
+        }
+        return(timed);
+    }
+
+    /**
+     * Run a piece of database work when the returned Single is subscribed to.  Rejection because the
+     * queue is full is reported as an error to the subscriber.
+     *
+     * @param work The work to run
+     * @param <T> The type of the result of the work
+     * @return A Single that runs the work and emits its result
+     */
+    public <T> Single<T> single(Supplier<T> work) {
+        return(Single.create(emitter -> submit(work).whenComplete((result, error) -> {
+            if (error != null) {
+                emitter.onError(error instanceof CompletionException && error.getCause() != null ?
+                        error.getCause() :
+                        error);
+            } else {
+                emitter.onSuccess(result);
+            }
+        })));
+    }
+
+    /**
+     * @return true if work is run on dedicated threads
+     */
+    public boolean isAsync() {
+        return(pool != null);
+    }
+
+    /**
+     * @return The number of requests waiting for a thread
+     */
+    public int getQueueDepth() {
+        return(pool != null ? pool.getQueue().size() : 0);
+    }
+
+    /**
+     * @return The number of threads currently running database work
+     */
+    public int getActiveCount() {
+        return(pool != null ? pool.getActiveCount() : 0);
+    }
+
+    /**
+     * Stop accepting work and wait briefly for in-flight work to complete.
+     */
+    public void shutdown() {
+        if (pool == null) {
+            return;
+        }
+        pool.shutdown();
+        try {
+            pool.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private final class TimedWork<T> extends CompletableFuture<T> implements Runnable {
+        private final SessionMetrics.Endpoint endpoint;
+        private final long startNanos;
+        private final Supplier<T> work;
+
+        TimedWork(SessionMetrics.Endpoint endpoint, long startNanos, Supplier<T> work) {
+            this.endpoint = endpoint;
+            this.startNanos = startNanos;
+            this.work = work;
+        }
+
+        @Override
+        public void run() {
+            T result;
+            try {
+                result = work.get();
+            } catch (Throwable t) {
+                metrics.endpoint(endpoint, startNanos);
+                completeExceptionally(t);
+                return;
+            }
+            //  Record before completing, completion runs the code that writes the response
+            metrics.endpoint(endpoint, startNanos);
+            complete(result);
+        }
+    }
+
+    private static class DatabaseThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "session-db-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return(t);
+        }
+    }
+}
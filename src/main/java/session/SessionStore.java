@@ -0,0 +1,188 @@
+package session;
+
+import oracle.nosql.driver.Consistency;
+import oracle.nosql.driver.Version;
+import oracle.nosql.driver.values.FieldValue;
+import oracle.nosql.driver.values.MapValue;
+
+import java.util.List;
+
+/**
+ * Where persistent sessions are kept, keyed by (accountNum, userID).
+ *
+ * {@link NoSQLSessionStore} keeps them in the Oracle NoSQL Database cloud service and
+ * {@link OffHeapSessionStore} in the memory of this process, for edge and test deployments that run
+ * without the cloud.  Every session has a version that changes each time it is written, which is what
+ * optimistic updates match on.  Stores may give sessions a time to live, which every write renews.
+ */
+public interface SessionStore {
+
+    /**
+     * Read a session.
+     *
+     * @param accountNum The account number for the session to read
+     * @param userID The user ID for the session within the account
+     * @param consistency The consistency to read with, stores that only have one copy ignore it
+     * @return The session and its version, or null if there is no such session
+     */
+    SessionRecord get(long accountNum, int userID, Consistency consistency);
+
+    /**
+     * Create a session, generating a user ID for it that is not used by any other session of the account.
+     *
+     * @param accountNum The account number that the session belongs to
+     * @param session The session document
+     * @return The generated user ID and the version of the new session
+     */
+    WriteResult create(long accountNum, FieldValue session);
+
+    /**
+     * Create or replace a session.
+     *
+     * @param accountNum The account number for the session to store
+     * @param userID The user ID for the session within the account
+     * @param session The session document
+     * @return The new version of the session
+     */
+    Version put(long accountNum, int userID, FieldValue session);
+
+    /**
+     * Replace a session only if it has not been written since a given version of it was read.
+     *
+     * @param accountNum The account number for the session to store
+     * @param userID The user ID for the session within the account
+     * @param session The session document
+     * @param matchVersion The version the session must still be at
+     * @return The new version of the session, or null if it was not at matchVersion
+     */
+    Version putIfVersion(long accountNum, int userID, FieldValue session, Version matchVersion);
+
+    /**
+     * Find a batch of the users registered in an account, in documents of the form
+     * {"session_info": {"userName" : "julie", "userID": 28}}.
+     *
+     * @param accountNum The account number to find users for
+     * @param limit The most users to return, 0 to let the store decide
+     * @param continuation The continuation returned with the previous batch, or null for the first
+     * @return The users and the continuation for the next batch, a batch may be empty without being the last
+     */
+    UsersPage queryByAccount(long accountNum, int limit, byte[] continuation);
+
+    /**
+     * Create or replace up to {@link SessionBatchWriter#MAX_OPS_PER_REQUEST} sessions of an account
+     * atomically, either every session is written or none are.
+     *
+     * @param accountNum The account that every session belongs to
+     * @param userIDs The user ID of each session, null for a session to create with a generated user ID
+     * @param sessions The session documents, in the order of userIDs
+     * @return The user ID and new version of each session, in the same order
+     * @throws BatchFailedException if an operation failed and nothing was written
+     */
+    List<WriteResult> batch(long accountNum, List<Integer> userIDs, List<FieldValue> sessions);
+
+    /**
+     * Renew the time to live of up to {@link SessionBatchWriter#MAX_OPS_PER_REQUEST} sessions of an
+     * account by writing them again, each only if it is still at the version it was read at.  Unlike
+     * {@link #batch} the sessions are renewed independently, one that has changed doesn't stop the others.
+     *
+     * @param accountNum The account that every session belongs to
+     * @param userIDs The user ID of each session
+     * @param records The sessions as they were read, in the order of userIDs
+     * @return The outcome for each session, in the same order
+     */
+    List<TouchResult> touch(long accountNum, List<Integer> userIDs, List<SessionRecord> records);
+
+    /**
+     * The user ID and version of a session that was written.
+     */
+    final class WriteResult {
+        private final int userID;
+        private final Version version;
+
+        public WriteResult(int userID, Version version) {
+            this.userID = userID;
+            this.version = version;
+        }
+
+        public int getUserID() {
+            return userID;
+        }
+
+        public Version getVersion() {
+            return version;
+        }
+    }
+
+    /**
+     * The outcome of renewing the time to live of a session.
+     */
+    final class TouchResult {
+        private final Version version;
+        private final boolean gone;
+
+        public TouchResult(Version version, boolean gone) {
+            this.version = version;
+            this.gone = gone;
+        }
+
+        /**
+         * @return The new version of the session, null if it wasn't renewed
+         */
+        public Version getVersion() {
+            return version;
+        }
+
+        /**
+         * @return true if the session no longer exists, because it expired before it could be renewed
+         */
+        public boolean isGone() {
+            return gone;
+        }
+    }
+
+    /**
+     * A batch of the users in an account.
+     */
+    final class UsersPage {
+        private final List<MapValue> users;
+        private final byte[] continuation;
+
+        public UsersPage(List<MapValue> users, byte[] continuation) {
+            this.users = users;
+            this.continuation = continuation;
+        }
+
+        /**
+         * @return Documents of the form {"session_info": {"userName" : "julie", "userID": 28}}
+         */
+        public List<MapValue> getUsers() {
+            return users;
+        }
+
+        /**
+         * @return What to pass to fetch the next batch, null if this is the last one
+         */
+        public byte[] getContinuation() {
+            return continuation;
+        }
+    }
+
+    /**
+     * Thrown when one operation of a batch fails, so that none of the batch is written.
+     */
+    class BatchFailedException extends RuntimeException {
+        private final int failedIndex;
+
+        public BatchFailedException(int failedIndex, String message) {
+            super(message);
+            this.failedIndex = failedIndex;
+        }
+
+        /**
+         * @return The index in the batch of the operation that failed
+         */
+        public int getFailedIndex() {
+            return failedIndex;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package session;
+
+import io.micronaut.health.HealthStatus;
+import io.micronaut.management.health.indicator.HealthIndicator;
+import io.micronaut.management.health.indicator.HealthResult;
+import io.micronaut.management.health.indicator.annotation.Readiness;
+import io.reactivex.Flowable;
+import org.reactivestreams.Publisher;
+
+import javax.inject.Singleton;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reports the service as ready, at /health and /health/readiness, only once the session store can be
+ * used, so that a load balancer doesn't send requests to a pod that is still connecting to the database.
+ */
+@Singleton
+@Readiness
+public class SessionStoreHealthIndicator implements HealthIndicator {
+
+    public static String NAME = "sessionStore";
+
+    @Override
+    public Publisher<HealthResult> getResult() {
+        SessionStoreStartup startup = PersistentSessionManager.storeStartup;
+        boolean ready = PersistentSessionManager.sessionStore != null;
+        Map<String, Object> details = new LinkedHashMap<>();
+        details.put("ready", ready);
+        if (startup != null) {
+            details.put("attempts", startup.getAttempts());
+            details.put("readyMillis", startup.getReadyMillis());
+            if (!ready && startup.getLastFailure() != null) {
+                details.put("lastFailure", String.valueOf(startup.getLastFailure()));
+            }
+        }
+        return(Flowable.just(HealthResult.builder(NAME, ready ? HealthStatus.UP : HealthStatus.DOWN)
+                .details(details)
+                .build()));
+    }
+}
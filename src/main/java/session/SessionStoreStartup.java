@@ -0,0 +1,126 @@
+package session;
+
+/**
+ * Brings the session store up, either on the calling thread or in the background.
+ *
+ * In the background the server answers health checks straight away and reports itself ready, through
+ * {@link SessionStoreHealthIndicator}, once the store can be used.  Until then our endpoints answer 503.
+ * A failed attempt is retried with an exponential backoff instead of leaving the service up but unable
+ * to serve anything, and the last failure is reported by the health indicator.
+ */
+public class SessionStoreStartup {
+
+    //  The longest wait between attempts
+    public static int MAX_RETRY_BACKOFF_MS = 30000;
+
+    /**
+     * What it takes to bring the store up.  It must make the store visible to our endpoints as its last
+     * step, and leave nothing behind if it fails, so that it can be run again.
+     */
+    public interface Step {
+        void run() throws Exception;
+    }
+
+    private final Step step;
+    private final long startNanos = System.nanoTime();
+    private volatile Thread thread;
+    private volatile boolean ready;
+    private volatile int attempts;
+    private volatile Throwable lastFailure;
+    private volatile long readyMillis = -1;
+
+    /**
+     * @param step What it takes to bring the store up
+     */
+    public SessionStoreStartup(Step step) {
+        this.step = step;
+    }
+
+    /**
+     * Bring the store up on this thread, with a single attempt.
+     *
+     * @throws Exception if the attempt failed
+     */
+    public void run() throws Exception {
+        attempt();
+    }
+
+    /**
+     * Bring the store up in the background, retrying until it succeeds or we are shut down.
+     *
+     * @param retryBackoffMillis How long to wait after the first failure, doubled after each one
+     */
+    public void start(long retryBackoffMillis) {
+        thread = new Thread(() -> {
+            long backoff = Math.max(1, retryBackoffMillis);
+            while (!ready) {
+                try {
+                    attempt();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    try {
+                        Thread.sleep(backoff);
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                    backoff = Math.min(backoff * 2, MAX_RETRY_BACKOFF_MS);
+                }
+            }
+        }, "session-store-startup");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void attempt() throws Exception {
+        attempts++;
+        try {
+            step.run();
+        } catch (Exception e) {
+            lastFailure = e;
+            throw(e);
+        }
+        readyMillis = (System.nanoTime() - startNanos) / 1_000_000;
+        ready = true;
+        System.out.println("Session store ready after " + readyMillis + " ms and " + attempts + " attempts");
+    }
+
+    /**
+     * Stop retrying.
+     */
+    public void shutdown() {
+        Thread t = thread;
+        if (t != null) {
+            t.interrupt();
+        }
+    }
+
+    /**
+     * @return true once the store is up
+     */
+    public boolean isReady() {
+        return(ready);
+    }
+
+    /**
+     * @return The number of attempts made so far
+     */
+    public int getAttempts() {
+        return(attempts);
+    }
+
+    /**
+     * @return Why the last attempt failed, null if none has
+     */
+    public Throwable getLastFailure() {
+        return(lastFailure);
+    }
+
+    /**
+     * @return How long it took to bring the store up, -1 until it is
+     */
+    public long getReadyMillis() {
+        return(readyMillis);
+    }
+}
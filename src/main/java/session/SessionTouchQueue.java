@@ -0,0 +1,217 @@
+package session;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Renews the time to live of sessions that are still being read, in the background and in batches.
+ *
+ * Every write of a session renews its time to live, so only sessions that are read without being written
+ * need renewing, and only once they are past a fraction of their time to live: renewing every read would
+ * double the write units of our reads.  A session that is due is queued once however often it is read
+ * before the next flush.  A flush groups the queued sessions by account, as every session of an account is
+ * on the same shard, and renews them with one WriteMultipleRequest per
+ * {@link SessionBatchWriter#MAX_OPS_PER_REQUEST} sessions.  Each session is only rewritten if it is still
+ * at the version that was read, one that was written in the meantime has already been renewed.
+ *
+ * Renewing a session gives it a new version, so it is dropped from the session cache and clients holding
+ * its ETag will read it again once.
+ */
+public class SessionTouchQueue {
+
+    private final SessionStore store;
+    private final SessionCache cache;
+    private final WriteVersionTracker tracker;
+    private final SessionMetrics metrics;
+    private final long renewWithinMillis;
+    private final int maxPendingSessions;
+    private final ConcurrentHashMap<SessionKey, SessionRecord> pending = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService flusher;
+    private final AtomicBoolean fullFlushScheduled = new AtomicBoolean();
+
+    private final LongAdder queued = new LongAdder();
+    private final LongAdder renewed = new LongAdder();
+    private final LongAdder changed = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    /**
+     * @param store The store whose sessions to renew
+     * @param cache The session cache to drop renewed sessions from, may be null
+     * @param tracker Where to record the versions of renewed sessions, may be null
+     * @param metrics Where to record renewals
+     * @param ttlMillis The time to live of a session
+     * @param renewAfterPct How far through its time to live, in percent, a session must be to be renewed
+     * @param flushIntervalMillis How often queued sessions are renewed
+     * @param maxPendingSessions The number of queued sessions that triggers an early flush
+     */
+    public SessionTouchQueue(SessionStore store, SessionCache cache, WriteVersionTracker tracker,
+                             SessionMetrics metrics, long ttlMillis, int renewAfterPct, long flushIntervalMillis,
+                             int maxPendingSessions) {
+        this.store = store;
+        this.cache = cache;
+        this.tracker = tracker;
+        this.metrics = metrics;
+        this.renewWithinMillis = ttlMillis * (100 - Math.max(0, Math.min(100, renewAfterPct))) / 100;
+        this.maxPendingSessions = maxPendingSessions;
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "session-ttl-touch");
+            t.setDaemon(true);
+            return(t);
+        });
+        long period = Math.max(1, flushIntervalMillis);
+        flusher.scheduleWithFixedDelay(this::flush, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Note a read of a session, queuing it for renewal if it is due.
+     *
+     * @param accountNum The account number owning the session
+     * @param userID The ID of the user in the account that this session belongs to
+     * @param record The session as it was read
+     * @return true if the session was queued
+     */
+    public boolean read(long accountNum, int userID, SessionRecord record) {
+        long expiration = record.getExpirationTime();
+        if (expiration <= 0 || record.getVersion() == null ||
+                expiration - System.currentTimeMillis() > renewWithinMillis) {
+            return(false);
+        }
+        if (pending.put(new SessionKey(accountNum, userID), record) == null) {
+            queued.increment();
+            metrics.touchQueued();
+        }
+        if (pending.size() >= maxPendingSessions && fullFlushScheduled.compareAndSet(false, true)) {
+            flusher.execute(this::flush);
+        }
+        return(true);
+    }
+
+    /**
+     * Renew every queued session and stop the flush timer.
+     */
+    public void shutdown() {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    /**
+     * Renew the queued sessions, a batch per account at a time.
+     */
+    void flush() {
+        fullFlushScheduled.set(false);
+        Map<Long, List<SessionKey>> byAccount = new HashMap<>();
+        for (SessionKey key : pending.keySet()) {
+            byAccount.computeIfAbsent(key.getAccountNum(), k -> new ArrayList<>()).add(key);
+        }
+        for (Map.Entry<Long, List<SessionKey>> account : byAccount.entrySet()) {
+            List<SessionKey> keys = account.getValue();
+            for (int start = 0; start < keys.size(); start += SessionBatchWriter.MAX_OPS_PER_REQUEST) {
+                touch(account.getKey(), keys.subList(start,
+                        Math.min(keys.size(), start + SessionBatchWriter.MAX_OPS_PER_REQUEST)));
+            }
+        }
+    }
+
+    private void touch(long accountNum, List<SessionKey> keys) {
+        List<Integer> userIDs = new ArrayList<>(keys.size());
+        List<SessionRecord> records = new ArrayList<>(keys.size());
+        for (SessionKey key : keys) {
+            SessionRecord record = pending.remove(key);
+            if (record != null) {
+                userIDs.add(key.getUserID());
+                records.add(record);
+            }
+        }
+        if (records.isEmpty()) {
+            return;
+        }
+        List<SessionStore.TouchResult> results;
+        try {
+            results = store.touch(accountNum, userIDs, records);
+        } catch (Exception e) {
+            //  The sessions will be queued again the next time they are read
+            failures.increment();
+            e.printStackTrace();
+            return;
+        }
+        int renewedNow = 0;
+        int changedNow = 0;
+        int expiredNow = 0;
+        for (int i = 0; i < results.size(); i++) {
+            SessionStore.TouchResult result = results.get(i);
+            int userID = userIDs.get(i);
+            if (result.getVersion() != null) {
+                renewedNow++;
+                if (cache != null) {
+                    cache.invalidate(accountNum, userID);
+                }
+                if (tracker != null) {
+                    tracker.written(accountNum, userID, result.getVersion());
+                }
+            } else if (result.isGone()) {
+                expiredNow++;
+            } else {
+                changedNow++;
+            }
+        }
+        batches.increment();
+        renewed.add(renewedNow);
+        changed.add(changedNow);
+        expired.add(expiredNow);
+        metrics.touchBatch(renewedNow, changedNow, expiredNow);
+    }
+
+    public long getQueued() {
+        return queued.sum();
+    }
+
+    public long getRenewed() {
+        return renewed.sum();
+    }
+
+    public long getChanged() {
+        return changed.sum();
+    }
+
+    /**
+     * @return The number of sessions that expired before they could be renewed
+     */
+    public long getExpired() {
+        return expired.sum();
+    }
+
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    public int getPendingSessions() {
+        return pending.size();
+    }
+
+    /**
+     * @return The average number of sessions renewed by each write to the database
+     */
+    public double getBatchingRatio() {
+        long writes = batches.sum();
+        return(writes == 0 ? 0 : (double) (renewed.sum() + changed.sum() + expired.sum()) / writes);
+    }
+}
@@ -0,0 +1,324 @@
+package session;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import io.micronaut.http.HttpStatus;
+import io.micronaut.http.MediaType;
+import io.micronaut.http.exceptions.HttpStatusException;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufOutputStream;
+import oracle.nosql.driver.values.ArrayValue;
+import oracle.nosql.driver.values.BinaryValue;
+import oracle.nosql.driver.values.BooleanValue;
+import oracle.nosql.driver.values.DoubleValue;
+import oracle.nosql.driver.values.FieldValue;
+import oracle.nosql.driver.values.IntegerValue;
+import oracle.nosql.driver.values.JsonNullValue;
+import oracle.nosql.driver.values.JsonOptions;
+import oracle.nosql.driver.values.LongValue;
+import oracle.nosql.driver.values.MapValue;
+import oracle.nosql.driver.values.NumberValue;
+import oracle.nosql.driver.values.StringValue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.Map;
+
+/**
+ * The encodings that session documents can be sent and received in, chosen by the Accept and Content-Type
+ * headers of a request.
+ *
+ * JSON is the default and is still produced by the driver's own {@link FieldValue#toJson}.  CBOR (RFC 8949)
+ * and Smile are binary encodings of the same data model that mobile clients can choose to save bandwidth
+ * and parsing time: attribute names and numbers aren't spelled out as text, and Smile also refers back to
+ * attribute names it has already sent, which suits session documents that repeat the same few names for
+ * every show and episode.  Binary documents are written straight from the MapValue or ArrayValue into a
+ * pooled Netty buffer, which Netty releases once it has been sent, and read straight into a FieldValue,
+ * without building the JSON text in between.
+ */
+public enum SessionWireFormat {
+
+    JSON(MediaType.APPLICATION_JSON, null),
+    CBOR(SessionWireFormat.APPLICATION_CBOR, new CBORFactory()),
+    SMILE(SessionWireFormat.APPLICATION_SMILE, new SmileFactory());
+
+    public static final String APPLICATION_CBOR = "application/cbor";
+    public static final String APPLICATION_SMILE = "application/x-jackson-smile";
+
+    //  Only used to stream the results of users queries, JSON documents are otherwise left to the driver
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final String mediaType;
+    private final JsonFactory factory;
+
+    SessionWireFormat(String mediaType, JsonFactory factory) {
+        this.mediaType = mediaType;
+        this.factory = factory;
+    }
+
+    public String getMediaType() {
+        return mediaType;
+    }
+
+    /**
+     * @return true unless this is JSON
+     */
+    public boolean isBinary() {
+        return factory != null;
+    }
+
+    /**
+     * Choose the format of a response.
+     *
+     * @param accept The Accept header of the request, may be null
+     * @return The first of the media types accepted that we can produce, JSON if there are none
+     */
+    public static SessionWireFormat forAccept(String accept) {
+        if (accept != null) {
+            for (String type : accept.split(",")) {
+                SessionWireFormat format = forMediaType(type);
+                if (format != null) {
+                    return(format);
+                }
+            }
+        }
+        return(JSON);
+    }
+
+    /**
+     * Find the format of a request body.
+     *
+     * @param contentType The Content-Type header of the request, may be null
+     * @return The format of the body, JSON if no content type was given
+     * @throws HttpStatusException with a status of 415 if the body is in a format we can't read
+     */
+    public static SessionWireFormat forContentType(String contentType) {
+        if (contentType == null) {
+            return(JSON);
+        }
+        SessionWireFormat format = forMediaType(contentType);
+        if (format == null) {
+            throw new HttpStatusException(HttpStatus.UNSUPPORTED_MEDIA_TYPE,
+                    "Unsupported content type " + contentType);
+        }
+        return(format);
+    }
+
+    /**
+     * @return The format with this media type, ignoring any parameters, or null if there isn't one
+     */
+    private static SessionWireFormat forMediaType(String type) {
+        int params = type.indexOf(';');
+        String name = (params >= 0 ? type.substring(0, params) : type).trim();
+        for (SessionWireFormat format : values()) {
+            if (format.mediaType.equalsIgnoreCase(name)) {
+                return(format);
+            }
+        }
+        return(null);
+    }
+
+    /**
+     * Encode a document as the body of a response.
+     *
+     * @param value The document
+     * @return The JSON text, or for binary formats a pooled buffer holding the document which the
+     * caller must release unless it is sent
+     */
+    public Object encode(FieldValue value) {
+        if (!isBinary()) {
+            return(value.toJson(new JsonOptions()));
+        }
+        ByteBuf buf = ByteBufAllocator.DEFAULT.buffer();
+        try {
+            write(value, new ByteBufOutputStream(buf));
+            return(buf);
+        } catch (RuntimeException e) {
+            buf.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Encode a document.
+     *
+     * @param value The document
+     * @param out Where to write the encoded document, which is not closed
+     */
+    public void write(FieldValue value, OutputStream out) {
+        try (JsonGenerator generator = generator(out)) {
+            write(value, generator);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @param out Where to write
+     * @return A generator of this format that leaves out open when it is closed
+     */
+    public JsonGenerator generator(OutputStream out) throws IOException {
+        JsonFactory f = (factory != null ? factory : JSON_FACTORY);
+        return(f.createGenerator(out).disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET));
+    }
+
+    /**
+     * Decode a request body.
+     *
+     * @param body The encoded document
+     * @return The document
+     * @throws HttpStatusException with a status of 400 if the body isn't a well formed document
+     */
+    public FieldValue decode(byte[] body) {
+        if (!isBinary()) {
+            try {
+                return(FieldValue.createFromJson(new ByteArrayInputStream(body), new JsonOptions()));
+            } catch (IllegalArgumentException e) {
+                throw malformed(mediaType, e);
+            }
+        }
+        try (JsonParser parser = factory.createParser(body)) {
+            if (parser.nextToken() == null) {
+                throw new HttpStatusException(HttpStatus.BAD_REQUEST, "Empty " + mediaType + " document");
+            }
+            return(read(parser));
+        } catch (IOException e) {
+            throw new HttpStatusException(HttpStatus.BAD_REQUEST, "Malformed " + mediaType + " document: " +
+                    e.getMessage());
+        }
+    }
+
+    /**
+     * Decode a JSON request body that has already been read as text.
+     *
+     * @param body The JSON text
+     * @return The document
+     * @throws HttpStatusException with a status of 400 if the body isn't a well formed document
+     */
+    public static FieldValue decodeJson(String body) {
+        if (body == null) {
+            throw new HttpStatusException(HttpStatus.BAD_REQUEST, "Empty " + JSON.mediaType + " document");
+        }
+        try {
+            return(FieldValue.createFromJson(body, new JsonOptions()));
+        } catch (IllegalArgumentException e) {
+            throw malformed(JSON.mediaType, e);
+        }
+    }
+
+    /**
+     * The driver reports JSON it can't parse with an IllegalArgumentException, which is the client's fault.
+     */
+    private static HttpStatusException malformed(String mediaType, IllegalArgumentException e) {
+        return(new HttpStatusException(HttpStatus.BAD_REQUEST, "Malformed " + mediaType + " document: " +
+                e.getMessage()));
+    }
+
+    /**
+     * Write a FieldValue and everything within it.
+     */
+    static void write(FieldValue value, JsonGenerator generator) throws IOException {
+        switch (value.getType()) {
+            case MAP:
+                MapValue map = value.asMap();
+                generator.writeStartObject();
+                for (Map.Entry<String, FieldValue> field : map.entrySet()) {
+                    generator.writeFieldName(field.getKey());
+                    write(field.getValue(), generator);
+                }
+                generator.writeEndObject();
+                break;
+            case ARRAY:
+                ArrayValue array = value.asArray();
+                generator.writeStartArray();
+                for (FieldValue element : array) {
+                    write(element, generator);
+                }
+                generator.writeEndArray();
+                break;
+            case STRING:
+                generator.writeString(value.getString());
+                break;
+            case INTEGER:
+                generator.writeNumber(value.getInt());
+                break;
+            case LONG:
+                generator.writeNumber(value.getLong());
+                break;
+            case DOUBLE:
+                generator.writeNumber(value.getDouble());
+                break;
+            case NUMBER:
+                generator.writeNumber(value.getNumber());
+                break;
+            case BOOLEAN:
+                generator.writeBoolean(value.getBoolean());
+                break;
+            case BINARY:
+                generator.writeBinary(value.getBinary());
+                break;
+            case TIMESTAMP:
+                generator.writeString(value.getString());
+                break;
+            default:
+                //  NULL, JSON_NULL and EMPTY
+                generator.writeNull();
+                break;
+        }
+    }
+
+    /**
+     * Read the value that the parser is positioned at, and everything within it.
+     */
+    static FieldValue read(JsonParser parser) throws IOException {
+        switch (parser.currentToken()) {
+            case START_OBJECT:
+                MapValue map = new MapValue();
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String name = parser.getCurrentName();
+                    parser.nextToken();
+                    map.put(name, read(parser));
+                }
+                return(map);
+            case START_ARRAY:
+                ArrayValue array = new ArrayValue();
+                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                    array.add(read(parser));
+                }
+                return(array);
+            case VALUE_STRING:
+                return(new StringValue(parser.getText()));
+            case VALUE_NUMBER_INT:
+                switch (parser.getNumberType()) {
+                    case INT:
+                        return(new IntegerValue(parser.getIntValue()));
+                    case LONG:
+                        return(new LongValue(parser.getLongValue()));
+                    default:
+                        return(new NumberValue(parser.getDecimalValue()));
+                }
+            case VALUE_NUMBER_FLOAT:
+                if (parser.getNumberType() == JsonParser.NumberType.BIG_DECIMAL) {
+                    return(new NumberValue(parser.getDecimalValue()));
+                }
+                return(new DoubleValue(parser.getDoubleValue()));
+            case VALUE_TRUE:
+            case VALUE_FALSE:
+                return(BooleanValue.getInstance(parser.getBooleanValue()));
+            case VALUE_EMBEDDED_OBJECT:
+                return(new BinaryValue(parser.getBinaryValue()));
+            case VALUE_NULL:
+                return(JsonNullValue.getInstance());
+            default:
+                throw new IOException("Unexpected " + parser.currentToken());
+        }
+    }
+
+}
@@ -0,0 +1,210 @@
+package session;
+
+import oracle.nosql.driver.values.ArrayValue;
+import oracle.nosql.driver.values.FieldValue;
+import oracle.nosql.driver.values.JsonOptions;
+import oracle.nosql.driver.values.MapValue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * The synthetic accounts and traffic that {@link SessionLoadGenerator} sends to the service.
+ *
+ * Every user gets a copy of one of the sample sessions, in turn, under their own user name.  Accounts
+ * are chosen with a Zipf distribution so that a few accounts get most of the traffic, as in production,
+ * where a skew of 0 spreads it evenly.  Within an account users are chosen evenly.  Each update is a user
+ * watching on: one of their episodes gains a minute of progress, wrapping at its length, and is marked
+ * watched now.  Session documents are arrays of shows, which a merge patch can only replace, so the
+ * update sends the whole session, as a player does.
+ */
+public class SessionWorkload {
+
+    /**
+     * The kinds of request sent.
+     */
+    public enum Operation {
+        READ,
+        UPDATE,
+        CREATE
+    }
+
+    private final List<FieldValue> samples;
+    private final double[] accountCdf;
+    private final int readPct;
+    private final int updatePct;
+    private final List<Account> accounts = new ArrayList<>();
+
+    /**
+     * @param samples The sessions to give users, copies are made
+     * @param accounts The number of accounts
+     * @param skew The Zipf exponent of how often each account is chosen, 0 for evenly
+     * @param readPct The percentage of requests that read a session
+     * @param updatePct The percentage of requests that update a session, the rest create users
+     */
+    public SessionWorkload(List<FieldValue> samples, int accounts, double skew, int readPct, int updatePct) {
+        if (samples.isEmpty() || accounts <= 0 || skew < 0 || readPct < 0 || updatePct < 0 ||
+                readPct + updatePct > 100) {
+            throw new IllegalArgumentException("Invalid workload: " + samples.size() + " samples, " +
+                    accounts + " accounts, skew " + skew + ", " + readPct + "% reads, " + updatePct +
+                    "% updates");
+        }
+        this.samples = samples;
+        this.readPct = readPct;
+        this.updatePct = updatePct;
+        accountCdf = new double[accounts];
+        double sum = 0;
+        for (int i = 0; i < accounts; i++) {
+            sum += 1 / Math.pow(i + 1, skew);
+            accountCdf[i] = sum;
+        }
+        for (int i = 0; i < accounts; i++) {
+            accountCdf[i] /= sum;
+            this.accounts.add(new Account(i + 1));
+        }
+    }
+
+    /**
+     * Read the sample sessions from session export files such as those in data/.
+     *
+     * @param files The files to read
+     * @return The session of every row in the files
+     * @throws IOException if a file can't be read
+     */
+    public static List<FieldValue> readSamples(List<Path> files) throws IOException {
+        List<FieldValue> samples = new ArrayList<>();
+        for (Path file : files) {
+            try (SessionFileReader reader = new SessionFileReader(file, 0)) {
+                MapValue row;
+                while ((row = reader.next()) != null) {
+                    FieldValue session = row.get(PersistentSessionManager.COL_SESSION);
+                    if (session != null && session.isArray() && session.asArray().size() > 0) {
+                        samples.add(session);
+                    }
+                }
+            }
+        }
+        return(samples);
+    }
+
+    /**
+     * @param random The source of randomness
+     * @return The kind of the next request
+     */
+    public Operation nextOperation(Random random) {
+        int n = random.nextInt(100);
+        return(n < readPct ? Operation.READ : n < readPct + updatePct ? Operation.UPDATE : Operation.CREATE);
+    }
+
+    /**
+     * @param random The source of randomness
+     * @return The account of the next request, chosen with the workload's skew
+     */
+    public Account nextAccount(Random random) {
+        int i = Arrays.binarySearch(accountCdf, random.nextDouble());
+        return(accounts.get(Math.min(accountCdf.length - 1, i >= 0 ? i : -i - 1)));
+    }
+
+    public List<Account> getAccounts() {
+        return accounts;
+    }
+
+    /**
+     * @param userName The name of a new user
+     * @param n The number of users made so far, used to take turns between the samples
+     * @return A session for the user
+     */
+    public ArrayValue newSession(String userName, int n) {
+        FieldValue sample = samples.get(Math.floorMod(n, samples.size()));
+        ArrayValue session = FieldValue.createFromJson(sample.toJson(), new JsonOptions()).asArray();
+        if (session.get(0).isMap()) {
+            session.get(0).asMap().put(PersistentSessionManager.JSON_ATTR_USER_NAME, userName);
+        }
+        return(session);
+    }
+
+    /**
+     * An account and the users created in it.
+     */
+    public static final class Account {
+        private final long accountNum;
+        private final List<User> users = new ArrayList<>();
+
+        Account(long accountNum) {
+            this.accountNum = accountNum;
+        }
+
+        public long getAccountNum() {
+            return accountNum;
+        }
+
+        public synchronized void add(User user) {
+            users.add(user);
+        }
+
+        public synchronized int size() {
+            return users.size();
+        }
+
+        /**
+         * @param random The source of randomness
+         * @return One of the account's users, or null if it has none yet
+         */
+        public synchronized User nextUser(Random random) {
+            return(users.isEmpty() ? null : users.get(random.nextInt(users.size())));
+        }
+    }
+
+    /**
+     * A user and their session as we last sent it.
+     */
+    public static final class User {
+        private static final DateTimeFormatter LAST_WATCHED = DateTimeFormatter.ISO_LOCAL_DATE_TIME;
+
+        private final int userID;
+        private final ArrayValue session;
+
+        public User(int userID, ArrayValue session) {
+            this.userID = userID;
+            this.session = session;
+        }
+
+        public int getUserID() {
+            return userID;
+        }
+
+        /**
+         * Watch another minute of one of the user's episodes.
+         *
+         * @param random The source of randomness
+         * @return The JSON of the user's session with the new progress
+         */
+        public synchronized String watch(Random random) {
+            MapValue show = session.get(random.nextInt(session.size())).asMap();
+            FieldValue seasons = show.get("seriesInfo");
+            if (seasons != null && seasons.isArray() && seasons.asArray().size() > 0) {
+                ArrayValue seasonList = seasons.asArray();
+                FieldValue episodes = seasonList.get(random.nextInt(seasonList.size())).asMap().get("episodes");
+                if (episodes != null && episodes.isArray() && episodes.asArray().size() > 0) {
+                    ArrayValue episodeList = episodes.asArray();
+                    MapValue episode = episodeList.get(random.nextInt(episodeList.size())).asMap();
+                    FieldValue length = episode.get("lengthMin");
+                    FieldValue watched = episode.get("minWatched");
+                    int lengthMin = (length != null && length.isInteger() ? length.getInt() : 60);
+                    int minWatched = (watched != null && watched.isInteger() ? watched.getInt() : 0);
+                    episode.put("minWatched", minWatched >= lengthMin ? 1 : minWatched + 1)
+                            .put("lastWatched", LocalDateTime.now().truncatedTo(ChronoUnit.SECONDS)
+                                    .format(LAST_WATCHED));
+                }
+            }
+            return(session.toJson());
+        }
+    }
+}
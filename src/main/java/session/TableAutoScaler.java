@@ -0,0 +1,346 @@
+package session;
+
+import oracle.nosql.driver.ops.TableLimits;
+import oracle.nosql.driver.values.ArrayValue;
+import oracle.nosql.driver.values.MapValue;
+
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background controller that raises and lowers the read and write units of a table to follow the load.
+ *
+ * Each evaluation looks at the capacity the table used since the usage seen by the previous one.  A
+ * dimension (reads or writes) is raised as soon as it was throttled or its utilization rose above the scale
+ * up threshold, and lowered only once its utilization has stayed below the scale down threshold for
+ * several evaluations in a row.  Either way it is set so that the observed load would use the target
+ * utilization, within the configured bounds, and when throttled it grows by at least the throttled growth
+ * factor.  The gap between the two thresholds is the hysteresis that stops the limits flapping.
+ *
+ * Increases are applied whenever the table is active.  Because the service only allows a table's limits
+ * to be lowered a limited number of times a day, decreases are also held back by a cooldown since the
+ * last change and by a maximum number of decreases in any 24 hours.  Every change, deferral and error is
+ * recorded in a bounded event log.
+ */
+public class TableAutoScaler {
+
+    //  The number of events kept in the log
+    public static int MAX_EVENTS = 100;
+
+    public static String EVENT_INCREASE = "increase";
+    public static String EVENT_DECREASE = "decrease";
+    public static String EVENT_CHANGE = "change";
+    public static String EVENT_DEFERRED = "deferred";
+    public static String EVENT_ERROR = "error";
+
+    private static final long DAY_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    /**
+     * The bounds and thresholds that the controller works within.
+     */
+    public static final class Settings {
+        int minReadUnits = 25;
+        int maxReadUnits = 500;
+        int minWriteUnits = 25;
+        int maxWriteUnits = 500;
+        double targetUtilization = 0.6;
+        double scaleUpUtilization = 0.8;
+        double scaleDownUtilization = 0.3;
+        double throttledGrowth = 1.5;
+        int scaleDownEvaluations = 5;
+        long decreaseCooldownMillis = TimeUnit.MINUTES.toMillis(30);
+        int maxDecreasesPerDay = 4;
+
+        /**
+         * @param min The fewest read units to provision
+         * @param max The most read units to provision
+         * @return These settings
+         */
+        public Settings setReadUnits(int min, int max) {
+            minReadUnits = min;
+            maxReadUnits = max;
+            return(this);
+        }
+
+        /**
+         * @param min The fewest write units to provision
+         * @param max The most write units to provision
+         * @return These settings
+         */
+        public Settings setWriteUnits(int min, int max) {
+            minWriteUnits = min;
+            maxWriteUnits = max;
+            return(this);
+        }
+
+        /**
+         * @param target The utilization that new limits are sized for, as a percentage
+         * @param scaleUp The utilization above which a dimension is raised, as a percentage
+         * @param scaleDown The utilization below which a dimension is lowered, as a percentage
+         * @return These settings
+         */
+        public Settings setUtilization(int target, int scaleUp, int scaleDown) {
+            targetUtilization = target / 100.0;
+            scaleUpUtilization = scaleUp / 100.0;
+            scaleDownUtilization = scaleDown / 100.0;
+            return(this);
+        }
+
+        /**
+         * @param evaluations The number of evaluations in a row that utilization must be low for
+         * @return These settings
+         */
+        public Settings setScaleDownEvaluations(int evaluations) {
+            scaleDownEvaluations = evaluations;
+            return(this);
+        }
+
+        /**
+         * @param millis How long after any change of limits to wait before lowering them
+         * @return These settings
+         */
+        public Settings setDecreaseCooldownMillis(long millis) {
+            decreaseCooldownMillis = millis;
+            return(this);
+        }
+
+        /**
+         * @param decreases The most times to lower the limits in any 24 hours, at most the service's quota
+         * @return These settings
+         */
+        public Settings setMaxDecreasesPerDay(int decreases) {
+            maxDecreasesPerDay = decreases;
+            return(this);
+        }
+    }
+
+    private final TableCapacity capacity;
+    private final Settings settings;
+    private final Deque<MapValue> events = new ArrayDeque<>();
+    private final Deque<Long> decreases = new ArrayDeque<>();
+    private ScheduledExecutorService scheduler;
+
+    //  State carried between evaluations, only touched by the evaluating thread
+    private long usageSince;
+    private long lastChange;
+    private int lowReadEvaluations;
+    private int lowWriteEvaluations;
+    private boolean deferring;
+
+    /**
+     * @param capacity The table to manage
+     * @param settings The bounds and thresholds to work within
+     */
+    public TableAutoScaler(TableCapacity capacity, Settings settings) {
+        this.capacity = capacity;
+        this.settings = settings;
+    }
+
+    /**
+     * Start evaluating the table's limits periodically.
+     *
+     * @param intervalMillis The time between evaluations
+     */
+    public synchronized void start(long intervalMillis) {
+        usageSince = System.currentTimeMillis();
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "session-table-autoscaler");
+            t.setDaemon(true);
+            return(t);
+        });
+        scheduler.scheduleWithFixedDelay(() -> evaluate(System.currentTimeMillis()), intervalMillis,
+                intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop evaluating the table's limits.
+     */
+    public synchronized void shutdown() {
+        if (scheduler == null) {
+            return;
+        }
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Look at the capacity used since the last evaluation and change the table's limits if needed.
+     *
+     * @param now The current time in milliseconds since the epoch
+     */
+    void evaluate(long now) {
+        try {
+            TableLimits limits = capacity.getLimits();
+            if (limits == null) {
+                //  A change is still being applied, look again next time
+                return;
+            }
+            TableCapacity.Usage usage = capacity.getUsage(usageSince, now);
+            if (usage == null) {
+                return;
+            }
+            //  Usage is reported after the fact, carry on from the end of what was reported
+            usageSince = (usage.getEndMillis() > usageSince ? usage.getEndMillis() : now);
+
+            int read = limits.getReadUnits();
+            int write = limits.getWriteUnits();
+            int newRead = resize(read, usage.getReadUnitsPerSecond(), usage.getReadThrottles(),
+                    settings.minReadUnits, settings.maxReadUnits, true);
+            int newWrite = resize(write, usage.getWriteUnitsPerSecond(), usage.getWriteThrottles(),
+                    settings.minWriteUnits, settings.maxWriteUnits, false);
+
+            if (newRead >= read && newWrite >= write) {
+                deferring = false;
+            } else {
+                String blocked = decreaseBlockedBy(now);
+                if (blocked != null) {
+                    if (!deferring) {
+                        event(now, EVENT_DEFERRED, blocked, read, Math.min(read, newRead), write,
+                                Math.min(write, newWrite), usage);
+                        deferring = true;
+                    }
+                    newRead = Math.max(read, newRead);
+                    newWrite = Math.max(write, newWrite);
+                }
+            }
+            if (newRead == read && newWrite == write) {
+                return;
+            }
+
+            boolean decrease = newRead < read || newWrite < write;
+            boolean increase = newRead > read || newWrite > write;
+            capacity.setLimits(new TableLimits(newRead, newWrite, limits.getStorageGB()));
+            lastChange = now;
+            if (decrease) {
+                decreases.addLast(now);
+                deferring = false;
+                lowReadEvaluations = 0;
+                lowWriteEvaluations = 0;
+            }
+            event(now, increase && decrease ? EVENT_CHANGE : (increase ? EVENT_INCREASE : EVENT_DECREASE),
+                    reason(read, newRead, write, newWrite, usage), read, newRead, write, newWrite, usage);
+        } catch (Exception e) {
+            e.printStackTrace();
+            event(now, EVENT_ERROR, String.valueOf(e.getMessage()), 0, 0, 0, 0, null);
+        }
+    }
+
+    /**
+     * Work out the new units for one dimension.
+     */
+    private int resize(int current, double used, long throttles, int min, int max, boolean reads) {
+        double utilization = (current > 0 ? used / current : 1);
+        int sized = (int) Math.ceil(used / settings.targetUtilization);
+        if (throttles > 0 || utilization > settings.scaleUpUtilization) {
+            setLowEvaluations(reads, 0);
+            int grown = (throttles > 0 ? (int) Math.ceil(current * settings.throttledGrowth) : current + 1);
+            return(clamp(Math.max(sized, grown), min, max));
+        }
+        if (utilization < settings.scaleDownUtilization) {
+            int low = getLowEvaluations(reads) + 1;
+            setLowEvaluations(reads, low);
+            if (low >= settings.scaleDownEvaluations) {
+                return(clamp(Math.min(sized, current), min, max));
+            }
+        } else {
+            setLowEvaluations(reads, 0);
+        }
+        //  Stay put, unless someone moved the limits outside of our bounds
+        return(clamp(current, min, max));
+    }
+
+    private int getLowEvaluations(boolean reads) {
+        return(reads ? lowReadEvaluations : lowWriteEvaluations);
+    }
+
+    private void setLowEvaluations(boolean reads, int value) {
+        if (reads) {
+            lowReadEvaluations = value;
+        } else {
+            lowWriteEvaluations = value;
+        }
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return(Math.max(min, Math.min(max, value)));
+    }
+
+    /**
+     * @return Why the table's limits can't be lowered now, or null if they can
+     */
+    private String decreaseBlockedBy(long now) {
+        while (!decreases.isEmpty() && now - decreases.peekFirst() >= DAY_MILLIS) {
+            decreases.removeFirst();
+        }
+        if (decreases.size() >= settings.maxDecreasesPerDay) {
+            return("already decreased " + decreases.size() + " times in the last 24 hours");
+        }
+        if (lastChange != 0 && now - lastChange < settings.decreaseCooldownMillis) {
+            return("limits were changed less than " + settings.decreaseCooldownMillis + "ms ago");
+        }
+        return(null);
+    }
+
+    private static String reason(int read, int newRead, int write, int newWrite,
+                                 TableCapacity.Usage usage) {
+        StringBuilder ret = new StringBuilder();
+        if (newRead > read) {
+            ret.append(usage.getReadThrottles() > 0 ? "reads throttled" : "read utilization high");
+        } else if (newRead < read) {
+            ret.append("read utilization low");
+        }
+        if (newWrite != write) {
+            if (ret.length() > 0) {
+                ret.append(", ");
+            }
+            if (newWrite > write) {
+                ret.append(usage.getWriteThrottles() > 0 ? "writes throttled" : "write utilization high");
+            } else {
+                ret.append("write utilization low");
+            }
+        }
+        return(ret.toString());
+    }
+
+    private void event(long now, String action, String reason, int read, int newRead, int write,
+                       int newWrite, TableCapacity.Usage usage) {
+        MapValue event = new MapValue().put("time", Instant.ofEpochMilli(now).toString())
+                .put("action", action)
+                .put("reason", reason);
+        if (usage != null) {
+            event.put("readUnits", read).put("newReadUnits", newRead)
+                    .put("writeUnits", write).put("newWriteUnits", newWrite)
+                    .put("readUnitsPerSecond", usage.getReadUnitsPerSecond())
+                    .put("writeUnitsPerSecond", usage.getWriteUnitsPerSecond())
+                    .put("readThrottles", usage.getReadThrottles())
+                    .put("writeThrottles", usage.getWriteThrottles());
+        }
+        synchronized (events) {
+            events.addLast(event);
+            while (events.size() > MAX_EVENTS) {
+                events.removeFirst();
+            }
+        }
+    }
+
+    /**
+     * @return The most recent decisions, oldest first
+     */
+    public ArrayValue getEvents() {
+        synchronized (events) {
+            ArrayValue ret = new ArrayValue(events.size());
+            for (MapValue event : events) {
+                ret.add(event);
+            }
+            return(ret);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package session;
+
+import oracle.nosql.driver.ops.TableLimits;
+
+/**
+ * The view of a table's provisioned and consumed capacity that {@link TableAutoScaler} works from.
+ * {@link NoSQLTableCapacity} is backed by the cloud service, tests use a local stand-in.
+ */
+public interface TableCapacity {
+
+    /**
+     * @return The table's current limits, or null if the table is not active, for example because a
+     * previous change of its limits is still being applied
+     */
+    TableLimits getLimits();
+
+    /**
+     * Sum up the capacity that the table used over a period of time.
+     *
+     * @param startMillis The start of the period, in milliseconds since the epoch
+     * @param endMillis The end of the period, in milliseconds since the epoch
+     * @return The capacity used, or null if none has been reported for the period yet
+     */
+    Usage getUsage(long startMillis, long endMillis);
+
+    /**
+     * Change the table's limits, returning once the change has been applied.
+     *
+     * @param limits The new limits
+     */
+    void setLimits(TableLimits limits);
+
+    /**
+     * The read and write units a table consumed, and how often it was throttled, over some number of
+     * seconds.
+     */
+    final class Usage {
+        private final long readUnits;
+        private final long writeUnits;
+        private final long readThrottles;
+        private final long writeThrottles;
+        private final long seconds;
+        private final long endMillis;
+
+        /**
+         * @param readUnits The total read units consumed
+         * @param writeUnits The total write units consumed
+         * @param readThrottles The number of reads that were throttled
+         * @param writeThrottles The number of writes that were throttled
+         * @param seconds The number of seconds that the usage covers
+         * @param endMillis The end of the latest period that the usage covers, in milliseconds since the
+         *                  epoch
+         */
+        public Usage(long readUnits, long writeUnits, long readThrottles, long writeThrottles, long seconds,
+                     long endMillis) {
+            this.readUnits = readUnits;
+            this.writeUnits = writeUnits;
+            this.readThrottles = readThrottles;
+            this.writeThrottles = writeThrottles;
+            this.seconds = seconds;
+            this.endMillis = endMillis;
+        }
+
+        /**
+         * @return The average read units consumed per second
+         */
+        public double getReadUnitsPerSecond() {
+            return(seconds > 0 ? (double) readUnits / seconds : 0);
+        }
+
+        /**
+         * @return The average write units consumed per second
+         */
+        public double getWriteUnitsPerSecond() {
+            return(seconds > 0 ? (double) writeUnits / seconds : 0);
+        }
+
+        /**
+         * @return The number of reads that were throttled
+         */
+        public long getReadThrottles() {
+            return(readThrottles);
+        }
+
+        /**
+         * @return The number of writes that were throttled
+         */
+        public long getWriteThrottles() {
+            return(writeThrottles);
+        }
+
+        /**
+         * @return The number of seconds that the usage covers
+         */
+        public long getSeconds() {
+            return(seconds);
+        }
+
+        /**
+         * @return The end of the latest period that the usage covers, in milliseconds since the epoch
+         */
+        public long getEndMillis() {
+            return(endMillis);
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package session;
+
+import oracle.nosql.driver.Consistency;
+import oracle.nosql.driver.Version;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Gives clients read-your-writes consistency while still reading with EVENTUAL consistency, which costs
+ * half as much as ABSOLUTE, almost all of the time.
+ *
+ * The version of every session we write is remembered for a window that should be longer than replicas
+ * take to catch up.  A session read within the window is checked against the version we wrote: if the
+ * replica that served the read already has it the read is used as is, otherwise the session is read
+ * again with ABSOLUTE consistency.  Versions can only be compared for equality, so a session written by
+ * someone else since our write is also read again, after which its newer version is the one expected.
+ * Sessions we haven't written recently are always read with EVENTUAL consistency.
+ *
+ * Like {@link SessionCache} the versions are held in a fixed number of segments, each guarded by its own
+ * lock and ordered oldest write first, so that expired and excess entries are dropped from the front.
+ */
+public class WriteVersionTracker {
+
+    //  Must be a power of 2
+    private static final int NUM_SEGMENTS = 16;
+
+    private final Segment[] segments;
+    private final long windowNanos;
+    private final SessionMetrics metrics;
+
+    private final LongAdder trackedReads = new LongAdder();
+    private final LongAdder upgradedReads = new LongAdder();
+
+    /**
+     * @param maxEntries The most sessions to remember the version of, across all segments
+     * @param windowMillis How long after a write reads are checked against it
+     * @param metrics Where to record whether reads were upgraded
+     */
+    public WriteVersionTracker(int maxEntries, long windowMillis, SessionMetrics metrics) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("Tracker size must be positive: " + maxEntries);
+        }
+        int perSegment = Math.max(1, (maxEntries + NUM_SEGMENTS - 1) / NUM_SEGMENTS);
+        segments = new Segment[NUM_SEGMENTS];
+        for (int i = 0; i < NUM_SEGMENTS; i++) {
+            segments[i] = new Segment(perSegment);
+        }
+        windowNanos = windowMillis * 1_000_000L;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Remember the version of a session that was just written.
+     *
+     * @param accountNum The account number for the session
+     * @param userID The user ID for the session within the account
+     * @param version The version it was written at, ignored if null
+     */
+    public void written(long accountNum, int userID, Version version) {
+        if (version == null) {
+            return;
+        }
+        SessionKey key = new SessionKey(accountNum, userID);
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            //  Remove first so that the entry moves to the back, with the newest writes
+            segment.remove(key);
+            segment.put(key, new Entry(version.getBytes(), System.nanoTime()));
+        }
+    }
+
+    /**
+     * @param accountNum The account number for the session
+     * @param userID The user ID for the session within the account
+     * @return true if we wrote the session recently enough that an EVENTUAL read of it may be stale
+     */
+    public boolean isTracked(long accountNum, int userID) {
+        return(expected(new SessionKey(accountNum, userID)) != null);
+    }
+
+    /**
+     * Read a session with EVENTUAL consistency, reading it again with ABSOLUTE consistency only if what
+     * was read is not the version we last wrote.
+     *
+     * @param store The store to read from
+     * @param accountNum The account number for the session
+     * @param userID The user ID for the session within the account
+     * @return The session and its version, or null if there is no such session
+     */
+    public SessionRecord read(SessionStore store, long accountNum, int userID) {
+        SessionKey key = new SessionKey(accountNum, userID);
+        SessionRecord record = store.get(accountNum, userID, Consistency.EVENTUAL);
+        byte[] expected = expected(key);
+        if (expected == null) {
+            return(record);
+        }
+        trackedReads.increment();
+        if (record != null && record.getVersion() != null &&
+                Arrays.equals(record.getVersion().getBytes(), expected)) {
+            metrics.consistentRead(false);
+            return(record);
+        }
+        upgradedReads.increment();
+        metrics.consistentRead(true);
+        record = store.get(accountNum, userID, Consistency.ABSOLUTE);
+        if (record != null) {
+            written(accountNum, userID, record.getVersion());
+        }
+        return(record);
+    }
+
+    /**
+     * @return The version we last wrote the session at, or null if that was too long ago
+     */
+    private byte[] expected(SessionKey key) {
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            Entry entry = segment.get(key);
+            if (entry == null) {
+                return(null);
+            }
+            if (System.nanoTime() - entry.writtenAt > windowNanos) {
+                segment.remove(key);
+                return(null);
+            }
+            return(entry.version);
+        }
+    }
+
+    /**
+     * @return The number of reads of sessions that we had written recently
+     */
+    public long getTrackedReads() {
+        return(trackedReads.sum());
+    }
+
+    /**
+     * @return The number of those reads that had to be repeated with ABSOLUTE consistency
+     */
+    public long getUpgradedReads() {
+        return(upgradedReads.sum());
+    }
+
+    /**
+     * @return The number of versions held, including any outside of the window that haven't been dropped
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return(size);
+    }
+
+    private Segment segmentFor(SessionKey key) {
+        int h = key.hashCode();
+        return(segments[(h ^ (h >>> 16)) & (NUM_SEGMENTS - 1)]);
+    }
+
+    private static final class Entry {
+        final byte[] version;
+        final long writtenAt;
+
+        Entry(byte[] version, long writtenAt) {
+            this.version = version;
+            this.writtenAt = writtenAt;
+        }
+    }
+
+    private final class Segment extends LinkedHashMap<SessionKey, Entry> {
+        private final int capacity;
+
+        Segment(int capacity) {
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<SessionKey, Entry> eldest) {
+            return(size() > capacity || System.nanoTime() - eldest.getValue().writtenAt > windowNanos);
+        }
+    }
+}
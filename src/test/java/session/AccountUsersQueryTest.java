@@ -0,0 +1,122 @@
+package session;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.micronaut.http.HttpStatus;
+import io.micronaut.http.exceptions.HttpStatusException;
+import io.reactivex.Flowable;
+import oracle.nosql.driver.values.ArrayValue;
+import oracle.nosql.driver.values.FieldValue;
+import oracle.nosql.driver.values.JsonOptions;
+import oracle.nosql.driver.values.MapValue;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.Set;
+
+public class AccountUsersQueryTest {
+
+    //  More than two of the local store's query batches
+    private static final int USERS = 2500;
+
+    private static AccountUsersQuery query(SessionStore store) {
+        return(new AccountUsersQuery(store,
+                new SessionRequestExecutor(false, 0, 0, new SessionMetrics(new SimpleMeterRegistry()))));
+    }
+
+    private static OffHeapSessionStore storeWithUsers(long accountNum, int users) {
+        OffHeapSessionStore store = new OffHeapSessionStore();
+        for (int i = 0; i < users; i++) {
+            store.create(accountNum,
+                    new MapValue().put(PersistentSessionManager.JSON_ATTR_USER_NAME, "user" + i));
+        }
+        return(store);
+    }
+
+    private static byte[] concat(Flowable<byte[]> chunks) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] chunk : chunks.blockingIterable()) {
+            out.write(chunk, 0, chunk.length);
+        }
+        return(out.toByteArray());
+    }
+
+    private static void addUserIDs(ArrayValue users, Set<Integer> userIDs) {
+        for (FieldValue user : users) {
+            int userID = user.asMap().get(PersistentSessionManager.COL_SESSION).asMap().getInt("userID");
+            assert (userIDs.add(userID)) : "user " + userID + " was returned twice";
+        }
+    }
+
+    @Test
+    public void testStreamFollowsTheContinuation() {
+        AccountUsersQuery query = query(storeWithUsers(5L, USERS));
+        Flowable<byte[]> chunks = query.stream(5L);
+        //  The opening bracket and then one chunk for each batch
+        assert (chunks.count().blockingGet() == 4);
+        String json = new String(concat(query.stream(5L)), StandardCharsets.UTF_8);
+        Set<Integer> userIDs = new HashSet<>();
+        addUserIDs(FieldValue.createFromJson(json, new JsonOptions()).asArray(), userIDs);
+        assert (userIDs.size() == USERS);
+
+        FieldValue cbor = SessionWireFormat.CBOR.decode(concat(query.stream(5L, SessionWireFormat.CBOR)));
+        assert (cbor.asArray().size() == USERS);
+    }
+
+    @Test
+    public void testStreamOfEmptyAccount() {
+        AccountUsersQuery query = query(storeWithUsers(5L, 1));
+        assert (new String(concat(query.stream(6L)), StandardCharsets.UTF_8).equals("[]"));
+    }
+
+    @Test
+    public void testPagesFollowTheCursor() {
+        AccountUsersQuery query = query(storeWithUsers(5L, USERS));
+        Set<Integer> userIDs = new HashSet<>();
+        String cursor = null;
+        int pages = 0;
+        do {
+            String json = new String(query.page(5L, 1000, cursor).blockingFirst(), StandardCharsets.UTF_8);
+            MapValue page = FieldValue.createFromJson(json, new JsonOptions()).asMap();
+            addUserIDs(page.get(AccountUsersQuery.PAGE_ATTR_USERS).asArray(), userIDs);
+            FieldValue next = page.get(AccountUsersQuery.PAGE_ATTR_CURSOR);
+            cursor = (next.getType() == FieldValue.Type.STRING ? next.getString() : null);
+            pages++;
+        } while (cursor != null);
+        assert (pages == 3);
+        assert (userIDs.size() == USERS);
+    }
+
+    @Test
+    public void testCursorRoundTrip() {
+        byte[] continuation = {0, 1, (byte) 0xfe, (byte) 0xff};
+        String cursor = Base64.getUrlEncoder().withoutPadding().encodeToString(continuation);
+        assert (Arrays.equals(AccountUsersQuery.decodeCursor(cursor), continuation));
+        assert (AccountUsersQuery.decodeCursor(null) == null);
+    }
+
+    @Test
+    public void testInvalidRequestsAreRejected() {
+        AccountUsersQuery query = query(storeWithUsers(5L, 10));
+        String[] cursors = {"not a cursor!", "", "AAAA"};
+        for (String cursor : cursors) {
+            try {
+                query.page(5L, 10, cursor).blockingFirst();
+                assert (false) : cursor;
+            } catch (HttpStatusException e) {
+                assert (e.getStatus() == HttpStatus.BAD_REQUEST);
+            }
+        }
+        for (int limit : new int[] {0, -1}) {
+            try {
+                query.page(5L, limit, null);
+                assert (false) : limit;
+            } catch (HttpStatusException e) {
+                assert (e.getStatus() == HttpStatus.BAD_REQUEST);
+            }
+        }
+    }
+}
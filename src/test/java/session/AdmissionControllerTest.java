@@ -0,0 +1,98 @@
+package session;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.micronaut.http.HttpStatus;
+import io.micronaut.http.exceptions.HttpStatusException;
+import oracle.nosql.driver.ops.TableLimits;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class AdmissionControllerTest {
+
+    private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static AdmissionController controller(SimpleMeterRegistry registry, int maxWaitMillis) {
+        //  The limits are given by the tests, never read from the table
+        return(new AdmissionController(null, new SessionMetrics(registry), 100, 1.0, maxWaitMillis, 3, 10));
+    }
+
+    @Test
+    public void testAccountsAreServedInTurn() throws Exception {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        AdmissionController admission = controller(registry, 1000);
+        admission.setLimits(new TableLimits(4, 4, 5), 0);
+        for (int i = 0; i < 4; i++) {
+            assert (admission.admit(1, AdmissionController.Demand.READ, 0).isDone());
+        }
+
+        //  Account 1 bursts, it can only queue so many requests
+        CompletableFuture<Void> a1 = admission.admit(1, AdmissionController.Demand.READ, 0);
+        CompletableFuture<Void> a2 = admission.admit(1, AdmissionController.Demand.READ, 0);
+        CompletableFuture<Void> a3 = admission.admit(1, AdmissionController.Demand.READ, 0);
+        try {
+            admission.admit(1, AdmissionController.Demand.READ, 0);
+            assert (false);
+        } catch (HttpStatusException e) {
+            assert (e.getStatus() == HttpStatus.TOO_MANY_REQUESTS);
+        }
+        CompletableFuture<Void> b1 = admission.admit(2, AdmissionController.Demand.READ, 0);
+        assert (!a1.isDone() && !b1.isDone());
+        assert (admission.getQueued() == 4);
+
+        //  The first requests complete having used what they reserved
+        for (int i = 0; i < 4; i++) {
+            admission.release(AdmissionController.Demand.READ);
+        }
+        admission.consumed(4, 0);
+
+        //  Half a second refills two units, account 2 gets one of them rather than waiting behind account 1
+        admission.dispatch(500 * MILLIS);
+        assert (a1.isDone() && b1.isDone());
+        assert (!a2.isDone() && !a3.isDone());
+
+        admission.dispatch(2000 * MILLIS);
+        try {
+            a2.get();
+            assert (false);
+        } catch (ExecutionException e) {
+            assert (((HttpStatusException) e.getCause()).getStatus() == HttpStatus.TOO_MANY_REQUESTS);
+        }
+        assert (a3.isCompletedExceptionally());
+        assert (admission.getQueued() == 0);
+        assert (admission.getDelayed() == 2);
+        assert (admission.getRejectedQueueFull() == 1);
+        assert (admission.getRejectedTimeout() == 2);
+        assert (registry.get(SessionMetrics.METRIC_ADMISSION_REJECTED)
+                .tag(SessionMetrics.TAG_REASON, "timeout").counter().count() == 2);
+        assert (registry.get(SessionMetrics.METRIC_ADMISSION_WAIT).timer().count() == 2);
+    }
+
+    @Test
+    public void testConsumedUnitsHoldBackOnlyTheirDimension() {
+        AdmissionController admission = controller(new SimpleMeterRegistry(), 10000);
+
+        //  Until the table's limits are known nothing is held back
+        assert (admission.admit(1, AdmissionController.Demand.WRITE, 0).isDone());
+        admission.release(AdmissionController.Demand.WRITE);
+
+        admission.setLimits(new TableLimits(10, 10, 5), 0);
+        admission.consumed(30, 0);
+        CompletableFuture<Void> read = admission.admit(1, AdmissionController.Demand.READ, 0);
+        CompletableFuture<Void> write = admission.admit(2, new AdmissionController.Demand(0, 1), 0);
+        assert (!read.isDone() && !write.isDone());
+
+        admission.dispatch(MILLIS);
+        assert (write.isDone());
+        assert (!read.isDone());
+
+        //  Reads are admitted again once the bucket has paid off what was overspent
+        admission.dispatch(1000 * MILLIS);
+        assert (!read.isDone());
+        admission.dispatch(2500 * MILLIS);
+        assert (read.isDone() && !read.isCompletedExceptionally());
+        assert (admission.getReadUnitsPerSecond() == 10);
+    }
+}
@@ -0,0 +1,57 @@
+package session;
+
+import oracle.nosql.driver.values.ArrayValue;
+import oracle.nosql.driver.values.MapValue;
+import org.junit.jupiter.api.Test;
+
+public class ConflictStatsTest {
+
+    @Test
+    public void testMostContendedFirst() {
+        ConflictStats stats = new ConflictStats(10);
+        for (int i = 0; i < 5; i++) {
+            stats.conflict(1L);
+        }
+        stats.conflict(2L);
+        stats.conflict(3L);
+        stats.conflict(3L);
+        stats.retry();
+        stats.exhausted();
+
+        ArrayValue top = stats.getMostContended(2);
+        assert (top.size() == 2);
+        assert (top.get(0).asMap().getLong("accountNum") == 1L);
+        assert (top.get(0).asMap().getLong("conflicts") == 5);
+        assert (top.get(0).asMap().getLong("minConflicts") == 5);
+        assert (top.get(1).asMap().getLong("accountNum") == 3L);
+        assert (stats.getConflicts() == 8);
+        assert (stats.getRetries() == 1);
+        assert (stats.getExhausted() == 1);
+    }
+
+    @Test
+    public void testTrackedAccountsAreBounded() {
+        ConflictStats stats = new ConflictStats(10);
+        //  A hot account among a long tail of accounts that conflict once each
+        for (long accountNum = 100; accountNum < 10100; accountNum++) {
+            stats.conflict(accountNum);
+            if (accountNum % 5 == 0) {
+                stats.conflict(7L);
+            }
+        }
+        assert (stats.getConflicts() == 12000);
+        ArrayValue top = stats.getMostContended(100);
+        assert (top.size() == 10);
+        MapValue hottest = top.get(0).asMap();
+        assert (hottest.getLong("accountNum") == 7L);
+        //  Counts are never understated, and what is guaranteed is a lower bound
+        assert (hottest.getLong("conflicts") >= 2000);
+        assert (hottest.getLong("minConflicts") <= 2000);
+        long previous = Long.MAX_VALUE;
+        for (int i = 0; i < top.size(); i++) {
+            long conflicts = top.get(i).asMap().getLong("conflicts");
+            assert (conflicts <= previous);
+            previous = conflicts;
+        }
+    }
+}
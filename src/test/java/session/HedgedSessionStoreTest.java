@@ -0,0 +1,113 @@
+package session;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import oracle.nosql.driver.Consistency;
+import oracle.nosql.driver.values.MapValue;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class HedgedSessionStoreTest {
+
+    /**
+     * A store whose first EVENTUAL read is slow.
+     */
+    private static class SlowFirstReadStore extends OffHeapSessionStore {
+        final AtomicInteger eventualReads = new AtomicInteger();
+        final AtomicReference<Thread> firstReader = new AtomicReference<>();
+
+        @Override
+        public SessionRecord get(long accountNum, int userID, Consistency consistency) {
+            if (consistency == Consistency.EVENTUAL && eventualReads.incrementAndGet() == 1) {
+                firstReader.set(Thread.currentThread());
+                try {
+                    Thread.sleep(500);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return(super.get(accountNum, userID, consistency));
+        }
+    }
+
+    @Test
+    public void testSlowReadsAreHedged() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        SlowFirstReadStore slow = new SlowFirstReadStore();
+        int userID = slow.create(1L, new MapValue().put("userName", "julie")).getUserID();
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            HedgedSessionStore store = new HedgedSessionStore(slow, executor, new SessionMetrics(registry),
+                    100, 10);
+            long start = System.nanoTime();
+            SessionRecord record = store.get(1L, userID, Consistency.EVENTUAL);
+            assert (System.nanoTime() - start < 400_000_000L);
+            assert (record.getSession().asMap().getString("userName").equals("julie"));
+            assert (store.getHedges() == 1);
+            assert (store.getHedgeWins() == 1);
+            assert (store.getHedgeRate() == 1.0);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testHedgesAreCapped() {
+        SlowFirstReadStore slow = new SlowFirstReadStore();
+        int userID = slow.create(1L, new MapValue().put("userName", "julie")).getUserID();
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            HedgedSessionStore store = new HedgedSessionStore(slow, executor,
+                    new SessionMetrics(new SimpleMeterRegistry()), 0, 10);
+            store.get(1L, userID, Consistency.EVENTUAL);
+            store.get(1L, userID, Consistency.ABSOLUTE);
+            assert (store.getReads() == 1);
+            assert (store.getHedges() == 0);
+            assert (slow.eventualReads.get() == 1);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testUnhedgedReadsRunOnTheCallingThread() {
+        SlowFirstReadStore slow = new SlowFirstReadStore();
+        int userID = slow.create(1L, new MapValue().put("userName", "julie")).getUserID();
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            HedgedSessionStore store = new HedgedSessionStore(slow, executor,
+                    new SessionMetrics(new SimpleMeterRegistry()), 0, 10);
+            store.get(1L, userID, Consistency.EVENTUAL);
+            assert (slow.firstReader.get() == Thread.currentThread());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testFullExecutorIsNotHedged() {
+        SlowFirstReadStore slow = new SlowFirstReadStore();
+        int userID = slow.create(1L, new MapValue().put("userName", "julie")).getUserID();
+        //  Room for the first read but not for its hedge
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new SynchronousQueue<>(), new ThreadPoolExecutor.AbortPolicy());
+        try {
+            HedgedSessionStore store = new HedgedSessionStore(slow, executor,
+                    new SessionMetrics(new SimpleMeterRegistry()), 100, 10);
+            SessionRecord record = store.get(1L, userID, Consistency.EVENTUAL);
+            assert (record.getSession().asMap().getString("userName").equals("julie"));
+            assert (slow.firstReader.get() != Thread.currentThread());
+            assert (store.getHedges() == 0);
+            assert (store.getHedgesSkipped() == 1);
+            assert (slow.eventualReads.get() == 1);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
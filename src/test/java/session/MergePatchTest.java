@@ -0,0 +1,79 @@
+package session;
+
+import oracle.nosql.driver.values.FieldValue;
+import oracle.nosql.driver.values.JsonOptions;
+import org.junit.jupiter.api.Test;
+
+public class MergePatchTest {
+
+    //  The examples from Appendix A of RFC 7386: target, patch, result
+    private static final String[][] RFC_7386_EXAMPLES = {
+            {"{\"a\":\"b\"}", "{\"a\":\"c\"}", "{\"a\":\"c\"}"},
+            {"{\"a\":\"b\"}", "{\"b\":\"c\"}", "{\"a\":\"b\",\"b\":\"c\"}"},
+            {"{\"a\":\"b\"}", "{\"a\":null}", "{}"},
+            {"{\"a\":\"b\",\"b\":\"c\"}", "{\"a\":null}", "{\"b\":\"c\"}"},
+            {"{\"a\":[\"b\"]}", "{\"a\":\"c\"}", "{\"a\":\"c\"}"},
+            {"{\"a\":\"c\"}", "{\"a\":[\"b\"]}", "{\"a\":[\"b\"]}"},
+            {"{\"a\":{\"b\":\"c\"}}", "{\"a\":{\"b\":\"d\",\"c\":null}}", "{\"a\":{\"b\":\"d\"}}"},
+            {"{\"a\":[{\"b\":\"c\"}]}", "{\"a\":[1]}", "{\"a\":[1]}"},
+            {"[\"a\",\"b\"]", "[\"c\",\"d\"]", "[\"c\",\"d\"]"},
+            {"{\"a\":\"b\"}", "[\"c\"]", "[\"c\"]"},
+            {"{\"a\":\"foo\"}", "null", "null"},
+            {"{\"a\":\"foo\"}", "\"bar\"", "\"bar\""},
+            {"{\"e\":null}", "{\"a\":1}", "{\"e\":null,\"a\":1}"},
+            {"[1,2]", "{\"a\":\"b\",\"c\":null}", "{\"a\":\"b\"}"},
+            {"{}", "{\"a\":{\"bb\":{\"ccc\":null}}}", "{\"a\":{\"bb\":{}}}"},
+    };
+
+    @Test
+    public void testRfc7386Examples() {
+        for (String[] example : RFC_7386_EXAMPLES) {
+            FieldValue result = MergePatch.apply(parse(example[0]), parse(example[1]));
+            assert (result.equals(parse(example[2]))) : example[1] + " applied to " + example[0];
+        }
+    }
+
+    @Test
+    public void testTargetIsNotModified() {
+        FieldValue target = parse("{\"showID\":2,\"seriesInfo\":{\"seasonNum\":1,\"minWatched\":3}}");
+        String before = target.toJson();
+        FieldValue result = MergePatch.apply(target, parse("{\"seriesInfo\":{\"minWatched\":40}}"));
+        assert (target.toJson().equals(before));
+        assert (result.asMap().get("seriesInfo").asMap().get("minWatched").getInt() == 40);
+        assert (result.asMap().get("showID") == target.asMap().get("showID"));
+    }
+
+    @Test
+    public void testDiffRecreatesTheResult() {
+        for (String[] example : RFC_7386_EXAMPLES) {
+            if (example[2].contains(":null")) {
+                //  A merge patch can't set a member to null
+                continue;
+            }
+            FieldValue source = parse(example[0]);
+            FieldValue target = parse(example[2]);
+            FieldValue result = MergePatch.apply(source, MergePatch.diff(source, target));
+            assert (result.equals(target)) : "diff of " + example[0] + " and " + example[2];
+        }
+    }
+
+    @Test
+    public void testDiffOfAnUpdateOnlyHoldsWhatChanged() {
+        FieldValue target = parse("{\"showID\":2,\"seriesInfo\":{\"seasonNum\":1,\"minWatched\":3}}");
+        FieldValue result = MergePatch.apply(target, parse("{\"seriesInfo\":{\"minWatched\":40}}"));
+        assert (MergePatch.diff(target, result).equals(parse("{\"seriesInfo\":{\"minWatched\":40}}")));
+        assert (MergePatch.diff(result, result).asMap().size() == 0);
+    }
+
+    @Test
+    public void testLegacyStringSessionsAreParsed() {
+        FieldValue stored = parse("\"{\\\"userName\\\":\\\"Julie\\\"}\"");
+        FieldValue document = PersistentSessionManager.toDocument(stored);
+        assert (document.isMap());
+        assert (document.asMap().get("userName").getString().equals("Julie"));
+    }
+
+    private static FieldValue parse(String json) {
+        return(FieldValue.createFromJson(json, new JsonOptions()));
+    }
+}
@@ -0,0 +1,152 @@
+package session;
+
+import io.micronaut.http.HttpStatus;
+import io.micronaut.http.exceptions.HttpStatusException;
+import oracle.nosql.driver.NoSQLHandle;
+import oracle.nosql.driver.RequestTimeoutException;
+import oracle.nosql.driver.TableNotFoundException;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class NoSQLHandlePoolTest {
+
+    /**
+     * A handle that only knows its name and whether it has been closed.
+     */
+    private static final class FakeHandle {
+        final String name;
+        final AtomicInteger closes = new AtomicInteger();
+        final NoSQLHandle handle;
+
+        FakeHandle(String name) {
+            this.name = name;
+            this.handle = (NoSQLHandle) Proxy.newProxyInstance(NoSQLHandle.class.getClassLoader(),
+                    new Class<?>[] {NoSQLHandle.class}, (proxy, method, args) -> {
+                        if (method.getName().equals("close")) {
+                            closes.incrementAndGet();
+                        } else if (method.getName().equals("toString")) {
+                            return(name);
+                        }
+                        return(null);
+                    });
+        }
+    }
+
+    private static NoSQLHandlePool.Factory factory(List<FakeHandle> created) {
+        return(() -> {
+            FakeHandle handle = new FakeHandle("handle" + created.size());
+            created.add(handle);
+            return(handle.handle);
+        });
+    }
+
+    @Test
+    public void testAnAccountAlwaysUsesTheSameHandle() throws Exception {
+        List<FakeHandle> created = new ArrayList<>();
+        NoSQLHandlePool pool = new NoSQLHandlePool(factory(created), 4, 2, 3, null);
+        Set<NoSQLHandle> used = new HashSet<>();
+        for (long accountNum = 0; accountNum < 100; accountNum++) {
+            NoSQLHandle first = pool.run(accountNum, h -> h);
+            assert (pool.run(accountNum, h -> h) == first);
+            used.add(first);
+        }
+        assert (created.size() == 4);
+        assert (used.size() == 4);
+        pool.close();
+        for (FakeHandle handle : created) {
+            assert (handle.closes.get() == 1);
+        }
+    }
+
+    @Test
+    public void testTracksOperationsInFlight() throws Exception {
+        NoSQLHandlePool pool = new NoSQLHandlePool(factory(new ArrayList<>()), 1, 2, 3, null);
+        int inFlight = pool.run(42L, h -> pool.getInFlight(0));
+        assert (inFlight == 1);
+        assert (pool.getInFlight(0) == 0);
+        pool.close();
+    }
+
+    @Test
+    public void testReplacesABrokenHandle() throws Exception {
+        List<FakeHandle> created = new ArrayList<>();
+        NoSQLHandlePool pool = new NoSQLHandlePool(factory(created), 1, 2, 3, null);
+        for (int i = 0; i < 3; i++) {
+            try {
+                pool.run(7L, h -> {
+                    throw new IllegalStateException("connection reset");
+                });
+                assert (false);
+            } catch (IllegalStateException e) {
+                assert (e.getMessage().equals("connection reset"));
+            }
+        }
+        for (int i = 0; i < 500 && pool.getReplacements() == 0; i++) {
+            Thread.sleep(10);
+        }
+        assert (pool.getReplacements() == 1);
+        assert (pool.isUp(0));
+        assert (created.size() == 2);
+        assert (created.get(0).closes.get() == 1);
+        assert (pool.run(7L, h -> h) == created.get(1).handle);
+        pool.close();
+    }
+
+    @Test
+    public void testServiceErrorsDoNotBreakAHandle() throws Exception {
+        List<FakeHandle> created = new ArrayList<>();
+        NoSQLHandlePool pool = new NoSQLHandlePool(factory(created), 1, 2, 1, null);
+        try {
+            pool.run(7L, h -> {
+                throw new TableNotFoundException("no table");
+            });
+            assert (false);
+        } catch (TableNotFoundException e) {
+            //  Expected
+        }
+        assert (pool.getReplacements() == 0);
+        assert (created.size() == 1);
+        pool.close();
+    }
+
+    @Test
+    public void testTimeoutsDoNotBreakAHandle() throws Exception {
+        List<FakeHandle> created = new ArrayList<>();
+        NoSQLHandlePool pool = new NoSQLHandlePool(factory(created), 1, 2, 1, null);
+        for (int i = 0; i < 5; i++) {
+            try {
+                pool.run(7L, h -> {
+                    throw new RequestTimeoutException(100, "service is slow", null);
+                });
+                assert (false);
+            } catch (RequestTimeoutException e) {
+                //  Expected
+            }
+        }
+        Thread.sleep(50);
+        assert (pool.getReplacements() == 0);
+        assert (created.size() == 1);
+        pool.close();
+    }
+
+    @Test
+    public void testHandleFailures() {
+        assert (!NoSQLHandlePool.isHandleFailure(new RequestTimeoutException(100, "service is slow", null)));
+        assert (NoSQLHandlePool.isHandleFailure(new RequestTimeoutException(100, "no connection",
+                new ConnectException("connection refused"))));
+        assert (NoSQLHandlePool.isHandleFailure(new IllegalStateException("connection reset",
+                new IOException("reset"))));
+        assert (!NoSQLHandlePool.isHandleFailure(new TableNotFoundException("no table")));
+        assert (!NoSQLHandlePool.isHandleFailure(new IllegalArgumentException("bad key")));
+        assert (!NoSQLHandlePool.isHandleFailure(new HttpStatusException(HttpStatus.GATEWAY_TIMEOUT,
+                "Request deadline exceeded")));
+    }
+}
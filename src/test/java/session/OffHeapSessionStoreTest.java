@@ -0,0 +1,126 @@
+package session;
+
+import oracle.nosql.driver.Consistency;
+import oracle.nosql.driver.Version;
+import oracle.nosql.driver.values.ArrayValue;
+import oracle.nosql.driver.values.FieldValue;
+import oracle.nosql.driver.values.MapValue;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class OffHeapSessionStoreTest {
+
+    @Test
+    public void testCreateGetAndPutIfVersion() {
+        OffHeapSessionStore store = new OffHeapSessionStore();
+        SessionStore.WriteResult first = store.create(5, session("julie", 0));
+        SessionStore.WriteResult second = store.create(5, session("sam", 0));
+        assert (first.getUserID() == 1 && second.getUserID() == 2);
+        assert (store.create(6, session("alex", 0)).getUserID() == 1);
+        assert (store.get(5, 3, Consistency.EVENTUAL) == null);
+        assert (store.get(7, 1, Consistency.EVENTUAL) == null);
+
+        SessionRecord read = store.get(5, 1, Consistency.ABSOLUTE);
+        assert (read.getSession().toJson().equals(session("julie", 0).toJson()));
+        Version updated = store.putIfVersion(5, 1, session("julie", 3), read.getVersion());
+        assert (updated != null);
+        //  The version that was read is now stale
+        assert (store.putIfVersion(5, 1, session("julie", 4), read.getVersion()) == null);
+        assert (Arrays.equals(store.get(5, 1, Consistency.ABSOLUTE).getVersion().getBytes(), updated.getBytes()));
+        assert (store.get(5, 1, Consistency.ABSOLUTE).getSession().toJson().equals(session("julie", 3).toJson()));
+        assert (store.putIfVersion(5, 9, session("julie", 3), updated) == null);
+        assert (store.getSessions() == 3);
+    }
+
+    @Test
+    public void testRewritesReuseBlocks() {
+        OffHeapSessionStore store = new OffHeapSessionStore(4096);
+        for (int userID = 1; userID <= 100; userID++) {
+            store.put(userID % 7, userID, session("user" + userID, userID % 5));
+        }
+        long live = store.getLiveBytes();
+        long allocated = store.getOffHeapBytes();
+        for (int i = 0; i < 10; i++) {
+            for (int userID = 1; userID <= 100; userID++) {
+                store.put(userID % 7, userID, session("user" + userID, userID % 5));
+            }
+        }
+        assert (store.getLiveBytes() == live);
+        assert (store.getOffHeapBytes() == allocated);
+        assert (store.getSessions() == 100);
+    }
+
+    @Test
+    public void testQueryByAccountPagesInUserOrder() {
+        OffHeapSessionStore store = new OffHeapSessionStore();
+        for (int userID = 250; userID >= 1; userID--) {
+            store.put(42, userID * 2, session("user" + userID, 1));
+            store.put(43, userID, session("other", 1));
+        }
+        store.put(42, 1000, new ArrayValue());
+
+        List<Integer> userIDs = new ArrayList<>();
+        byte[] continuation = null;
+        int pages = 0;
+        do {
+            SessionStore.UsersPage page = store.queryByAccount(42, 100, continuation);
+            for (MapValue user : page.getUsers()) {
+                MapValue info = user.get(PersistentSessionManager.COL_SESSION).asMap();
+                int userID = info.get("userID").getInt();
+                assert (userID == 1000 ?
+                        info.get(PersistentSessionManager.JSON_ATTR_USER_NAME) == null :
+                        info.getString(PersistentSessionManager.JSON_ATTR_USER_NAME).equals("user" + userID / 2));
+                userIDs.add(userID);
+            }
+            continuation = page.getContinuation();
+            pages++;
+        } while (continuation != null);
+        assert (pages == 3);
+        assert (userIDs.size() == 251);
+        for (int i = 1; i < userIDs.size(); i++) {
+            assert (userIDs.get(i - 1) < userIDs.get(i));
+        }
+        assert (store.queryByAccount(44, 0, null).getUsers().isEmpty());
+    }
+
+    @Test
+    public void testBatchIsAtomic() {
+        OffHeapSessionStore store = new OffHeapSessionStore(4096);
+        List<SessionStore.WriteResult> written = store.batch(9, Arrays.asList(null, 7, null),
+                Arrays.asList(session("a", 1), session("b", 1), session("c", 1)));
+        assert (written.get(0).getUserID() == 1 && written.get(1).getUserID() == 7 &&
+                written.get(2).getUserID() == 8);
+
+        //  A session too big for a slab fails the whole batch
+        StringBuilder noise = new StringBuilder();
+        Random random = new Random(1);
+        for (int i = 0; i < 8000; i++) {
+            noise.append((char) ('!' + random.nextInt(90)));
+        }
+        try {
+            store.batch(9, Arrays.asList(1, null), Arrays.asList(session("d", 1), session(noise.toString(), 1)));
+            assert (false);
+        } catch (SessionStore.BatchFailedException e) {
+            assert (e.getFailedIndex() == 1);
+        }
+        assert (store.getSessions() == 3);
+        assert (store.get(9, 1, Consistency.EVENTUAL).getSession().toJson().equals(session("a", 1).toJson()));
+    }
+
+    /**
+     * @return A session with a user name and some shows
+     */
+    private static FieldValue session(String userName, int shows) {
+        ArrayValue session = new ArrayValue();
+        MapValue user = new MapValue().put(PersistentSessionManager.JSON_ATTR_USER_NAME, userName);
+        session.add(user);
+        for (int show = 0; show < shows; show++) {
+            user.put("show" + show, new MapValue().put("showID", show).put("minWatched", show * 10));
+        }
+        return(session);
+    }
+}
@@ -0,0 +1,24 @@
+package session;
+
+import io.micronaut.http.exceptions.HttpStatusException;
+import org.junit.jupiter.api.Test;
+
+public class OperationDeadlinesTest {
+
+    @Test
+    public void testDeadlinesBoundOperations() {
+        OperationDeadlines deadlines = new OperationDeadlines(1000, 2000, 5000, 15000);
+        assert (deadlines.timeoutMillis(OperationDeadlines.Kind.PUT) == 2000);
+        int timeout = OperationDeadlines.within(System.nanoTime() + 300_000_000L,
+                () -> deadlines.timeoutMillis(OperationDeadlines.Kind.QUERY));
+        assert (timeout > 0 && timeout <= 300);
+        try {
+            OperationDeadlines.within(System.nanoTime() - 1,
+                    () -> deadlines.timeoutMillis(OperationDeadlines.Kind.GET));
+            assert (false);
+        } catch (HttpStatusException e) {
+            assert (e.getStatus().getCode() == 504);
+        }
+        assert (deadlines.timeoutMillis(OperationDeadlines.Kind.GET) == 1000);
+    }
+}
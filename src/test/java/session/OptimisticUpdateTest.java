@@ -0,0 +1,187 @@
+package session;
+
+import io.micronaut.http.HttpStatus;
+import io.micronaut.http.exceptions.HttpStatusException;
+import io.reactivex.subscribers.TestSubscriber;
+import oracle.nosql.driver.Consistency;
+import oracle.nosql.driver.Version;
+import oracle.nosql.driver.values.FieldValue;
+import oracle.nosql.driver.values.JsonOptions;
+import oracle.nosql.driver.values.MapValue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The optimistic read, modify and write behind update, run against a local store.
+ */
+public class OptimisticUpdateTest {
+
+    /**
+     * A store where another writer changes the session just before each of our next few conditional writes,
+     * and where something else can be done while the next EVENTUAL read is in flight.
+     */
+    private static class RacingStore extends OffHeapSessionStore {
+        final AtomicInteger racesLeft = new AtomicInteger();
+        final AtomicInteger conditionalWrites = new AtomicInteger();
+        final AtomicReference<Runnable> duringNextRead = new AtomicReference<>();
+        final AtomicReference<Version> otherWriter = new AtomicReference<>();
+
+        @Override
+        public SessionRecord get(long accountNum, int userID, Consistency consistency) {
+            SessionRecord record = super.get(accountNum, userID, consistency);
+            Runnable during = (consistency == Consistency.EVENTUAL ? duringNextRead.getAndSet(null) : null);
+            if (during != null) {
+                during.run();
+            }
+            return(record);
+        }
+
+        @Override
+        public Version putIfVersion(long accountNum, int userID, FieldValue session, Version matchVersion) {
+            conditionalWrites.incrementAndGet();
+            if (racesLeft.getAndDecrement() > 0) {
+                otherWriter.set(super.put(accountNum, userID, new MapValue().put("userName", "other writer")));
+            }
+            return(super.putIfVersion(accountNum, userID, session, matchVersion));
+        }
+    }
+
+    private RacingStore store;
+    private int userID;
+    private PersistentSessionManager manager;
+
+    @BeforeEach
+    public void setup() {
+        store = new RacingStore();
+        userID = store.create(1L, new MapValue().put("userName", "julie")).getUserID();
+        PersistentSessionManager.sessionStore = store;
+        PersistentSessionManager.optimisticUpdates = true;
+        PersistentSessionManager.updateMaxRetries = 2;
+        PersistentSessionManager.updateRetryBackoffMs = 0;
+        manager = new PersistentSessionManager();
+    }
+
+    @AfterEach
+    public void cleanup() {
+        PersistentSessionManager.sessionStore = null;
+        PersistentSessionManager.sessionCache = null;
+        PersistentSessionManager.changeHub = null;
+        PersistentSessionManager.optimisticUpdates = PersistentSessionManager.DEFAULT_OPTIMISTIC_UPDATES;
+        PersistentSessionManager.updateMaxRetries = PersistentSessionManager.DEFAULT_UPDATE_MAX_RETRIES;
+        PersistentSessionManager.updateRetryBackoffMs = PersistentSessionManager.DEFAULT_UPDATE_RETRY_BACKOFF_MS;
+    }
+
+    private static FieldValue watched(FieldValue session) {
+        return(new MapValue().put("userName", session.asMap().getString("userName")).put("minWatched", 5));
+    }
+
+    @Test
+    public void testConflictIsRetried() {
+        ConflictStats stats = PersistentSessionManager.conflictStats;
+        long conflicts = stats.getConflicts();
+        long retries = stats.getRetries();
+        store.racesLeft.set(2);
+
+        SessionRecord written = manager.updateByPK(1L, userID, null, OptimisticUpdateTest::watched);
+        assert (store.conditionalWrites.get() == 3);
+        //  The last attempt was applied to what the other writer wrote
+        assert (written.getSession().asMap().getString("userName").equals("other writer"));
+        FieldValue stored = store.get(1L, userID, Consistency.ABSOLUTE).getSession();
+        assert (stored.asMap().getInt("minWatched") == 5);
+        assert (stats.getConflicts() - conflicts == 2);
+        assert (stats.getRetries() - retries == 2);
+    }
+
+    @Test
+    public void testConflictIsReportedWhenRetriesAreExhausted() {
+        ConflictStats stats = PersistentSessionManager.conflictStats;
+        long exhausted = stats.getExhausted();
+        store.racesLeft.set(100);
+        try {
+            manager.updateByPK(1L, userID, null, OptimisticUpdateTest::watched);
+            assert (false);
+        } catch (HttpStatusException e) {
+            assert (e.getStatus() == HttpStatus.CONFLICT);
+        }
+        assert (store.conditionalWrites.get() == 3);
+        assert (stats.getExhausted() - exhausted == 1);
+        assert (store.get(1L, userID, Consistency.ABSOLUTE).getSession().asMap().get("minWatched") == null);
+    }
+
+    @Test
+    public void testStaleETagIsRefused() {
+        Version seen = store.get(1L, userID, Consistency.ABSOLUTE).getVersion();
+        store.put(1L, userID, new MapValue().put("userName", "other writer"));
+        try {
+            manager.updateByPK(1L, userID, SessionETag.of(seen), OptimisticUpdateTest::watched);
+            assert (false);
+        } catch (HttpStatusException e) {
+            assert (e.getStatus() == HttpStatus.PRECONDITION_FAILED);
+        }
+        assert (store.conditionalWrites.get() == 0);
+    }
+
+    @Test
+    public void testConflictWithETagIsNotRetried() {
+        Version seen = store.get(1L, userID, Consistency.ABSOLUTE).getVersion();
+        store.racesLeft.set(1);
+        try {
+            manager.updateByPK(1L, userID, SessionETag.of(seen), OptimisticUpdateTest::watched);
+            assert (false);
+        } catch (HttpStatusException e) {
+            assert (e.getStatus() == HttpStatus.PRECONDITION_FAILED);
+        }
+        assert (store.conditionalWrites.get() == 1);
+    }
+
+    @Test
+    public void testMatchingETagIsWritten() {
+        Version seen = store.get(1L, userID, Consistency.ABSOLUTE).getVersion();
+        SessionRecord written = manager.updateByPK(1L, userID, SessionETag.of(seen),
+                OptimisticUpdateTest::watched);
+        assert (!SessionETag.matches(SessionETag.of(seen), written.getVersion()));
+        assert (store.get(1L, userID, Consistency.ABSOLUTE).getSession().asMap().getInt("minWatched") == 5);
+    }
+
+    @Test
+    public void testSlowReadIsNotCachedOverNewerWrite() {
+        SessionCache cache = new SessionCache(100, 60000);
+        PersistentSessionManager.sessionCache = cache;
+        //  Our session is updated while the read for the next update is in flight
+        store.duringNextRead.set(() -> manager.updateByPK(1L, userID, null, OptimisticUpdateTest::watched));
+        AtomicReference<SessionRecord> cachedWhenApplied = new AtomicReference<>();
+        manager.updateByPK(1L, userID, null, session -> {
+            cachedWhenApplied.compareAndSet(null, cache.get(1L, userID));
+            return(new MapValue().put("userName", "julie").put("minWatched", 10));
+        });
+        //  The read finished after the write, what it found didn't replace the written session
+        assert (cache.getStaleLoads() == 1);
+        assert (cachedWhenApplied.get().getSession().asMap().getInt("minWatched") == 5);
+        //  The update was applied to the stale read, so its conditional write failed and it was retried
+        assert (store.conditionalWrites.get() == 3);
+        assert (cache.get(1L, userID).getSession().asMap().getInt("minWatched") == 10);
+    }
+
+    @Test
+    public void testPatchNamesTheSessionItApplies() {
+        SessionChangeHub hub = new SessionChangeHub(4, 10, 0);
+        PersistentSessionManager.changeHub = hub;
+        TestSubscriber<SessionChangeHub.Change> subscriber = hub.subscribe(1L, userID).test();
+        store.racesLeft.set(1);
+
+        SessionRecord written = manager.updateByPK(1L, userID, null, OptimisticUpdateTest::watched);
+        //  Only the write that succeeded is sent, as a patch of what the other writer wrote
+        subscriber.assertValueCount(1);
+        SessionChangeHub.Change change = subscriber.values().get(0);
+        assert (change.getType() == SessionChangeHub.Type.PATCH);
+        assert (change.getETag().equals(SessionETag.of(written.getVersion())));
+        MapValue patch = FieldValue.createFromJson(change.getJson(), new JsonOptions()).asMap();
+        assert (patch.getString(SessionChangeHub.PATCH_ATTR_BASE_ETAG)
+                .equals(SessionETag.of(store.otherWriter.get())));
+        assert (patch.get(SessionChangeHub.PATCH_ATTR_PATCH).asMap().getInt("minWatched") == 5);
+    }
+}
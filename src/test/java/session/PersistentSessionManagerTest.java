@@ -23,9 +23,10 @@ import javax.json.JsonArray;
 import javax.json.JsonObject;
 import javax.json.JsonReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.StringReader;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.Map;
 
 import static session.PersistentSessionManager.TABLE_NAME;
@@ -95,10 +96,9 @@ public class PersistentSessionManagerTest extends Specification {
         }
         File[] datafiles = pathF.listFiles();
         for (File f : datafiles) {
-            FileReader reader = new FileReader(f);
-            char[] jsonText = new char[(int) f.length()];
-            reader.read(jsonText, 0, (int) f.length());
-            dataStore.put(new PutRequest().setTableName(TABLE_NAME).setValueFromJson(new String(jsonText),
+            //  Decode the whole file, its length is in bytes and not characters
+            String jsonText = new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8);
+            dataStore.put(new PutRequest().setTableName(TABLE_NAME).setValueFromJson(jsonText,
                     new JsonOptions()));
         }
     }
@@ -0,0 +1,152 @@
+package session;
+
+import oracle.nosql.driver.values.FieldValue;
+import oracle.nosql.driver.values.JsonOptions;
+import org.junit.jupiter.api.Test;
+
+import javax.json.Json;
+import javax.json.JsonValue;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+public class ProgressCoalescerTest {
+
+    private static final String SESSION =
+            "{\"showID\":2,\"seriesInfo\":{\"seasonNum\":1,\"episode\":{\"minWatched\":3,\"lastWatched\":\"a\"}}}";
+
+    @Test
+    public void testPatchesForOneSessionAreCombined() {
+        List<List<FieldValue>> flushed = new ArrayList<>();
+        ProgressCoalescer coalescer = new ProgressCoalescer((accountNum, userID, patches) -> {
+            assert (accountNum == 3 && userID == 2001);
+            flushed.add(patches);
+        }, 60000, 1000, 3);
+        for (int i = 1; i <= 10; i++) {
+            coalescer.submit(3, 2001, parse("{\"seriesInfo\":{\"episode\":{\"minWatched\":" + i + "}}}"));
+        }
+        coalescer.shutdown();
+
+        assert (flushed.size() == 1);
+        assert (flushed.get(0).size() == 1);
+        assert (coalescer.getPatchesReceived() == 10);
+        assert (coalescer.getCoalescingRatio() == 10.0);
+        JsonValue merged = applyAll(SESSION, flushed.get(0));
+        assert (merged.asJsonObject().getJsonObject("seriesInfo").getJsonObject("episode")
+                .getInt("minWatched") == 10);
+    }
+
+    @Test
+    public void testFailedFlushIsRetriedAheadOfNewerPatches() {
+        List<List<FieldValue>> flushed = new ArrayList<>();
+        int[] calls = {0};
+        ProgressCoalescer coalescer = new ProgressCoalescer((accountNum, userID, patches) -> {
+            if (calls[0]++ == 0) {
+                throw new IllegalStateException("Database unavailable");
+            }
+            flushed.add(patches);
+        }, 60000, 1000, 3);
+        coalescer.submit(3, 2001, parse("{\"seriesInfo\":{\"episode\":{\"minWatched\":5}}}"));
+        coalescer.flush(true);
+        assert (coalescer.getFlushFailures() == 1);
+        assert (coalescer.getPendingSessions() == 1);
+        coalescer.submit(3, 2001, parse("{\"seriesInfo\":{\"episode\":{\"lastWatched\":\"b\"}}}"));
+        coalescer.shutdown();
+
+        assert (flushed.size() == 1);
+        assert (coalescer.getPatchesFlushed() == 2);
+        assert (coalescer.getPatchesDropped() == 0);
+        JsonValue merged = applyAll(SESSION, flushed.get(0));
+        JsonValue episode = merged.asJsonObject().getJsonObject("seriesInfo").getJsonObject("episode");
+        assert (episode.asJsonObject().getInt("minWatched") == 5);
+        assert (episode.asJsonObject().getString("lastWatched").equals("b"));
+    }
+
+    @Test
+    public void testPatchesAreDroppedAfterMaxAttempts() {
+        int[] calls = {0};
+        ProgressCoalescer coalescer = new ProgressCoalescer((accountNum, userID, patches) -> {
+            calls[0]++;
+            throw new IllegalStateException("Database unavailable");
+        }, 60000, 1000, 3);
+        coalescer.submit(3, 2001, parse("{\"showID\":2}"));
+        coalescer.submit(3, 2001, parse("{\"showID\":3}"));
+        coalescer.shutdown();
+
+        assert (calls[0] == 3);
+        assert (coalescer.getFlushFailures() == 3);
+        assert (coalescer.getPatchesDropped() == 2);
+        assert (coalescer.getPendingSessions() == 0);
+    }
+
+    @Test
+    public void testNewSessionsAreRefusedWhenFull() throws Exception {
+        CountDownLatch flushing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ProgressCoalescer coalescer = new ProgressCoalescer((accountNum, userID, patches) -> {
+            flushing.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, 60000, 1, 3);
+        try {
+            //  Fills the coalescer, the early flush takes the session and then holds the flusher
+            assert (coalescer.submit(3, 1, parse("{\"showID\":1}")));
+            flushing.await();
+            assert (coalescer.submit(3, 2, parse("{\"showID\":1}")));
+            assert (!coalescer.submit(3, 3, parse("{\"showID\":1}")));
+            //  A session that is already waiting still takes patches
+            assert (coalescer.submit(3, 2, parse("{\"showID\":2}")));
+            assert (coalescer.getPendingSessions() == 1);
+            assert (coalescer.getPatchesRefused() == 1);
+            assert (coalescer.getPatchesReceived() == 3);
+        } finally {
+            release.countDown();
+            coalescer.shutdown();
+        }
+    }
+
+    @Test
+    public void testComposeMatchesSequentialApply() {
+        String[][] cases = {
+                {"{\"a\":{\"b\":1}}", "{\"a\":{\"c\":2}}"},
+                {"{\"a\":1}", "{\"a\":null}"},
+                {"{\"a\":{\"b\":null}}", "{\"a\":{\"x\":{\"c\":1}}}"},
+                {"{\"seriesInfo\":null}", "{\"showID\":5}"},
+                {"{\"a\":[1,2]}", "{\"a\":[3]}"},
+        };
+        for (String[] c : cases) {
+            List<FieldValue> sequential = new ArrayList<>();
+            sequential.add(parse(c[0]));
+            sequential.add(parse(c[1]));
+            FieldValue first = parse(c[0]);
+            FieldValue second = parse(c[1]);
+            assert (MergePatch.canCompose(first, second));
+            List<FieldValue> composed = new ArrayList<>();
+            composed.add(MergePatch.compose(first, second));
+            assert (applyAll(SESSION, sequential).equals(applyAll(SESSION, composed))) : c[0] + " + " + c[1];
+        }
+    }
+
+    @Test
+    public void testReplacementByObjectIsNotComposed() {
+        assert (!MergePatch.canCompose(parse("{\"seriesInfo\":null}"), parse("{\"seriesInfo\":{\"a\":1}}")));
+        assert (!MergePatch.canCompose(parse("{\"a\":5}"), parse("{\"a\":{\"b\":1}}")));
+    }
+
+    private static FieldValue parse(String json) {
+        return(FieldValue.createFromJson(json, new JsonOptions()));
+    }
+
+    private static JsonValue applyAll(String target, List<FieldValue> patches) {
+        JsonValue value = Json.createReader(new StringReader(target)).readValue();
+        for (FieldValue patch : patches) {
+            value = Json.createMergePatch(Json.createReader(new StringReader(patch.toJson())).readValue())
+                    .apply(value);
+        }
+        return(value);
+    }
+}
@@ -0,0 +1,111 @@
+package session;
+
+import oracle.nosql.driver.Consistency;
+import oracle.nosql.driver.values.ArrayValue;
+import oracle.nosql.driver.values.DoubleValue;
+import oracle.nosql.driver.values.FieldValue;
+import oracle.nosql.driver.values.IntegerValue;
+import oracle.nosql.driver.values.LongValue;
+import oracle.nosql.driver.values.MapValue;
+import oracle.nosql.driver.values.StringValue;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class SessionBatchWriterTest {
+
+    /**
+     * A store that remembers the chunks it was asked to write.
+     */
+    private static class RecordingStore extends OffHeapSessionStore {
+        final List<Long> accounts = new ArrayList<>();
+        final List<Integer> sizes = new ArrayList<>();
+
+        @Override
+        public List<WriteResult> batch(long accountNum, List<Integer> userIDs, List<FieldValue> sessions) {
+            accounts.add(accountNum);
+            sizes.add(sessions.size());
+            return(super.batch(accountNum, userIDs, sessions));
+        }
+    }
+
+    private static MapValue item(FieldValue userID, String userName) {
+        MapValue item = new MapValue().put(SessionBatchWriter.BATCH_ATTR_SESSION,
+                new MapValue().put(PersistentSessionManager.JSON_ATTR_USER_NAME, userName));
+        return(userID != null ? item.put(SessionBatchWriter.BATCH_ATTR_USER_ID, userID) : item);
+    }
+
+    private static ArrayValue items(int n) {
+        ArrayValue items = new ArrayValue(n);
+        for (int i = 0; i < n; i++) {
+            items.add(item(null, "user" + i));
+        }
+        return(items);
+    }
+
+    @Test
+    public void testBatchesAreChunked() {
+        RecordingStore store = new RecordingStore();
+        ArrayValue results = new SessionBatchWriter(store, null, null, null).write(7L, items(120));
+        assert (results.size() == 120);
+        for (FieldValue result : results) {
+            assert (result.asMap().get(SessionBatchWriter.BATCH_ATTR_USER_ID) != null);
+        }
+        assert (store.sizes.size() == 3);
+        assert (store.sizes.get(0) == SessionBatchWriter.MAX_OPS_PER_REQUEST);
+        assert (store.sizes.get(1) == SessionBatchWriter.MAX_OPS_PER_REQUEST);
+        assert (store.sizes.get(2) == 20);
+        for (long accountNum : store.accounts) {
+            assert (accountNum == 7L);
+        }
+    }
+
+    @Test
+    public void testSessionsAreWrittenToTheirAccount() {
+        RecordingStore store = new RecordingStore();
+        SessionBatchWriter writer = new SessionBatchWriter(store, null, null, null);
+        ArrayValue first = writer.write(1L, new ArrayValue().add(item(null, "julie")));
+        ArrayValue second = writer.write(2L, new ArrayValue().add(item(null, "jim"))
+                .add(item(new StringValue("500"), "jane")));
+        assert (store.accounts.size() == 2);
+        assert (store.accounts.get(0) == 1L && store.accounts.get(1) == 2L);
+
+        int julie = first.get(0).asMap().getInt(SessionBatchWriter.BATCH_ATTR_USER_ID);
+        assert (store.get(1L, julie, Consistency.ABSOLUTE).getSession().asMap()
+                .getString(PersistentSessionManager.JSON_ATTR_USER_NAME).equals("julie"));
+        //  A user ID given as text, as create returns it
+        assert (second.get(1).asMap().getInt(SessionBatchWriter.BATCH_ATTR_USER_ID) == 500);
+        assert (store.get(2L, 500, Consistency.ABSOLUTE).getSession().asMap()
+                .getString(PersistentSessionManager.JSON_ATTR_USER_NAME).equals("jane"));
+    }
+
+    @Test
+    public void testBadRowFailsOnlyItsChunk() {
+        RecordingStore store = new RecordingStore();
+        ArrayValue items = items(60);
+        items.set(55, item(new DoubleValue(1.5), "bad"));
+        ArrayValue results = new SessionBatchWriter(store, null, null, null).write(7L, items);
+
+        assert (results.size() == 60);
+        assert (store.sizes.size() == 1 && store.sizes.get(0) == SessionBatchWriter.MAX_OPS_PER_REQUEST);
+        for (int i = 0; i < 50; i++) {
+            assert (results.get(i).asMap().get(SessionBatchWriter.BATCH_ATTR_USER_ID) != null);
+        }
+        for (int i = 50; i < 60; i++) {
+            String error = results.get(i).asMap().getString(SessionBatchWriter.BATCH_ATTR_ERROR);
+            assert (error != null);
+            assert (i == 55 ? error.contains(SessionBatchWriter.BATCH_ATTR_USER_ID) : error.startsWith("Aborted"));
+        }
+    }
+
+    @Test
+    public void testParseUserID() {
+        assert (SessionBatchWriter.parseUserID(new IntegerValue(28)) == 28);
+        assert (SessionBatchWriter.parseUserID(new StringValue(" 28 ")) == 28);
+        assert (SessionBatchWriter.parseUserID(new LongValue(28L)) == 28);
+        assert (SessionBatchWriter.parseUserID(new LongValue(1L << 40)) == null);
+        assert (SessionBatchWriter.parseUserID(new StringValue("julie")) == null);
+        assert (SessionBatchWriter.parseUserID(new DoubleValue(1.5)) == null);
+    }
+}
@@ -0,0 +1,142 @@
+package session;
+
+import oracle.nosql.driver.values.FieldValue;
+import oracle.nosql.driver.values.JsonOptions;
+import oracle.nosql.driver.values.MapValue;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SessionBulkLoaderTest {
+
+    @Test
+    public void testReaderSplitsRowsOfEveryLayout() throws Exception {
+        Path file = Files.createTempFile("sessions", ".json");
+        try {
+            String json = "\ufeff[{\"account_number\": 1, " +
+                    "\"session_info\": [{\"userName\": \"Am\u00e9lie\"}]},\n" +
+                    "{\"account_number\": 2, \"session_info\": [{\"showName\": " +
+                    "\"\u00dcn\u00efc\u00f6d\u00e9 \\\"}]\\\" \ud83c\udfac\"}]}]\n" +
+                    "{\"account_number\": 3, \"session_info\": []}\n";
+            Files.write(file, json.getBytes(StandardCharsets.UTF_8));
+
+            //  A tiny region makes rows, and the characters in them, straddle regions
+            SessionFileReader reader = new SessionFileReader(file, 0, 7);
+            MapValue first = reader.next();
+            assert (first.get("session_info").asArray().get(0).asMap().getString("userName")
+                    .equals("Am\u00e9lie"));
+            long afterFirst = reader.getPosition();
+            MapValue second = reader.next();
+            assert (second.get("session_info").asArray().get(0).asMap().getString("showName")
+                    .equals("\u00dcn\u00efc\u00f6d\u00e9 \"}]\" \ud83c\udfac"));
+            assert (reader.next().get("account_number").getInt() == 3);
+            assert (reader.next() == null);
+            assert (reader.getPosition() == reader.getSize());
+            reader.close();
+
+            //  Reading can start again after any row
+            reader = new SessionFileReader(file, afterFirst, 7);
+            assert (reader.next().get("account_number").getInt() == 2);
+            reader.close();
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testBatchesByAccountAndResumesFromCheckpoint() throws Exception {
+        Path file = Files.createTempFile("sessions", ".jsonl");
+        Path checkpoint = Files.createTempFile("sessions", ".checkpoint");
+        Files.delete(checkpoint);
+        try {
+            StringBuilder json = new StringBuilder();
+            for (int userID = 1; userID <= 240; userID++) {
+                json.append("{\"account_number\": ").append(userID % 3).append(", \"user_id\": ").append(userID)
+                        .append(", \"session_info\": [{\"userName\": \"user").append(userID).append("\"}]}\n");
+            }
+            Files.write(file, json.toString().getBytes(StandardCharsets.UTF_8));
+            List<Path> files = Collections.singletonList(file);
+
+            //  The third batch fails
+            Map<String, MapValue> table = new ConcurrentHashMap<>();
+            AtomicInteger calls = new AtomicInteger();
+            SessionBulkLoader.Sink failing = (accountNum, rows) -> {
+                if (calls.incrementAndGet() == 3) {
+                    throw new IllegalStateException("throttled");
+                }
+                return(write(table, accountNum, rows));
+            };
+            try {
+                new SessionBulkLoader(failing, 1, 0, checkpoint).load(files, 60000);
+                assert (false);
+            } catch (Exception e) {
+                assert (e.getCause().getMessage().equals("throttled"));
+            }
+            assert (table.size() == 100);
+            long offset = FieldValue.createFromJson(new String(Files.readAllBytes(checkpoint),
+                    StandardCharsets.UTF_8), new JsonOptions()).asMap().get(file.toAbsolutePath().toString())
+                    .getLong();
+            assert (offset > 0 && offset < Files.size(file));
+
+            SessionBulkLoader loader = new SessionBulkLoader((accountNum, rows) -> write(table, accountNum, rows),
+                    2, 0, checkpoint);
+            loader.load(files, 60000);
+            assert (table.size() == 240);
+            assert (loader.getRowsWritten() <= 240 - 100 + SessionBatchWriter.MAX_OPS_PER_REQUEST * 3);
+
+            //  Once finished, the file is skipped
+            loader = new SessionBulkLoader((accountNum, rows) -> write(table, accountNum, rows), 2, 0, checkpoint);
+            loader.load(files, 60000);
+            assert (loader.getRowsWritten() == 0);
+        } finally {
+            Files.delete(file);
+            new File(checkpoint.toString()).delete();
+        }
+    }
+
+    @Test
+    public void testInvalidRowStopsTheImportAtItsOffset() throws Exception {
+        Path file = Files.createTempFile("sessions", ".jsonl");
+        Path checkpoint = Files.createTempFile("sessions", ".checkpoint");
+        Files.delete(checkpoint);
+        try {
+            String first = "{\"account_number\": 1, \"user_id\": \"7\", \"session_info\": []}\n";
+            Files.write(file, (first + "{\"account_number\": 1, \"user_id\": 1.5, \"session_info\": []}\n")
+                    .getBytes(StandardCharsets.UTF_8));
+            Map<String, MapValue> table = new ConcurrentHashMap<>();
+            try {
+                new SessionBulkLoader((accountNum, rows) -> write(table, accountNum, rows), 1, 0, checkpoint)
+                        .load(Collections.singletonList(file), 60000);
+                assert (false);
+            } catch (IOException e) {
+                assert (e.getMessage().contains("offset " + first.length() + " of ")) : e.getMessage();
+            }
+            assert (table.isEmpty());
+            //  The user ID given as text was accepted, as it is by the batch endpoint
+            MapValue row = SessionBulkLoader.tableRow(FieldValue.createFromJson(first, new JsonOptions()).asMap(),
+                    0, file);
+            assert (row.getInt(PersistentSessionManager.COL_USER_ID) == 7);
+        } finally {
+            Files.delete(file);
+            new File(checkpoint.toString()).delete();
+        }
+    }
+
+    private static int write(Map<String, MapValue> table, long accountNum, List<MapValue> rows) {
+        assert (rows.size() <= SessionBatchWriter.MAX_OPS_PER_REQUEST);
+        for (MapValue row : rows) {
+            assert (row.get(PersistentSessionManager.COL_ACCOUNT_NUMBER).getLong() == accountNum);
+            table.put(accountNum + "/" + row.get(PersistentSessionManager.COL_USER_ID).getInt(), row);
+        }
+        return(rows.size());
+    }
+}
@@ -0,0 +1,71 @@
+package session;
+
+import oracle.nosql.driver.values.StringValue;
+import org.junit.jupiter.api.Test;
+
+public class SessionCacheTest {
+
+    @Test
+    public void testHitAndMiss() {
+        SessionCache cache = new SessionCache(100, 60000);
+        assert (cache.get(1, 1) == null);
+        cache.put(1, 1, new SessionRecord(new StringValue("a"), null));
+        assert (cache.get(1, 1).getSession().getString().equals("a"));
+        assert (cache.get(1, 2) == null);
+        assert (cache.getHits() == 1);
+        assert (cache.getMisses() == 2);
+    }
+
+    @Test
+    public void testWriteThroughReplacesEntry() {
+        SessionCache cache = new SessionCache(100, 60000);
+        cache.put(7, 3, new SessionRecord(new StringValue("old"), null));
+        cache.put(7, 3, new SessionRecord(new StringValue("new"), null));
+        assert (cache.get(7, 3).getSession().getString().equals("new"));
+        cache.invalidate(7, 3);
+        assert (cache.get(7, 3) == null);
+    }
+
+    @Test
+    public void testBoundedSize() {
+        SessionCache cache = new SessionCache(32, 60000);
+        for (int i = 0; i < 1000; i++) {
+            cache.put(i, i, new SessionRecord(new StringValue("s" + i), null));
+        }
+        assert (cache.size() <= 32);
+        assert (cache.getEvictions() >= 1000 - 32);
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        SessionCache cache = new SessionCache(10, 1);
+        cache.put(1, 1, new SessionRecord(new StringValue("a"), null));
+        Thread.sleep(5);
+        assert (cache.get(1, 1) == null);
+        assert (cache.getExpirations() == 1);
+    }
+
+    @Test
+    public void testLoadDoesNotReplaceNewerWrite() {
+        SessionCache cache = new SessionCache(100, 60000);
+        //  A read starts, a write finishes, then the read finishes with what it found before the write
+        long since = cache.beginLoad();
+        cache.put(7, 3, new SessionRecord(new StringValue("written"), null));
+        assert (!cache.load(7, 3, new SessionRecord(new StringValue("read"), null), since));
+        assert (cache.get(7, 3).getSession().getString().equals("written"));
+        assert (cache.getStaleLoads() == 1);
+
+        //  The same for a write that invalidated the session
+        since = cache.beginLoad();
+        cache.invalidate(7, 3);
+        assert (!cache.load(7, 3, new SessionRecord(new StringValue("read"), null), since));
+        assert (cache.get(7, 3) == null);
+
+        //  A read that started after the write is installed
+        since = cache.beginLoad();
+        assert (cache.load(7, 3, new SessionRecord(new StringValue("read"), null), since));
+        assert (cache.get(7, 3).getSession().getString().equals("read"));
+        //  As is a read of a session no one wrote
+        assert (cache.load(7, 4, new SessionRecord(new StringValue("other"), null), 0));
+    }
+}
@@ -0,0 +1,88 @@
+package session;
+
+import io.micronaut.http.exceptions.HttpStatusException;
+import io.reactivex.exceptions.MissingBackpressureException;
+import io.reactivex.subscribers.TestSubscriber;
+import oracle.nosql.driver.Version;
+import oracle.nosql.driver.values.FieldValue;
+import oracle.nosql.driver.values.JsonOptions;
+import oracle.nosql.driver.values.MapValue;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+public class SessionChangeHubTest {
+
+    private static FieldValue parse(String json) {
+        return(FieldValue.createFromJson(json, new JsonOptions()));
+    }
+
+    @Test
+    public void testChangesGoToTheSessionsSubscribers() {
+        SessionChangeHub hub = new SessionChangeHub(4, 10, 0);
+        TestSubscriber<SessionChangeHub.Change> first = hub.subscribe(1L, 2).test();
+        TestSubscriber<SessionChangeHub.Change> second = hub.subscribe(1L, 2).test();
+        TestSubscriber<SessionChangeHub.Change> other = hub.subscribe(1L, 3).test();
+        assert (hub.getSubscribers() == 3);
+
+        Version base = Version.createVersion(new byte[] {6});
+        Version version = Version.createVersion(new byte[] {7});
+        hub.publishPatch(1L, 2, parse("{\"minWatched\":40}"), base, version);
+        for (TestSubscriber<SessionChangeHub.Change> subscriber : Arrays.asList(first, second)) {
+            subscriber.assertValueCount(1);
+            SessionChangeHub.Change change = subscriber.values().get(0);
+            assert (change.getType() == SessionChangeHub.Type.PATCH);
+            MapValue patch = parse(change.getJson()).asMap();
+            assert (patch.getString(SessionChangeHub.PATCH_ATTR_BASE_ETAG).equals(SessionETag.of(base)));
+            assert (patch.get(SessionChangeHub.PATCH_ATTR_PATCH).asMap().getInt("minWatched") == 40);
+            assert (change.getETag().equals(SessionETag.of(version)));
+        }
+        other.assertValueCount(0);
+        assert (hub.getPublished() == 1);
+        assert (hub.getDelivered() == 2);
+    }
+
+    @Test
+    public void testCancelledSubscribersAreForgotten() {
+        SessionChangeHub hub = new SessionChangeHub(4, 10, 0);
+        TestSubscriber<SessionChangeHub.Change> subscriber = hub.subscribe(1L, 2).test();
+        assert (hub.hasSubscribers(1L, 2));
+        subscriber.cancel();
+        assert (!hub.hasSubscribers(1L, 2));
+        assert (hub.getSubscribers() == 0);
+        hub.publishSession(1L, 2, parse("{}"), null);
+        assert (hub.getPublished() == 0);
+    }
+
+    @Test
+    public void testSlowSubscribersAreDropped() {
+        SessionChangeHub hub = new SessionChangeHub(2, 10, 0);
+        TestSubscriber<SessionChangeHub.Change> slow = hub.subscribe(1L, 2).test(0);
+        for (int i = 0; i < 3; i++) {
+            hub.publishSession(1L, 2, parse("{\"minWatched\":" + i + "}"), null);
+        }
+        slow.assertError(MissingBackpressureException.class);
+        assert (hub.getDropped() == 1);
+        assert (!hub.hasSubscribers(1L, 2));
+    }
+
+    @Test
+    public void testSubscribersAreLimited() {
+        SessionChangeHub hub = new SessionChangeHub(2, 1, 0);
+        hub.subscribe(1L, 2).test();
+        hub.subscribe(1L, 3).test().assertError(HttpStatusException.class);
+        assert (hub.getSubscribers() == 1);
+    }
+
+    @Test
+    public void testHeartbeatsAreSent() throws Exception {
+        SessionChangeHub hub = new SessionChangeHub(4, 10, 10);
+        TestSubscriber<SessionChangeHub.Change> subscriber = hub.subscribe(1L, 2).test();
+        for (int i = 0; i < 500 && subscriber.values().isEmpty(); i++) {
+            Thread.sleep(10);
+        }
+        assert (subscriber.values().get(0).getType() == SessionChangeHub.Type.HEARTBEAT);
+        hub.shutdown();
+        subscriber.assertComplete();
+    }
+}
@@ -0,0 +1,76 @@
+package session;
+
+import oracle.nosql.driver.values.FieldValue;
+import oracle.nosql.driver.values.JsonOptions;
+import oracle.nosql.driver.values.MapValue;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+public class SessionCodecTest {
+
+    @Test
+    public void testRoundTripSampleSessions() throws Exception {
+        File[] samples = new File("data").listFiles((dir, name) -> name.endsWith(".json"));
+        assert (samples != null && samples.length > 0);
+        for (File sample : samples) {
+            String json = new String(Files.readAllBytes(sample.toPath()), StandardCharsets.UTF_8);
+            FieldValue session = FieldValue.createFromJson(json, new JsonOptions()).asMap()
+                    .get(PersistentSessionManager.COL_SESSION);
+            byte[] encoded = SessionCodec.encode(session);
+            assert (SessionCodec.decode(encoded).equals(session));
+            assert (encoded.length < session.toJson().getBytes(StandardCharsets.UTF_8).length);
+        }
+    }
+
+    @Test
+    public void testSummary() {
+        FieldValue session = FieldValue.createFromJson(
+                "[{\"userName\":\"Julie\",\"showID\":1},{\"showID\":2}]", new JsonOptions());
+        MapValue summary = SessionCodec.summary(session);
+        assert (summary.size() == 1);
+        assert (summary.getString(PersistentSessionManager.JSON_ATTR_USER_NAME).equals("Julie"));
+        assert (SessionCodec.summary(new MapValue()).size() == 0);
+    }
+
+    @Test
+    public void testUnknownEncodingIsRejected() {
+        byte[][] invalid = {new byte[0], new byte[] {9, 0, 0, 0, 1, 0},
+                new byte[] {SessionCodec.FORMAT_DEFLATE_JSON, 0, 0, 0, 10, 1, 2, 3}};
+        for (byte[] encoded : invalid) {
+            try {
+                SessionCodec.decode(encoded);
+                assert (false);
+            } catch (IllegalArgumentException e) {
+                //  Expected
+            }
+        }
+    }
+
+    @Test
+    public void testLengthHeaderIsChecked() {
+        byte[][] invalid = {new byte[] {SessionCodec.FORMAT_DEFLATE_JSON, (byte) 0x80, 0, 0, 0, 1},
+                new byte[] {SessionCodec.FORMAT_DEFLATE_JSON, 0x7f, (byte) 0xff, (byte) 0xff, (byte) 0xff, 1}};
+        for (byte[] encoded : invalid) {
+            try {
+                SessionCodec.decode(encoded);
+                assert (false);
+            } catch (IllegalArgumentException e) {
+                assert (e.getMessage().startsWith("Invalid session length"));
+            }
+        }
+
+        //  A header that understates the JSON text is as wrong as one that overstates it
+        byte[] encoded = SessionCodec.encode(FieldValue.createFromJson(
+                "[{\"userName\":\"Julie\",\"showID\":1}]", new JsonOptions()));
+        encoded[4]--;
+        try {
+            SessionCodec.decode(encoded);
+            assert (false);
+        } catch (IllegalArgumentException e) {
+            //  Expected
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package session;
+
+import oracle.nosql.driver.Consistency;
+import oracle.nosql.driver.Version;
+import oracle.nosql.driver.values.MapValue;
+import org.junit.jupiter.api.Test;
+
+public class SessionETagTest {
+
+    @Test
+    public void testTagChangesWithEveryWrite() {
+        OffHeapSessionStore store = new OffHeapSessionStore();
+        SessionStore.WriteResult created = store.create(1L, new MapValue().put("userName", "julie"));
+        Version first = created.getVersion();
+        Version second = store.put(1L, created.getUserID(), new MapValue().put("userName", "julia"));
+        String tag = SessionETag.of(first);
+        assert (tag.startsWith("\"") && tag.endsWith("\""));
+        assert (!tag.equals(SessionETag.of(second)));
+        assert (SessionETag.of(second).equals(SessionETag.of(store.get(1L, created.getUserID(),
+                Consistency.EVENTUAL).getVersion())));
+        assert (SessionETag.of(null) == null);
+    }
+
+    @Test
+    public void testMatchesHeaderLists() {
+        Version version = Version.createVersion(new byte[] {1, 2, 3, 4});
+        String tag = SessionETag.of(version);
+        assert (SessionETag.matches(tag, version));
+        assert (SessionETag.matches("\"other\", " + tag, version));
+        assert (SessionETag.matches("W/" + tag, version));
+        assert (SessionETag.matches("*", version));
+        assert (SessionETag.matches("*", null));
+        assert (!SessionETag.matches("\"other\"", version));
+        assert (!SessionETag.matches(tag, Version.createVersion(new byte[] {1, 2, 3, 5})));
+        assert (!SessionETag.matches(tag, null));
+        assert (!SessionETag.matches(null, version));
+    }
+}
@@ -0,0 +1,109 @@
+package session;
+
+import oracle.nosql.driver.values.ArrayValue;
+import oracle.nosql.driver.values.FieldValue;
+import oracle.nosql.driver.values.JsonOptions;
+import oracle.nosql.driver.values.MapValue;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+public class SessionHistoryTest {
+
+    //  The shape of the session documents in data/*.json, the movie is finished, one episode is not
+    private static final String SESSION = "[" +
+            "{\"userName\":\"Julie\",\"showName\":\"The Wonder Hamster\",\"showID\":1,\"seriesInfo\":[" +
+            "{\"seasonNum\":null,\"episodes\":[{\"episodeID\":null,\"lengthMin\":126,\"minWatched\":126," +
+            "\"lastWatched\":\"2020-03-20T18:25:51\"}]}]}," +
+            "{\"showName\":\"Call My Agent\",\"showID\":2,\"seriesInfo\":[" +
+            "{\"seasonNum\":1,\"episodes\":[" +
+            "{\"episodeID\":1,\"lengthMin\":55,\"minWatched\":55,\"lastWatched\":\"2020-03-24T20:05:00\"}," +
+            "{\"episodeID\":2,\"lengthMin\":52,\"minWatched\":31,\"lastWatched\":\"2020-03-25T21:10:00\"}]}]}]";
+
+    @Test
+    public void testFinishedEpisodesAreMoved() {
+        FieldValue session = FieldValue.createFromJson(SESSION, new JsonOptions());
+        String before = session.toJson();
+        SessionHistory.Split split = SessionHistory.split(session, 10);
+
+        List<MapValue> cold = split.getCold();
+        assert (cold.size() == 2);
+        assert (cold.get(0).getInt(SessionHistory.COL_SHOW_ID) == 1);
+        assert (cold.get(0).getString(SessionHistory.COL_EPISODE_KEY).equals("-/-"));
+        assert (cold.get(1).getString(SessionHistory.COL_EPISODE_KEY).equals("1/1"));
+        MapValue entry = cold.get(1).get(SessionHistory.COL_ENTRY).asMap();
+        assert (entry.get("show").asMap().getString("showName").equals("Call My Agent"));
+        assert (entry.get("show").asMap().get("seriesInfo") == null);
+        assert (entry.get("season").asMap().getInt("seasonNum") == 1);
+        assert (entry.get("episode").asMap().getInt("episodeID") == 1);
+
+        ArrayValue hot = split.getHot().asArray();
+        assert (hot.size() == 2);
+        assert (hot.get(0).asMap().getString("userName").equals("Julie"));
+        assert (hot.get(0).asMap().get("seriesInfo").asArray().get(0).asMap().get("episodes").asArray()
+                .size() == 0);
+        ArrayValue episodes = hot.get(1).asMap().get("seriesInfo").asArray().get(0).asMap().get("episodes")
+                .asArray();
+        assert (episodes.size() == 1 && episodes.get(0).asMap().getInt("episodeID") == 2);
+
+        //  The session passed in is untouched and compacting again moves nothing
+        assert (session.toJson().equals(before));
+        assert (SessionHistory.split(split.getHot(), 10).getCold().isEmpty());
+    }
+
+    @Test
+    public void testOlderShowsAreMoved() {
+        FieldValue session = FieldValue.createFromJson(SESSION, new JsonOptions());
+        SessionHistory.Split split = SessionHistory.split(session, 1);
+
+        //  Only the most recently watched show stays, and it takes the user's name with it
+        ArrayValue hot = split.getHot().asArray();
+        assert (hot.size() == 1);
+        assert (hot.get(0).asMap().getInt("showID") == 2);
+        assert (hot.get(0).asMap().getString("userName").equals("Julie"));
+        assert (split.getCold().size() == 2);
+        MapValue movie = split.getCold().get(0).get(SessionHistory.COL_ENTRY).asMap();
+        assert (movie.get("show").asMap().get("userName") == null);
+    }
+
+    @Test
+    public void testUnrecognizedSessionsAreKept() {
+        FieldValue session = FieldValue.createFromJson("{\"userName\":\"Julie\"}", new JsonOptions());
+        SessionHistory.Split split = SessionHistory.split(session, 1);
+        assert (split.getHot() == session);
+        assert (split.getCold().isEmpty());
+
+        session = FieldValue.createFromJson("[{\"showName\":\"No ID\",\"seriesInfo\":[]}]", new JsonOptions());
+        split = SessionHistory.split(session, 0);
+        assert (split.getHot().asArray().size() == 1);
+        assert (split.getCold().isEmpty());
+    }
+
+    @Test
+    public void testNeedsCompaction() {
+        FieldValue session = FieldValue.createFromJson(SESSION, new JsonOptions());
+        assert (SessionHistory.needsCompaction(session, 10));
+        //  Once the finished episodes are gone only too many shows need compacting
+        FieldValue compacted = SessionHistory.split(session, 10).getHot();
+        assert (!SessionHistory.needsCompaction(compacted, 10));
+        assert (!SessionHistory.needsCompaction(compacted, 2));
+        assert (SessionHistory.needsCompaction(compacted, 1));
+        assert (!SessionHistory.needsCompaction(FieldValue.createFromJson("{\"userName\":\"Julie\"}",
+                new JsonOptions()), 0));
+        assert (!SessionHistory.needsCompaction(null, 0));
+    }
+
+    @Test
+    public void testShowsWithoutIntegerIDsAreKept() {
+        String[] showIDs = {"\"tt0123\"", "1.5", "8589934592"};
+        for (String showID : showIDs) {
+            FieldValue session = FieldValue.createFromJson(SESSION.replace("\"showID\":1,", "\"showID\":" +
+                    showID + ","), new JsonOptions());
+            SessionHistory.Split split = SessionHistory.split(session, 10);
+            //  Only the finished episode of the show with an integer ID is moved
+            assert (split.getCold().size() == 1) : showID;
+            assert (split.getCold().get(0).getInt(SessionHistory.COL_SHOW_ID) == 2);
+            assert (split.getHot().asArray().get(0).toJson().equals(session.asArray().get(0).toJson()));
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package session;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import oracle.nosql.driver.RetryHandler;
+import oracle.nosql.driver.RetryableException;
+import oracle.nosql.driver.ThrottlingException;
+import oracle.nosql.driver.ops.Request;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+
+public class SessionMetricsTest {
+
+    @Test
+    public void testEndpointsAreTimed() throws Exception {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        SessionMetrics metrics = new SessionMetrics(registry);
+        SessionRequestExecutor executor = new SessionRequestExecutor(true, 1, 1, metrics);
+        try {
+            assert (executor.submit(SessionMetrics.Endpoint.GET_SESSION, () -> "ok").get().equals("ok"));
+            CompletableFuture<String> failed = executor.submit(SessionMetrics.Endpoint.GET_SESSION, () -> {
+                throw new IllegalStateException();
+            });
+            try {
+                failed.get();
+                assert (false);
+            } catch (Exception e) {
+                //  Expected
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assert (registry.get(SessionMetrics.METRIC_ENDPOINT_LATENCY)
+                .tag(SessionMetrics.TAG_ENDPOINT, "getsession").timer().count() == 2);
+        assert (registry.get(SessionMetrics.METRIC_ENDPOINT_LATENCY)
+                .tag(SessionMetrics.TAG_ENDPOINT, "update").timer().count() == 0);
+    }
+
+    @Test
+    public void testOperationsAndRetriesAreCounted() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        SessionMetrics metrics = new SessionMetrics(registry);
+        metrics.operation(SessionMetrics.Operation.GET, System.nanoTime(), 2, 0);
+        metrics.operation(SessionMetrics.Operation.GET, System.nanoTime(), 3, 0);
+        metrics.throttled(SessionMetrics.Operation.PUT);
+        assert (registry.get(SessionMetrics.METRIC_DB_LATENCY)
+                .tag(SessionMetrics.TAG_OPERATION, "get").timer().count() == 2);
+        assert (registry.get(SessionMetrics.METRIC_DB_READ_UNITS)
+                .tag(SessionMetrics.TAG_OPERATION, "get").summary().totalAmount() == 5);
+        assert (registry.get(SessionMetrics.METRIC_DB_THROTTLED)
+                .tag(SessionMetrics.TAG_OPERATION, "put").counter().count() == 1);
+
+        //  Only retries the wrapped handler agrees to make are counted
+        RetryHandler handler = new CountingRetryHandler(new RetryHandler() {
+            @Override
+            public int getNumRetries() {
+                return(1);
+            }
+
+            @Override
+            public boolean doRetry(Request request, int numRetried, RetryableException re) {
+                return(numRetried < 1);
+            }
+
+            @Override
+            public void delay(Request request, int numRetried, RetryableException re) {
+            }
+        }, metrics);
+        ThrottlingException throttled = new ThrottlingException("throttled") { };
+        assert (handler.doRetry(null, 0, throttled));
+        assert (!handler.doRetry(null, 1, throttled));
+        assert (handler.doRetry(null, 0, new RetryableException("retry") { }));
+        assert (registry.get(SessionMetrics.METRIC_DB_RETRIES)
+                .tag(SessionMetrics.TAG_CAUSE, "throttling").counter().count() == 1);
+        assert (registry.get(SessionMetrics.METRIC_DB_RETRIES)
+                .tag(SessionMetrics.TAG_CAUSE, "other").counter().count() == 1);
+    }
+}
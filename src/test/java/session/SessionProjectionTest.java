@@ -0,0 +1,53 @@
+package session;
+
+import io.micronaut.http.exceptions.HttpStatusException;
+import oracle.nosql.driver.values.FieldValue;
+import oracle.nosql.driver.values.JsonOptions;
+import oracle.nosql.driver.values.MapValue;
+import org.junit.jupiter.api.Test;
+
+public class SessionProjectionTest {
+
+    //  The shape of the session documents in data/*.json
+    private static final String SESSION = "[" +
+            "{\"userName\":\"Julie\",\"showName\":\"The Wonder Hamster\",\"showID\":1,\"seriesInfo\":[" +
+            "{\"seasonNum\":null,\"episodes\":[{\"episodeID\":null,\"minWatched\":126}]}]}," +
+            "{\"showName\":\"Call My Agent\",\"showID\":2,\"seriesInfo\":[" +
+            "{\"seasonNum\":1,\"episodes\":[{\"episodeID\":1,\"minWatched\":55},{\"episodeID\":2,\"minWatched\":31}]}]}]";
+
+    @Test
+    public void testProjectInMemory() {
+        FieldValue session = FieldValue.createFromJson(SESSION, new JsonOptions());
+        MapValue projection = SessionProjection.projectInMemory(session,
+                SessionProjection.parseFields("showID, seriesInfo.episodes.minWatched"));
+        assert (projection.get("showID").toJson().equals("[1,2]"));
+        assert (projection.get("seriesInfo.episodes.minWatched").toJson().equals("[126,55,31]"));
+    }
+
+    @Test
+    public void testMissingSessionIsNotProjected() {
+        assert (SessionProjection.projectInMemory(null, SessionProjection.parseFields("showID")) == null);
+    }
+
+    @Test
+    public void testFieldsAreNormalized() {
+        String[] paths = SessionProjection.parseFields("showName,showID,showName,");
+        assert (paths.length == 2);
+        assert (paths[0].equals("showID") && paths[1].equals("showName"));
+        String sql = SessionProjection.buildStatement(paths);
+        assert (sql.contains("[p.session_info.showID] as f0, [p.session_info.showName] as f1"));
+    }
+
+    @Test
+    public void testInvalidFieldsAreRejected() {
+        String[] invalid = {"", "showID;drop", "a..b", "seriesInfo.episodes[0]", "1abc"};
+        for (String fields : invalid) {
+            try {
+                SessionProjection.parseFields(fields);
+                assert (false) : fields;
+            } catch (HttpStatusException e) {
+                //  Expected
+            }
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package session;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.micronaut.http.HttpStatus;
+import io.micronaut.http.exceptions.HttpStatusException;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class SessionRequestExecutorTest {
+
+    private static SessionMetrics metrics() {
+        return(new SessionMetrics(new SimpleMeterRegistry()));
+    }
+
+    @Test
+    public void testSyncModeRunsInline() throws Exception {
+        SessionRequestExecutor executor = new SessionRequestExecutor(false, 0, 0, metrics());
+        assert (!executor.isAsync());
+        Thread caller = Thread.currentThread();
+        CompletableFuture<Thread> ran = executor.submit(SessionMetrics.Endpoint.GET_SESSION,
+                Thread::currentThread);
+        assert (ran.isDone());
+        assert (ran.get() == caller);
+        assert (executor.submit(Thread::currentThread).get() == caller);
+
+        //  Failures are reported through the future rather than thrown
+        CompletableFuture<Object> failed = executor.submit(() -> {
+            throw new IllegalStateException("no database");
+        });
+        assert (failed.isCompletedExceptionally());
+    }
+
+    @Test
+    public void testAsyncModeRunsOnDatabaseThreads() throws Exception {
+        SessionRequestExecutor executor = new SessionRequestExecutor(true, 2, 4, metrics());
+        try {
+            String name = executor.submit(SessionMetrics.Endpoint.GET_SESSION,
+                    () -> Thread.currentThread().getName()).get(5, TimeUnit.SECONDS);
+            assert (name.startsWith("session-db-"));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testFullQueueIsRejectedWith503() throws Exception {
+        SessionRequestExecutor executor = new SessionRequestExecutor(true, 1, 1, metrics());
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            //  One request on the only thread and one waiting in the queue
+            CompletableFuture<Boolean> running = executor.submit(SessionMetrics.Endpoint.UPDATE, () -> {
+                started.countDown();
+                try {
+                    return(release.await(5, TimeUnit.SECONDS));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return(false);
+                }
+            });
+            assert (started.await(5, TimeUnit.SECONDS));
+            CompletableFuture<Boolean> queued = executor.submit(SessionMetrics.Endpoint.UPDATE, () -> true);
+            assert (executor.getQueueDepth() == 1);
+
+            try {
+                executor.submit(SessionMetrics.Endpoint.UPDATE, () -> true);
+                assert (false);
+            } catch (HttpStatusException e) {
+                assert (e.getStatus() == HttpStatus.SERVICE_UNAVAILABLE);
+            }
+            try {
+                executor.submit(() -> true);
+                assert (false);
+            } catch (HttpStatusException e) {
+                assert (e.getStatus() == HttpStatus.SERVICE_UNAVAILABLE);
+            }
+            //  Streams see the rejection as an error rather than a thrown exception
+            try {
+                executor.single(() -> true).blockingGet();
+                assert (false);
+            } catch (HttpStatusException e) {
+                assert (e.getStatus() == HttpStatus.SERVICE_UNAVAILABLE);
+            }
+
+            release.countDown();
+            assert (running.get(5, TimeUnit.SECONDS));
+            assert (queued.get(5, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+}
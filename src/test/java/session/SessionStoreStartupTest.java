@@ -0,0 +1,42 @@
+package session;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SessionStoreStartupTest {
+
+    @Test
+    public void testRetriesInTheBackgroundUntilReady() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        SessionStoreStartup startup = new SessionStoreStartup(() -> {
+            if (calls.incrementAndGet() < 3) {
+                throw new IllegalStateException("table not ready");
+            }
+        });
+        startup.start(1);
+        for (int i = 0; i < 500 && !startup.isReady(); i++) {
+            Thread.sleep(10);
+        }
+        assert (startup.isReady());
+        assert (startup.getAttempts() == 3);
+        assert (startup.getLastFailure().getMessage().equals("table not ready"));
+        assert (startup.getReadyMillis() >= 0);
+    }
+
+    @Test
+    public void testRunOnceReportsFailure() {
+        SessionStoreStartup startup = new SessionStoreStartup(() -> {
+            throw new IllegalStateException("no credentials");
+        });
+        try {
+            startup.run();
+            assert (false);
+        } catch (Exception e) {
+            assert (e.getMessage().equals("no credentials"));
+        }
+        assert (!startup.isReady());
+        assert (startup.getAttempts() == 1);
+        assert (startup.getReadyMillis() == -1);
+    }
+}
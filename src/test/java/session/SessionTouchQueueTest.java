@@ -0,0 +1,107 @@
+package session;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import oracle.nosql.driver.Consistency;
+import oracle.nosql.driver.values.MapValue;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class SessionTouchQueueTest {
+
+    private static final long TTL_MILLIS = TimeUnit.HOURS.toMillis(10);
+
+    /**
+     * A store that remembers the batches it was asked to renew.
+     */
+    private static class RecordingStore extends OffHeapSessionStore {
+        final List<Long> accounts = new ArrayList<>();
+        final List<List<Integer>> batches = new ArrayList<>();
+
+        @Override
+        public List<TouchResult> touch(long accountNum, List<Integer> userIDs, List<SessionRecord> records) {
+            accounts.add(accountNum);
+            batches.add(new ArrayList<>(userIDs));
+            return(super.touch(accountNum, userIDs, records));
+        }
+    }
+
+    private static SessionRecord due(SessionStore store, long accountNum, int userID) {
+        SessionRecord record = store.get(accountNum, userID, Consistency.EVENTUAL);
+        return(new SessionRecord(record.getSession(), record.getVersion(),
+                System.currentTimeMillis() + TTL_MILLIS / 4));
+    }
+
+    @Test
+    public void testReadsAreDeduplicatedAndGroupedByAccount() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        RecordingStore store = new RecordingStore();
+        int a1 = store.create(1L, new MapValue().put("userName", "julie")).getUserID();
+        int a2 = store.create(1L, new MapValue().put("userName", "jim")).getUserID();
+        int b1 = store.create(2L, new MapValue().put("userName", "jane")).getUserID();
+        SessionTouchQueue queue = new SessionTouchQueue(store, null, null, new SessionMetrics(registry),
+                TTL_MILLIS, 50, 60000, 1000);
+        try {
+            for (int i = 0; i < 3; i++) {
+                assert (queue.read(1L, a1, due(store, 1L, a1)));
+            }
+            assert (queue.read(1L, a2, due(store, 1L, a2)));
+            assert (queue.read(2L, b1, due(store, 2L, b1)));
+            assert (queue.getPendingSessions() == 3);
+            queue.flush();
+        } finally {
+            queue.shutdown();
+        }
+        assert (store.batches.size() == 2);
+        for (int i = 0; i < store.batches.size(); i++) {
+            assert (store.batches.get(i).size() == (store.accounts.get(i) == 1L ? 2 : 1));
+        }
+        assert (queue.getQueued() == 3);
+        assert (queue.getRenewed() == 3);
+        assert (queue.getBatchingRatio() == 1.5);
+        assert (registry.get(SessionMetrics.METRIC_TTL_TOUCH_BATCH).summary().count() == 2);
+    }
+
+    @Test
+    public void testOnlySessionsThatAreDueAreQueued() {
+        OffHeapSessionStore store = new OffHeapSessionStore();
+        int userID = store.create(1L, new MapValue().put("userName", "julie")).getUserID();
+        SessionRecord read = store.get(1L, userID, Consistency.EVENTUAL);
+        SessionTouchQueue queue = new SessionTouchQueue(store, null, null,
+                new SessionMetrics(new SimpleMeterRegistry()), TTL_MILLIS, 50, 60000, 1000);
+        try {
+            //  Never expires
+            assert (!queue.read(1L, userID, read));
+            //  Less than half way through its time to live
+            assert (!queue.read(1L, userID, new SessionRecord(read.getSession(), read.getVersion(),
+                    System.currentTimeMillis() + TTL_MILLIS * 3 / 4)));
+            assert (queue.getPendingSessions() == 0);
+        } finally {
+            queue.shutdown();
+        }
+    }
+
+    @Test
+    public void testChangedAndExpiredSessionsAreCounted() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        OffHeapSessionStore store = new OffHeapSessionStore();
+        int changed = store.create(1L, new MapValue().put("userName", "julie")).getUserID();
+        SessionTouchQueue queue = new SessionTouchQueue(store, null, null, new SessionMetrics(registry),
+                TTL_MILLIS, 50, 60000, 1000);
+        try {
+            queue.read(1L, changed, due(store, 1L, changed));
+            store.put(1L, changed, new MapValue().put("userName", "julia"));
+            queue.read(1L, 999, new SessionRecord(new MapValue(), due(store, 1L, changed).getVersion(),
+                    System.currentTimeMillis()));
+            queue.flush();
+        } finally {
+            queue.shutdown();
+        }
+        assert (queue.getRenewed() == 0);
+        assert (queue.getChanged() == 1);
+        assert (queue.getExpired() == 1);
+        assert (registry.get(SessionMetrics.METRIC_TTL_EXPIRED).counter().count() == 1);
+    }
+}
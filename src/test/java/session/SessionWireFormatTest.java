@@ -0,0 +1,107 @@
+package session;
+
+import io.micronaut.http.HttpStatus;
+import io.micronaut.http.exceptions.HttpStatusException;
+import io.netty.buffer.ByteBuf;
+import oracle.nosql.driver.values.ArrayValue;
+import oracle.nosql.driver.values.FieldValue;
+import oracle.nosql.driver.values.JsonOptions;
+import oracle.nosql.driver.values.MapValue;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+public class SessionWireFormatTest {
+
+    @Test
+    public void testRoundTripSampleSessions() throws Exception {
+        File[] samples = new File("data").listFiles((dir, name) -> name.endsWith(".json"));
+        assert (samples != null && samples.length > 0);
+        for (File sample : samples) {
+            String json = new String(Files.readAllBytes(sample.toPath()), StandardCharsets.UTF_8);
+            FieldValue session = FieldValue.createFromJson(json, new JsonOptions()).asMap()
+                    .get(PersistentSessionManager.COL_SESSION);
+            int jsonLength = session.toJson().getBytes(StandardCharsets.UTF_8).length;
+            for (SessionWireFormat format : new SessionWireFormat[] {SessionWireFormat.CBOR,
+                    SessionWireFormat.SMILE}) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                format.write(session, out);
+                assert (format.decode(out.toByteArray()).equals(session));
+                assert (out.size() < jsonLength);
+            }
+        }
+    }
+
+    @Test
+    public void testRoundTripTypes() {
+        MapValue document = new MapValue()
+                .put("int", 28)
+                .put("long", 1L << 40)
+                .put("double", 0.5)
+                .put("boolean", true)
+                .put("string", "julie")
+                .put("binary", new byte[] {1, 2, 3})
+                .put("array", new ArrayValue().add(1).add("two").add(new MapValue()));
+        document.put("null", FieldValue.createFromJson("null", new JsonOptions()));
+        for (SessionWireFormat format : SessionWireFormat.values()) {
+            if (!format.isBinary()) {
+                continue;
+            }
+            ByteBuf buf = (ByteBuf) format.encode(document);
+            try {
+                byte[] encoded = new byte[buf.readableBytes()];
+                buf.readBytes(encoded);
+                assert (format.decode(encoded).equals(document));
+            } finally {
+                buf.release();
+            }
+        }
+        assert (SessionWireFormat.JSON.encode(document).equals(document.toJson(new JsonOptions())));
+    }
+
+    @Test
+    public void testNegotiation() {
+        assert (SessionWireFormat.forAccept(null) == SessionWireFormat.JSON);
+        assert (SessionWireFormat.forAccept("*/*") == SessionWireFormat.JSON);
+        assert (SessionWireFormat.forAccept("application/cbor") == SessionWireFormat.CBOR);
+        assert (SessionWireFormat.forAccept("text/html, application/x-jackson-smile;q=0.9, */*;q=0.1") ==
+                SessionWireFormat.SMILE);
+        assert (SessionWireFormat.forAccept("application/json, application/cbor") == SessionWireFormat.JSON);
+        assert (SessionWireFormat.forContentType(null) == SessionWireFormat.JSON);
+        assert (SessionWireFormat.forContentType("Application/CBOR") == SessionWireFormat.CBOR);
+        try {
+            SessionWireFormat.forContentType("application/xml");
+            assert (false);
+        } catch (HttpStatusException e) {
+            assert (e.getStatus() == HttpStatus.UNSUPPORTED_MEDIA_TYPE);
+        }
+    }
+
+    @Test
+    public void testMalformedBodyIsRejected() {
+        try {
+            SessionWireFormat.CBOR.decode(new byte[] {(byte) 0xbf, 0x61});
+            assert (false);
+        } catch (HttpStatusException e) {
+            assert (e.getStatus() == HttpStatus.BAD_REQUEST);
+        }
+        try {
+            SessionWireFormat.JSON.decode("{\"minWatched\":".getBytes(StandardCharsets.UTF_8));
+            assert (false);
+        } catch (HttpStatusException e) {
+            assert (e.getStatus() == HttpStatus.BAD_REQUEST);
+        }
+        for (String body : new String[] {"{\"minWatched\":", "[{]", "not json", null}) {
+            try {
+                SessionWireFormat.decodeJson(body);
+                assert (false) : body;
+            } catch (HttpStatusException e) {
+                assert (e.getStatus() == HttpStatus.BAD_REQUEST);
+            }
+        }
+        assert (SessionWireFormat.decodeJson("{\"minWatched\":5}").asMap().getInt("minWatched") == 5);
+    }
+}
@@ -0,0 +1,86 @@
+package session;
+
+import oracle.nosql.driver.values.ArrayValue;
+import oracle.nosql.driver.values.FieldValue;
+import oracle.nosql.driver.values.JsonOptions;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class SessionWorkloadTest {
+
+    private static List<FieldValue> samples() throws Exception {
+        File[] files = new File("data").listFiles((dir, name) -> name.endsWith(".json"));
+        assert (files != null && files.length > 0);
+        List<Path> paths = new ArrayList<>();
+        for (File file : files) {
+            paths.add(file.toPath());
+        }
+        List<FieldValue> samples = SessionWorkload.readSamples(paths);
+        assert (samples.size() == files.length);
+        return(samples);
+    }
+
+    @Test
+    public void testMix() throws Exception {
+        SessionWorkload workload = new SessionWorkload(samples(), 10, 0, 70, 20);
+        Random random = new Random(1);
+        int[] counts = new int[SessionWorkload.Operation.values().length];
+        for (int i = 0; i < 100000; i++) {
+            counts[workload.nextOperation(random).ordinal()]++;
+        }
+        assert (Math.abs(counts[SessionWorkload.Operation.READ.ordinal()] - 70000) < 1000);
+        assert (Math.abs(counts[SessionWorkload.Operation.UPDATE.ordinal()] - 20000) < 1000);
+        assert (Math.abs(counts[SessionWorkload.Operation.CREATE.ordinal()] - 10000) < 1000);
+    }
+
+    @Test
+    public void testAccountSkew() throws Exception {
+        Random random = new Random(1);
+        SessionWorkload even = new SessionWorkload(samples(), 10, 0, 100, 0);
+        SessionWorkload skewed = new SessionWorkload(samples(), 10, 1.5, 100, 0);
+        int[] evenCounts = new int[10];
+        int[] skewedCounts = new int[10];
+        for (int i = 0; i < 100000; i++) {
+            evenCounts[(int) even.nextAccount(random).getAccountNum() - 1]++;
+            skewedCounts[(int) skewed.nextAccount(random).getAccountNum() - 1]++;
+        }
+        for (int count : evenCounts) {
+            assert (Math.abs(count - 10000) < 1000);
+        }
+        //  The first account gets 1 / H(10, 1.5), about 50%, and 2^1.5 times as much as the second
+        assert (skewedCounts[0] > 45000 && skewedCounts[0] < 55000);
+        for (int i = 1; i < skewedCounts.length; i++) {
+            assert (skewedCounts[i] < skewedCounts[i - 1]);
+        }
+    }
+
+    @Test
+    public void testWatchAdvancesProgress() throws Exception {
+        SessionWorkload workload = new SessionWorkload(samples(), 1, 0, 0, 100);
+        ArrayValue session = workload.newSession("jim", 0);
+        assert (session.get(0).asMap().getString(PersistentSessionManager.JSON_ATTR_USER_NAME).equals("jim"));
+        String before = session.toJson();
+        SessionWorkload.User user = new SessionWorkload.User(1, session);
+        String after = user.watch(new Random(1));
+        assert (!after.equals(before));
+        FieldValue sent = FieldValue.createFromJson(after, new JsonOptions());
+        assert (sent.isArray() && sent.asArray().size() == session.size());
+        //  Each user has their own copy of the sample
+        assert (!workload.newSession("jim", 0).toJson().equals(after));
+    }
+
+    @Test
+    public void testInvalidMixIsRejected() throws Exception {
+        try {
+            new SessionWorkload(samples(), 1, 0, 80, 30);
+            assert (false);
+        } catch (IllegalArgumentException e) {
+            //  Expected
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package session;
+
+import oracle.nosql.driver.ops.TableLimits;
+import oracle.nosql.driver.values.ArrayValue;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class TableAutoScalerTest {
+
+    private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+
+    /**
+     * A table that reports whatever usage the test sets and records the limits it is given.
+     */
+    private static class FakeCapacity implements TableCapacity {
+        TableLimits limits = new TableLimits(100, 100, 5);
+        double readsPerSecond;
+        double writesPerSecond;
+        long readThrottles;
+        int changes;
+
+        @Override
+        public TableLimits getLimits() {
+            return(new TableLimits(limits.getReadUnits(), limits.getWriteUnits(), limits.getStorageGB()));
+        }
+
+        @Override
+        public Usage getUsage(long startMillis, long endMillis) {
+            return(new Usage((long) (readsPerSecond * 60), (long) (writesPerSecond * 60), readThrottles, 0,
+                    60, endMillis));
+        }
+
+        @Override
+        public void setLimits(TableLimits limits) {
+            this.limits = limits;
+            changes++;
+        }
+    }
+
+    private static TableAutoScaler.Settings settings() {
+        return(new TableAutoScaler.Settings()
+                .setReadUnits(50, 400)
+                .setWriteUnits(50, 400)
+                .setUtilization(50, 80, 30)
+                .setScaleDownEvaluations(3)
+                .setDecreaseCooldownMillis(10 * MINUTE)
+                .setMaxDecreasesPerDay(2));
+    }
+
+    @Test
+    public void testThrottlingRaisesLimitsWithinBounds() {
+        FakeCapacity table = new FakeCapacity();
+        TableAutoScaler scaler = new TableAutoScaler(table, settings());
+        table.readsPerSecond = 95;
+        table.writesPerSecond = 60;
+        table.readThrottles = 12;
+        scaler.evaluate(MINUTE);
+        //  Reads grow to fit the load at the target utilization, writes are within the thresholds
+        assert (table.limits.getReadUnits() == 190);
+        assert (table.limits.getWriteUnits() == 100);
+        assert (table.limits.getStorageGB() == 5);
+
+        table.readsPerSecond = 380;
+        scaler.evaluate(2 * MINUTE);
+        assert (table.limits.getReadUnits() == 400);
+
+        ArrayValue events = scaler.getEvents();
+        assert (events.size() == 2);
+        assert (events.get(0).asMap().getString("action").equals(TableAutoScaler.EVENT_INCREASE));
+        assert (events.get(0).asMap().getString("reason").equals("reads throttled"));
+    }
+
+    @Test
+    public void testLowUtilizationLowersLimitsWithHysteresis() {
+        FakeCapacity table = new FakeCapacity();
+        TableAutoScaler scaler = new TableAutoScaler(table, settings());
+        table.readsPerSecond = 10;
+        table.writesPerSecond = 40;
+        scaler.evaluate(MINUTE);
+        scaler.evaluate(2 * MINUTE);
+        assert (table.changes == 0);
+        scaler.evaluate(3 * MINUTE);
+        assert (table.changes == 1);
+        assert (table.limits.getReadUnits() == 50);
+        assert (table.limits.getWriteUnits() == 100);
+
+        //  Load between the thresholds changes nothing
+        table.readsPerSecond = 25;
+        for (int i = 4; i < 20; i++) {
+            scaler.evaluate(i * MINUTE);
+        }
+        assert (table.changes == 1);
+    }
+
+    @Test
+    public void testDecreasesRespectCooldownAndQuota() {
+        FakeCapacity table = new FakeCapacity();
+        table.limits = new TableLimits(400, 400, 5);
+        TableAutoScaler scaler = new TableAutoScaler(table, settings());
+        long now = 0;
+
+        //  Each drop in load may lower the limits, but only twice a day and not within the cooldown
+        double[] loads = {100, 50, 20};
+        for (double load : loads) {
+            table.readsPerSecond = load;
+            for (int i = 0; i < 20; i++) {
+                now += MINUTE;
+                scaler.evaluate(now);
+            }
+        }
+        assert (table.changes == 2);
+        assert (table.limits.getReadUnits() == 100);
+        ArrayValue events = scaler.getEvents();
+        assert (events.get(events.size() - 1).asMap().getString("action")
+                .equals(TableAutoScaler.EVENT_DEFERRED));
+
+        //  Increases are never held back
+        table.readsPerSecond = 90;
+        table.readThrottles = 1;
+        scaler.evaluate(now + MINUTE);
+        assert (table.changes == 3);
+        assert (table.limits.getReadUnits() == 180);
+
+        //  A day after the first decrease the quota allows another
+        table.readsPerSecond = 20;
+        table.readThrottles = 0;
+        now += TimeUnit.DAYS.toMillis(1);
+        for (int i = 0; i < 3; i++) {
+            now += MINUTE;
+            scaler.evaluate(now);
+        }
+        assert (table.changes == 4);
+        assert (table.limits.getReadUnits() == 50);
+    }
+}
@@ -0,0 +1,89 @@
+package session;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import oracle.nosql.driver.Consistency;
+import oracle.nosql.driver.values.MapValue;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class WriteVersionTrackerTest {
+
+    /**
+     * A store whose EVENTUAL reads are served by a replica that only has what was written before
+     * lagBehind() was called.
+     */
+    private static class LaggingStore extends OffHeapSessionStore {
+        final Map<SessionKey, SessionRecord> replica = new HashMap<>();
+        boolean lagging;
+        int absoluteReads;
+
+        void lagBehind(long accountNum, int userID) {
+            replica.put(new SessionKey(accountNum, userID), get(accountNum, userID, Consistency.ABSOLUTE));
+            absoluteReads--;
+            lagging = true;
+        }
+
+        @Override
+        public SessionRecord get(long accountNum, int userID, Consistency consistency) {
+            if (consistency == Consistency.EVENTUAL && lagging) {
+                return(replica.get(new SessionKey(accountNum, userID)));
+            }
+            if (consistency == Consistency.ABSOLUTE) {
+                absoluteReads++;
+            }
+            return(super.get(accountNum, userID, consistency));
+        }
+    }
+
+    @Test
+    public void testStaleReadsAreUpgraded() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        WriteVersionTracker tracker = new WriteVersionTracker(100, 60000, new SessionMetrics(registry));
+        LaggingStore store = new LaggingStore();
+        store.put(1, 1, new MapValue().put("minWatched", 10));
+        store.lagBehind(1, 1);
+
+        //  Not written through the tracker, so read with EVENTUAL consistency even though it is stale
+        store.put(1, 1, new MapValue().put("minWatched", 20));
+        assert (tracker.read(store, 1, 1).getSession().asMap().getInt("minWatched") == 10);
+        assert (store.absoluteReads == 0 && tracker.getTrackedReads() == 0);
+
+        tracker.written(1, 1, store.put(1, 1, new MapValue().put("minWatched", 30)));
+        assert (tracker.isTracked(1, 1) && !tracker.isTracked(1, 2));
+        assert (tracker.read(store, 1, 1).getSession().asMap().getInt("minWatched") == 30);
+        assert (store.absoluteReads == 1 && tracker.getUpgradedReads() == 1);
+
+        //  Once the replica catches up EVENTUAL reads are used again
+        store.lagging = false;
+        assert (tracker.read(store, 1, 1).getSession().asMap().getInt("minWatched") == 30);
+        assert (store.absoluteReads == 1);
+        assert (tracker.getTrackedReads() == 2 && tracker.getUpgradedReads() == 1);
+        assert (registry.get(SessionMetrics.METRIC_READ_CONSISTENCY)
+                .tag(SessionMetrics.TAG_RESULT, "upgraded").counter().count() == 1);
+        assert (registry.get(SessionMetrics.METRIC_READ_CONSISTENCY)
+                .tag(SessionMetrics.TAG_RESULT, "eventual").counter().count() == 1);
+
+        //  A session we created that the replica hasn't seen yet
+        store.lagging = true;
+        tracker.written(1, 2, store.create(1, new MapValue()).getVersion());
+        assert (tracker.read(store, 1, 2) != null);
+    }
+
+    @Test
+    public void testVersionsExpireAndAreBounded() throws InterruptedException {
+        WriteVersionTracker tracker = new WriteVersionTracker(32, 50,
+                new SessionMetrics(new SimpleMeterRegistry()));
+        OffHeapSessionStore store = new OffHeapSessionStore();
+        for (int userID = 1; userID <= 1000; userID++) {
+            tracker.written(7, userID, store.put(7, userID, new MapValue()));
+        }
+        assert (tracker.size() <= 32);
+        assert (tracker.isTracked(7, 1000));
+        Thread.sleep(100);
+        assert (!tracker.isTracked(7, 1000));
+        tracker.written(7, 1, null);
+        assert (!tracker.isTracked(7, 1));
+    }
+}